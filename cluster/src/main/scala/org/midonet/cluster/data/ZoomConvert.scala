@@ -16,7 +16,7 @@
 package org.midonet.cluster.data
 
 import java.lang.{Byte => JByte}
-import java.lang.reflect.{Array => JArray, Field, InvocationTargetException, ParameterizedType, Type}
+import java.lang.reflect.{Array => JArray, Field, InvocationTargetException, Method, ParameterizedType, Type}
 import java.util
 import java.util.{List => JList, Set => JSet, HashSet => JHashSet}
 
@@ -25,7 +25,7 @@ import scala.collection.JavaConversions._
 import scala.collection.mutable
 import scala.collection.mutable.ArrayBuffer
 
-import com.google.protobuf.Descriptors.{EnumDescriptor, EnumValueDescriptor}
+import com.google.protobuf.Descriptors.{Descriptor, EnumDescriptor, EnumValueDescriptor, FieldDescriptor}
 import com.google.protobuf.GeneratedMessage.Builder
 import com.google.protobuf.{ByteString, Descriptors, MessageOrBuilder}
 
@@ -38,6 +38,13 @@ import com.google.protobuf.{ByteString, Descriptors, MessageOrBuilder}
  *
  * The Java object class must extend the [[ZoomObject]] class, and provide a
  * parameter-less constructor.
+ *
+ * The annotations of each class are inspected once, the first time an object
+ * of the class is converted, and compiled into a [[ClassConverter]] that
+ * holds the accessible fields, their message field descriptors and their
+ * converters. Setting the system property `midonet.zoom.reflective` makes
+ * every conversion walk the annotations with reflection instead, which is
+ * only useful to compare both.
  */
 object ZoomConvert {
     private final val BuilderMethod = "newBuilder"
@@ -48,6 +55,9 @@ object ZoomConvert {
     private final val ShortClass = classOf[Short]
     private final val ByteArrayClass = classOf[Array[Byte]]
 
+    private final val Reflective = java.lang.Boolean.getBoolean(
+        "midonet.zoom.reflective")
+
     private type ProtoBuilder = Builder[_ <: Builder[_ <: AnyRef]]
 
     private case class FieldInfo(field: Field, zoomField: ZoomField)
@@ -65,6 +75,12 @@ object ZoomConvert {
     private val setConverters = new TrieMap[Class[_], SetConverter]
     private val jSetConverters = new TrieMap[Class[_], JavaSetConverter]
 
+    private val classConverters = new TrieMap[Class[_], ClassConverter]
+    private val builderMethods = new TrieMap[Class[_], Method]
+    private val factories = new TrieMap[Class[_], Option[Factory[_, _]]]
+    private val enumsToProto = new TrieMap[Any, Any]
+    private val enumsFromProto = new TrieMap[Class[_], TrieMap[String, Any]]
+
     /**
      * Converts a Java object to a Protocol Buffers message.
      *
@@ -76,7 +92,8 @@ object ZoomConvert {
         (pojo: T, protoClass: Class[U]): U = {
         pojo.beforeToProto()
         val builder = newBuilder(protoClass)
-        to(pojo, pojo.getClass, builder)
+        if (Reflective) to(pojo, pojo.getClass, builder)
+        else classConverter(pojo.getClass).to(pojo, builder)
         builder.build().asInstanceOf[U]
     }
 
@@ -95,7 +112,8 @@ object ZoomConvert {
             return null
         }
         val pojo = newFactory(proto, pojoClass).newInstance().asInstanceOf[T]
-        from(proto, pojo, pojo.getClass)
+        if (Reflective) from(proto, pojo, pojo.getClass)
+        else classConverter(pojo.getClass).from(proto, pojo)
         pojo.afterFromProto(proto)
         pojo
     }
@@ -271,8 +289,10 @@ object ZoomConvert {
     private def newBuilder[U <: MessageOrBuilder](clazz: Class[U])
     : ProtoBuilder = {
         try {
-            clazz.getMethod(ZoomConvert.BuilderMethod)
-                .invoke(null).asInstanceOf[ProtoBuilder]
+            val method = if (Reflective) clazz.getMethod(BuilderMethod)
+                         else builderMethods.getOrElseUpdate(
+                             clazz, clazz.getMethod(BuilderMethod))
+            method.invoke(null).asInstanceOf[ProtoBuilder]
         } catch {
             case e @ (_ : NoSuchMethodException |
                       _ : IllegalAccessException |
@@ -295,11 +315,12 @@ object ZoomConvert {
     private def newFactory[U <: MessageOrBuilder](proto: U,
                                                   clazz: Class[_]): Class[_] = {
         var factory = clazz
-        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        val classFactory =
+            if (Reflective) newClassFactory(clazz)
+            else factories.getOrElseUpdate(clazz, newClassFactory(clazz))
 
-        if (null != zoomClass &&
-            !zoomClass.factory().equals(classOf[DefaultFactory])) {
-            zoomClass.factory().newInstance().asInstanceOf[Factory[_, U]]
+        if (classFactory.isDefined) {
+            classFactory.get.asInstanceOf[Factory[_, U]]
                 .getType(proto) match {
                 case c: Class[_] if clazz != c => factory = newFactory(proto, c)
                 case _ =>
@@ -308,6 +329,229 @@ object ZoomConvert {
         factory
     }
 
+    /** Creates the factory specified by the [[ZoomClass]] annotation of the
+      * given class, if any. */
+    private def newClassFactory(clazz: Class[_]): Option[Factory[_, _]] = {
+        val zoomClass = clazz.getAnnotation(classOf[ZoomClass])
+        if (null != zoomClass &&
+            !zoomClass.factory().equals(classOf[DefaultFactory])) {
+            Some(zoomClass.factory().newInstance())
+        } else None
+    }
+
+    /** Gets the compiled converter for the given Java class. */
+    private def classConverter(clazz: Class[_]): ClassConverter = {
+        classConverters.getOrElseUpdate(clazz, new ClassConverter(clazz))
+    }
+
+    /**
+     * Converts the objects of a Java class from the precomputed converters of
+     * each class in its inheritance hierarchy, with the same semantics as the
+     * recursive methods `to` and `from`.
+     */
+    private final class ClassConverter(clazz: Class[_]) {
+
+        private val levels: Array[LevelConverter] = {
+            var c: Class[_] = clazz
+            var classes = List[Class[_]](c)
+            while (c != classOf[ZoomObject] &&
+                   c.getSuperclass != classOf[ZoomObject]) {
+                c = c.getSuperclass
+                classes = c :: classes
+            }
+            classes.map(new LevelConverter(_)).toArray
+        }
+
+        def to(pojo: ZoomObject, topBuilder: ProtoBuilder): ProtoBuilder = {
+            var builder = topBuilder
+            var i = 0
+            while (i < levels.length) {
+                builder = levels(i).to(pojo, builder)
+                i += 1
+            }
+            builder
+        }
+
+        def from(proto: MessageOrBuilder, pojo: ZoomObject): MessageOrBuilder = {
+            var message = proto
+            var i = 0
+            while (i < levels.length) {
+                message = levels(i).from(message, pojo)
+                i += 1
+            }
+            message
+        }
+    }
+
+    /**
+     * The message fields corresponding to the annotated fields of a class,
+     * for a given message descriptor, and their converters, which are
+     * created on first use.
+     */
+    private final class LevelFields(val descriptor: Descriptor,
+                                    val protoFields: Array[FieldDescriptor]) {
+        private val converters = new Array[Converter[_,_]](protoFields.length)
+
+        def converter(index: Int, pojoField: Field, zoomField: ZoomField)
+        : Converter[_,_] = {
+            var converter = converters(index)
+            if (converter eq null) {
+                converter = getConverter(pojoField, protoFields(index),
+                                         zoomField)
+                converters(index) = converter
+            }
+            converter
+        }
+    }
+
+    /**
+     * Converts the fields declared by one class of an object's inheritance
+     * hierarchy.
+     */
+    private final class LevelConverter(clazz: Class[_]) {
+
+        private val zoomOneOf = clazz.getAnnotation(classOf[ZoomOneOf])
+        private val pojoFields = clazz.getDeclaredFields
+            .filter(_.getAnnotation(classOf[ZoomField]) ne null)
+        private val zoomFields =
+            pojoFields.map(_.getAnnotation(classOf[ZoomField]))
+        private val genericTypes = pojoFields.map(_.getGenericType)
+        pojoFields.foreach(_.setAccessible(true))
+
+        @volatile private var oneOfField: (Descriptor, FieldDescriptor) = _
+        @volatile private var toFields: LevelFields = _
+        @volatile private var fromFields: LevelFields = _
+
+        def to(pojo: ZoomObject, superBuilder: ProtoBuilder): ProtoBuilder = {
+            val thisBuilder = if (zoomOneOf ne null) {
+                superBuilder.getFieldBuilder(
+                    getOneOfField(superBuilder.getDescriptorForType))
+                    .asInstanceOf[ProtoBuilder]
+            } else superBuilder
+
+            val descriptor = thisBuilder.getDescriptorForType
+            var fields = toFields
+            if ((fields eq null) || (fields.descriptor ne descriptor)) {
+                fields = resolve(descriptor, "field with name")
+                toFields = fields
+            }
+
+            var i = 0
+            while (i < pojoFields.length) {
+                val pojoField = pojoFields(i)
+                val protoField = fields.protoFields(i)
+                try {
+                    val pojoValue = pojoField.get(pojo)
+                    // Ignore the null fields.
+                    if (null != pojoValue) {
+                        val converter = fields.converter(i, pojoField,
+                                                         zoomFields(i))
+                        val protoValue = converter.to(pojoValue,
+                                                      genericTypes(i))
+                        thisBuilder.setField(protoField, protoValue)
+                    }
+                } catch {
+                    case e @ (_ : InstantiationException |
+                              _ : IllegalAccessException |
+                              _ : IllegalArgumentException |
+                              _ : ClassCastException) =>
+                        throw new ConvertException(
+                            s"Class $clazz failed to convert field "
+                            + s"${zoomFields(i).name} from Java type "
+                            + s"${pojoField.getType} to Protocol Buffers type "
+                            + s"${protoField.getType}", e);
+                }
+                i += 1
+            }
+            thisBuilder
+        }
+
+        def from(superMessage: MessageOrBuilder, pojo: ZoomObject)
+        : MessageOrBuilder = {
+            var message = superMessage
+            var descriptor = message.getDescriptorForType
+
+            if (zoomOneOf ne null) {
+                message = message.getField(getOneOfField(descriptor)) match {
+                    case msg: MessageOrBuilder =>
+                        descriptor = msg.getDescriptorForType
+                        msg
+                    case _ =>
+                        throw new ConvertException(
+                            s"Message ${descriptor.getName} one-of field " +
+                            s"${zoomOneOf.name} is not a Protocol Buffers " +
+                            s"message")
+                }
+            }
+
+            var fields = fromFields
+            if ((fields eq null) || (fields.descriptor ne descriptor)) {
+                fields = resolve(descriptor, "field")
+                fromFields = fields
+            }
+
+            var i = 0
+            while (i < pojoFields.length) {
+                val pojoField = pojoFields(i)
+                val protoField = fields.protoFields(i)
+                // We ignore unset message fields, and let the corresponding
+                // Java object field set to the its type-default value.
+                if (protoField.isRepeated || message.hasField(protoField)) {
+                    try {
+                        val protoValue = message.getField(protoField)
+                        val converter = fields.converter(i, pojoField,
+                                                         zoomFields(i))
+                        val pojoValue = converter.from(protoValue,
+                                                       genericTypes(i))
+                        pojoField.set(pojo, pojoValue)
+                    } catch {
+                        case e @ (_ : InstantiationException |
+                                  _ : IllegalAccessException |
+                                  _ : IllegalArgumentException |
+                                  _ : NullPointerException) =>
+                            throw new ConvertException(
+                                s"Class ${pojo.getClass} failed to convert " +
+                                s"field ${zoomFields(i).name} from Protocol " +
+                                s"Buffers type ${protoField.getType} to Java " +
+                                s"type ${pojoField.getType}", e)
+                    }
+                }
+                i += 1
+            }
+            message
+        }
+
+        private def getOneOfField(descriptor: Descriptor): FieldDescriptor = {
+            val cached = oneOfField
+            if ((cached ne null) && (cached._1 eq descriptor)) {
+                return cached._2
+            }
+            val field = descriptor.findFieldByName(zoomOneOf.name)
+            if (field eq null) {
+                throw new ConvertException(
+                    s"Message ${descriptor.getName} does not have a " +
+                    s"one-of field ${zoomOneOf.name}")
+            }
+            oneOfField = (descriptor, field)
+            field
+        }
+
+        private def resolve(descriptor: Descriptor, what: String)
+        : LevelFields = {
+            val protoFields = zoomFields.map { zoomField =>
+                val protoField = descriptor.findFieldByName(zoomField.name)
+                // Verify the field exists.
+                if (protoField eq null) {
+                    throw new ConvertException(
+                        s"Message ${descriptor.getName} does not have a " +
+                        s"$what ${zoomField.name}")
+                }
+                protoField
+            }
+            new LevelFields(descriptor, protoFields)
+        }
+    }
+
     /**
      * Gets a converter instance for a field with the given ZoomField
      * annotation.
@@ -483,38 +727,14 @@ object ZoomConvert {
             case ByteArrayClass =>
                 ByteString.copyFrom(pojoValue.asInstanceOf[Array[Byte]])
             case enumClass: Class[_] if enumClass.isEnum =>
-                val protoEnum =
-                    enumClass.getAnnotation(classOf[ZoomEnum]) match {
-                        case zoomEnum: ZoomEnum => zoomEnum.clazz
-                        case _ => throw new ConvertException(
-                            s"Enumeration $clazz requires a ZoomEnum " +
-                            s"annotation or a custom converter")
-                    }
-                val enumValue = enumClass.getField(pojoValue.toString) match {
-                    case field: Field =>
-                        field.getAnnotation(classOf[ZoomEnumValue]) match {
-                            case zoomValue: ZoomEnumValue => zoomValue.value
-                            case _ => throw new ConvertException(
-                                s"Enumeration $clazz field $pojoValue does " +
-                                s"not have a ZoomEnumValue annotation")
-                        }
-                    case _ => throw new ConvertException(
-                        s"Enumeration $clazz does not have field $pojoValue")
-                }
-                try {
-                    protoEnum.getMethod(ZoomConvert.DescriptorMethod)
-                             .invoke(null)
-                             .asInstanceOf[EnumDescriptor]
-                             .findValueByName(enumValue)
-                } catch {
-                    case e @ (_ : NoSuchMethodException |
-                              _ : IllegalAccessException |
-                              _ : ClassCastException |
-                              _ : NullPointerException) =>
-                        throw new ConvertException(
-                            s"Enumeration $clazz cannot convert field " +
-                            s"$pojoValue because the message is not an " +
-                            s"enumeration or does not contain the value");
+                if (Reflective) enumToProto(pojoValue, enumClass)
+                else enumsToProto.lookup(pojoValue) match {
+                    case null =>
+                        val protoValue = enumToProto(pojoValue, enumClass)
+                        if (protoValue != null)
+                            enumsToProto.putIfAbsent(pojoValue, protoValue)
+                        protoValue
+                    case protoValue => protoValue
                 }
             case _ => pojoValue
         }
@@ -525,35 +745,83 @@ object ZoomConvert {
             case ShortClass => protoValue.asInstanceOf[Int].toShort
             case ByteArrayClass => protoValue.asInstanceOf[ByteString].toByteArray
             case enumClass: Class[_] if enumClass.isEnum =>
-                val protoEnum =
-                    enumClass.getAnnotation(classOf[ZoomEnum]) match {
-                        case zoomEnum: ZoomEnum => zoomEnum.clazz
-                        case _ => throw new ConvertException(
-                            s"Enumeration $clazz requires a ZoomEnum " +
-                            s"annotation or a custom converter")
-                    }
-                val protoEnumName = protoValue match {
-                    case value: EnumValueDescriptor => value.getName
+                if (Reflective) enumFromProto(protoValue, enumClass)
+                else protoValue match {
+                    case value: EnumValueDescriptor =>
+                        enumsFromProto.getOrElseUpdate(
+                            enumClass, new TrieMap[String, Any])
+                            .getOrElseUpdate(value.getName,
+                                             enumFromProto(value, enumClass))
+                    case _ => enumFromProto(protoValue, enumClass)
+                }
+            case _ => protoValue
+        }
+
+        private def enumToProto(pojoValue: Any, enumClass: Class[_]): Any = {
+            val protoEnum =
+                enumClass.getAnnotation(classOf[ZoomEnum]) match {
+                    case zoomEnum: ZoomEnum => zoomEnum.clazz
                     case _ => throw new ConvertException(
-                        s"Cannot convert $protoValue to enumeration $clazz " +
-                        s"because is not a Protocol Buffers enum value")
+                        s"Enumeration $enumClass requires a ZoomEnum " +
+                        s"annotation or a custom converter")
                 }
-                enumClass.getFields.find(field => {
-                    field.isEnumConstant &&
-                    (field.getAnnotation(classOf[ZoomEnumValue]) match {
-                        case zoomValue: ZoomEnumValue =>
-                            zoomValue.value.equals(protoEnumName)
+            val enumValue = enumClass.getField(pojoValue.toString) match {
+                case field: Field =>
+                    field.getAnnotation(classOf[ZoomEnumValue]) match {
+                        case zoomValue: ZoomEnumValue => zoomValue.value
                         case _ => throw new ConvertException(
-                            s"Enumeration $clazz field $field does not have " +
-                            s"a ZoomEnumValue annotation")
-                    })
-                }) match {
-                    case Some(pojoField) => pojoField.get(null)
-                    case None => throw new ConvertException(
-                        s"Enumeration $clazz does not have a field matching " +
-                        s"value $protoValue of Protocol Buffers $protoEnum")
+                            s"Enumeration $enumClass field $pojoValue does " +
+                            s"not have a ZoomEnumValue annotation")
+                    }
+                case _ => throw new ConvertException(
+                    s"Enumeration $enumClass does not have field $pojoValue")
+            }
+            try {
+                protoEnum.getMethod(ZoomConvert.DescriptorMethod)
+                         .invoke(null)
+                         .asInstanceOf[EnumDescriptor]
+                         .findValueByName(enumValue)
+            } catch {
+                case e @ (_ : NoSuchMethodException |
+                          _ : IllegalAccessException |
+                          _ : ClassCastException |
+                          _ : NullPointerException) =>
+                    throw new ConvertException(
+                        s"Enumeration $enumClass cannot convert field " +
+                        s"$pojoValue because the message is not an " +
+                        s"enumeration or does not contain the value");
+            }
+        }
+
+        private def enumFromProto(protoValue: Any, enumClass: Class[_]): Any = {
+            val protoEnum =
+                enumClass.getAnnotation(classOf[ZoomEnum]) match {
+                    case zoomEnum: ZoomEnum => zoomEnum.clazz
+                    case _ => throw new ConvertException(
+                        s"Enumeration $enumClass requires a ZoomEnum " +
+                        s"annotation or a custom converter")
                 }
-            case _ => protoValue
+            val protoEnumName = protoValue match {
+                case value: EnumValueDescriptor => value.getName
+                case _ => throw new ConvertException(
+                    s"Cannot convert $protoValue to enumeration $enumClass " +
+                    s"because is not a Protocol Buffers enum value")
+            }
+            enumClass.getFields.find(field => {
+                field.isEnumConstant &&
+                (field.getAnnotation(classOf[ZoomEnumValue]) match {
+                    case zoomValue: ZoomEnumValue =>
+                        zoomValue.value.equals(protoEnumName)
+                    case _ => throw new ConvertException(
+                        s"Enumeration $enumClass field $field does not have " +
+                        s"a ZoomEnumValue annotation")
+                })
+            }) match {
+                case Some(pojoField) => pojoField.get(null)
+                case None => throw new ConvertException(
+                    s"Enumeration $enumClass does not have a field matching " +
+                    s"value $protoValue of Protocol Buffers $protoEnum")
+            }
         }
     }
 
@@ -567,7 +835,11 @@ object ZoomConvert {
             case c: Class[_] if classOf[ZoomObject].isAssignableFrom(c) =>
                 val protoClass = c.getAnnotation(classOf[ZoomClass]).clazz()
                 val builder = newBuilder(protoClass)
-                ZoomConvert.to(value.asInstanceOf[ZoomObject], c, builder)
+                if (Reflective)
+                    ZoomConvert.to(value.asInstanceOf[ZoomObject], c, builder)
+                else
+                    classConverter(c).to(value.asInstanceOf[ZoomObject],
+                                         builder)
                 builder.build()
             case _ => throw new ConvertException(
                 s"Object converter not supported for class $clazz");
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.{LinkedHashMap => JLinkedHashMap, Map => JMap}
+
+import org.apache.zookeeper.Watcher.Event.{EventType, KeeperState}
+import org.apache.zookeeper.{WatchedEvent, Watcher}
+
+import org.midonet.cluster.data.storage.ObjectCache.Entry
+
+object ObjectCache {
+    private case class Entry(version: Int, obj: AnyRef)
+}
+
+/**
+ * A bounded, least-recently-used cache of the objects read by the
+ * [[ZookeeperObjectMapper]], indexed by their ZooKeeper path.
+ *
+ * Each entry records the version of the node it was read from. Objects are
+ * only added while a watch is pending on their path (see [[watch]]), which
+ * removes the entry when the node changes or is deleted, or when the
+ * ZooKeeper connection state changes, such that the cache never serves an
+ * object older than the last notification received by this client.
+ *
+ * There is at most one pending watcher per path: the read that misses the
+ * cache sets a watch only if there isn't one already, since the ZooKeeper
+ * client keeps every distinct watcher set on a path until the node changes.
+ * ZooKeeper delivers the notification of a change before the data of any
+ * later read, so the watch set by an earlier read also covers the object
+ * read by a later one. Once the watch fires, the next read sets a new one.
+ * The watch of an evicted entry stays until the node changes, and may then
+ * remove a newer entry for the same path, which only costs a miss. An entry
+ * is never replaced by an object read from an older node version.
+ *
+ * The cache only holds immutable objects, since the same instance is returned
+ * to all callers.
+ *
+ * @param capacity The maximum number of objects. A zero capacity disables
+ *                 the cache.
+ */
+private[storage] class ObjectCache(val capacity: Int) {
+
+    private val entries = new JLinkedHashMap[String, Entry](16, 0.75f, true) {
+        override def removeEldestEntry(eldest: JMap.Entry[String, Entry])
+        : Boolean = size() > capacity
+    }
+
+    private val watchers = new ConcurrentHashMap[String, PathWatcher]()
+
+    private val hitCount = new AtomicLong()
+    private val missCount = new AtomicLong()
+
+    def isEnabled: Boolean = capacity > 0
+
+    /** Returns the object cached for the given path, or null. */
+    def get(path: String): AnyRef = {
+        val entry = entries.synchronized { entries.get(path) }
+        if (entry ne null) {
+            hitCount.incrementAndGet()
+            entry.obj
+        } else {
+            missCount.incrementAndGet()
+            null
+        }
+    }
+
+    /** Caches the object read from the given path and node version, unless
+      * a newer version is already cached or no watch is pending on the
+      * path. */
+    def put(path: String, version: Int, obj: AnyRef): Unit = {
+        if (!isEnabled) return
+        entries.synchronized {
+            val entry = entries.get(path)
+            if (watchers.containsKey(path) &&
+                ((entry eq null) || entry.version <= version)) {
+                entries.put(path, Entry(version, obj))
+            }
+        }
+    }
+
+    /** Removes the object cached for the given path. */
+    def invalidate(path: String): Unit = entries.synchronized {
+        entries.remove(path)
+    }
+
+    /** Removes all objects. */
+    def clear(): Unit = entries.synchronized { entries.clear() }
+
+    /** Returns a watcher that invalidates the object cached for the given
+      * path, to be set when reading the object, or null if a watch is
+      * already pending on the path. */
+    def watch(path: String): Watcher = {
+        val watcher = new PathWatcher(path)
+        if (watchers.putIfAbsent(path, watcher) eq null) watcher else null
+    }
+
+    /** Forgets the given watcher, when the read that should have set it
+      * failed. */
+    def unwatch(path: String, watcher: Watcher): Unit = entries.synchronized {
+        watchers.remove(path, watcher)
+        entries.remove(path)
+    }
+
+    private class PathWatcher(path: String) extends Watcher {
+        override def process(event: WatchedEvent): Unit = entries.synchronized {
+            // The watch stays set across disconnections, and fires with the
+            // node events or when the session expires.
+            if (event.getType != EventType.None ||
+                event.getState == KeeperState.Expired) {
+                watchers.remove(path, this)
+            }
+            entries.remove(path)
+        }
+    }
+
+    def size: Int = entries.synchronized { entries.size() }
+
+    def hits: Long = hitCount.get
+
+    def misses: Long = missCount.get
+}
@@ -459,6 +459,19 @@ abstract class TransactionManager(classes: ClassesMap, bindings: BindingsMap) {
         objCache(key) = Some(ObjSnapshot(thisObj, thisVersion, owners))
     }
 
+    /**
+     * Returns the keys and versions of the objects read by this transaction
+     * without being modified.
+     */
+    protected def readOnlyVersions: Seq[(Key, Int)] = {
+        val list = new ListBuffer[(Key, Int)]
+        for ((key, Some(snapshot)) <- objCache
+             if !ops.contains(key) && snapshot.version != NewObjectVersion) {
+            list += key -> snapshot.version
+        }
+        list
+    }
+
     /**
      * Flattens the current operations in a single key-op sequence.
      */
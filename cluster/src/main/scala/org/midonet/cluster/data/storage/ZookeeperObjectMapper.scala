@@ -17,7 +17,7 @@ package org.midonet.cluster.data.storage
 
 import java.io.StringWriter
 import java.lang.{Long => JLong}
-import java.util.concurrent.Executors
+import java.util.concurrent.{Executors, ThreadLocalRandom}
 import java.util.concurrent.atomic.AtomicLong
 import java.util.{ConcurrentModificationException, List => JList}
 
@@ -112,12 +112,42 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * OBJECT CACHE:
+ * The get methods serve Protocol Buffers objects from a bounded
+ * [[ObjectCache]] when there is no subscription to the object. The objects
+ * are added when read from ZooKeeper, and removed by a watch set with the
+ * same read, or when this instance modifies or deletes them. POJO classes are
+ * not cached, since callers may modify the returned objects. A zero
+ * `objectCacheSize` disables the cache.
+ *
+ * OPTIMISTIC TRANSACTIONS:
+ * By default, a transaction creates a sequential node under the locks path to
+ * learn the current ZXID, and fails if any object it reads was modified after
+ * that ZXID. When `optimisticTransactions` is set, the transaction does not
+ * create this node. Instead, the commit checks the version of every object the
+ * transaction read, including the objects it did not modify, and multi()
+ * retries the whole transaction with a bounded, randomized exponential backoff
+ * when the commit fails because another writer modified the same objects or
+ * their owners. The operations are then applied to the new object versions.
  */
 class ZookeeperObjectMapper(
     private val basePathPrefix: String,
-    private val curator: CuratorFramework) extends StorageWithOwnership {
+    private val curator: CuratorFramework,
+    objectCacheSize: Int,
+    optimisticTransactions: Boolean) extends StorageWithOwnership {
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+
+    def this(basePathPrefix: String, curator: CuratorFramework) =
+        this(basePathPrefix, curator,
+             ZookeeperObjectMapper.DEFAULT_OBJECT_CACHE_SIZE,
+             optimisticTransactions = false)
+
+    def this(basePathPrefix: String, curator: CuratorFramework,
+             objectCacheSize: Int) =
+        this(basePathPrefix, curator, objectCacheSize,
+             optimisticTransactions = false)
     @volatile private var built = false
 
     /* Monotonically increasing version number for the data set path under
@@ -149,6 +179,8 @@ class ZookeeperObjectMapper(
     private val ownerCaches = new mutable.HashMap[
         Class[_], TrieMap[String, DirectorySubscriptionCache]]
 
+    private val objectCache = new ObjectCache(objectCacheSize)
+
     /**
      * Manages objects referenced by the primary target of a create, update,
      * or delete operation.
@@ -159,8 +191,12 @@ class ZookeeperObjectMapper(
      * object loaded from Zookeeper will not have the first backreference
      * added. Since updates are not incremental, the first backreference will
      * be lost.
+     *
+     * An optimistic transaction does not acquire the current ZXID, and
+     * instead validates the versions of all objects read when committing.
      */
-    private class ZoomTransactionManager(val version: Long)
+    private class ZoomTransactionManager(val version: Long,
+                                         val optimistic: Boolean)
             extends TransactionManager(classInfo.toMap, allBindings) {
 
         import ZookeeperObjectMapper._
@@ -169,7 +205,9 @@ class ZookeeperObjectMapper(
         // ZXID. This will allow us to determine if any of the nodes we read
         // have been modified since the TransactionManager was created, allowing
         // us to ensure a consistent read across multiple nodes.
-        private val (lockPath: String, zxid: Long) = try {
+        private val (lockPath: String, zxid: Long) = if (optimistic) {
+            (null, Long.MaxValue)
+        } else try {
             val path = curator.create().creatingParentsIfNeeded()
                               .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
                               .forPath(locksPath(version))
@@ -204,6 +242,7 @@ class ZookeeperObjectMapper(
                 case ex: Exception =>
                     throw new InternalObjectMapperException(ex)
             }
+            val dataVersion = stat.getVersion
 
             val children = if (stat.getNumChildren > 0) try {
                 curator.getChildren.storingStatIn(stat).forPath(path)
@@ -215,7 +254,7 @@ class ZookeeperObjectMapper(
                     throw new InternalObjectMapperException(ex)
             } else Set.empty[String]
 
-            if (stat.getMzxid > zxid) {
+            if (stat.getMzxid > zxid || stat.getVersion != dataVersion) {
                 throw new ConcurrentModificationException(
                     s"${clazz.getSimpleName} with ID $id was modified " +
                     "during the transaction.")
@@ -250,7 +289,21 @@ class ZookeeperObjectMapper(
                 }
             }
 
+            // The objects read but not modified are checked only by
+            // optimistic transactions, the others verify their ZXID.
+            if (optimistic) {
+                for ((Key(clazz, id), ver) <- readOnlyVersions) {
+                    txn = txn.check().withVersion(ver)
+                             .forPath(getPath(clazz, id)).and()
+                }
+            }
+
             try txn.commit() catch {
+                case nee: NodeExistsException if optimistic &&
+                    opForException(ops, nee)._2.isInstanceOf[TxCreateOwner] =>
+                    // The owners were modified since the transaction read
+                    // them: retry with the current owners.
+                    throw new ConcurrentModificationException(nee)
                 case nee: NodeExistsException =>
                     rethrowException(ops, nee)
                 case nee: NotEmptyException =>
@@ -265,10 +318,19 @@ class ZookeeperObjectMapper(
                     throw new ConcurrentModificationException(ex)
                 case ex: Exception =>
                     throw new InternalObjectMapperException(ex)
+            } finally {
+                // The watches set by the object cache would eventually remove
+                // the modified objects, but this makes the changes visible to
+                // the gets issued by the caller right after the commit.
+                if (objectCache.isEnabled) {
+                    for ((Key(clazz, id), _) <- ops) {
+                        objectCache.invalidate(getPath(clazz, id))
+                    }
+                }
             }
         }
 
-        def releaseLock(): Unit = try {
+        def releaseLock(): Unit = if (lockPath ne null) try {
             curator.delete().forPath(lockPath)
         } catch {
             // Not much we can do. Fortunately, it's ephemeral.
@@ -500,29 +562,72 @@ class ZookeeperObjectMapper(
         instanceCaches(clazz).get(id.toString) match {
             case Some(cache) => cache.asInstanceOf[InstanceSubscriptionCache[T]]
                                      .observable.asFuture
+            case None if isCached(clazz) =>
+                val path = getPath(clazz, id)
+                objectCache.get(path) match {
+                    case null => getFromZk(clazz, id, path, cached = true)
+                    case obj => Future.successful(obj.asInstanceOf[T])
+                }
             case None =>
-                val p = Promise[T]()
-                val cb = new BackgroundCallback {
-                    override def processResult(client: CuratorFramework,
-                                               e: CuratorEvent): Unit = {
-                        if (e.getStat == null) {
-                            p.failure(new NotFoundException(clazz, id))
-                        } else {
-                            try {
-                                p.success(deserialize(e.getData, clazz))
-                            } catch {
-                                case t: Throwable => p.failure(t)
-                            }
+                getFromZk(clazz, id, getPath(clazz, id), cached = false)
+        }
+    }
+
+    /**
+     * Reads an object from ZooKeeper. If `cached` is true, the object is added
+     * to the object cache, with a watch that removes it when it changes, unless
+     * another read already set one.
+     */
+    private def getFromZk[T](clazz: Class[T], id: ObjId, path: String,
+                             cached: Boolean): Future[T] = {
+        val p = Promise[T]()
+        val watcher = if (cached) objectCache.watch(path) else null
+        val cb = new BackgroundCallback {
+            override def processResult(client: CuratorFramework,
+                                       e: CuratorEvent): Unit = {
+                if (e.getStat == null) {
+                    // A failed read doesn't set the watch.
+                    if (watcher ne null) {
+                        objectCache.unwatch(path, watcher)
+                    }
+                    p.failure(new NotFoundException(clazz, id))
+                } else {
+                    try {
+                        val obj = deserialize(e.getData, clazz)
+                        if (cached) {
+                            objectCache.put(path, e.getStat.getVersion,
+                                            obj.asInstanceOf[AnyRef])
                         }
+                        p.success(obj)
+                    } catch {
+                        case t: Throwable => p.failure(t)
                     }
                 }
-                curator.getData
-                       .inBackground(cb)
-                       .forPath(getPath(clazz, id))
-                p.future
+            }
         }
+        if (watcher ne null) {
+            curator.getData
+                   .usingWatcher(watcher)
+                   .inBackground(cb)
+                   .forPath(path)
+        } else {
+            curator.getData
+                   .inBackground(cb)
+                   .forPath(path)
+        }
+        p.future
     }
 
+    private def isCached(clazz: Class[_]): Boolean = {
+        objectCache.isEnabled && classOf[Message].isAssignableFrom(clazz)
+    }
+
+    /** The number of gets served from the object cache. */
+    def objectCacheHits: Long = objectCache.hits
+
+    /** The number of gets of cacheable objects read from ZooKeeper. */
+    def objectCacheMisses: Long = objectCache.misses
+
     override def getAll[T](clazz: Class[T], ids: Seq[_ <: ObjId])
     : Seq[Future[T]] = {
         assertBuilt()
@@ -617,7 +722,37 @@ class ZookeeperObjectMapper(
         assertBuilt()
         if (ops.isEmpty) return
 
-        val manager = new ZoomTransactionManager(version.longValue())
+        if (optimisticTransactions) {
+            var attempt = 0
+            while (true) {
+                val manager = new ZoomTransactionManager(version.longValue(),
+                                                         optimistic = true)
+                try {
+                    applyOps(manager, ops)
+                    manager.commit()
+                    return
+                } catch {
+                    case e: ConcurrentModificationException
+                        if attempt < MAX_OPTIMISTIC_RETRIES =>
+                        attempt += 1
+                        log.debug(s"Transaction conflict, retrying attempt " +
+                                  s"$attempt: ${e.getMessage}")
+                        Thread.sleep(ThreadLocalRandom.current.nextLong(
+                            OPTIMISTIC_BACKOFF_MS << attempt))
+                }
+            }
+        } else {
+            val manager = new ZoomTransactionManager(version.longValue(),
+                                                     optimistic = false)
+            try {
+                applyOps(manager, ops)
+                manager.commit()
+            } finally { manager.releaseLock() }
+        }
+    }
+
+    private def applyOps(manager: ZoomTransactionManager,
+                         ops: Seq[PersistenceOp]): Unit = {
         ops.foreach {
             case CreateOp(obj) => manager.create(obj)
             case CreateWithOwnerOp(obj, owner) => manager.create(obj, owner)
@@ -633,8 +768,6 @@ class ZookeeperObjectMapper(
             case DeleteOwnerOp(clazz, id, owner) =>
                 manager.deleteOwner(clazz, id, owner)
         }
-
-        try manager.commit() finally { manager.releaseLock() }
     }
 
     /**
@@ -659,6 +792,7 @@ class ZookeeperObjectMapper(
             simpleNameToClass.clear()
             // TODO: Need to close all class subscriptions.
             classCaches.clear()
+            objectCache.clear()
             ownerCaches.values.foreach( _.values.foreach { _.close() })
             ownerCaches.clear()
             for (info <- classInfo.values)
@@ -768,6 +902,9 @@ class ZookeeperObjectMapper(
 object ZookeeperObjectMapper {
     private val VERSION_NODE = "dataset_version"
     private val INITIAL_ZOOM_DATA_SET_VERSION = 1
+    private val DEFAULT_OBJECT_CACHE_SIZE = 10000
+    private val MAX_OPTIMISTIC_RETRIES = 10
+    private val OPTIMISTIC_BACKOFF_MS = 1L
 
     private[storage] final class MessageClassInfo(clazz: Class[_],
                                                   ownershipType: OwnershipType)
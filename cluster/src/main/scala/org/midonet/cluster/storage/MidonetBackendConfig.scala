@@ -37,6 +37,17 @@ trait MidonetBackendConfig {
     @ConfigInt(key = "zookeeper_max_retries", defaultValue = 10)
     def zookeeperMaxRetries: Int
 
+    /* The maximum number of objects kept by the storage read cache, or zero
+     * to disable the cache. */
+    @ConfigInt(key = "object_cache_size", defaultValue = 10000)
+    def objectCacheSize: Int
+
+    /* If set, storage transactions do not serialize on a ZooKeeper node, but
+     * validate the versions of the objects they read when committing, and
+     * are retried on conflicts. */
+    @ConfigBool(key = "optimistic_transactions", defaultValue = false)
+    def optimisticTransactions: Boolean
+
     /* This property is transitional while we support the dual storage stack.
      * if set, it will tell the Cluster components to use the new storage
      * stack.  It is not documented for production use.  When the new
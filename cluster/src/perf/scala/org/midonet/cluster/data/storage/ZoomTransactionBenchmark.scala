@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import java.util.{ConcurrentModificationException, UUID}
+import java.util.concurrent.{Callable, ExecutorService, Executors, TimeUnit}
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryNTimes
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.storage.FieldBinding.DeleteAction._
+import org.midonet.cluster.models.Topology.{Network, Port}
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Measures the time for a number of concurrent writers to commit one
+ * transaction each, with locking and with optimistic transactions, against an
+ * in-process ZooKeeper server. Every transaction creates a port on one of a
+ * few networks, such that the writers conflict on the port back-references of
+ * the networks. The write throughput is the number of writers divided by the
+ * average time.
+ *
+ * A locking transaction fails when another writer modifies an object it read,
+ * so the writers retry a failed transaction until it commits. Optimistic
+ * transactions retry internally, and only reach this loop when they exhaust
+ * their retries.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomTransactionBenchmark {
+
+    @Param(Array("1", "2", "4", "8", "16"))
+    var writers: Int = _
+
+    @Param(Array("false", "true"))
+    var optimistic: Boolean = _
+
+    @Param(Array("4"))
+    var networks: Int = _
+
+    private var zk: TestingServer = _
+    private var curator: CuratorFramework = _
+    private var zoom: ZookeeperObjectMapper = _
+    private var executor: ExecutorService = _
+    private var networkIds: Array[UUID] = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        zk = new TestingServer
+        zk.start()
+        curator = CuratorFrameworkFactory.newClient(zk.getConnectString,
+                                                    new RetryNTimes(2, 1000))
+        curator.start()
+        curator.blockUntilConnected()
+
+        zoom = new ZookeeperObjectMapper("/zoom", curator, 0, optimistic)
+        zoom.registerClass(classOf[Network])
+        zoom.registerClass(classOf[Port])
+        zoom.declareBinding(classOf[Port], "network_id", CLEAR,
+                            classOf[Network], "port_ids", ERROR)
+        zoom.build()
+
+        networkIds = Array.fill(networks)(UUID.randomUUID)
+        for (id <- networkIds) {
+            zoom.create(Network.newBuilder.setId(id.asProto).build())
+        }
+
+        executor = Executors.newFixedThreadPool(writers)
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = {
+        executor.shutdown()
+        curator.close()
+        zk.close()
+    }
+
+    @Benchmark
+    def createPorts(): Unit = {
+        val futures = for (index <- 0 until writers) yield {
+            executor.submit(new Callable[Unit] {
+                override def call(): Unit = {
+                    val port = Port.newBuilder
+                                   .setId(UUID.randomUUID.asProto)
+                                   .setNetworkId(networkIds(
+                                       index % networks).asProto)
+                                   .build()
+                    var committed = false
+                    while (!committed) {
+                        try {
+                            zoom.create(port)
+                            committed = true
+                        } catch {
+                            case e: ConcurrentModificationException =>
+                        }
+                    }
+                }
+            })
+        }
+        futures.foreach(_.get)
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.data.storage
+
+import org.apache.zookeeper.WatchedEvent
+import org.apache.zookeeper.Watcher.Event.{EventType, KeeperState}
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class ObjectCacheTest extends FeatureSpec with Matchers {
+
+    val path = "/objects/1"
+
+    def nodeChanged = new WatchedEvent(EventType.NodeDataChanged,
+                                       KeeperState.SyncConnected, path)
+
+    feature("The cache sets one watch per path") {
+        scenario("Misses of an evicted object don't set more watches") {
+            val cache = new ObjectCache(1)
+            val watcher = cache.watch(path)
+            watcher should not be null
+            cache.put(path, 0, "a")
+            cache.watch("/objects/2")
+            cache.put("/objects/2", 0, "b")
+
+            cache.get(path) shouldBe null
+            cache.watch(path) shouldBe null
+        }
+
+        scenario("A new watch is set once the previous one fired") {
+            val cache = new ObjectCache(1)
+            val watcher = cache.watch(path)
+            cache.put(path, 0, "a")
+
+            watcher.process(nodeChanged)
+            cache.get(path) shouldBe null
+            cache.watch(path) should not be null
+        }
+
+        scenario("A new watch is set after a failed read") {
+            val cache = new ObjectCache(1)
+            cache.unwatch(path, cache.watch(path))
+            cache.watch(path) should not be null
+        }
+
+        scenario("A disconnection doesn't remove the watch") {
+            val cache = new ObjectCache(1)
+            val watcher = cache.watch(path)
+            cache.put(path, 0, "a")
+
+            watcher.process(new WatchedEvent(EventType.None,
+                                             KeeperState.Disconnected, null))
+            cache.get(path) shouldBe null
+            cache.watch(path) shouldBe null
+        }
+    }
+
+    feature("The cache only holds watched objects") {
+        scenario("An object read without a pending watch isn't cached") {
+            val cache = new ObjectCache(1)
+            cache.put(path, 0, "a")
+            cache.get(path) shouldBe null
+        }
+
+        scenario("An object read from an older version isn't cached") {
+            val cache = new ObjectCache(1)
+            cache.watch(path)
+            cache.put(path, 1, "b")
+            cache.put(path, 0, "a")
+            cache.get(path) shouldBe "b"
+        }
+    }
+}
@@ -541,6 +541,143 @@ class ZookeeperObjectMapperTests extends Suite
         await(zom.exists(classOf[PojoPort], port2.id)) should equal (true)
     }
 
+    def testObjectCacheHit(): Unit = {
+        val network = protoNetwork(name = "network")
+        zom.create(network)
+
+        await(zom.get(classOf[Network], network.getId.asJava)) shouldBe network
+        zom.objectCacheMisses shouldBe 1
+        zom.objectCacheHits shouldBe 0
+
+        await(zom.get(classOf[Network], network.getId.asJava)) shouldBe network
+        zom.objectCacheMisses shouldBe 1
+        zom.objectCacheHits shouldBe 1
+    }
+
+    def testObjectCacheDoesNotCachePojos(): Unit = {
+        val bridge = pojoBridge()
+        zom.create(bridge)
+
+        val bridge1 = await(zom.get(classOf[PojoBridge], bridge.id))
+        val bridge2 = await(zom.get(classOf[PojoBridge], bridge.id))
+        bridge1 should not be theSameInstanceAs(bridge2)
+        zom.objectCacheHits shouldBe 0
+        zom.objectCacheMisses shouldBe 0
+    }
+
+    def testObjectCacheInvalidatedByUpdate(): Unit = {
+        val network = protoNetwork(name = "network")
+        zom.create(network)
+        await(zom.get(classOf[Network], network.getId.asJava))
+
+        val updated = network.toBuilder.setName("updated").build()
+        zom.update(updated)
+        await(zom.get(classOf[Network], network.getId.asJava)) shouldBe updated
+        zom.objectCacheMisses shouldBe 2
+    }
+
+    def testObjectCacheInvalidatedByDelete(): Unit = {
+        val network = protoNetwork()
+        zom.create(network)
+        await(zom.get(classOf[Network], network.getId.asJava))
+
+        zom.delete(classOf[Network], network.getId.asJava)
+        intercept[NotFoundException] {
+            await(zom.get(classOf[Network], network.getId.asJava))
+        }
+    }
+
+    def testObjectCacheInvalidatedByWatch(): Unit = {
+        val network = protoNetwork(name = "network")
+        zom.create(network)
+        await(zom.get(classOf[Network], network.getId.asJava))
+
+        // Another writer modifies the object.
+        val updated = network.toBuilder.setName("updated").build()
+        val path = zom.getPath(classOf[Network], network.getId.asJava)
+        curator.setData().forPath(path, updated.toString.getBytes)
+
+        val deadline = System.currentTimeMillis + 1000
+        while (await(zom.get(classOf[Network], network.getId.asJava)) != updated &&
+               System.currentTimeMillis < deadline) {
+            Thread.sleep(10)
+        }
+        await(zom.get(classOf[Network], network.getId.asJava)) shouldBe updated
+    }
+
+    def testObjectCacheDisabled(): Unit = {
+        val zom2 = new ZookeeperObjectMapper(ZK_ROOT, curator, 0)
+        initAndBuildZoom(zom2)
+        val network = protoNetwork()
+        zom2.create(network)
+
+        await(zom2.get(classOf[Network], network.getId.asJava)) shouldBe network
+        await(zom2.get(classOf[Network], network.getId.asJava)) shouldBe network
+        zom2.objectCacheHits shouldBe 0
+        zom2.objectCacheMisses shouldBe 0
+    }
+
+    def testOptimisticMultiDoesNotLock(): Unit = {
+        val zom2 = new ZookeeperObjectMapper(ZK_ROOT, curator, 0,
+                                             optimisticTransactions = true)
+        initAndBuildZoom(zom2)
+        val network = protoNetwork()
+        val port = protoPort(networkId = network.getId)
+        zom2.multi(List(CreateOp(network), CreateOp(port)))
+
+        curator.checkExists().forPath(s"$ZK_ROOT/1/zoomlocks") shouldBe null
+        val updatedNetwork = await(zom2.get(classOf[Network],
+                                            network.getId.asJava))
+        updatedNetwork.getPortIdsList.asScala should contain only port.getId
+    }
+
+    def testOptimisticMultiRetriesConflicts(): Unit = {
+        val zom2 = new ZookeeperObjectMapper(ZK_ROOT, curator, 0,
+                                             optimisticTransactions = true)
+        initAndBuildZoom(zom2)
+        val network = protoNetwork()
+        zom2.create(network)
+
+        // Concurrent writers adding back-references to the same network.
+        val ports = for (i <- 0 until 8) yield protoPort(
+            networkId = network.getId)
+        val executor = Executors.newFixedThreadPool(ports.size)
+        try {
+            val futures = ports.map { port =>
+                executor.submit(new Runnable {
+                    override def run(): Unit = zom2.create(port)
+                })
+            }
+            futures.foreach(_.get(10, TimeUnit.SECONDS))
+        } finally {
+            executor.shutdown()
+        }
+
+        val updatedNetwork = await(zom2.get(classOf[Network],
+                                            network.getId.asJava))
+        updatedNetwork.getPortIdsList.asScala should contain theSameElementsAs
+            ports.map(_.getId)
+    }
+
+    def testOptimisticMultiWithLockingWriter(): Unit = {
+        val zom2 = new ZookeeperObjectMapper(ZK_ROOT, curator, 0,
+                                             optimisticTransactions = true)
+        initAndBuildZoom(zom2)
+        val network = protoNetwork()
+        zom2.create(network)
+
+        // Optimistic and locking writers modify the same object.
+        zom.update(network.toBuilder.setName("name1").build())
+        zom2.update(network.toBuilder.setName("name2").build())
+        await(zom2.get(classOf[Network], network.getId.asJava))
+            .getName shouldBe "name2"
+
+        // Creating an existing object is not a conflict, and is not retried.
+        intercept[ObjectExistsException] {
+            zom2.create(network)
+        }
+    }
+
     def testCreateExclusiveOwner(): Unit = {
         val state = new ExclusiveState
         val owner = UUID.randomUUID
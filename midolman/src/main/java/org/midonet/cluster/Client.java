@@ -20,6 +20,7 @@ import java.util.UUID;
 
 import org.midonet.cluster.client.BGPListBuilder;
 import org.midonet.cluster.client.BridgeBuilder;
+import org.midonet.cluster.client.BridgeDhcpBuilder;
 import org.midonet.cluster.client.ChainBuilder;
 import org.midonet.cluster.client.HealthMonitorBuilder;
 import org.midonet.cluster.client.HostBuilder;
@@ -41,6 +42,8 @@ public interface Client {
 
     void getBridge(UUID bridgeID, BridgeBuilder builder);
 
+    void getBridgeDhcp(UUID bridgeID, BridgeDhcpBuilder builder);
+
     void getRouter(UUID routerID, RouterBuilder builder);
 
     void getChain(UUID chainID, ChainBuilder builder);
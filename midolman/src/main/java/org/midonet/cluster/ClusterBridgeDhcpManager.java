@@ -0,0 +1,320 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.google.inject.Inject;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.cluster.client.BridgeDhcpBuilder;
+import org.midonet.cluster.data.Converter;
+import org.midonet.cluster.data.dhcp.Host;
+import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.midolman.state.zkManagers.BridgeDhcpZkManager;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.MAC;
+
+/**
+ * Watches the DHCP subnets of a bridge and their host assignments, and hands
+ * each change to the bridge's builder as it happens: only the subnet or host
+ * that changed is read again. The builder is built whenever no read is
+ * outstanding, so that it never sees a subnet without its hosts.
+ */
+public class ClusterBridgeDhcpManager
+        extends ClusterManager<BridgeDhcpBuilder> {
+    private static final Logger log = LoggerFactory
+            .getLogger(ClusterBridgeDhcpManager.class);
+
+    @Inject
+    BridgeDhcpZkManager dhcpZkManager;
+
+    @Override
+    protected void getConfig(UUID bridgeId) {
+        new SubnetsCallback(new BridgeState(bridgeId)).fetch();
+    }
+
+    /* The watched subnets and hosts of a bridge. Only accessed by the
+     * reactor thread. */
+    private class BridgeState {
+        final UUID bridgeId;
+        final Map<IPv4Subnet, SubnetState> subnets = new HashMap<>();
+        int pending = 0;
+
+        BridgeState(UUID bridgeId) {
+            this.bridgeId = bridgeId;
+        }
+
+        BridgeDhcpBuilder builder() {
+            return getBuilder(bridgeId);
+        }
+
+        void done() {
+            if (--pending == 0)
+                builder().build();
+        }
+    }
+
+    private class SubnetState {
+        final SubnetCallback subnet;
+        final HostsCallback hosts;
+        final Map<MAC, HostCallback> hostsByMac = new HashMap<>();
+
+        SubnetState(BridgeState bridge, IPv4Subnet subnetAddr) {
+            subnet = new SubnetCallback(bridge, subnetAddr);
+            hosts = new HostsCallback(bridge, subnetAddr, this);
+        }
+
+        void cancel() {
+            subnet.active = false;
+            hosts.active = false;
+            for (HostCallback host : hostsByMac.values())
+                host.active = false;
+        }
+    }
+
+    private abstract class DhcpCallback<U> extends CallbackWithWatcher<U> {
+        protected final BridgeState bridge;
+        /* Cleared when the node goes away, so that its last watch is
+         * ignored. */
+        boolean active = true;
+
+        DhcpCallback(BridgeState bridge) {
+            this.bridge = bridge;
+        }
+
+        protected abstract void get();
+
+        protected abstract void update(U data);
+
+        void fetch() {
+            bridge.pending++;
+            get();
+        }
+
+        @Override
+        public void onSuccess(U data) {
+            if (active && data != null)
+                update(data);
+            bridge.done();
+        }
+
+        @Override
+        public void onError(KeeperException e) {
+            if (e instanceof KeeperException.NoNodeException) {
+                // The parent's watch will remove it
+                log.debug("{} was deleted", describe());
+                bridge.done();
+            } else {
+                bridge.pending--;
+                super.onError(e);
+            }
+        }
+
+        @Override
+        public void onTimeout() {
+            bridge.pending--;
+            super.onTimeout();
+        }
+
+        @Override
+        protected Runnable makeRetry() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (active)
+                        fetch();
+                }
+            };
+        }
+
+        @Override
+        public void pathDataChanged(String path) {
+            if (active)
+                fetch();
+        }
+
+        @Override
+        public void pathChildrenUpdated(String path) {
+            if (active)
+                fetch();
+        }
+
+        @Override
+        public void pathDeleted(String path) {
+            log.debug("{} was deleted", describe());
+        }
+    }
+
+    private class SubnetsCallback extends DhcpCallback<Set<String>> {
+
+        SubnetsCallback(BridgeState bridge) {
+            super(bridge);
+        }
+
+        @Override
+        protected String describe() {
+            return "DHCP subnets of bridge " + bridge.bridgeId;
+        }
+
+        @Override
+        protected void get() {
+            dhcpZkManager.getSubnetAddrsAsync(bridge.bridgeId, this, this);
+        }
+
+        @Override
+        protected void update(Set<String> addrStrings) {
+            Set<IPv4Subnet> addrs = new HashSet<>();
+            for (String addrStr : addrStrings)
+                addrs.add(IPv4Subnet.fromZkString(addrStr));
+
+            Iterator<Map.Entry<IPv4Subnet, SubnetState>> it =
+                bridge.subnets.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<IPv4Subnet, SubnetState> entry = it.next();
+                if (!addrs.contains(entry.getKey())) {
+                    entry.getValue().cancel();
+                    it.remove();
+                    bridge.builder().removeSubnet(entry.getKey());
+                }
+            }
+            for (IPv4Subnet addr : addrs) {
+                if (!bridge.subnets.containsKey(addr)) {
+                    SubnetState subnet = new SubnetState(bridge, addr);
+                    bridge.subnets.put(addr, subnet);
+                    subnet.subnet.fetch();
+                    subnet.hosts.fetch();
+                }
+            }
+        }
+    }
+
+    private class SubnetCallback
+            extends DhcpCallback<BridgeDhcpZkManager.Subnet> {
+        private final IPv4Subnet subnetAddr;
+
+        SubnetCallback(BridgeState bridge, IPv4Subnet subnetAddr) {
+            super(bridge);
+            this.subnetAddr = subnetAddr;
+        }
+
+        @Override
+        protected String describe() {
+            return "DHCP subnet " + subnetAddr + " of bridge " +
+                   bridge.bridgeId;
+        }
+
+        @Override
+        protected void get() {
+            dhcpZkManager.getSubnetAsync(bridge.bridgeId, subnetAddr,
+                                         this, this);
+        }
+
+        @Override
+        protected void update(BridgeDhcpZkManager.Subnet subnetConfig) {
+            Subnet subnet = Converter.fromDhcpSubnetConfig(subnetConfig);
+            subnet.setId(subnetAddr.toZkString());
+            bridge.builder().setSubnet(subnet);
+        }
+    }
+
+    private class HostsCallback extends DhcpCallback<Set<String>> {
+        private final IPv4Subnet subnetAddr;
+        private final SubnetState subnet;
+
+        HostsCallback(BridgeState bridge, IPv4Subnet subnetAddr,
+                      SubnetState subnet) {
+            super(bridge);
+            this.subnetAddr = subnetAddr;
+            this.subnet = subnet;
+        }
+
+        @Override
+        protected String describe() {
+            return "DHCP hosts of subnet " + subnetAddr + " of bridge " +
+                   bridge.bridgeId;
+        }
+
+        @Override
+        protected void get() {
+            dhcpZkManager.getHostMacsAsync(bridge.bridgeId, subnetAddr,
+                                           this, this);
+        }
+
+        @Override
+        protected void update(Set<String> macStrings) {
+            Set<MAC> macs = new HashSet<>();
+            for (String macStr : macStrings)
+                macs.add(MAC.fromString(macStr));
+
+            Iterator<Map.Entry<MAC, HostCallback>> it =
+                subnet.hostsByMac.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<MAC, HostCallback> entry = it.next();
+                if (!macs.contains(entry.getKey())) {
+                    entry.getValue().active = false;
+                    it.remove();
+                    bridge.builder().removeHost(subnetAddr, entry.getKey());
+                }
+            }
+            for (MAC mac : macs) {
+                if (!subnet.hostsByMac.containsKey(mac)) {
+                    HostCallback host = new HostCallback(bridge, subnetAddr,
+                                                         mac);
+                    subnet.hostsByMac.put(mac, host);
+                    host.fetch();
+                }
+            }
+        }
+    }
+
+    private class HostCallback extends DhcpCallback<BridgeDhcpZkManager.Host> {
+        private final IPv4Subnet subnetAddr;
+        private final MAC mac;
+
+        HostCallback(BridgeState bridge, IPv4Subnet subnetAddr, MAC mac) {
+            super(bridge);
+            this.subnetAddr = subnetAddr;
+            this.mac = mac;
+        }
+
+        @Override
+        protected String describe() {
+            return "DHCP host " + mac + " of subnet " + subnetAddr +
+                   " of bridge " + bridge.bridgeId;
+        }
+
+        @Override
+        protected void get() {
+            dhcpZkManager.getHostAsync(bridge.bridgeId, subnetAddr, mac,
+                                       this, this);
+        }
+
+        @Override
+        protected void update(BridgeDhcpZkManager.Host hostConfig) {
+            Host host = Converter.fromDhcpHostConfig(hostConfig);
+            host.setId(mac);
+            bridge.builder().setHost(subnetAddr, host);
+        }
+    }
+}
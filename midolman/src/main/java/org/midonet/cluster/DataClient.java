@@ -806,6 +806,21 @@ public interface DataClient {
     UUID routesCreateEphemeral(@Nonnull Route route)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Creates a batch of ephemeral routes in a single ZooKeeper multi.
+     *
+     * @return The IDs of the routes, in the same order.
+     */
+    List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException;
+
+    /**
+     * Deletes a batch of routes in a single ZooKeeper multi, skipping those
+     * that no longer exist.
+     */
+    void routesDelete(@Nonnull List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
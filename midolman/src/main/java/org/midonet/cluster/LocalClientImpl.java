@@ -29,6 +29,7 @@ import org.slf4j.LoggerFactory;
 
 import org.midonet.cluster.client.BGPListBuilder;
 import org.midonet.cluster.client.BridgeBuilder;
+import org.midonet.cluster.client.BridgeDhcpBuilder;
 import org.midonet.cluster.client.ChainBuilder;
 import org.midonet.cluster.client.HealthMonitorBuilder;
 import org.midonet.cluster.client.HostBuilder;
@@ -103,6 +104,9 @@ public class LocalClientImpl implements Client {
     @Inject
     ClusterPortsManager portsManager;
 
+    @Inject
+    ClusterBridgeDhcpManager bridgeDhcpManager;
+
     @Inject
     ZkConnectionAwareWatcher connectionWatcher;
 
@@ -120,6 +124,12 @@ public class LocalClientImpl implements Client {
         log.debug("getBridge {}", bridgeID);
     }
 
+    @Override
+    public void getBridgeDhcp(UUID bridgeID, BridgeDhcpBuilder builder) {
+        bridgeDhcpManager.registerNewBuilder(bridgeID, builder);
+        log.debug("getBridgeDhcp {}", bridgeID);
+    }
+
     @Override
     public void getRouter(UUID routerID, RouterBuilder builder) {
         routerManager.registerNewBuilder(routerID, builder);
@@ -2830,6 +2830,23 @@ public class LocalDataClientImpl implements DataClient {
         return routeZkManager.create(Converter.toRouteConfig(route), false);
     }
 
+    @Override
+    public List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException {
+        List<org.midonet.midolman.layer3.Route> configs =
+            new ArrayList<>(routes.size());
+        for (Route route : routes) {
+            configs.add(Converter.toRouteConfig(route));
+        }
+        return routeZkManager.create(configs, false);
+    }
+
+    @Override
+    public void routesDelete(@Nonnull List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        routeZkManager.delete(ids);
+    }
+
     @Override
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.client;
+
+import org.midonet.cluster.data.dhcp.Host;
+import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.MAC;
+
+/**
+ * Receives the DHCP configuration of a bridge, one subnet or host at a time.
+ * build() is called once the changes seen so far have all been delivered.
+ */
+public interface BridgeDhcpBuilder extends Builder<BridgeDhcpBuilder> {
+    void setSubnet(Subnet subnet);
+    void removeSubnet(IPv4Subnet subnetAddr);
+    void setHost(IPv4Subnet subnetAddr, Host host);
+    void removeHost(IPv4Subnet subnetAddr, MAC mac);
+}
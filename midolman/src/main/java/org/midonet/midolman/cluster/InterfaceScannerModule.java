@@ -16,16 +16,32 @@
 
 package org.midonet.midolman.cluster;
 
+import com.google.inject.Injector;
 import com.google.inject.PrivateModule;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import org.midonet.midolman.host.config.HostConfig;
 import org.midonet.midolman.host.scanner.DefaultInterfaceScanner;
 import org.midonet.midolman.host.scanner.InterfaceScanner;
+import org.midonet.midolman.host.scanner.NetlinkInterfaceScanner;
 
 public class InterfaceScannerModule extends PrivateModule {
 
     @Override
     protected void configure() {
         binder().requireExplicitBindings();
-        bind(InterfaceScanner.class).to(DefaultInterfaceScanner.class);
+        requireBinding(HostConfig.class);
         expose(InterfaceScanner.class);
     }
+
+    @Provides @Singleton
+    InterfaceScanner provideInterfaceScanner(HostConfig config,
+                                             Injector injector) {
+        if (config.getNetlinkInterfaceScanner()) {
+            return new NetlinkInterfaceScanner(
+                config.getNetlinkInterfaceResyncMillis());
+        }
+        return new DefaultInterfaceScanner(injector);
+    }
 }
@@ -30,6 +30,7 @@ import com.google.inject.name.Names;
 import org.midonet.cluster.BridgeBuilderStateFeeder;
 import org.midonet.cluster.Client;
 import org.midonet.cluster.ClusterBgpManager;
+import org.midonet.cluster.ClusterBridgeDhcpManager;
 import org.midonet.cluster.ClusterBridgeManager;
 import org.midonet.cluster.ClusterChainManager;
 import org.midonet.cluster.ClusterHealthMonitorManager;
@@ -134,6 +135,8 @@ public class LegacyClusterModule extends PrivateModule {
 
         bind(ClusterBgpManager.class).in(Singleton.class);
 
+        bind(ClusterBridgeDhcpManager.class).in(Singleton.class);
+
         bind(ClusterChainManager.class).in(Singleton.class);
 
         bind(ClusterIPAddrGroupManager.class).in(Singleton.class);
@@ -32,6 +32,7 @@ import org.midonet.midolman.services.SelectLoopService;
 import org.midonet.midolman.simulation.Chain;
 import org.midonet.midolman.state.NatBlockAllocator;
 import org.midonet.midolman.state.ZkNatBlockAllocator;
+import org.midonet.midolman.topology.DhcpConfigCache;
 import org.midonet.midolman.topology.VirtualTopology;
 
 /**
@@ -60,6 +61,10 @@ public class MidolmanModule extends PrivateModule {
             .asEagerSingleton();
         expose(VirtualTopology.class);
 
+        bind(DhcpConfigCache.class)
+            .in(Scopes.SINGLETON);
+        expose(DhcpConfigCache.class);
+
         bind(MetricRegistry.class).toInstance(new MetricRegistry());
         expose(MetricRegistry.class);
 
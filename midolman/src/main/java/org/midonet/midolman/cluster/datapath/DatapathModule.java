@@ -87,7 +87,8 @@ public class DatapathModule extends PrivateModule {
                         injector.getInstance(FlowEjector.class),
                         injector.getInstance(NetlinkChannelFactory.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
-                        NanoClock$.MODULE$.DEFAULT()
+                        NanoClock$.MODULE$.DEFAULT(),
+                        config.getPacketExecuteBatchSize()
                     );
                 }
             })
@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.cluster.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.Key;
 import com.google.inject.PrivateModule;
@@ -28,6 +29,7 @@ import org.midonet.midolman.cluster.zookeeper.ZkConnectionProvider;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
+import org.midonet.midolman.state.FlowStateWriter;
 import org.midonet.util.eventloop.Reactor;
 
 
@@ -37,6 +39,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZkConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -53,6 +56,9 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metrics;
+
         @Override
         public FlowStateStorageFactory get() {
             CassandraClient cass = new CassandraClient(
@@ -60,20 +66,26 @@ public class FlowStateStorageModule extends PrivateModule {
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            FlowStateWriter writer =
+                FlowStateStorage$.MODULE$.writer(cass, metrics);
+            writer.start();
+            return new FlowStateStorageFactoryImpl(cass, writer);
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateWriter writer;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           FlowStateWriter writer) {
             this.cass = cass;
+            this.writer = writer;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, writer);
         }
     }
 }
@@ -47,6 +47,21 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    /**
+     * The datagrams each read of an upcall channel receives at most, with a
+     * single recvmmsg() call. Each takes a 64KB read buffer per channel.
+     */
+    @ConfigInt(key = "upcall_read_batch_size", defaultValue = 1)
+    public int getUpcallReadBatchSize();
+
+    /**
+     * The packet executions each output channel writes at most with a single
+     * vectored write, when the simulation produces them faster than they're
+     * written.
+     */
+    @ConfigInt(key = "packet_execute_batch_size", defaultValue = 1)
+    public int getPacketExecuteBatchSize();
+
     @ConfigInt(key = "vxlan_vtep_udp_port", defaultValue = 4789)
     public int getVxLanVtepUdpPort();
 
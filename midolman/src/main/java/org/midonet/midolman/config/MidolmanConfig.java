@@ -78,6 +78,9 @@ public interface MidolmanConfig
     @ConfigInt(key = "idle_flow_tolerance_interval", defaultValue = 10000)
     public int getIdleFlowToleranceInterval();
 
+    @ConfigInt(key = "idle_flow_dump_threshold", defaultValue = 0)
+    public int getIdleFlowDumpThreshold();
+
     @ConfigBool(key = "enable_dashboard", defaultValue = false)
     public boolean getDashboardEnabled();
 
@@ -88,10 +91,22 @@ public interface MidolmanConfig
     @ConfigInt(key = "mac_port_mapping_expire_millis", defaultValue = 30000)
     public int getMacPortMappingExpireMillis();
 
+    @ConfigGroup("bridge")
+    @ConfigBool(key = "flood_per_host_replication", defaultValue = false)
+    public boolean getBridgeFloodPerHostReplication();
+
     @ConfigGroup("router")
     @ConfigInt(key = "max_bgp_peer_routes", defaultValue = 200)
     public int getMaxBgpPeerRoutes();
 
+    @ConfigGroup("router")
+    @ConfigInt(key = "bgp_peer_route_batch_size", defaultValue = 1)
+    public int getBgpPeerRouteBatchSize();
+
+    @ConfigGroup("router")
+    @ConfigInt(key = "bgp_peer_route_batch_window_millis", defaultValue = 100)
+    public int getBgpPeerRouteBatchWindowMillis();
+
     @ConfigInt(key = "simulation_threads", defaultValue = 1)
     public int getSimulationThreads();
 
@@ -101,4 +116,16 @@ public interface MidolmanConfig
     @ConfigString(key = "input_channel_threading", defaultValue = "one_to_many")
     public String getInputChannelThreading();
 
+    @ConfigBool(key = "packet_worker_queues", defaultValue = false)
+    public boolean getPacketWorkerQueues();
+
+    @ConfigInt(key = "packet_worker_queue_size", defaultValue = 4096)
+    public int getPacketWorkerQueueSize();
+
+    @ConfigBool(key = "off_heap_flow_state", defaultValue = false)
+    public boolean getOffHeapFlowState();
+
+    @ConfigBool(key = "ecmp_flow_hash", defaultValue = false)
+    public boolean getEcmpFlowHash();
+
 }
@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.host.config;
 
+import org.midonet.config.ConfigBool;
 import org.midonet.config.ConfigGroup;
 import org.midonet.config.ConfigInt;
 import org.midonet.config.ConfigString;
@@ -69,4 +70,22 @@ public interface HostConfig extends HostIdConfig {
     @ConfigInt(key = "retries_gen_id", defaultValue = 5 * 60 * 1000)
     public int getRetriesForUniqueHostId();
 
+    /**
+     * Whether to track the interfaces of the host through rtnetlink
+     * notifications, rather than by polling them with the ip tool.
+     *
+     * @return true to use the netlink interface scanner
+     */
+    @ConfigBool(key = "netlink_interface_scanner", defaultValue = false)
+    public boolean getNetlinkInterfaceScanner();
+
+    /**
+     * Get the time between the full dumps through which the netlink
+     * interface scanner reconciles the notifications it may have missed.
+     *
+     * @return the time between dumps, in millis
+     */
+    @ConfigInt(key = "netlink_interface_resync_millis", defaultValue = 60000)
+    public int getNetlinkInterfaceResyncMillis();
+
 }
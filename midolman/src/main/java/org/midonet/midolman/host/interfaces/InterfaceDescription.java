@@ -77,6 +77,10 @@ public class InterfaceDescription {
         this.mac = MAC.fromString(macString);
     }
 
+    public void setMac(MAC mac) {
+        this.mac = mac;
+    }
+
     public byte[] getMac() {
         return mac.getAddress();
     }
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.Subscription;
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.midolman.host.interfaces.InterfaceDescription.Endpoint;
+import org.midonet.midolman.host.interfaces.InterfaceDescription.Type;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.Netlink;
+import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.NetlinkProtocol;
+import org.midonet.netlink.rtnetlink.Addr;
+import org.midonet.netlink.rtnetlink.Link;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+import org.midonet.odp.DpPort;
+import org.midonet.packets.MAC;
+
+/**
+ * Interface scanner that listens to the rtnetlink notifications of the
+ * kernel instead of polling the host with the ip tool. It keeps a table of
+ * the links of the host and their addresses, which it loads with a dump of
+ * both when it starts, and then updates with each notification. A periodic
+ * dump reconciles the notifications that the socket may have dropped.
+ *
+ * Only the descriptions of the interfaces that change are rebuilt, so the
+ * sets passed to the callbacks share the instances of unchanged interfaces
+ * with the previous ones, and are only passed when something changed.
+ */
+public class NetlinkInterfaceScanner implements InterfaceScanner {
+
+    private static final Logger log =
+        LoggerFactory.getLogger(NetlinkInterfaceScanner.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long resyncMillis;
+    private final ArrayList<Callback<Set<InterfaceDescription>>> callbacks =
+        new ArrayList<>();
+    private final InterfaceTable table = new InterfaceTable();
+
+    private volatile boolean isRunning;
+    private volatile Selector selector;
+    private Set<InterfaceDescription> lastScan = new HashSet<>();
+
+    public NetlinkInterfaceScanner(long resyncMillis) {
+        this.resyncMillis = resyncMillis;
+    }
+
+    @Override
+    public Subscription register(
+            final Callback<Set<InterfaceDescription>> callback) {
+        synchronized (callbacks) {
+            callbacks.add(callback);
+            callback.onSuccess(lastScan);
+        }
+
+        return new Subscription() {
+            private final AtomicBoolean unsubscribed = new AtomicBoolean();
+
+            @Override
+            public boolean isUnsubscribed() {
+                return unsubscribed.get();
+            }
+
+            @Override
+            public void unsubscribe() {
+                if (unsubscribed.compareAndSet(false, true)) {
+                    synchronized (callbacks) {
+                        callbacks.remove(callback);
+                    }
+                }
+            }
+        };
+    }
+
+    @Override
+    public void start() {
+        final NetlinkChannel channel;
+        try {
+            channel = Netlink.selectorProvider()
+                .openNetlinkSocketChannel(NetlinkProtocol.NETLINK_ROUTE);
+            channel.connect(new Netlink.Address(0));
+            channel.addMembership(Rtnetlink.Group.LINK);
+            channel.addMembership(Rtnetlink.Group.IPV4_IFADDR);
+            channel.addMembership(Rtnetlink.Group.IPV6_IFADDR);
+            channel.configureBlocking(false);
+            selector = channel.selector();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            throw new RuntimeException("Error connecting to rtnetlink", e);
+        }
+
+        isRunning = true;
+        Thread thread = new Thread("interface-scanner") {
+            @Override
+            public void run() {
+                try {
+                    scan(channel);
+                } finally {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        log.warn("Failed to close the rtnetlink channel", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void shutdown() {
+        isRunning = false;
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
+
+    private void scan(NetlinkChannel channel) {
+        ByteBuffer rbuf = BytesUtil.instance.allocateDirect(BUFFER_SIZE);
+        ByteBuffer wbuf = BytesUtil.instance.allocateDirect(
+            NetlinkMessage.HEADER_SIZE + Link.HEADER_SIZE);
+        int seq = 0;
+        long nextResync = 0;
+        while (isRunning) {
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= nextResync && table.isIdle()) {
+                    table.resync();
+                    nextResync = now + resyncMillis;
+                }
+                if (table.requestPending()) {
+                    wbuf.clear();
+                    Rtnetlink.writeDumpRequest(wbuf, table.dumpType(), ++seq);
+                    wbuf.flip();
+                    channel.write(wbuf);
+                    table.requestSent(seq);
+                }
+
+                selector.select(Math.max(1L, nextResync - now));
+                selector.selectedKeys().clear();
+
+                rbuf.clear();
+                while (channel.read(rbuf) > 0) {
+                    rbuf.flip();
+                    table.process(rbuf);
+                    rbuf.clear();
+                }
+
+                if (table.interrupted())
+                    nextResync = 0;
+                if (table.isIdle() && table.hasChanges())
+                    publish(table.interfaces());
+            } catch (Exception e) {
+                log.warn("Failed to scan the interfaces", e);
+            }
+        }
+    }
+
+    private void publish(Set<InterfaceDescription> interfaces) {
+        synchronized (callbacks) {
+            lastScan = interfaces;
+            for (Callback<Set<InterfaceDescription>> cb : callbacks) {
+                cb.onSuccess(interfaces);
+            }
+        }
+    }
+
+    /**
+     * The links of the host and their addresses, updated by the rtnetlink
+     * messages read by the scanner thread, which is the only one to access
+     * the table.
+     */
+    static class InterfaceTable {
+
+        static final String OVS_KIND = "openvswitch";
+        static final String TUN_KIND = "tun";
+
+        private static class Entry {
+            Link link;
+            final Set<InetAddress> addresses = new LinkedHashSet<>();
+            InterfaceDescription description;
+            boolean dirty;
+        }
+
+        private final Map<Integer, Entry> entries = new HashMap<>();
+        private boolean changed;
+
+        /* The dump in progress, if any, and the links and addresses that it,
+         * or the notifications received meanwhile, reported. */
+        private short dumpType;
+        private int dumpSeq;
+        private boolean requestPending;
+        private boolean interrupted;
+        private final Set<Integer> seenLinks = new HashSet<>();
+        private final Set<Addr> seenAddrs = new HashSet<>();
+
+        boolean isIdle() {
+            return dumpType == 0;
+        }
+
+        short dumpType() {
+            return dumpType;
+        }
+
+        boolean requestPending() {
+            return requestPending;
+        }
+
+        /** Starts a dump of the links, to be followed by one of the
+         *  addresses. */
+        void resync() {
+            dumpType = Rtnetlink.Type.GETLINK;
+            requestPending = true;
+            interrupted = false;
+            seenLinks.clear();
+        }
+
+        void requestSent(int seq) {
+            dumpSeq = seq;
+            requestPending = false;
+        }
+
+        /** Whether the kernel reported that the last dump was inconsistent,
+         *  in which case another one should follow right away. */
+        boolean interrupted() {
+            boolean result = interrupted;
+            interrupted = false;
+            return result;
+        }
+
+        boolean hasChanges() {
+            return changed;
+        }
+
+        /** Applies a datagram of rtnetlink messages. */
+        void process(ByteBuffer buf) {
+            int end = buf.limit();
+            while (end - buf.position() >= NetlinkMessage.HEADER_SIZE) {
+                int start = buf.position();
+                int len = buf.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET);
+                if (len < NetlinkMessage.HEADER_SIZE || start + len > end)
+                    break;
+                short type =
+                    buf.getShort(start + NetlinkMessage.NLMSG_TYPE_OFFSET);
+                short flags =
+                    buf.getShort(start + NetlinkMessage.NLMSG_FLAGS_OFFSET);
+                int seq = buf.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET);
+
+                buf.position(start + NetlinkMessage.HEADER_SIZE);
+                buf.limit(start + len);
+                handle(type, flags, seq, buf);
+                buf.limit(end);
+                buf.position(Math.min(end, NetlinkMessage.align(start + len)));
+            }
+        }
+
+        private void handle(short type, short flags, int seq, ByteBuffer buf) {
+            if (!isIdle() && seq == dumpSeq &&
+                    (flags & NLFlag.DUMP_INTR) != 0) {
+                interrupted = true;
+            }
+            switch (type) {
+                case Rtnetlink.Type.NEWLINK:
+                    Link link = Link.buildFrom(buf);
+                    if (dumpType == Rtnetlink.Type.GETLINK)
+                        seenLinks.add(link.getIndex());
+                    putLink(link);
+                    break;
+                case Rtnetlink.Type.DELLINK:
+                    int index = Link.buildFrom(buf).getIndex();
+                    seenLinks.remove(index);
+                    removeLink(index);
+                    break;
+                case Rtnetlink.Type.NEWADDR:
+                    Addr addr = Addr.buildFrom(buf);
+                    if (dumpType == Rtnetlink.Type.GETADDR)
+                        seenAddrs.add(seenKey(addr.getIndex(),
+                                              addr.getAddress()));
+                    putAddr(addr);
+                    break;
+                case Rtnetlink.Type.DELADDR:
+                    Addr deleted = Addr.buildFrom(buf);
+                    seenAddrs.remove(seenKey(deleted.getIndex(),
+                                             deleted.getAddress()));
+                    removeAddr(deleted);
+                    break;
+                case NLMessageType.DONE:
+                    if (!isIdle() && seq == dumpSeq)
+                        dumpDone();
+                    break;
+                case NLMessageType.ERROR:
+                    if (!isIdle() && seq == dumpSeq) {
+                        // Retried by the next periodic dump
+                        log.warn("Failed to dump the interfaces: error {}",
+                                 -buf.getInt(buf.position()));
+                        dumpType = 0;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void dumpDone() {
+            if (dumpType == Rtnetlink.Type.GETLINK) {
+                Iterator<Map.Entry<Integer, Entry>> it =
+                    entries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, Entry> e = it.next();
+                    if (!seenLinks.contains(e.getKey())) {
+                        it.remove();
+                        changed = true;
+                    }
+                }
+                seenLinks.clear();
+                seenAddrs.clear();
+                dumpType = Rtnetlink.Type.GETADDR;
+                requestPending = true;
+            } else {
+                for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+                    Iterator<InetAddress> it =
+                        e.getValue().addresses.iterator();
+                    while (it.hasNext()) {
+                        if (!seenAddrs.contains(seenKey(e.getKey(),
+                                                        it.next()))) {
+                            it.remove();
+                            markDirty(e.getValue());
+                        }
+                    }
+                }
+                seenAddrs.clear();
+                dumpType = 0;
+            }
+        }
+
+        /* The addresses seen by a dump, regardless of their prefix */
+        private static Addr seenKey(int index, InetAddress address) {
+            return new Addr(index, 0, address);
+        }
+
+        private Entry entry(int index) {
+            Entry entry = entries.get(index);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(index, entry);
+            }
+            return entry;
+        }
+
+        private void markDirty(Entry entry) {
+            entry.dirty = true;
+            changed = true;
+        }
+
+        private void putLink(Link link) {
+            Entry entry = entry(link.getIndex());
+            if (link.equals(entry.link))
+                return;
+            entry.link = link;
+            markDirty(entry);
+            // The endpoint of the links enslaved to this one depends on it
+            for (Entry e : entries.values()) {
+                if (e.link != null && e.link.getMaster() == link.getIndex())
+                    markDirty(e);
+            }
+        }
+
+        private void removeLink(int index) {
+            if (entries.remove(index) != null)
+                changed = true;
+        }
+
+        private void putAddr(Addr addr) {
+            if (addr.getAddress() != null &&
+                    entry(addr.getIndex()).addresses.add(addr.getAddress()))
+                markDirty(entry(addr.getIndex()));
+        }
+
+        private void removeAddr(Addr addr) {
+            Entry entry = entries.get(addr.getIndex());
+            if (entry != null && addr.getAddress() != null &&
+                    entry.addresses.remove(addr.getAddress()))
+                markDirty(entry);
+        }
+
+        /** Returns the descriptions of the interfaces, rebuilding those
+         *  that changed since the last call. */
+        Set<InterfaceDescription> interfaces() {
+            Set<InterfaceDescription> interfaces = new HashSet<>();
+            for (Entry entry : entries.values()) {
+                if (entry.link == null)
+                    continue;
+                if (entry.dirty || entry.description == null) {
+                    entry.description = describe(entry);
+                    entry.dirty = false;
+                }
+                interfaces.add(entry.description);
+            }
+            changed = false;
+            return interfaces;
+        }
+
+        private InterfaceDescription describe(Entry entry) {
+            Link link = entry.link;
+            InterfaceDescription desc = new InterfaceDescription(link.getName());
+            desc.setMtu(link.getMtu());
+            desc.setUp(link.isUp());
+            desc.setHasLink(link.hasLink());
+            byte[] mac = link.getAddress();
+            if (mac != null && mac.length == 6)
+                desc.setMac(MAC.fromAddress(mac));
+            for (InetAddress address : entry.addresses) {
+                desc.setInetAddress(address);
+            }
+
+            Entry master = entries.get(link.getMaster());
+            String kind = link.getKind();
+            if (link.isLoopback()) {
+                desc.setEndpoint(Endpoint.LOCALHOST);
+                desc.setType(Type.VIRT);
+            } else if (OVS_KIND.equals(kind)) {
+                desc.setEndpoint(Endpoint.DATAPATH);
+                desc.setType(Type.VIRT);
+                desc.setPortType(DpPort.Type.Internal);
+            } else if (master != null && master.link != null &&
+                       OVS_KIND.equals(master.link.getKind())) {
+                desc.setEndpoint(Endpoint.DATAPATH);
+                desc.setType(Type.VIRT);
+                desc.setPortType(portTypeOf(kind));
+            } else if (TUN_KIND.equals(kind)) {
+                desc.setEndpoint(Endpoint.TUNTAP);
+                desc.setType(Type.VIRT);
+            } else if (kind != null || isVirtual(link.getName())) {
+                desc.setType(Type.VIRT);
+            } else {
+                desc.setEndpoint(Endpoint.PHYSICAL);
+                desc.setType(Type.PHYS);
+            }
+            return desc;
+        }
+
+        private static DpPort.Type portTypeOf(String kind) {
+            if ("vxlan".equals(kind))
+                return DpPort.Type.VXLan;
+            if ("gretap".equals(kind) || "gre".equals(kind))
+                return DpPort.Type.Gre;
+            return DpPort.Type.NetDev;
+        }
+
+        /* Virtual links without a kind, such as some of older kernels */
+        protected boolean isVirtual(String name) {
+            return new File("/sys/devices/virtual/net/" + name).isDirectory();
+        }
+    }
+}
@@ -110,6 +110,7 @@ public class SelectorBasedDatapathConnection implements ManagedDatapathConnectio
 
         conn.getChannel().configureBlocking(false);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
+        conn.setReadBatchSize(config.getUpcallReadBatchSize());
 
         readLoop.register(
                 conn.getChannel(),
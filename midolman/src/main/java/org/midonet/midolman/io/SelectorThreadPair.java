@@ -90,6 +90,7 @@ public class SelectorThreadPair {
 
         conn.getChannel().configureBlocking(false);
         conn.setMaxBatchIoOps(config.getMaxMessagesPerBatch());
+        conn.setReadBatchSize(config.getUpcallReadBatchSize());
 
         readLoop.register(
                 conn.getChannel(),
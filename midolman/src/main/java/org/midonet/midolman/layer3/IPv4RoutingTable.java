@@ -19,24 +19,43 @@ package org.midonet.midolman.layer3;
 import org.midonet.packets.IPv4Addr;
 
 /**
- * TODO (galo) - transitional, wraps the legacy RoutesTrie implementation
- * into the new RoutingTableIfc interface. All classes depending on
- * RoutesTrie should be refactored to conform to the RoutesTrie interface.
+ * An IPv4 routing table backed by a MultibitRoutesTrie. Routes may be added
+ * and deleted while other threads look up the table. A snapshot of the table
+ * is taken in constant time, and doesn't see the later updates.
+ *
+ * TODO (galo) - the legacy RoutesTrie implementation is still used by the
+ * classes depending on RoutingTable, which should be refactored to conform
+ * to the RoutingTableIfc interface.
  */
 public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
 
-    private RoutingTable legacyTable = new RoutingTable();
+    private volatile MultibitRoutesTrie trie;
+
+    public IPv4RoutingTable() {
+        this(MultibitRoutesTrie.EMPTY);
+    }
 
-    public void addRoute(Route rt) {
-        legacyTable.addRoute(rt);
+    private IPv4RoutingTable(MultibitRoutesTrie trie) {
+        this.trie = trie;
     }
 
-    public void deleteRoute(Route rt) {
-        legacyTable.deleteRoute(rt);
+    public synchronized void addRoute(Route rt) {
+        trie = trie.withRoute(rt);
+    }
+
+    public synchronized void deleteRoute(Route rt) {
+        trie = trie.withoutRoute(rt);
     }
 
     public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
-        return legacyTable.lookup(src.toInt(), dst.toInt());
+        return trie.lookup(src.toInt(), dst.toInt());
+    }
+
+    /**
+     * A table with the routes that this one has now.
+     */
+    public IPv4RoutingTable snapshot() {
+        return new IPv4RoutingTable(trie);
     }
 
 }
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.midonet.packets.IPv4Subnet;
+
+/**
+ * An IPv4 forwarding table built as a multibit trie with a stride of 8 bits,
+ * compressed in the manner of Poptrie: each node holds, for each of its 256
+ * slots, the longest prefix of its level that covers the slot and the child
+ * node for the slot, if any. Both are stored in dense arrays indexed by the
+ * population count of a bitmap, so that a node only takes as much memory as
+ * there are distinct values in it. A lookup reads at most 4 nodes.
+ *
+ * The routes to the same destination prefix form an ECMP set, of which a
+ * lookup returns the routes with the lowest weight that match the source
+ * address, as the RoutingTable does. If none match, the lookup falls back
+ * to the longest shorter prefix.
+ *
+ * The trie is persistent: it never changes, and adding or deleting a route
+ * returns a new trie that shares every node with this one but those on the
+ * path to the route's prefix, which are copied. An update thus copies at
+ * most 4 nodes whatever the size of the table, and lookups need no
+ * synchronization.
+ */
+public final class MultibitRoutesTrie {
+
+    private static final int SLOTS = 256;
+
+    private static final List<Route> NO_ROUTES = Collections.emptyList();
+
+    public static final MultibitRoutesTrie EMPTY =
+        new MultibitRoutesTrie(Node.EMPTY, new int[33], 0L, 0);
+
+    /**
+     * The routes to a destination prefix. It is immutable and replaced on
+     * every update, so that lookups never see it change.
+     */
+    static final class RouteSet {
+        final int network;
+        final int length;
+        final Route[] routes;
+        /* The routes with the lowest weight, when all the routes match any
+         * source address, so that lookups don't need to filter them. */
+        final List<Route> anySource;
+
+        RouteSet(int network, int length, Route[] routes) {
+            this.network = network;
+            this.length = length;
+            this.routes = routes;
+            this.anySource = matchesAnySource(routes)
+                             ? Collections.unmodifiableList(matching(0))
+                             : null;
+        }
+
+        private static boolean matchesAnySource(Route[] routes) {
+            for (Route rt : routes) {
+                if (rt.srcNetworkLength != 0)
+                    return false;
+            }
+            return true;
+        }
+
+        private int indexOf(Route rt) {
+            for (int i = 0; i < routes.length; i++) {
+                if (routes[i].equals(rt))
+                    return i;
+            }
+            return -1;
+        }
+
+        RouteSet with(Route rt) {
+            if (indexOf(rt) >= 0)
+                return this;
+            Route[] newRoutes = Arrays.copyOf(routes, routes.length + 1);
+            newRoutes[routes.length] = rt;
+            return new RouteSet(network, length, newRoutes);
+        }
+
+        /* Returns null if the set would be empty. */
+        RouteSet without(Route rt) {
+            int i = indexOf(rt);
+            if (i < 0)
+                return this;
+            if (routes.length == 1)
+                return null;
+            Route[] newRoutes = new Route[routes.length - 1];
+            System.arraycopy(routes, 0, newRoutes, 0, i);
+            System.arraycopy(routes, i + 1, newRoutes, i, newRoutes.length - i);
+            return new RouteSet(network, length, newRoutes);
+        }
+
+        /* The routes that match the source address with the lowest weight */
+        List<Route> matching(int src) {
+            List<Route> ret = new ArrayList<>(routes.length);
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                         rt.srcNetworkLength)) {
+                    if (rt.weight < minWeight) {
+                        ret.clear();
+                        ret.add(rt);
+                        minWeight = rt.weight;
+                    } else if (rt.weight == minWeight) {
+                        ret.add(rt);
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
+    /*
+     * Rank of a slot in a 256 bit bitmap: the number of bits set up to and
+     * including the slot's.
+     */
+    private static int rank(long[] bits, int slot) {
+        int w = slot >>> 6;
+        int rank = Long.bitCount(bits[w] & (-1L >>> (63 - (slot & 63))));
+        for (int i = 0; i < w; i++)
+            rank += Long.bitCount(bits[i]);
+        return rank;
+    }
+
+    /**
+     * The prefixes of a node's slots, run-length encoded: a bit is set for
+     * each slot whose prefix differs from the previous slot's.
+     */
+    private static final class Leaves {
+        static final Leaves EMPTY =
+            new Leaves(new long[] { 1L, 0L, 0L, 0L }, new RouteSet[1]);
+
+        final long[] bits;
+        final RouteSet[] values;
+
+        Leaves(long[] bits, RouteSet[] values) {
+            this.bits = bits;
+            this.values = values;
+        }
+
+        RouteSet get(int slot) {
+            return values[rank(bits, slot) - 1];
+        }
+
+        RouteSet[] expand() {
+            RouteSet[] slots = new RouteSet[SLOTS];
+            int v = -1;
+            for (int i = 0; i < SLOTS; i++) {
+                if ((bits[i >>> 6] & (1L << i)) != 0)
+                    v++;
+                slots[i] = values[v];
+            }
+            return slots;
+        }
+
+        static Leaves compress(RouteSet[] slots) {
+            long[] bits = new long[4];
+            int runs = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                if (i == 0 || slots[i] != slots[i - 1]) {
+                    bits[i >>> 6] |= 1L << i;
+                    runs++;
+                }
+            }
+            RouteSet[] values = new RouteSet[runs];
+            int v = -1;
+            for (int i = 0; i < SLOTS; i++) {
+                if ((bits[i >>> 6] & (1L << i)) != 0)
+                    values[++v] = slots[i];
+            }
+            return new Leaves(bits, values);
+        }
+    }
+
+    /**
+     * The children of a node: a bit is set for each slot with a child.
+     */
+    private static final class Children {
+        static final Children EMPTY = new Children(new long[4], new Node[0]);
+
+        final long[] bits;
+        final Node[] nodes;
+
+        Children(long[] bits, Node[] nodes) {
+            this.bits = bits;
+            this.nodes = nodes;
+        }
+
+        Node get(int slot) {
+            if ((bits[slot >>> 6] & (1L << slot)) == 0)
+                return null;
+            return nodes[rank(bits, slot) - 1];
+        }
+
+        boolean isEmpty() {
+            return nodes.length == 0;
+        }
+
+        /* Sets, replaces or, if the node is null, removes the child. */
+        Children with(int slot, Node node) {
+            boolean present = (bits[slot >>> 6] & (1L << slot)) != 0;
+            if (present && node != null) {
+                Node[] newNodes = nodes.clone();
+                newNodes[rank(bits, slot) - 1] = node;
+                return new Children(bits, newNodes);
+            } else if (node != null) {
+                long[] newBits = bits.clone();
+                newBits[slot >>> 6] |= 1L << slot;
+                int i = rank(newBits, slot) - 1;
+                Node[] newNodes = new Node[nodes.length + 1];
+                System.arraycopy(nodes, 0, newNodes, 0, i);
+                newNodes[i] = node;
+                System.arraycopy(nodes, i, newNodes, i + 1, nodes.length - i);
+                return new Children(newBits, newNodes);
+            } else if (present) {
+                int i = rank(bits, slot) - 1;
+                long[] newBits = bits.clone();
+                newBits[slot >>> 6] &= ~(1L << slot);
+                Node[] newNodes = new Node[nodes.length - 1];
+                System.arraycopy(nodes, 0, newNodes, 0, i);
+                System.arraycopy(nodes, i + 1, newNodes, i, newNodes.length - i);
+                return new Children(newBits, newNodes);
+            } else {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * A node of the trie. Besides the leaves and the children, it keeps the
+     * route sets of the prefixes of its level that it contains, sorted by
+     * key(), so that finding one doesn't need a table of every prefix.
+     */
+    private static final class Node {
+        static final Node EMPTY = new Node(Leaves.EMPTY, Children.EMPTY,
+                                           new long[0], new RouteSet[0]);
+
+        final Leaves leaves;
+        final Children children;
+        final long[] keys;
+        final RouteSet[] sets;
+
+        Node(Leaves leaves, Children children, long[] keys, RouteSet[] sets) {
+            this.leaves = leaves;
+            this.children = children;
+            this.keys = keys;
+            this.sets = sets;
+        }
+
+        boolean isEmpty() {
+            return keys.length == 0 && children.isEmpty();
+        }
+
+        RouteSet get(long key) {
+            int i = Arrays.binarySearch(keys, key);
+            return i >= 0 ? sets[i] : null;
+        }
+
+        /* The route set of the longest prefix of at most maxLength and at
+         * least minLength bits that covers the address. */
+        RouteSet longestPrefix(int addr, int maxLength, int minLength) {
+            for (int length = maxLength; length >= minLength; length--) {
+                RouteSet set = get(key(addr & mask(length), length));
+                if (set != null)
+                    return set;
+            }
+            return null;
+        }
+
+        Node withChildren(Children newChildren) {
+            return new Node(leaves, newChildren, keys, sets);
+        }
+
+        /* Sets, replaces or, if the set is null, removes the prefix's set. */
+        Node withSet(Leaves newLeaves, long key, RouteSet set) {
+            int i = Arrays.binarySearch(keys, key);
+            long[] newKeys;
+            RouteSet[] newSets;
+            if (i >= 0 && set != null) {
+                newKeys = keys;
+                newSets = sets.clone();
+                newSets[i] = set;
+            } else if (set != null) {
+                i = -i - 1;
+                newKeys = new long[keys.length + 1];
+                newSets = new RouteSet[sets.length + 1];
+                System.arraycopy(keys, 0, newKeys, 0, i);
+                System.arraycopy(sets, 0, newSets, 0, i);
+                newKeys[i] = key;
+                newSets[i] = set;
+                System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+                System.arraycopy(sets, i, newSets, i + 1, sets.length - i);
+            } else {
+                newKeys = new long[keys.length - 1];
+                newSets = new RouteSet[sets.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, i);
+                System.arraycopy(sets, 0, newSets, 0, i);
+                System.arraycopy(keys, i + 1, newKeys, i, newKeys.length - i);
+                System.arraycopy(sets, i + 1, newSets, i, newSets.length - i);
+            }
+            return new Node(newLeaves, children, newKeys, newSets);
+        }
+    }
+
+    private final Node root;
+
+    /* The number of prefixes of each length, and a bit set for each length
+     * of which there are prefixes. */
+    private final int[] prefixesByLength;
+    private final long lengths;
+
+    private final int numRoutes;
+
+    private MultibitRoutesTrie(Node root, int[] prefixesByLength,
+                               long lengths, int numRoutes) {
+        this.root = root;
+        this.prefixesByLength = prefixesByLength;
+        this.lengths = lengths;
+        this.numRoutes = numRoutes;
+    }
+
+    private static long key(int network, int length) {
+        return ((long) length << 32) | (network & 0xffffffffL);
+    }
+
+    private static int mask(int length) {
+        return length == 0 ? 0 : -1 << (32 - length);
+    }
+
+    /* Prefixes of up to 8 bits are in the root, up to 16 in level 1, etc. */
+    private static int levelOf(int length) {
+        return length == 0 ? 0 : (length - 1) >>> 3;
+    }
+
+    /* The shortest prefix length of a level. */
+    private static int minLengthOf(int level) {
+        return level == 0 ? 0 : 8 * level + 1;
+    }
+
+    private static int slotOf(int addr, int level) {
+        return (addr >>> (24 - 8 * level)) & 0xff;
+    }
+
+    public int size() {
+        return numRoutes;
+    }
+
+    /* The nodes from the root to the level of the address, the empty node
+     * standing for the missing ones. */
+    private Node[] pathTo(int addr, int level) {
+        Node[] path = new Node[level + 1];
+        path[0] = root;
+        for (int i = 0; i < level; i++) {
+            Node child = path[i].children.get(slotOf(addr, i));
+            path[i + 1] = (child == null) ? Node.EMPTY : child;
+        }
+        return path;
+    }
+
+    /* Copies the path to the address with the updated node at its end, and
+     * returns the new root. Nodes left empty are pruned. */
+    private static Node copyPath(Node[] path, int addr, Node node) {
+        for (int i = path.length - 2; i >= 0; i--) {
+            Node child = node.isEmpty() ? null : node;
+            Children children = path[i].children.with(slotOf(addr, i), child);
+            node = path[i].withChildren(children);
+        }
+        return node;
+    }
+
+    /**
+     * Returns a trie with the route added, or this trie if it already has
+     * the route.
+     */
+    public MultibitRoutesTrie withRoute(Route rt) {
+        int length = rt.dstNetworkLength;
+        int network = rt.dstNetworkAddr & mask(length);
+        long key = key(network, length);
+        int level = levelOf(length);
+        Node[] path = pathTo(network, level);
+        Node node = path[level];
+
+        RouteSet old = node.get(key);
+        RouteSet set = (old == null)
+                       ? new RouteSet(network, length, new Route[] { rt })
+                       : old.with(rt);
+        if (set == old)
+            return this;
+
+        RouteSet[] slots = node.leaves.expand();
+        int first = slotOf(network, level);
+        int last = first + (1 << (8 * (level + 1) - length));
+        for (int i = first; i < last; i++) {
+            // Longer prefixes of the same level take precedence.
+            if (slots[i] == null || slots[i] == old ||
+                    slots[i].length < length)
+                slots[i] = set;
+        }
+        node = node.withSet(Leaves.compress(slots), key, set);
+
+        int[] byLength = prefixesByLength;
+        long newLengths = lengths;
+        if (old == null) {
+            byLength = byLength.clone();
+            byLength[length]++;
+            newLengths |= 1L << length;
+        }
+        return new MultibitRoutesTrie(copyPath(path, network, node),
+                                      byLength, newLengths, numRoutes + 1);
+    }
+
+    /**
+     * Returns a trie without the route, or this trie if it doesn't have the
+     * route.
+     */
+    public MultibitRoutesTrie withoutRoute(Route rt) {
+        int length = rt.dstNetworkLength;
+        int network = rt.dstNetworkAddr & mask(length);
+        long key = key(network, length);
+        int level = levelOf(length);
+        Node[] path = pathTo(network, level);
+        Node node = path[level];
+
+        RouteSet old = node.get(key);
+        if (old == null)
+            return this;
+        RouteSet set = old.without(rt);
+        if (set == old)
+            return this;
+
+        // The slots of a deleted prefix go to the longest shorter prefix of
+        // the same level.
+        RouteSet fill = (set != null) ? set
+            : node.longestPrefix(network, length - 1, minLengthOf(level));
+        RouteSet[] slots = node.leaves.expand();
+        int first = slotOf(network, level);
+        int last = first + (1 << (8 * (level + 1) - length));
+        for (int i = first; i < last; i++) {
+            if (slots[i] == old)
+                slots[i] = fill;
+        }
+        node = node.withSet(Leaves.compress(slots), key, set);
+
+        int[] byLength = prefixesByLength;
+        long newLengths = lengths;
+        if (set == null) {
+            byLength = byLength.clone();
+            if (--byLength[length] == 0)
+                newLengths &= ~(1L << length);
+        }
+        return new MultibitRoutesTrie(copyPath(path, network, node),
+                                      byLength, newLengths, numRoutes - 1);
+    }
+
+    /* The route set of the longest prefix of at most maxLength bits that
+     * covers the address. */
+    private RouteSet longestPrefix(int addr, int maxLength) {
+        Node[] path = pathTo(addr, levelOf(maxLength));
+        for (int length = maxLength; length >= 0; length--) {
+            if ((lengths & (1L << length)) != 0) {
+                RouteSet set =
+                    path[levelOf(length)].get(key(addr & mask(length), length));
+                if (set != null)
+                    return set;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the routes with the lowest weight among those to the longest
+     * prefix that covers the destination address and that match the source
+     * address.
+     */
+    public List<Route> lookup(int src, int dst) {
+        RouteSet best = null;
+        Node node = root;
+        int level = 0;
+        while (node != null) {
+            int slot = slotOf(dst, level);
+            RouteSet set = node.leaves.get(slot);
+            if (set != null)
+                best = set;
+            if (++level == 4)
+                break;
+            node = node.children.get(slot);
+        }
+
+        while (best != null) {
+            if (best.anySource != null)
+                return best.anySource;
+            List<Route> routes = best.matching(src);
+            if (!routes.isEmpty())
+                return routes;
+            best = best.length == 0
+                   ? null : longestPrefix(dst, best.length - 1);
+        }
+        return NO_ROUTES;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.midonet.midolman.simulation.PacketContext;
+import org.midonet.odp.FlowMatch;
+import org.midonet.odp.FlowMatch.Field;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.Unsigned;
+import org.midonet.util.Range;
+
+/**
+ * Narrows down the rules of a chain whose conditions may match a packet,
+ * so that the chain only processes those, in order. This is a per-field
+ * bitset intersection classifier: for each indexed field, the packet's value
+ * selects the set of rules whose condition on that field it satisfies, to
+ * which are added the rules that don't constrain the field. The
+ * intersection of these sets over all the fields contains every rule that
+ * matches the packet, and usually not many more.
+ *
+ * The classifier only indexes the fields that can be evaluated without
+ * side effects, and a rule that matches on the direction of the flow or
+ * whose condition is inverted is always a candidate, so that processing
+ * the candidates in order has the same outcome as processing every rule.
+ *
+ * Rules that may modify the packet, such as NAT rules and jumps to other
+ * chains, invalidate the candidates computed for the following rules,
+ * see mayModifyMatch().
+ *
+ * Computing the candidates doesn't mark the packet's fields as seen, but a
+ * rule that isn't a candidate still decides the outcome by not matching, so
+ * the chain marks the fields that processing it would have read, see
+ * markSeenFields().
+ */
+public final class RuleClassifier {
+
+    /* The fields of the packet that Condition.matches() may read. */
+    private static final long CONDITION_FIELDS =
+        1L << Field.FragmentType.ordinal() |
+        1L << Field.NetworkSrc.ordinal() |
+        1L << Field.NetworkDst.ordinal() |
+        1L << Field.EtherType.ordinal() |
+        1L << Field.EthSrc.ordinal() |
+        1L << Field.EthDst.ordinal() |
+        1L << Field.NetworkTOS.ordinal() |
+        1L << Field.NetworkProto.ordinal() |
+        1L << Field.SrcPort.ordinal() |
+        1L << Field.DstPort.ordinal();
+
+    private final int size;
+    private final int words;
+    private final boolean[] modifiesMatch;
+
+    private final IntervalField etherType;
+    private final IntervalField nwProto;
+    private final IntervalField nwSrc;
+    private final IntervalField nwDst;
+    private final IntervalField tpSrc;
+    private final IntervalField tpDst;
+    private final InPortField inPort;
+
+    public RuleClassifier(List<Rule> rules) {
+        size = rules.size();
+        words = (size + 63) >>> 6;
+        modifiesMatch = new boolean[size];
+
+        etherType = new IntervalField(size);
+        nwProto = new IntervalField(size);
+        nwSrc = new IntervalField(size);
+        nwDst = new IntervalField(size);
+        tpSrc = new IntervalField(size);
+        tpDst = new IntervalField(size);
+        inPort = new InPortField(size);
+
+        for (int i = 0; i < size; i++) {
+            Rule rule = rules.get(i);
+            modifiesMatch[i] = !(rule instanceof LiteralRule ||
+                                 rule instanceof TraceRule);
+            Condition cond = rule.getCondition();
+            if (isIndexable(cond))
+                index(i, cond);
+        }
+
+        etherType.build();
+        nwProto.build();
+        nwSrc.build();
+        nwDst.build();
+        tpSrc.build();
+        tpDst.build();
+        inPort.build();
+    }
+
+    /*
+     * Conditions matching on the direction of the flow look up the
+     * connection tracking table before any of the indexed fields are
+     * evaluated, so they're always processed. Subclasses of Condition may
+     * match differently.
+     */
+    private static boolean isIndexable(Condition cond) {
+        return cond != null && cond.getClass() == Condition.class &&
+               !cond.conjunctionInv && !cond.matchForwardFlow &&
+               !cond.matchReturnFlow;
+    }
+
+    private void index(int rule, Condition cond) {
+        if (cond.etherType != null && !cond.invDlType)
+            etherType.add(rule, cond.etherType, cond.etherType);
+        if (cond.nwProto != null && !cond.nwProtoInv)
+            nwProto.add(rule, cond.nwProto, cond.nwProto);
+        if (cond.nwSrcIp instanceof IPv4Subnet && !cond.nwSrcInv)
+            addSubnet(nwSrc, rule, (IPv4Subnet) cond.nwSrcIp);
+        if (cond.nwDstIp instanceof IPv4Subnet && !cond.nwDstInv)
+            addSubnet(nwDst, rule, (IPv4Subnet) cond.nwDstIp);
+        if (cond.tpSrc != null && !cond.tpSrcInv)
+            addRange(tpSrc, rule, cond.tpSrc);
+        if (cond.tpDst != null && !cond.tpDstInv)
+            addRange(tpDst, rule, cond.tpDst);
+        if (cond.inPortIds != null && !cond.inPortIds.isEmpty() &&
+            !cond.inPortInv)
+            inPort.add(rule, cond.inPortIds);
+    }
+
+    private static void addSubnet(IntervalField field, int rule,
+                                  IPv4Subnet subnet) {
+        int prefixLen = subnet.getPrefixLen();
+        int mask = prefixLen == 0 ? 0 : -1 << (32 - prefixLen);
+        int network = subnet.getIntAddress() & mask;
+        field.add(rule, unsignedKey(network), unsignedKey(network | ~mask));
+    }
+
+    private static void addRange(IntervalField field, int rule,
+                                 Range<Integer> range) {
+        int start = range.start() == null ? Integer.MIN_VALUE : range.start();
+        int end = range.end() == null ? Integer.MAX_VALUE : range.end();
+        if (start <= end)
+            field.add(rule, start, end);
+    }
+
+    /* Maps unsigned ints to signed ints with the same ordering */
+    private static int unsignedKey(int value) {
+        return value ^ Integer.MIN_VALUE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long[] newCandidates() {
+        return new long[words];
+    }
+
+    /**
+     * Whether processing the specified rule may modify the packet, in which
+     * case the candidates must be computed again before processing the
+     * rules that follow.
+     */
+    public boolean mayModifyMatch(int rule) {
+        return modifiesMatch[rule];
+    }
+
+    /**
+     * Computes the set of rules that may match the packet.
+     */
+    public void candidates(PacketContext context, boolean isPortFilter,
+                           long[] candidates) {
+        Arrays.fill(candidates, -1L);
+        if ((size & 63) != 0)
+            candidates[words - 1] = (1L << size) - 1;
+
+        FlowMatch pktMatch = context.wcmatch();
+        pktMatch.doNotTrackSeenFields();
+        if (etherType.indexed)
+            etherType.intersect(Unsigned.unsign(pktMatch.getEtherType()),
+                                candidates);
+        if (nwProto.indexed)
+            nwProto.intersect(pktMatch.getNetworkProto(), candidates);
+        if (nwSrc.indexed)
+            intersectAddress(nwSrc, pktMatch.getNetworkSrcIP(), candidates);
+        if (nwDst.indexed)
+            intersectAddress(nwDst, pktMatch.getNetworkDstIP(), candidates);
+        if (tpSrc.indexed)
+            tpSrc.intersect(pktMatch.getSrcPort(), candidates);
+        if (tpDst.indexed)
+            tpDst.intersect(pktMatch.getDstPort(), candidates);
+        if (inPort.indexed)
+            inPort.intersect(isPortFilter ? null : context.inPortId(),
+                             candidates);
+        pktMatch.doTrackSeenFields();
+    }
+
+    /**
+     * Marks the fields of the packet that processing the specified rules
+     * would read as seen, by evaluating their conditions. This gives the
+     * packet the seen fields it would have if every rule were processed,
+     * without processing those that aren't candidates. It stops as soon as
+     * every field a condition may read has been seen.
+     */
+    public static void markSeenFields(List<Rule> rules, PacketContext context,
+                                      boolean isPortFilter, int from, int to) {
+        FlowMatch pktMatch = context.wcmatch();
+        for (int i = from; i < to; i++) {
+            if ((pktMatch.getSeenFields() & CONDITION_FIELDS) ==
+                    CONDITION_FIELDS)
+                return;
+            rules.get(i).getCondition().matches(context, isPortFilter);
+        }
+    }
+
+    private static void intersectAddress(IntervalField field, IPAddr ip,
+                                         long[] candidates) {
+        if (ip instanceof IPv4Addr)
+            field.intersect(unsignedKey(((IPv4Addr) ip).toInt()), candidates);
+        else
+            field.intersect(null, candidates);
+    }
+
+    /**
+     * Returns the first candidate rule at or after the specified one, or -1.
+     */
+    public static int next(long[] candidates, int from) {
+        int w = from >>> 6;
+        if (w >= candidates.length)
+            return -1;
+        long word = candidates[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == candidates.length)
+                return -1;
+            word = candidates[w];
+        }
+    }
+
+    /**
+     * An indexed field. Rules that don't constrain the field match any
+     * value, and are kept in the wildcards set.
+     */
+    private static abstract class Field {
+        private final boolean[] constrained;
+        protected final long[] wildcards;
+        boolean indexed = false;
+
+        Field(int size) {
+            constrained = new boolean[size];
+            wildcards = new long[(size + 63) >>> 6];
+        }
+
+        protected final void constrain(int rule) {
+            constrained[rule] = true;
+            indexed = true;
+        }
+
+        protected final long[] newSet() {
+            return new long[wildcards.length];
+        }
+
+        protected void build() {
+            for (int i = 0; i < constrained.length; i++) {
+                if (!constrained[i])
+                    wildcards[i >>> 6] |= 1L << i;
+            }
+        }
+
+        /* Intersects the candidates with the rules that match the value,
+         * that is the wildcards and the specified set, which may be null. */
+        protected final void intersect(long[] matching, long[] candidates) {
+            if (matching == null) {
+                for (int w = 0; w < candidates.length; w++)
+                    candidates[w] &= wildcards[w];
+            } else {
+                for (int w = 0; w < candidates.length; w++)
+                    candidates[w] &= wildcards[w] | matching[w];
+            }
+        }
+    }
+
+    /**
+     * A field whose rules match ranges of int values, such as ports,
+     * addresses and ether types. The value space is split at every range
+     * boundary into elementary intervals, each with the set of rules whose
+     * range contains it, so that a lookup is a binary search.
+     */
+    private static final class IntervalField extends Field {
+        private final List<int[]> ranges = new ArrayList<>();
+        private int[] bounds;
+        private long[][] sets;
+
+        IntervalField(int size) {
+            super(size);
+        }
+
+        void add(int rule, int start, int end) {
+            constrain(rule);
+            ranges.add(new int[] { rule, start, end });
+        }
+
+        @Override
+        protected void build() {
+            super.build();
+            int[] points = new int[ranges.size() * 2];
+            int n = 0;
+            for (int[] range : ranges) {
+                points[n++] = range[1];
+                if (range[2] != Integer.MAX_VALUE)
+                    points[n++] = range[2] + 1;
+            }
+            Arrays.sort(points, 0, n);
+            int unique = 0;
+            for (int i = 0; i < n; i++) {
+                if (unique == 0 || points[unique - 1] != points[i])
+                    points[unique++] = points[i];
+            }
+            bounds = Arrays.copyOf(points, unique);
+            sets = new long[unique][];
+            for (int[] range : ranges) {
+                int from = Arrays.binarySearch(bounds, range[1]);
+                int to = range[2] == Integer.MAX_VALUE
+                         ? unique : Arrays.binarySearch(bounds, range[2] + 1);
+                for (int i = from; i < to; i++) {
+                    if (sets[i] == null)
+                        sets[i] = newSet();
+                    sets[i][range[0] >>> 6] |= 1L << range[0];
+                }
+            }
+            ranges.clear();
+        }
+
+        void intersect(int value, long[] candidates) {
+            int i = Arrays.binarySearch(bounds, value);
+            if (i < 0)
+                i = -i - 2; // The interval starting before the value
+            intersect(i < 0 ? null : sets[i], candidates);
+        }
+    }
+
+    /**
+     * The ingress port, matched by the rules whose condition lists the port.
+     */
+    private static final class InPortField extends Field {
+        private final Map<UUID, long[]> sets = new HashMap<>();
+
+        InPortField(int size) {
+            super(size);
+        }
+
+        void add(int rule, Iterable<UUID> portIds) {
+            constrain(rule);
+            for (UUID portId : portIds) {
+                long[] set = sets.get(portId);
+                if (set == null) {
+                    set = newSet();
+                    sets.put(portId, set);
+                }
+                set[rule >>> 6] |= 1L << rule;
+            }
+        }
+
+        void intersect(UUID portId, long[] candidates) {
+            intersect(portId == null ? null : sets.get(portId), candidates);
+        }
+    }
+}
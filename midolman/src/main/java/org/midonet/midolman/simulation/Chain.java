@@ -17,7 +17,7 @@ package org.midonet.midolman.simulation;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -29,6 +29,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleClassifier;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
 import org.midonet.sdn.flows.FlowTagger;
@@ -41,14 +42,27 @@ public class Chain implements VirtualDevice {
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
+    private final RuleClassifier classifier;
 
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
+        this(id, rules, jumpTargets, name, true);
+    }
+
+    /**
+     * @param compile
+     *     Whether to compile the rules into a RuleClassifier, so that
+     *     applying the chain only processes the rules that may match the
+     *     packet. Otherwise every rule is processed.
+     */
+    public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
+                 String name, boolean compile) {
         this.id = id;
         this.rules = new ArrayList<>(rules);
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
+        classifier = compile ? new RuleClassifier(this.rules) : null;
     }
 
     public int hashCode() {
@@ -106,11 +120,31 @@ public class Chain implements VirtualDevice {
         context.addFlowTag(flowInvTag);
         traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
+        // Without a classifier, every rule is a candidate.
+        long[] candidates = null;
+        if (classifier != null) {
+            candidates = classifier.newCandidates();
+            classifier.candidates(context, isPortFilter, candidates);
+        }
+
+        // The first rule from which the fields that processing the rules
+        // would read have yet to be marked as seen.
+        int unmarked = 0;
+        int i = nextRule(candidates, 0);
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        while (i >= 0) {
+
+            // The fields are marked while the packet is still as the rules
+            // before this one saw it.
+            boolean mayModifyMatch =
+                candidates != null && classifier.mayModifyMatch(i);
+            if (mayModifyMatch) {
+                RuleClassifier.markSeenFields(rules, context, isPortFilter,
+                                              unmarked, i);
+                unmarked = i + 1;
+            }
 
-            Rule r = iter.next();
+            Rule r = rules.get(i);
             r.process(context, res, ownerId, isPortFilter);
 
             if (res.action == Action.JUMP) {
@@ -133,11 +167,32 @@ public class Chain implements VirtualDevice {
                         res.action = Action.CONTINUE;
                 }
             }
+            if (res.action != Action.CONTINUE)
+                break;
+
+            // The candidates were computed for the packet as it was before
+            // this rule, which may have transformed it.
+            if (mayModifyMatch)
+                classifier.candidates(context, isPortFilter, candidates);
+            i = nextRule(candidates, i + 1);
+        }
+
+        // The rules that weren't candidates decided the outcome as well.
+        if (candidates != null) {
+            RuleClassifier.markSeenFields(
+                rules, context, isPortFilter, unmarked,
+                res.action == Action.CONTINUE ? rules.size() : i);
         }
 
         assert res.action != Action.JUMP;
     }
 
+    private int nextRule(long[] candidates, int from) {
+        if (candidates == null)
+            return from < rules.size() ? from : -1;
+        return RuleClassifier.next(candidates, from);
+    }
+
     /**
      * @param chain
      *            The chain where processing starts.
@@ -224,6 +279,6 @@ public class Chain implements VirtualDevice {
      * For unit testing.
      */
     public List<Rule> getRules() {
-        return rules;
+        return Collections.unmodifiableList(rules);
     }
 }
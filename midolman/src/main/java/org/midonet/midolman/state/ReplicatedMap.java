@@ -19,10 +19,11 @@ package org.midonet.midolman.state;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -70,151 +71,269 @@ public abstract class ReplicatedMap<K, V> {
         }
     }
 
-    private class DirectoryWatcher implements Runnable {
+    /**
+     * Watches the children of the map's directory. The first listing is
+     * synchronous, so that the map is populated when start() returns, the
+     * listings that follow a change are asynchronous. Every listing is
+     * diffed against the paths already known, so that only added and
+     * removed paths are decoded and only the keys they belong to are
+     * re-evaluated and notified.
+     */
+    private class DirectoryWatcher extends Directory.DefaultTypedWatcher {
+
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            dir.asyncGetChildren("/", new ListingCallback(nextListing()),
+                                 this);
+        }
 
         /**
-         * Retrieve all the children of the watched directory, handling
-         * failures.
-         * @return the set of paths, or null if a failure happened
+         * Lists the children and applies them before returning.
          */
-        Set<String> getCurPaths() {
-            Set<String> paths = null;
+        void runSynchronously() {
+            long listing = nextListing();
+            Set<String> curPaths;
             try {
-                // TODO(pino, rossella): make this asynchronous.
-                paths = dir.getChildren("/", this);
+                curPaths = dir.getChildren("/", this);
             } catch (KeeperException e) {
-                log.warn("DirectoryWatcher.run {}", e);
-                if (connectionWatcher == null) {
-                    throw new RuntimeException(e);
-                }
-                connectionWatcher.handleError("ReplicatedMap", this, e);
+                handleError(e);
+                return;
             } catch (InterruptedException e) {
                 log.error("DirectoryWatcher.run {}", e);
                 Thread.currentThread().interrupt();
+                return;
             }
-            return paths;
+            apply(listing, curPaths);
+        }
+
+        void apply(long listing, Set<String> curPaths) {
+            List<Path> cleanupPaths = new ArrayList<>();
+            List<Notification<K, V>> notifications = new ArrayList<>();
+
+            synchronized(ReplicatedMap.this) {
+                // A listing issued earlier may complete after a later one,
+                // when the first, synchronous, listing races a change.
+                if (!running || listing < lastListing) {
+                    return;
+                }
+                lastListing = listing;
+                Set<K> changedKeys = diffPaths(curPaths);
+                for (K key : changedKeys) {
+                    updateKey(key, notifications, cleanupPaths);
+                }
+                cleanupPaths.addAll(failedCleanups);
+                failedCleanups.clear();
+            }
+
+            for (Notification<K,V> notice : notifications) {
+                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+            }
+
+            cleanup(cleanupPaths);
+        }
+
+        void handleError(KeeperException e) {
+            log.warn("DirectoryWatcher.run {}", e);
+            if (connectionWatcher == null) {
+                throw new RuntimeException(e);
+            }
+            connectionWatcher.handleError("ReplicatedMap", this, e);
         }
 
         /**
-         * Takes the curPaths set and populates the given newMap with them,
-         * using only the highest versioned entry for each key, and adding to
-         * cleanupPaths all that need to be purged.
+         * Brings knownPaths and the per key versions up to date with the
+         * current set of paths, decoding only the paths that were added.
+         * ZooKeeper lists all the children on every change, so finding the
+         * removed paths still takes a pass over the known ones, but only
+         * the changed paths are decoded, compared and notified.
+         *
+         * @return the keys whose set of versions changed
          */
-        void populateNewMap(final Map<K, MapValue> newMap,
-                            final Set<String> curPaths,
-                            final List<Path> cleanupPaths) {
-            for (String path : curPaths) {
-                Path p = decodePath(path);
-                MapValue mv = newMap.get(p.key);
-                if (mv == null)
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                else if (mv.version < p.version) {
-                    // The one currently in newMap needs to be replaced.
-                    // Also clean it up if it belongs to this ZK client.
-                    newMap.put(p.key, new MapValue(p.value, p.version));
-                    if (ownedVersions.contains(mv.version)) {
-                        p.value = mv.value;
-                        p.version = mv.version;
-                        cleanupPaths.add(p);
+        Set<K> diffPaths(final Set<String> curPaths) {
+            Set<K> changedKeys = new HashSet<>();
+
+            Iterator<Map.Entry<String, Path>> it =
+                knownPaths.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Path> entry = it.next();
+                if (curPaths.contains(entry.getKey()))
+                    continue;
+                Path p = entry.getValue();
+                it.remove();
+                TreeMap<Integer, V> keyVersions = versions.get(p.key);
+                if (keyVersions != null) {
+                    keyVersions.remove(p.version);
+                    if (keyVersions.isEmpty())
+                        versions.remove(p.key);
+                }
+                changedKeys.add(p.key);
+            }
+
+            if (knownPaths.size() < curPaths.size()) {
+                for (String path : curPaths) {
+                    if (knownPaths.containsKey(path))
+                        continue;
+                    Path p = decodePath(path);
+                    knownPaths.put(path, p);
+                    TreeMap<Integer, V> keyVersions = versions.get(p.key);
+                    if (keyVersions == null) {
+                        keyVersions = new TreeMap<>();
+                        versions.put(p.key, keyVersions);
                     }
-                } else if (mv.version > p.version &&
-                    ownedVersions.contains(p.version)) {
-                    // The one currently in newMap is newer and the other
-                    // one belongs to this ZK client. Clean it up.
-                    cleanupPaths.add(p);
+                    keyVersions.put(p.version, p.value);
+                    changedKeys.add(p.key);
                 }
             }
+            return changedKeys;
         }
 
         /**
-         * Cleans all paths in the given List. If a ZK exception occurs in the
-         * process it will abort the cleanup. InterruptedExceptions will
-         * stop the running thread.
-         *
-         * @param paths to clean up
+         * Makes the highest versioned entry of the given key its value in the
+         * local map, compiling the notification of the change if there was
+         * one, and adding to cleanupPaths the older entries owned by this ZK
+         * client.
          */
-        void cleanup(final List<Path> paths) {
-            for (Path path : paths) {
-                try {
-                    dir.delete(encodePath(path.key, path.value, path.version));
-                    ownedVersions.remove(path.version);
-                } catch (KeeperException e) {
-                    log.error("DirectoryWatcher.run", e);
-                    // TODO (guillermo) connectionWatcher.handleError()?
-                    throw new RuntimeException(e);
-                } catch (InterruptedException e) {
-                    log.error("DirectoryWatcher.run", e);
-                    Thread.currentThread().interrupt();
+        void updateKey(final K key,
+                       final List<Notification<K, V>> notifications,
+                       final List<Path> cleanupPaths) {
+            TreeMap<Integer, V> keyVersions = versions.get(key);
+            MapValue mv = localMap.get(key);
+            if (keyVersions == null) {
+                if (mv != null) {
+                    localMap.remove(key);
+                    notifications.add(new Notification<>(key, mv.value, null));
                 }
+                return;
             }
+
+            Map.Entry<Integer, V> latest = keyVersions.lastEntry();
+            for (Map.Entry<Integer, V> old :
+                    keyVersions.headMap(latest.getKey()).entrySet()) {
+                // Owned until deleted, so that a failed delete is retried
+                if (ownedVersions.contains(old.getKey()) &&
+                        deletingVersions.add(old.getKey())) {
+                    cleanupPaths.add(
+                        new Path(key, old.getValue(), old.getKey()));
+                }
+            }
+
+            if (mv == null) {
+                localMap.put(key, new MapValue(latest.getValue(),
+                                               latest.getKey()));
+                notifications.add(
+                    new Notification<>(key, null, latest.getValue()));
+            } else if (mv.version != latest.getKey()) {
+                // We compare versions because the 'value' members
+                // might not implement .equals accurately.
+                localMap.put(key, new MapValue(latest.getValue(),
+                                               latest.getKey()));
+                notifications.add(
+                    new Notification<>(key, mv.value, latest.getValue()));
+            } // else mv == latest:  No notification.
         }
 
         /**
-         * Compiles notifications to be sent after the newMap has been compiled.
+         * Deletes all paths in the given List. The deletions are asynchronous,
+         * and their removal from the map is seen by the watcher like any
+         * other change. The paths that fail to be deleted are retried on the
+         * next change.
          *
-         * @param notifications where to accumulate the notifications
-         * @param newMap the new map generated from the last set of paths
+         * @param paths to clean up
          */
-        void collectNotifications(final Set<Notification<K, V>> notifications,
-                                  final Map<K, MapValue> newMap) {
-
-            Set<K> oldKeys = new HashSet<>(localMap.keySet());
-            oldKeys.removeAll(newMap.keySet());
-            for (K deletedKey : oldKeys) {
-                MapValue mv = localMap.get(deletedKey);
-                notifications.add(new Notification<>(
-                    deletedKey, mv.value, null));
+        void cleanup(final List<Path> paths) {
+            for (Path path : paths) {
+                dir.asyncDelete(encodePath(path.key, path.value, path.version),
+                                new CleanupCallback(path));
             }
+        }
+    }
 
-            for (Map.Entry<K, MapValue> entry : newMap.entrySet()) {
-                K key = entry.getKey();
-                V value = entry.getValue().value;
-                MapValue mv = localMap.get(key);
-                if (mv == null) {
-                    notifications.add(new Notification<>(
-                        key, null, value));
-                } else if (mv.version != entry.getValue().version) {
-                    // We compare versions because the 'value' members
-                    // might not implement .equals accurately.
-                    notifications.add(new Notification<>(
-                        key, mv.value, value));
-                } // else mv == entry:  No notification.
-            }
+    private class ListingCallback implements DirectoryCallback<Set<String>> {
+        private final long listing;
 
+        ListingCallback(long listing) {
+            this.listing = listing;
         }
 
-        public void run() {
-            if (!running) {
-                return;
+        @Override
+        public void onSuccess(Set<String> curPaths) {
+            myWatcher.apply(listing, curPaths);
+        }
+
+        @Override
+        public void onError(KeeperException e) {
+            myWatcher.handleError(e);
+        }
+
+        @Override
+        public void onTimeout() {
+            log.warn("DirectoryWatcher.run timed out");
+            if (connectionWatcher != null) {
+                connectionWatcher.handleTimeout(myWatcher);
             }
-            Set<String> curPaths = getCurPaths();
-            if (curPaths == null)
-                return;
+        }
+    }
 
-            List<Path> cleanupPaths = new LinkedList<>();
-            Set<Notification<K,V>> notifications = new HashSet<>();
+    private class CleanupCallback implements DirectoryCallback.Void {
+        private final Path path;
 
+        CleanupCallback(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        public void onSuccess(java.lang.Void result) {
             synchronized(ReplicatedMap.this) {
-                if (!running) {
-                    return;
-                }
-                ConcurrentMap<K,MapValue> newMap = new ConcurrentHashMap<>();
-                populateNewMap(newMap, curPaths, cleanupPaths);
-                collectNotifications(notifications, newMap);
-                localMap = newMap;
+                deletingVersions.remove(path.version);
+                ownedVersions.remove(path.version);
             }
+        }
 
-            for (Notification<K,V> notice : notifications) {
-                notifyWatchers(notice.key, notice.oldValue, notice.newValue);
+        @Override
+        public void onError(KeeperException e) {
+            if (e instanceof KeeperException.NoNodeException) {
+                onSuccess(null);
+                return;
             }
+            log.warn("Failed to delete old version {} of {}: {}",
+                     new Object[] { path.version, path.key, e });
+            retry();
+        }
 
-            cleanup(cleanupPaths);
+        @Override
+        public void onTimeout() {
+            log.warn("Deleting old version {} of {} timed out",
+                     path.version, path.key);
+            retry();
+        }
+
+        private void retry() {
+            synchronized(ReplicatedMap.this) {
+                if (running)
+                    failedCleanups.add(path);
+                else
+                    deletingVersions.remove(path.version);
+            }
         }
     }
 
     private Directory dir;
     private volatile boolean running;
     private volatile ConcurrentMap<K, MapValue> localMap;
+    /* The decoded paths last seen in the directory, and the values of every
+     * key indexed by their version. Only accessed with the map's lock. */
+    private final Map<String, Path> knownPaths = new HashMap<>();
+    private final Map<K, TreeMap<Integer, V>> versions = new HashMap<>();
+    /* The owned versions being deleted, and the paths to delete again after
+     * a failure. Only accessed with the map's lock. */
+    private final Set<Integer> deletingVersions = new HashSet<>();
+    private final List<Path> failedCleanups = new ArrayList<>();
+    /* The last listing issued and the last one applied to the map. */
+    private long listings = 0L;
+    private long lastListing = 0L;
     private Set<Integer> ownedVersions;
     private Set<Watcher<K, V>> watchers;
     private DirectoryWatcher myWatcher;
@@ -251,10 +370,14 @@ public abstract class ReplicatedMap<K, V> {
         watchers.remove(watcher);
     }
 
+    /**
+     * Starts watching the map's directory. The map holds the entries in the
+     * directory when this returns, and is then updated asynchronously.
+     */
     public void start() {
         if (!this.running) {
             this.running = true;
-            myWatcher.run();
+            myWatcher.runSynchronously();
         }
     }
 
@@ -263,6 +386,14 @@ public abstract class ReplicatedMap<K, V> {
         Map<K, MapValue> oldMap = localMap;
         localMap = new ConcurrentHashMap<>();
         oldMap.clear();
+        knownPaths.clear();
+        versions.clear();
+        deletingVersions.clear();
+        failedCleanups.clear();
+    }
+
+    private synchronized long nextListing() {
+        return ++listings;
     }
 
     public V get(K key) {
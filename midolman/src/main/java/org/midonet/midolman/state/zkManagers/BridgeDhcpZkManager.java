@@ -33,6 +33,9 @@ import org.midonet.cluster.data.neutron.Route;
 import org.midonet.midolman.serialization.SerializationException;
 import org.midonet.midolman.serialization.Serializer;
 import org.midonet.midolman.state.BaseZkManager;
+import org.midonet.midolman.state.Directory;
+import org.midonet.midolman.state.DirectoryCallback;
+import org.midonet.midolman.state.DirectoryCallbackFactory;
 import org.midonet.midolman.state.NoStatePathException;
 import org.midonet.midolman.state.PathBuilder;
 import org.midonet.midolman.state.StateAccessException;
@@ -40,6 +43,8 @@ import org.midonet.midolman.state.ZkManager;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.IPv4Subnet;
 import org.midonet.packets.MAC;
+import org.midonet.util.functors.Functor;
+import org.midonet.util.functors.Functors;
 import org.midonet.util.version.Since;
 
 import javax.annotation.Nonnull;
@@ -407,6 +412,29 @@ public class BridgeDhcpZkManager extends BaseZkManager {
         return serializer.deserialize(data, Subnet.class);
     }
 
+    public void getSubnetAsync(UUID bridgeId, IPv4Subnet subnetAddr,
+                               DirectoryCallback<Subnet> subnetCallback,
+                               Directory.TypedWatcher watcher) {
+        zk.asyncGet(
+                paths.getBridgeDhcpSubnetPath(bridgeId, subnetAddr),
+                DirectoryCallbackFactory.transform(
+                        subnetCallback,
+                        new Functor<byte[], Subnet>() {
+                            @Override
+                            public Subnet apply(byte[] data) {
+                                try {
+                                    return serializer.deserialize(data,
+                                                                  Subnet.class);
+                                } catch (SerializationException e) {
+                                    log.warn("Could not deserialize DHCP " +
+                                             "subnet data");
+                                }
+                                return null;
+                            }
+                        }),
+                watcher);
+    }
+
     public boolean existsSubnet(UUID bridgeId, IPv4Subnet subnetAddr)
             throws StateAccessException {
         String path = paths.getBridgeDhcpSubnetPath(bridgeId, subnetAddr);
@@ -448,6 +476,16 @@ public class BridgeDhcpZkManager extends BaseZkManager {
         return addrs;
     }
 
+    public void getSubnetAddrsAsync(UUID bridgeId,
+                                    DirectoryCallback<Set<String>> addrsCallback,
+                                    Directory.TypedWatcher watcher) {
+        zk.asyncGetChildren(
+                paths.getBridgeDhcpPath(bridgeId),
+                DirectoryCallbackFactory.transform(
+                        addrsCallback, Functors.<Set<String>>identity()),
+                watcher);
+    }
+
     public List<Subnet> getSubnets(UUID bridgeId)
             throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpPath(bridgeId);
@@ -506,6 +544,29 @@ public class BridgeDhcpZkManager extends BaseZkManager {
         return serializer.deserialize(data, Host.class);
     }
 
+    public void getHostAsync(UUID bridgeId, IPv4Subnet subnetAddr, MAC mac,
+                             DirectoryCallback<Host> hostCallback,
+                             Directory.TypedWatcher watcher) {
+        zk.asyncGet(
+                paths.getBridgeDhcpHostPath(bridgeId, subnetAddr, mac),
+                DirectoryCallbackFactory.transform(
+                        hostCallback,
+                        new Functor<byte[], Host>() {
+                            @Override
+                            public Host apply(byte[] data) {
+                                try {
+                                    return serializer.deserialize(data,
+                                                                  Host.class);
+                                } catch (SerializationException e) {
+                                    log.warn("Could not deserialize DHCP " +
+                                             "host data");
+                                }
+                                return null;
+                            }
+                        }),
+                watcher);
+    }
+
     public void prepareDeleteHost(List<Op> ops, UUID bridgeId,
                                   IPv4Subnet subnetAddr, String mac)
             throws StateAccessException {
@@ -537,6 +598,16 @@ public class BridgeDhcpZkManager extends BaseZkManager {
         return macs;
     }
 
+    public void getHostMacsAsync(UUID bridgeId, IPv4Subnet subnetAddr,
+                                 DirectoryCallback<Set<String>> macsCallback,
+                                 Directory.TypedWatcher watcher) {
+        zk.asyncGetChildren(
+                paths.getBridgeDhcpHostsPath(bridgeId, subnetAddr),
+                DirectoryCallbackFactory.transform(
+                        macsCallback, Functors.<Set<String>>identity()),
+                watcher);
+    }
+
     public List<Host> getHosts(UUID bridgeId, IPv4Subnet subnetAddr)
             throws StateAccessException, SerializationException {
         String path = paths.getBridgeDhcpHostsPath(bridgeId, subnetAddr);
@@ -39,11 +39,13 @@ import org.midonet.midolman.state.AbstractZkManager;
 import org.midonet.midolman.state.Directory;
 import org.midonet.midolman.state.DirectoryCallback;
 import org.midonet.midolman.state.DirectoryCallbackFactory;
+import org.midonet.midolman.state.NoStatePathException;
 import org.midonet.midolman.state.PathBuilder;
 import org.midonet.midolman.state.PortConfig;
 import org.midonet.midolman.state.PortDirectory;
 import org.midonet.midolman.state.StateAccessException;
 import org.midonet.midolman.state.ZkManager;
+import org.midonet.midolman.state.ZkOpList;
 import org.midonet.util.functors.CollectionFunctors;
 import org.midonet.util.functors.Functor;
 
@@ -527,6 +529,34 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return create(route, true);
     }
 
+    /**
+     * Adds a batch of route entries in a single update on the ZooKeeper, so
+     * that the watchers of the routing tables are notified once for the
+     * whole batch.
+     *
+     * @param routes
+     *            Route objects to add to the ZooKeeper directory.
+     * @return The UUIDs of the newly created objects, in the same order.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public List<UUID> create(List<Route> routes, boolean persistent)
+            throws StateAccessException, SerializationException {
+        List<UUID> ids = new ArrayList<>(routes.size());
+        if (routes.isEmpty())
+            return ids;
+        // The op list drops the repeated creates of the routing table
+        // entries shared by equal routes.
+        ZkOpList opList = new ZkOpList(zk);
+        for (Route route : routes) {
+            UUID id = UUID.randomUUID();
+            opList.addAll(prepareRouteCreate(id, route, persistent));
+            ids.add(id);
+        }
+        opList.commit();
+        return ids;
+    }
+
     public void asyncGet(UUID id, final DirectoryCallback<Route> routeDirectoryCallback){
         zk.asyncGet(paths.getRoutePath(id),
                     DirectoryCallbackFactory.transform(
@@ -632,4 +662,32 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
             SerializationException {
         zk.multi(prepareRouteDelete(id));
     }
+
+    /**
+     * Deletes a batch of routes and their related data from the ZooKeeper
+     * directories in a single update. Routes that no longer exist, such as
+     * the ephemeral routes of an expired session, are skipped: reading
+     * their configuration fails, and the op list drops the deletes of the
+     * paths that are gone by the time it commits.
+     *
+     * @param ids
+     *            IDs of the routes to delete.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public void delete(List<UUID> ids) throws StateAccessException,
+            SerializationException {
+        ZkOpList opList = new ZkOpList(zk);
+        boolean empty = true;
+        for (UUID id : ids) {
+            try {
+                opList.addAll(prepareRouteDelete(id));
+                empty = false;
+            } catch (NoStatePathException e) {
+                log.debug("Route {} is already deleted", id);
+            }
+        }
+        if (!empty)
+            opList.commit();
+    }
 }
@@ -16,16 +16,15 @@
 
 package org.midonet.sdn.flows;
 
-import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Collection;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
+import org.midonet.util.collection.TimingWheel;
 import org.midonet.util.functors.Callback1;
 
 // not thread-safe
@@ -41,9 +40,10 @@ import org.midonet.util.functors.Callback1;
  * Idle Time-out
  * This class guarantees that every wildcard flow that has an idle time-out set
  * will be evicted after idle time-out + delta.
- * We have two priority queues, one for hard time-out expiration and the other
- * for idle time-out expiration. They are ordered according to the time that
- * each flow has remaining.
+ * We have two timing wheels, one for hard time-out expiration and the other
+ * for idle time-out expiration. Each flow is scheduled in one of them at the
+ * time it's due, so that adding, removing and expiring a flow take constant
+ * time regardless of the number of flows.
  * For idle time-out before deleting a wildcard flow, we get from the datapath
  * connection the lastUsedTime of each microflow until we find one whose
  * lastUsedTime < now - timeout. If that's the case, we extend the life of the
@@ -51,13 +51,19 @@ import org.midonet.util.functors.Callback1;
  *
  * Idle Time-out expiration is an expensive operation. We won't accept
  * idle time-out < 5 s.
+ * When the number of idle flows that are due for expiration in a single check
+ * reaches idleFlowDumpThreshold, we don't query the kernel for each of them.
+ * Instead, we dump all the datapath flows in one go and refresh their
+ * lastUsedTime from that dump.
  */
 
 //TODO(ross) create a priority queue of micro flows ordered according to the
 // lastUsedTime we got from the kernel. When we have to free space we will
 // delete the oldest one.
 public class FlowManager {
-    private static int DEFAULT_FLOW_REMOVE_BATCH_SIZE = 512;
+    public static final int DEFAULT_FLOW_REMOVE_BATCH_SIZE = 512;
+    public static final int DEFAULT_IDLE_FLOW_DUMP_THRESHOLD = 0;
+    public static final long TIMEOUT_WHEEL_TICK_MILLIS = 10;
 
     private Logger log = LoggerFactory.getLogger("org.midonet.flow-management");
 
@@ -65,6 +71,12 @@ public class FlowManager {
     private int maxDpFlows;
     private int dpFlowRemoveBatchSize;
     private long idleFlowToleranceInterval;
+    private int idleFlowDumpThreshold;
+
+    /* Idle flows waiting for the outcome of a datapath flow dump */
+    private ArrayList<ManagedFlow> idleFlowsToCheck = new ArrayList<>();
+    private boolean flowDumpInProgress = false;
+    private long flowDumpGeneration = 0;
 
     public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
                        long idleFlowToleranceInterval) {
@@ -74,25 +86,38 @@ public class FlowManager {
 
     public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
                        long idleFlowToleranceInterval, int dpFlowRemoveBatchSize) {
+        this(flowManagerHelper, maxDpFlows, idleFlowToleranceInterval,
+             dpFlowRemoveBatchSize, DEFAULT_IDLE_FLOW_DUMP_THRESHOLD);
+    }
+
+    /**
+     * @param idleFlowDumpThreshold the number of idle flows due for
+     *        expiration from which the kernel flow stats are fetched with a
+     *        single flow dump instead of a request per flow. A value of 0
+     *        disables flow dumps.
+     */
+    public FlowManager(FlowManagerHelper flowManagerHelper, int maxDpFlows,
+                       long idleFlowToleranceInterval, int dpFlowRemoveBatchSize,
+                       int idleFlowDumpThreshold) {
         this.maxDpFlows = maxDpFlows;
         this.idleFlowToleranceInterval = idleFlowToleranceInterval;
         this.flowManagerHelper = flowManagerHelper;
         if (dpFlowRemoveBatchSize > maxDpFlows)
             dpFlowRemoveBatchSize = 1;
         this.dpFlowRemoveBatchSize = dpFlowRemoveBatchSize;
+        this.idleFlowDumpThreshold = idleFlowDumpThreshold;
+        this.dpFlowTable = new ManagedFlowTable(maxDpFlows);
     }
 
-    public LinkedHashMap<FlowMatch, ManagedFlow> dpFlowTable = new LinkedHashMap<>((int)maxDpFlows);
+    public final ManagedFlowTable dpFlowTable;
 
-    //TODO(ross) size for the priority queue?
-    final int priorityQueueSize = 10000;
-    /* Priority queue to evict flows based on hard time-out */
-    private PriorityQueue<ManagedFlow> hardTimeOutQueue =
-        new PriorityQueue<>(priorityQueueSize, new WildcardFlowHardTimeComparator());
+    /* Timing wheel to evict flows based on hard time-out */
+    private TimingWheel<ManagedFlow> hardTimeOutWheel =
+        new TimingWheel<>(TIMEOUT_WHEEL_TICK_MILLIS, System.currentTimeMillis());
 
-    /* Priority queue to evict flows based on idle time-out */
-    private PriorityQueue<ManagedFlow> idleTimeOutQueue =
-        new PriorityQueue<>(priorityQueueSize, new WildcardFlowIdleTimeComparator());
+    /* Timing wheel to evict flows based on idle time-out */
+    private TimingWheel<ManagedFlow> idleTimeOutWheel =
+        new TimingWheel<>(TIMEOUT_WHEEL_TICK_MILLIS, System.currentTimeMillis());
 
     public int getNumDpFlows() {
         return dpFlowTable.size();
@@ -110,21 +135,22 @@ public class FlowManager {
         if (getNumDpFlows() > maxDpFlows)
             evictOldestFlows();
 
-        FlowMatch fmatch = wildFlow.flowMatch();
-        if (!dpFlowTable.containsKey(fmatch)) {
-            dpFlowTable.put(fmatch, wildFlow);
+        if (dpFlowTable.putIfAbsent(wildFlow)) {
             // FlowManager's ref
             wildFlow.ref();
-            wildFlow.setCreationTimeMillis(System.currentTimeMillis());
-            wildFlow.setLastUsedTimeMillis(System.currentTimeMillis());
+            long now = System.currentTimeMillis();
+            wildFlow.setCreationTimeMillis(now);
+            wildFlow.setLastUsedTimeMillis(now);
             if (wildFlow.hardExpirationMillis() > 0) {
                 // timeout queue ref
                 wildFlow.ref();
-                hardTimeOutQueue.add(wildFlow);
+                hardTimeOutWheel.add(wildFlow,
+                                     now + wildFlow.hardExpirationMillis());
             } else if (wildFlow.idleExpirationMillis() > 0){
                 // timeout queue ref
                 wildFlow.ref();
-                idleTimeOutQueue.add(wildFlow);
+                idleTimeOutWheel.add(wildFlow,
+                                     now + wildFlow.idleExpirationMillis());
             }
             return true;
         }
@@ -141,9 +167,9 @@ public class FlowManager {
     }
 
     public boolean evictOneFlow() {
-        ManagedFlow toEvict = hardTimeOutQueue.size() > 0
-                            ? hardTimeOutQueue.poll()
-                            : idleTimeOutQueue.poll();
+        ManagedFlow toEvict = hardTimeOutWheel.isEmpty()
+                            ? idleTimeOutWheel.pollEarliest()
+                            : hardTimeOutWheel.pollEarliest();
 
         if (toEvict != null) {
             flowManagerHelper.removeWildcardFlow(toEvict);
@@ -163,41 +189,32 @@ public class FlowManager {
     public boolean remove(ManagedFlow wildFlow) {
         log.debug("Removing managed flow {}", wildFlow);
 
-        FlowMatch flowMatch = wildFlow.flowMatch();
-        ManagedFlow removedFlow = dpFlowTable.remove(flowMatch);
-        if (removedFlow == wildFlow) { // See isAlive()
+        if (dpFlowTable.remove(wildFlow)) { // See isAlive()
             flowManagerHelper.removeFlow(wildFlow);
+            if (hardTimeOutWheel.remove(wildFlow) ||
+                idleTimeOutWheel.remove(wildFlow)) {
+                wildFlow.unref(); // timeout queue ref
+            }
             wildFlow.unref(); // FlowManager's ref
             return true;
-        } else if (removedFlow != null) {
-            dpFlowTable.put(flowMatch, removedFlow);
         }
         return false;
     }
 
-    private void checkHardTimeOutExpiration() {
+    private void checkHardTimeOutExpiration(long now) {
         ManagedFlow flowToExpire;
-        while ((flowToExpire = hardTimeOutQueue.peek()) != null) {
-            // since we remove the element lazily let's check if this el
-            // has already been removed
-            if (!isAlive(flowToExpire)) {
-                hardTimeOutQueue.poll();
-                // timeout queue ref
-                flowToExpire.unref();
-                continue;
-            }
-            long timeLived = System.currentTimeMillis() - flowToExpire.getCreationTimeMillis();
-            if (timeLived >= flowToExpire.hardExpirationMillis()) {
-                hardTimeOutQueue.poll();
+        while ((flowToExpire = hardTimeOutWheel.poll(now)) != null) {
+            // flows are unscheduled when removed, but they may also have
+            // left the flow table without going through remove()
+            if (isAlive(flowToExpire)) {
+                long timeLived = now - flowToExpire.getCreationTimeMillis();
                 flowManagerHelper.removeWildcardFlow(flowToExpire); // will remove remaining refs
                 log.debug("Removing managed flow {} for hard expiration, expired {} ms ago",
                           flowToExpire,
                           timeLived - flowToExpire.hardExpirationMillis());
-                // timeout queue ref
-                flowToExpire.unref();
-            } else {
-                return;
             }
+            // timeout queue ref
+            flowToExpire.unref();
         }
     }
 
@@ -209,21 +226,23 @@ public class FlowManager {
         return dpFlowTable.get(flowToExpire.flowMatch()) == flowToExpire;
     }
 
-    private void getKernelFlowLastUsedTime(ManagedFlow flowToExpire) {
+    private void getKernelFlowLastUsedTime(ManagedFlow flowToExpire, long now) {
         FlowMatch flowMatch = flowToExpire.flowMatch();
-        UpdateLastUsedTimeCallback callback = new UpdateLastUsedTimeCallback(flowToExpire);
+        UpdateLastUsedTimeCallback callback =
+            new UpdateLastUsedTimeCallback(flowToExpire, now);
         flowToExpire.ref(); // Callback ref
         flowManagerHelper.getFlow(flowMatch, callback);
     }
 
-    private void checkIdleTimeExpiration() {
-        while (idleTimeOutQueue.peek() != null) {
-            ManagedFlow flowToExpire = idleTimeOutQueue.peek();
-            //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
-            // since we remove the element lazily let's check if this element
-            // has already been removed
+    private void checkIdleTimeExpiration(long now) {
+        // the flows due for expiration will be checked against the outcome
+        // of the flow dump in progress, wait for it before looking for more
+        if (flowDumpInProgress)
+            return;
+
+        ManagedFlow flowToExpire;
+        while ((flowToExpire = idleTimeOutWheel.poll(now)) != null) {
             if (!isAlive(flowToExpire)) {
-                idleTimeOutQueue.poll();
                 // timeout queue ref
                 flowToExpire.unref();
                 continue;
@@ -232,17 +251,80 @@ public class FlowManager {
                 flowToExpire.idleExpirationMillis();
             // if the flow expired we don't delete it immediately, first we query
             // the kernel to get the updated lastUsedTime
-            if (System.currentTimeMillis() >= expirationDate) {
-                // remove it from the queue so we won't query it again
-                idleTimeOutQueue.poll();
-                getKernelFlowLastUsedTime(flowToExpire);
+            if (now >= expirationDate) {
+                // the timeout queue ref is now held by idleFlowsToCheck
+                idleFlowsToCheck.add(flowToExpire);
+            } else {
+                // used since it was scheduled
+                idleTimeOutWheel.add(flowToExpire, expirationDate);
+            }
+        }
+
+        if (idleFlowDumpThreshold > 0 &&
+            idleFlowsToCheck.size() >= idleFlowDumpThreshold) {
+            log.debug("Dumping datapath flows to check {} idle flows",
+                      idleFlowsToCheck.size());
+            flowDumpInProgress = true;
+            long generation = ++flowDumpGeneration;
+            for (int i = 0; i < idleFlowsToCheck.size(); ++i) {
+                idleFlowsToCheck.get(i).setDumpGeneration(generation);
+            }
+            flowManagerHelper.dumpFlows(new FlowDumpCallback(now));
+        } else {
+            for (int i = 0; i < idleFlowsToCheck.size(); ++i) {
+                flowToExpire = idleFlowsToCheck.get(i);
+                getKernelFlowLastUsedTime(flowToExpire, now);
                 // timeout queue ref
                 flowToExpire.unref();
-            }else
-                break;
+            }
+            idleFlowsToCheck.clear();
         }
     }
 
+    /**
+     * Refreshes the lastUsedTime of the flows that were waiting for a datapath
+     * flow dump and then decides their fate. Only those flows are updated,
+     * the ones still in the idle time-out wheel are checked when they're due.
+     */
+    private void processFlowDump(Collection<Flow> kernelFlows, long now) {
+        flowDumpInProgress = false;
+        long generation = flowDumpGeneration;
+        if (kernelFlows != null) {
+            for (Flow kernelFlow : kernelFlows) {
+                ManagedFlow flow = dpFlowTable.get(kernelFlow.getMatch());
+                if (flow == null || flow.getDumpGeneration() != generation)
+                    continue;
+                // seen in the dump
+                flow.setDumpGeneration(0);
+                Long lastUsedTime = kernelFlow.getLastUsedTime();
+                if (lastUsedTime != null &&
+                        lastUsedTime > flow.getLastUsedTimeMillis()) {
+                    flow.setLastUsedTimeMillis(lastUsedTime);
+                }
+            }
+        }
+
+        for (int i = 0; i < idleFlowsToCheck.size(); ++i) {
+            ManagedFlow flowToExpire = idleFlowsToCheck.get(i);
+            if (!isAlive(flowToExpire)) {
+                flowToExpire.unref();
+            } else if (flowToExpire.getDumpGeneration() != generation) {
+                // the timeout queue ref is handed over
+                updateLastUsedTime(flowToExpire, null, now);
+            } else if (kernelFlows != null &&
+                       !flowToExpire.flowMatch().hasUserspaceOnlyFields()) {
+                // the kernel doesn't know about this flow
+                flowToExpire.unref();
+            } else {
+                // userspace only fields are not part of the kernel's flow
+                // match, so the dump can't tell us about this flow.
+                getKernelFlowLastUsedTime(flowToExpire, now);
+                flowToExpire.unref();
+            }
+        }
+        idleFlowsToCheck.clear();
+    }
+
     private void manageDPFlowTableSpace() {
         int excessFlows = getNumDpFlows() - (maxDpFlows - dpFlowRemoveBatchSize);
         if (excessFlows > 0)
@@ -250,10 +332,11 @@ public class FlowManager {
     }
 
     private void removeOldestDpFlows(int nFlowsToRemove) {
-        Iterator<ManagedFlow> it = dpFlowTable.values().iterator();
         ManagedFlow[] toRemove = new ManagedFlow[nFlowsToRemove];
+        ManagedFlow flow = dpFlowTable.oldest();
         for (int i = 0; i < nFlowsToRemove; ++i) {
-            toRemove[i] = it.next();
+            toRemove[i] = flow;
+            flow = dpFlowTable.newer(flow);
         }
         for (int i = 0; i < nFlowsToRemove; ++i) {
             flowManagerHelper.removeWildcardFlow(toRemove[i]);
@@ -261,38 +344,49 @@ public class FlowManager {
     }
 
     public void checkFlowsExpiration() {
-        checkHardTimeOutExpiration();
-        checkIdleTimeExpiration();
-        manageDPFlowTableSpace();
+        checkFlowsExpiration(System.currentTimeMillis());
     }
 
-    private abstract class WildcardFlowComparator implements Comparator<ManagedFlow> {
-
-        @Override
-        public int compare(ManagedFlow wildcardFlow,
-                           ManagedFlow wildcardFlow1) {
-            long now = System.currentTimeMillis();
-            long expirationTime1 = getExpirationTime(wildcardFlow, now);
-            long expirationTime2 = getExpirationTime(wildcardFlow1, now);
-
-            return (int) (expirationTime1-expirationTime2);
-        }
-
-        protected abstract long getExpirationTime(ManagedFlow flow, long now);
+    /**
+     * Expires the flows that are due at the specified time.
+     */
+    public void checkFlowsExpiration(long now) {
+        checkHardTimeOutExpiration(now);
+        checkIdleTimeExpiration(now);
+        manageDPFlowTableSpace();
     }
 
-    private class WildcardFlowHardTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedFlow flow, long now) {
-            return flow.getCreationTimeMillis() + flow.hardExpirationMillis();
+    /**
+     * Decides the fate of an idle flow once its lastUsedTime is known: either
+     * it goes back to the idle time-out wheel or it is expired. Consumes one
+     * reference of the flow.
+     */
+    private void updateLastUsedTime(ManagedFlow wcFlow, Flow flowGotFromKernel,
+                                    long now) {
+        if (flowGotFromKernel != null &&
+                flowGotFromKernel.getLastUsedTime() != null) {
+            // update the lastUsedTime
+            if (flowGotFromKernel.getLastUsedTime() > wcFlow.getLastUsedTimeMillis()) {
+                wcFlow.setLastUsedTimeMillis(flowGotFromKernel.getLastUsedTime());
+                log.trace("update lastUsedTime {}", flowGotFromKernel.getLastUsedTime());
+            }
         }
-    }
 
-    private class WildcardFlowIdleTimeComparator extends WildcardFlowComparator {
-        @Override
-        protected long getExpirationTime(ManagedFlow flow, long now) {
-            return flow.getLastUsedTimeMillis() + flow.idleExpirationMillis();
+        long expirationDate = wcFlow.getLastUsedTimeMillis() + wcFlow.idleExpirationMillis();
+        if (expirationDate - now > idleFlowToleranceInterval) {
+            wcFlow.ref(); // timeout queue ref
+            idleTimeOutWheel.add(wcFlow, expirationDate);
+        } else {
+            // we can expire it
+            flowManagerHelper.removeWildcardFlow(wcFlow);
+            log.debug(
+                "Removing managed flow {} for idle expiration, expired {} ms ago",
+                wcFlow,
+                now - (wcFlow.getLastUsedTimeMillis()
+                    + wcFlow.idleExpirationMillis()));
         }
+
+        wcFlow.unref();
     }
 
     /**
@@ -302,9 +396,11 @@ public class FlowManager {
      */
     class UpdateLastUsedTimeCallback implements Callback1<Flow> {
         ManagedFlow wcFlow;
+        long now;
 
-        UpdateLastUsedTimeCallback(ManagedFlow wcFlow) {
+        UpdateLastUsedTimeCallback(ManagedFlow wcFlow, long now) {
             this.wcFlow = wcFlow;
+            this.now = now;
         }
 
         @Override
@@ -317,30 +413,26 @@ public class FlowManager {
                 return;
             }
 
-            if (flowGotFromKernel.getLastUsedTime() != null) {
-                // update the lastUsedTime
-                if (flowGotFromKernel.getLastUsedTime() > wcFlow.getLastUsedTimeMillis()) {
-                    wcFlow.setLastUsedTimeMillis(flowGotFromKernel.getLastUsedTime());
-                    log.trace("update lastUsedTime {}", flowGotFromKernel.getLastUsedTime());
-                }
-            }
+            // getFlow callback ref
+            updateLastUsedTime(wcFlow, flowGotFromKernel, now);
+        }
+    }
 
-            long expirationDate = wcFlow.getLastUsedTimeMillis() + wcFlow.idleExpirationMillis();
-            if (expirationDate - System.currentTimeMillis() > idleFlowToleranceInterval) {
-                wcFlow.ref(); // timeout queue ref
-                idleTimeOutQueue.add(wcFlow);
-            } else {
-                // we can expire it
-                flowManagerHelper.removeWildcardFlow(wcFlow);
-                log.debug(
-                    "Removing managed flow {} for idle expiration, expired {} ms ago",
-                    wcFlow,
-                    System.currentTimeMillis() - (wcFlow.getLastUsedTimeMillis()
-                        + wcFlow.idleExpirationMillis()));
-            }
+    /**
+     * This callback is passed to dumpFlows(). It receives all the flows in the
+     * datapath, or null if the dump failed, in which case the flows that were
+     * waiting for it are queried one by one.
+     */
+    class FlowDumpCallback implements Callback1<Collection<Flow>> {
+        long now;
 
-            // getFlow callback ref
-            wcFlow.unref();
+        FlowDumpCallback(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public void call(Collection<Flow> kernelFlows) {
+            processFlowDump(kernelFlows, now);
         }
     }
 }
@@ -16,6 +16,8 @@
 
 package org.midonet.sdn.flows;
 
+import java.util.Collection;
+
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
 import org.midonet.util.functors.Callback1;
@@ -24,6 +26,12 @@ public interface FlowManagerHelper {
 
     public void getFlow(FlowMatch flowMatch, Callback1<Flow> getFlowCb);
 
+    /**
+     * Retrieves all the flows in the datapath, along with their stats. The
+     * callback is given null if the flows couldn't be retrieved.
+     */
+    public void dumpFlows(Callback1<Collection<Flow>> dumpFlowsCb);
+
     public void removeFlow(ManagedFlow flow);
 
     public void removeWildcardFlow(ManagedFlow flow);
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+/**
+ * The fixed layout of the keys and values of an OffHeapFlowStateTable. Each
+ * key and each value is encoded into a fixed number of 64 bit words, from
+ * which an equal key or value can be decoded. Equal keys must be encoded
+ * into the same words.
+ *
+ * @param <K> Type of the keys in the table
+ * @param <V> Type of the values in the table.
+ */
+public interface FlowStateLayout<K, V> {
+    /**
+     * The number of words a key is encoded into.
+     */
+    int keyWords();
+
+    /**
+     * The number of words a value is encoded into.
+     */
+    int valueWords();
+
+    void encodeKey(K key, long[] words, int offset);
+
+    K decodeKey(long[] words, int offset);
+
+    void encodeValue(V value, long[] words, int offset);
+
+    V decodeValue(long[] words, int offset);
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.NanoClock;
+
+/**
+ * A per-flow state table whose entries are stored off-heap, in direct
+ * buffers, with the fixed layout given by a FlowStateLayout. Keys and values
+ * only exist as objects while they are passed to or returned by the table,
+ * so the entries don't burden the garbage collector however many there are.
+ *
+ * The table is split into segments, selected by the hash of the key. Each
+ * segment is an open addressing hash table with linear probing, which grows
+ * as entries are added. A slot is made of a header, the key and the value:
+ *
+ *     [ hash | state ] [ refcount ] [ expiration ] [ key ... ] [ value ... ]
+ *
+ * THREADING SEMANTICS:
+ *
+ * The table can be shared by every packet processing thread. Lookups take
+ * the read lock of the segment of their key, so they only wait for writes to
+ * the same segment, and writes take its write lock.
+ *
+ * Entries are expired by the first thread that calls expireIdleEntries()
+ * after their expiration. The reducer is called while the entry's segment is
+ * locked, so that the key cannot be added back before the reducer returns,
+ * and must not access the table.
+ */
+public final class OffHeapFlowStateTable<K extends IdleExpiration, V>
+        implements FlowStateTable<K, V> {
+
+    private static final Logger log =
+        LoggerFactory.getLogger("org.midonet.state.table");
+
+    public static final int DEFAULT_SEGMENTS = 64;
+    public static final int DEFAULT_SEGMENT_CAPACITY = 1024;
+
+    private static final int EMPTY = 0;
+    private static final int LIVE = 1;
+    private static final int DELETED = 2;
+
+    private static final int HEADER = 0;
+    private static final int REFS = 1;
+    private static final int EXPIRATION = 2;
+    private static final int HEADER_WORDS = 3;
+
+    private final FlowStateLayout<K, V> layout;
+    private final NanoClock clock;
+    private final int keyWords;
+    private final int valueWords;
+    private final int slotWords;
+    private final Segment[] segments;
+
+    /* Holds the encoded key, its value and the previous value. */
+    private final ThreadLocal<long[]> scratch = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[keyWords + 2 * valueWords];
+        }
+    };
+
+    public OffHeapFlowStateTable(FlowStateLayout<K, V> layout,
+                                 NanoClock clock) {
+        this(layout, clock, DEFAULT_SEGMENTS, DEFAULT_SEGMENT_CAPACITY);
+    }
+
+    /**
+     * @param segments The number of segments, a power of two.
+     * @param segmentCapacity The initial number of slots of each segment, a
+     *                        power of two.
+     */
+    public OffHeapFlowStateTable(FlowStateLayout<K, V> layout,
+                                 NanoClock clock, int segments,
+                                 int segmentCapacity) {
+        if (Integer.bitCount(segments) != 1 ||
+            Integer.bitCount(segmentCapacity) != 1)
+            throw new IllegalArgumentException(
+                "The number of segments and their capacity must be powers of 2");
+        this.layout = layout;
+        this.clock = clock;
+        keyWords = layout.keyWords();
+        valueWords = layout.valueWords();
+        slotWords = HEADER_WORDS + keyWords + valueWords;
+        this.segments = new OffHeapFlowStateTable.Segment[segments];
+        for (int i = 0; i < segments; i++)
+            this.segments[i] = new Segment(segmentCapacity);
+    }
+
+    /* Encodes the key into the scratch words and returns its hash */
+    private long encodeKey(K key, long[] words) {
+        layout.encodeKey(key, words, 0);
+        long h = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < keyWords; i++) {
+            h = (h ^ words[i]) * 0xff51afd7ed558ccdL;
+            h ^= h >>> 32;
+        }
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 29);
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 32) & (segments.length - 1)];
+    }
+
+    private long nowMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.tick());
+    }
+
+    /**
+     * The number of entries in the table.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            Lock lock = segment.readLock;
+            lock.lock();
+            try {
+                size += segment.live;
+            } finally {
+                lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void touch(K key, V value) {
+        putAndRef(key, value);
+        unref(key);
+    }
+
+    @Override
+    public V putAndRef(K key, V value) {
+        long[] words = scratch.get();
+        long hash = encodeKey(key, words);
+        layout.encodeValue(value, words, keyWords);
+        Segment segment = segmentFor(hash);
+        boolean replaced;
+        Lock lock = segment.writeLock;
+        lock.lock();
+        try {
+            replaced = segment.putAndRef((int) hash, words);
+        } finally {
+            lock.unlock();
+        }
+        return replaced ? layout.decodeValue(words, keyWords + valueWords)
+                        : null;
+    }
+
+    @Override
+    public V get(K key) {
+        long[] words = scratch.get();
+        long hash = encodeKey(key, words);
+        Segment segment = segmentFor(hash);
+        boolean found;
+        Lock lock = segment.readLock;
+        lock.lock();
+        try {
+            found = segment.readValue((int) hash, words);
+        } finally {
+            lock.unlock();
+        }
+        return found ? layout.decodeValue(words, keyWords) : null;
+    }
+
+    @Override
+    public V ref(K key) {
+        long[] words = scratch.get();
+        long hash = encodeKey(key, words);
+        Segment segment = segmentFor(hash);
+        boolean found;
+        Lock lock = segment.writeLock;
+        lock.lock();
+        try {
+            found = segment.ref((int) hash, words);
+        } finally {
+            lock.unlock();
+        }
+        return found ? layout.decodeValue(words, keyWords) : null;
+    }
+
+    @Override
+    public void unref(K key) {
+        long[] words = scratch.get();
+        long hash = encodeKey(key, words);
+        Segment segment = segmentFor(hash);
+        Lock lock = segment.writeLock;
+        lock.lock();
+        try {
+            segment.unref(key, (int) hash, words);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getRefCount(K key) {
+        long[] words = scratch.get();
+        long hash = encodeKey(key, words);
+        Segment segment = segmentFor(hash);
+        Lock lock = segment.readLock;
+        lock.lock();
+        try {
+            return segment.refCount((int) hash, words);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void expireIdleEntries() {
+        expireIdleEntries(null, null);
+    }
+
+    @Override
+    public <U> U expireIdleEntries(U seed, Reducer<K, V, U> func) {
+        long now = nowMillis();
+        U acc = seed;
+        for (Segment segment : segments) {
+            if (segment.nextExpiration > now)
+                continue;
+            // Another thread is expiring the segment's entries, or adding
+            // one, we'll get to it next time.
+            Lock lock = segment.writeLock;
+            if (!lock.tryLock())
+                continue;
+            try {
+                acc = segment.expire(now, acc, func);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return acc;
+    }
+
+    @Override
+    public <U> U fold(U seed, Reducer<K, V, U> func) {
+        List<K> keys = new ArrayList<>();
+        List<V> values = new ArrayList<>();
+        for (Segment segment : segments) {
+            Lock lock = segment.readLock;
+            lock.lock();
+            try {
+                segment.entries(keys, values);
+            } finally {
+                lock.unlock();
+            }
+        }
+        U acc = seed;
+        for (int i = 0; i < keys.size(); i++)
+            acc = func.apply(acc, keys.get(i), values.get(i));
+        return acc;
+    }
+
+    /**
+     * The slots of a segment. A new instance replaces it when the segment
+     * grows.
+     */
+    private static final class Slots {
+        final ByteBuffer buf;
+        final int mask;
+
+        Slots(int capacity, int slotWords) {
+            buf = ByteBuffer.allocateDirect(capacity * slotWords * 8)
+                            .order(ByteOrder.nativeOrder());
+            mask = capacity - 1;
+        }
+    }
+
+    private final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final Lock readLock = lock.readLock();
+        final Lock writeLock = lock.writeLock();
+
+        Slots slots;
+        /* The number of live entries, and of live and deleted ones */
+        int live = 0;
+        int used = 0;
+
+        /* The slots of the entries whose refcount reached 0, in order of
+         * expiration. A slot may have been referenced or reused since. */
+        int[] expiringSlots = new int[64];
+        long[] expiringTimes = new long[64];
+        int expiringHead = 0;
+        int expiringSize = 0;
+        volatile long nextExpiration = Long.MAX_VALUE;
+
+        Segment(int capacity) {
+            slots = new Slots(capacity, slotWords);
+        }
+
+        private int offset(int slot, int word) {
+            return (slot * slotWords + word) << 3;
+        }
+
+        private boolean keyEquals(ByteBuffer buf, int slot, long[] words) {
+            int base = offset(slot, HEADER_WORDS);
+            for (int i = 0; i < keyWords; i++) {
+                if (buf.getLong(base + (i << 3)) != words[i])
+                    return false;
+            }
+            return true;
+        }
+
+        /* The slot of the key, or -1 */
+        private int find(Slots s, int hash, long[] words) {
+            ByteBuffer buf = s.buf;
+            int slot = hash & s.mask;
+            for (int n = 0; n <= s.mask; n++) {
+                long header = buf.getLong(offset(slot, HEADER));
+                int state = (int) header;
+                if (state == EMPTY)
+                    return -1;
+                if (state == LIVE && (int) (header >>> 32) == hash &&
+                    keyEquals(buf, slot, words))
+                    return slot;
+                slot = (slot + 1) & s.mask;
+            }
+            return -1;
+        }
+
+        private void copyOut(ByteBuffer buf, int slot, int word,
+                             long[] words, int offset, int count) {
+            int base = offset(slot, word);
+            for (int i = 0; i < count; i++)
+                words[offset + i] = buf.getLong(base + (i << 3));
+        }
+
+        private void copyIn(ByteBuffer buf, int slot, int word,
+                            long[] words, int offset, int count) {
+            int base = offset(slot, word);
+            for (int i = 0; i < count; i++)
+                buf.putLong(base + (i << 3), words[offset + i]);
+        }
+
+        boolean readValue(int hash, long[] words) {
+            Slots s = slots;
+            int slot = find(s, hash, words);
+            if (slot < 0)
+                return false;
+            copyOut(s.buf, slot, HEADER_WORDS + keyWords, words, keyWords,
+                    valueWords);
+            return true;
+        }
+
+        int refCount(int hash, long[] words) {
+            Slots s = slots;
+            int slot = find(s, hash, words);
+            return slot < 0 ? 0 : (int) s.buf.getLong(offset(slot, REFS));
+        }
+
+        /* Returns whether the key had a value, which is copied after the
+         * new one in the words. */
+        boolean putAndRef(int hash, long[] words) {
+            Slots s = slots;
+            int slot = find(s, hash, words);
+            if (slot >= 0) {
+                ByteBuffer buf = s.buf;
+                copyOut(buf, slot, HEADER_WORDS + keyWords, words,
+                        keyWords + valueWords, valueWords);
+                copyIn(buf, slot, HEADER_WORDS + keyWords, words, keyWords,
+                       valueWords);
+                buf.putLong(offset(slot, REFS),
+                            buf.getLong(offset(slot, REFS)) + 1);
+                return true;
+            }
+
+            if (used + 1 > (s.mask + 1) / 4 * 3) {
+                // Grow, or only drop the deleted entries if they fill it
+                int capacity = s.mask + 1;
+                rehash(live + 1 > capacity / 8 * 3 ? capacity * 2 : capacity);
+                s = slots;
+            }
+
+            // The key isn't there, so it can take the first deleted slot.
+            ByteBuffer buf = s.buf;
+            slot = hash & s.mask;
+            int state;
+            while ((state = (int) buf.getLong(offset(slot, HEADER))) == LIVE)
+                slot = (slot + 1) & s.mask;
+            if (state == EMPTY)
+                used++;
+            live++;
+            copyIn(buf, slot, HEADER_WORDS, words, 0, keyWords + valueWords);
+            buf.putLong(offset(slot, REFS), 1L);
+            buf.putLong(offset(slot, EXPIRATION), Long.MAX_VALUE);
+            buf.putLong(offset(slot, HEADER), ((long) hash << 32) | LIVE);
+            return false;
+        }
+
+        boolean ref(int hash, long[] words) {
+            Slots s = slots;
+            int slot = find(s, hash, words);
+            if (slot < 0)
+                return false;
+            ByteBuffer buf = s.buf;
+            buf.putLong(offset(slot, REFS), buf.getLong(offset(slot, REFS)) + 1);
+            copyOut(buf, slot, HEADER_WORDS + keyWords, words, keyWords,
+                    valueWords);
+            return true;
+        }
+
+        void unref(K key, int hash, long[] words) {
+            Slots s = slots;
+            int slot = find(s, hash, words);
+            if (slot < 0)
+                return;
+            ByteBuffer buf = s.buf;
+            long refs = buf.getLong(offset(slot, REFS));
+            if (refs <= 0) {
+                log.error("Decrement a ref count past 0 for {}", key);
+                return;
+            }
+            buf.putLong(offset(slot, REFS), refs - 1);
+            if (refs == 1) {
+                log.debug("Scheduling removal of {}", key);
+                long expiration = nowMillis() + key.expiresAfter().toMillis();
+                buf.putLong(offset(slot, EXPIRATION), expiration);
+                offerExpiring(slot, expiration);
+            }
+        }
+
+        private void offerExpiring(int slot, long expiration) {
+            if (expiringSize == expiringSlots.length) {
+                int[] newSlots = new int[expiringSlots.length * 2];
+                long[] newTimes = new long[expiringTimes.length * 2];
+                for (int i = 0; i < expiringSize; i++) {
+                    int j = (expiringHead + i) & (expiringSlots.length - 1);
+                    newSlots[i] = expiringSlots[j];
+                    newTimes[i] = expiringTimes[j];
+                }
+                expiringSlots = newSlots;
+                expiringTimes = newTimes;
+                expiringHead = 0;
+            }
+            int tail = (expiringHead + expiringSize) & (expiringSlots.length - 1);
+            expiringSlots[tail] = slot;
+            expiringTimes[tail] = expiration;
+            if (expiringSize++ == 0)
+                nextExpiration = expiration;
+        }
+
+        <U> U expire(long now, U seed, Reducer<K, V, U> func) {
+            U acc = seed;
+            Slots s = slots;
+            ByteBuffer buf = s.buf;
+            long[] words = scratch.get();
+            while (expiringSize > 0 && expiringTimes[expiringHead] <= now) {
+                int slot = expiringSlots[expiringHead];
+                expiringHead = (expiringHead + 1) & (expiringSlots.length - 1);
+                expiringSize--;
+
+                if ((int) buf.getLong(offset(slot, HEADER)) != LIVE ||
+                    buf.getLong(offset(slot, REFS)) != 0 ||
+                    buf.getLong(offset(slot, EXPIRATION)) > now)
+                    continue;
+
+                if (func != null || log.isDebugEnabled()) {
+                    copyOut(buf, slot, HEADER_WORDS, words, 0,
+                            keyWords + valueWords);
+                    K key = layout.decodeKey(words, 0);
+                    log.debug("Forgetting entry {}", key);
+                    if (func != null)
+                        acc = func.apply(acc, key,
+                                         layout.decodeValue(words, keyWords));
+                }
+                buf.putLong(offset(slot, HEADER), DELETED);
+                live--;
+            }
+            nextExpiration = expiringSize > 0 ? expiringTimes[expiringHead]
+                                              : Long.MAX_VALUE;
+            return acc;
+        }
+
+        void entries(List<K> keys, List<V> values) {
+            Slots s = slots;
+            long[] words = new long[keyWords + valueWords];
+            for (int slot = 0; slot <= s.mask; slot++) {
+                if ((int) s.buf.getLong(offset(slot, HEADER)) == LIVE) {
+                    copyOut(s.buf, slot, HEADER_WORDS, words, 0,
+                            keyWords + valueWords);
+                    keys.add(layout.decodeKey(words, 0));
+                    values.add(layout.decodeValue(words, keyWords));
+                }
+            }
+        }
+
+        private void rehash(int capacity) {
+            Slots old = slots;
+            Slots s = new Slots(capacity, slotWords);
+            int[] moved = new int[old.mask + 1];
+            Arrays.fill(moved, -1);
+            int slotBytes = slotWords << 3;
+            for (int i = 0; i <= old.mask; i++) {
+                long header = old.buf.getLong(offset(i, HEADER));
+                if ((int) header != LIVE)
+                    continue;
+                int slot = (int) (header >>> 32) & s.mask;
+                while ((int) s.buf.getLong(offset(slot, HEADER)) != EMPTY)
+                    slot = (slot + 1) & s.mask;
+                ByteBuffer src = old.buf.duplicate();
+                src.limit(offset(i, 0) + slotBytes).position(offset(i, 0));
+                ByteBuffer dst = s.buf.duplicate();
+                dst.position(offset(slot, 0));
+                dst.put(src);
+                moved[i] = slot;
+            }
+
+            // Keep the order of the expiring entries that are still there
+            int size = expiringSize;
+            int head = expiringHead;
+            int[] oldSlots = expiringSlots;
+            long[] oldTimes = expiringTimes;
+            expiringSlots = new int[oldSlots.length];
+            expiringTimes = new long[oldTimes.length];
+            expiringHead = 0;
+            expiringSize = 0;
+            for (int i = 0; i < size; i++) {
+                int j = (head + i) & (oldSlots.length - 1);
+                if (moved[oldSlots[j]] >= 0)
+                    offerExpiring(moved[oldSlots[j]], oldTimes[j]);
+            }
+            nextExpiration = expiringSize > 0 ? expiringTimes[0]
+                                              : Long.MAX_VALUE;
+
+            used = live;
+            slots = s;
+        }
+    }
+}
@@ -105,7 +105,9 @@ class MidonetBackendService @Inject() (cfg: MidonetBackendConfig,
     extends MidonetBackend {
 
     private val zoom =
-        new ZookeeperObjectMapper(cfg.zookeeperRootPath + "/zoom", curator)
+        new ZookeeperObjectMapper(cfg.zookeeperRootPath + "/zoom", curator,
+                                  cfg.objectCacheSize,
+                                  cfg.optimisticTransactions)
 
     override def store: Storage = zoom
     override def ownershipStore: StorageWithOwnership = zoom
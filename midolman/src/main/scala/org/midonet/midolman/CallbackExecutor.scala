@@ -34,6 +34,9 @@ object CallbackExecutor {
                 i += 1
             }
         }
+
+        override def schedule(callback: Callback0): Unit =
+            callback.call()
     }
 }
 
@@ -54,6 +57,13 @@ sealed class CallbackExecutor(capacity: Int, alert: ActorRef)
         alert ! CheckBackchannels
     }
 
+    def schedule(callback: Callback0): Unit = {
+        while (!queue.offer(callback)) {
+            park()
+        }
+        alert ! CheckBackchannels
+    }
+
     def run(): Unit = {
         var cb: Callback0 = null
         while ({ cb = queue.poll(); cb } ne null) {
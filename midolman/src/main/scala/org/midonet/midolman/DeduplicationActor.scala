@@ -29,7 +29,6 @@ import org.slf4j.MDC
 
 import org.jctools.queues.MpscArrayQueue
 
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
@@ -43,16 +42,25 @@ import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state._
 import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateStorage, NatLeaser}
+import org.midonet.midolman.topology.DhcpConfigCache
 import org.midonet.odp.{FlowMatches, FlowMatch, Packet}
 import org.midonet.packets.Ethernet
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
-import org.midonet.util.collection.Reducer
+import org.midonet.util.collection.{ArrayObjectPool, Reducer}
 import org.midonet.util.concurrent._
 
 object DeduplicationActor {
     case class HandlePackets(packet: Array[Packet])
     case class DiscardPacket(cookie: Int)
     case class RestartWorkflow(pktCtx: PacketContext, error: Throwable)
+    case object ImportFlowState
+
+    /* The number of PacketContexts each packet worker recycles */
+    val PacketContextPoolSize = 1024
+
+    /* The number of flow state keys imported from storage between the
+     * handling of two batches of packets */
+    val FlowStateImportChunkSize = 1024
 }
 
 class CookieGenerator(val start: Int, val increment: Int) {
@@ -69,13 +77,15 @@ class DeduplicationActor(
             val config: MidolmanConfig,
             val cookieGen: CookieGenerator,
             val dpChannel: DatapathChannel,
-            val clusterDataClient: DataClient,
+            val dhcpConfig: DhcpConfigCache,
             val connTrackStateTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
             val natStateTable: FlowStateTable[NatKey, NatBinding],
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val packetQueue: PacketWorkerQueue = null,
+            val flowShard: Int = 0)
             extends Actor with ActorLogWithoutPath with Stash {
 
     import DatapathController.DatapathReady
@@ -99,12 +109,17 @@ class DeduplicationActor(
     private val cbExecutor = new CallbackExecutor(2048, self)
     private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
 
+    private val contextPool = new ArrayObjectPool[PacketContext](
+        PacketContextPoolSize, new PacketContext(0, null, null, null, _))
+
     protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
     protected val natTx = new FlowStateTransaction(natStateTable)
     protected var replicator: FlowStateReplicator = _
 
     protected var workflow: PacketHandler = _
 
+    private val importMetrics = metrics.flowStateImport(self.path.name)
+
     private val invalidateExpiredConnTrackKeys =
         new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
             override def apply(u: Unit, k: ConnTrackKey, v: ConnTrackValue) {
@@ -129,8 +144,9 @@ class DeduplicationActor(
                                                  dpState,
                                                  FlowController ! InvalidateFlowsByTag(_),
                                                  config.getControlPacketsTos.toByte)
-            workflow = new PacketWorkflow(dpState, dp, clusterDataClient,
-                                          dpChannel, replicator, config)
+            workflow = new PacketWorkflow(dpState, dp, dhcpConfig,
+                                          dpChannel, replicator, config,
+                                          flowShard)
             context.become(receive)
             unstashAll()
         case _ => stash()
@@ -138,13 +154,23 @@ class DeduplicationActor(
 
     override def receive = {
         case m: FlowStateBatch =>
+            val pending = replicator.pendingImportSize
             replicator.importFromStorage(m)
+            importMetrics.pendingImport.inc(
+                replicator.pendingImportSize - pending)
+            if (pending == 0)
+                self ! ImportFlowState
+
+        case ImportFlowState =>
+            val imported = replicator.importPending(FlowStateImportChunkSize)
+            importMetrics.imported.mark(imported)
+            importMetrics.pendingImport.dec(imported)
+            // Packets queued in the mailbox meanwhile are handled first
+            if (replicator.pendingImportSize > 0)
+                self ! ImportFlowState
 
         case HandlePackets(packets) =>
-
-            connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
-            natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
-            natLeaser.obliterateUnusedBlocks()
+            expireFlowState()
 
             var i = 0
             while (i < packets.length && packets(i) != null) {
@@ -156,6 +182,10 @@ class DeduplicationActor(
             genPacketEmitter.process(runGeneratedPacket)
 
         case CheckBackchannels =>
+            if (packetQueue ne null) {
+                expireFlowState()
+                packetQueue.process(handleQueuedPacket)
+            }
             cbExecutor.run()
             genPacketEmitter.process(runGeneratedPacket)
 
@@ -171,6 +201,13 @@ class DeduplicationActor(
                 MDC.remove("cookie")
             }
             // Else the packet may have already been expired and dropped
+            pktCtx.unref() // the reference held on behalf of the future
+    }
+
+    private def expireFlowState(): Unit = {
+        connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
+        natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
+        natLeaser.obliterateUnusedBlocks()
     }
 
     // We return collection.Set so we can return an empty immutable set
@@ -197,7 +234,11 @@ class DeduplicationActor(
     private def initialize(packet: Packet, fmatch: FlowMatch, egressPort: UUID) = {
         val cookie = cookieGen.next
         log.debug(s"Creating new PacketContext for cookie $cookie")
-        val context = new PacketContext(cookie, packet, fmatch, egressPort)
+        var context = contextPool.take
+        if (context eq null)
+            context = new PacketContext(0, null, null, null, contextPool)
+        context.reset(cookie, packet, fmatch, egressPort)
+        context.ref() // released once the packet is completed or dropped
         context.reset(cbExecutor, genPacketEmitter)
         context.initialize(connTrackTx, natTx, natLeaser)
         context.log = PacketTracing.loggerFor(fmatch)
@@ -210,6 +251,8 @@ class DeduplicationActor(
      */
     private def postponeOn(pktCtx: PacketContext, f: Future[_]) {
         pktCtx.postpone()
+        // The context can't be recycled until the future restarts it
+        pktCtx.ref()
         val flowMatch = pktCtx.packet.getMatch
         if (!suspendedPackets.containsKey(flowMatch)) {
             suspendedPackets.put(flowMatch, mutable.HashSet())
@@ -248,6 +291,7 @@ class DeduplicationActor(
         } finally {
             val dropped = removeSuspendedPackets(pktCtx.packet.getMatch).size
             metrics.packetsDropped.mark(dropped + 1)
+            pktCtx.unref()
         }
 
     private def complete(pktCtx: PacketContext, simRes: SimulationResult): Unit = {
@@ -300,7 +344,9 @@ class DeduplicationActor(
         drop(pktCtx)
     }
 
-    protected def startWorkflow(context: PacketContext): Unit =
+    protected def startWorkflow(context: PacketContext): Unit = {
+        // The context may be recycled once the workflow completes
+        val ingressed = context.ingressed
         try {
             MDC.put("cookie", context.cookieStr)
             context.log.debug(s"New cookie for new match ${context.origMatch}")
@@ -309,15 +355,17 @@ class DeduplicationActor(
             case ex: Exception =>
                 log.error("Unable to execute workflow", ex)
         } finally {
-            if (context.ingressed)
+            if (ingressed)
                 packetOut(1)
             MDC.remove("cookie")
         }
+    }
 
-    protected def runWorkflow(pktCtx: PacketContext): Unit =
-        try {
+    protected def runWorkflow(pktCtx: PacketContext): Unit = {
+        val completed = try {
             try {
                 complete(pktCtx, workflow.start(pktCtx))
+                true
             } finally {
                 flushTransactions()
             }
@@ -326,11 +374,20 @@ class DeduplicationActor(
                 pktCtx.setTracingEnabled()
                 pktCtx.log.debug(s"Enabling trace for $pktCtx, and rerunning simulation")
                 runWorkflow(pktCtx)
+                false
             case NotYetException(f, msg) =>
                 pktCtx.log.debug(s"Postponing simulation because: $msg")
                 postponeOn(pktCtx, f)
-            case ex: Throwable => handleErrorOn(pktCtx, ex)
+                false
+            case ex: Throwable =>
+                handleErrorOn(pktCtx, ex)
+                false
         }
+        // Released outside of the error path, which drops the context and
+        // releases it itself
+        if (completed)
+            pktCtx.unref()
+    }
 
     private def handlePacket(packet: Packet): Unit = {
         val flowMatch = packet.getMatch
@@ -347,6 +404,8 @@ class DeduplicationActor(
         }
     }
 
+    private val handleQueuedPacket = (p: Packet) => handlePacket(p)
+
     private val runGeneratedPacket = (p: GeneratedPacket) => {
         log.debug(s"Executing generated packet $p")
         startWorkflow(generatedPacketContext(p.egressPort, p.eth))
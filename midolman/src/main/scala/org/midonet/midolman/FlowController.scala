@@ -19,14 +19,12 @@ package org.midonet.midolman
 import java.nio.ByteBuffer
 
 import java.util.concurrent.TimeUnit
-import java.util.ArrayList
+import java.util.{ArrayList, Collection, HashSet => JHashSet, Set => JSet}
 
-import scala.collection.mutable
-import scala.collection.mutable.{HashMap, MultiMap}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
-import akka.actor.{Actor, ActorSystem}
+import akka.actor.{Actor, ActorRef, ActorSystem}
 import akka.event.LoggingReceive
 
 import com.google.inject.Inject
@@ -36,7 +34,7 @@ import rx.Observer
 import org.jctools.queues.SpscArrayQueue
 
 import com.codahale.metrics.MetricRegistry.name
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.{Gauge, Metric, MetricFilter, MetricRegistry}
 
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.flows.FlowEjector
@@ -52,8 +50,7 @@ import org.midonet.netlink.{BytesUtil, Callback}
 import org.midonet.odp.{Datapath, Flow, FlowMatch, OvsProtocol}
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows._
-import org.midonet.util.collection.{EventHistory, ArrayObjectPool, ObjectPool}
-import org.midonet.util.collection.EventHistory._
+import org.midonet.util.collection.{ArrayObjectPool, EventEpochs, ObjectPool}
 import org.midonet.util.concurrent.WakerUpper.Parkable
 import org.midonet.util.functors.Callback1
 
@@ -66,6 +63,9 @@ object FlowController extends Referenceable {
 
     case class InvalidateFlowsByTag(tag: FlowTag)
 
+    /* Sent by the first shard to the others to invalidate their flows. */
+    case class InvalidateShardFlowsByTag_(tag: FlowTag)
+
     case class FlowUpdateCompleted(flow: Flow) // used in test only
 
     case object CheckFlowExpiration_
@@ -78,25 +78,54 @@ object FlowController extends Referenceable {
     case class GetFlowSucceeded_(flow: Flow, origMatch: FlowMatch, flowCallback: Callback1[Flow])
     case class GetFlowFailed_(flowCallback: Callback1[Flow])
 
+    /* Sent by a shard to the first one, which dumps the datapath flows for
+     * all the shards that asked for it meanwhile. */
+    case class RequestFlowDump_(shard: ActorRef)
+    /* The datapath flows, or null if the dump failed. The first shard
+     * receives them from the datapath and sends them to the requesters. */
+    case class FlowDumpCompleted_(flows: JSet[Flow])
+    case class FlowsDumped_(flows: JSet[Flow])
+
     case object CheckCompletedRequests
 
     val MIN_WILDCARD_FLOW_CAPACITY = 4096
 
-    private val invalidationHistory = new EventHistory[FlowTag](1024)
+    val MAX_SHARDS = 16
 
+    /** The flows are partitioned in one FlowController shard per packet
+      * processing worker, such that each worker adds the flows it creates
+      * to its own shard. The first shard is the FlowController actor known
+      * by [[Name]], which receives the flow invalidations and forwards them
+      * to the other shards. */
+    def numShards(config: MidolmanConfig): Int =
+        Math.max(1, Math.min(MAX_SHARDS, config.getSimulationThreads))
 
-    def isTagSetStillValid(pktCtx: PacketContext) =
-        invalidationHistory.existsSince(pktCtx.lastInvalidation,
-                                        pktCtx.flowTags) match {
-            case EventSearchWindowMissed => pktCtx.flowTags.isEmpty
-            case EventSeen => false
-            case EventNotSeen => true
-        }
+    def shardName(shard: Int): String =
+        if (shard == 0) Name else s"$Name-$shard"
+
+    def shard(index: Int)(implicit system: ActorSystem): ActorRef =
+        if (index == 0) getRef()
+        else system.actorFor(Referenceable.getReferenceablePath(
+                                 supervisorName, shardName(index)))
+
+    /* The epochs of the tag invalidations, such that the flow of a packet
+     * is discarded if any of its tags was invalidated while the packet was
+     * simulated, however many invalidations happened meanwhile. */
+    private val invalidationHistory = new EventEpochs[FlowTag](16 * 1024,
+                                                               64 * 1024)
+
+    def isTagSetStillValid(pktCtx: PacketContext): Boolean =
+        isTagSetStillValid(pktCtx.lastInvalidation, pktCtx.flowTags)
+
+    /** Whether none of the tags was invalidated after the given epoch, as
+      * returned by lastInvalidationEvent. */
+    def isTagSetStillValid(lastSeen: Long, tags: JSet[FlowTag]): Boolean =
+        !invalidationHistory.existsSince(lastSeen, tags)
 
     def lastInvalidationEvent = invalidationHistory.latest
 
-    sealed abstract class FlowOvsCommand[T](completedRequests: SpscArrayQueue[T])
-                                           (implicit actorSystem: ActorSystem)
+    sealed abstract class FlowOvsCommand[T](completedRequests: SpscArrayQueue[T],
+                                            owner: ActorRef)
         extends Observer[ByteBuffer] { self: T =>
 
         var failure: Throwable = _
@@ -116,7 +145,7 @@ object FlowController extends Referenceable {
 
         final override def onCompleted(): Unit = {
             completedRequests.offer(this)
-            FlowController ! FlowController.CheckCompletedRequests
+            owner ! FlowController.CheckCompletedRequests
         }
 
         final override def onError(e: Throwable): Unit = {
@@ -126,9 +155,9 @@ object FlowController extends Referenceable {
     }
 
     sealed class FlowRemoveCommand(pool: ObjectPool[FlowRemoveCommand],
-                                   completedRequests: SpscArrayQueue[FlowRemoveCommand])
-                                  (implicit actorSystem: ActorSystem)
-        extends FlowOvsCommand[FlowRemoveCommand](completedRequests) {
+                                   completedRequests: SpscArrayQueue[FlowRemoveCommand],
+                                   owner: ActorRef)
+        extends FlowOvsCommand[FlowRemoveCommand](completedRequests, owner) {
 
         private val buf = BytesUtil.instance.allocateDirect(8*1024)
         val flow = new Flow()
@@ -170,6 +199,10 @@ class FlowController extends Actor with ActorLogWithoutPath
 
     var datapath: Datapath = null
 
+    /* The index of this shard, set before the actor is started. */
+    var shard = 0
+    private var numShards = 1
+
     @Inject
     var midolmanConfig: MidolmanConfig = null
 
@@ -193,37 +226,51 @@ class FlowController extends Actor with ActorLogWithoutPath
     var flowManager: FlowManager = null
     var flowManagerHelper: FlowManagerHelper = null
 
-    val tagToFlows: MultiMap[FlowTag, ManagedFlow] =
-        new HashMap[FlowTag, mutable.Set[ManagedFlow]]
-            with MultiMap[FlowTag, ManagedFlow]
+    val tagIndex = new FlowTagIndex(MIN_WILDCARD_FLOW_CAPACITY)
+    private val invalidatedFlows = new ArrayList[ManagedFlow]()
 
     var flowExpirationCheckInterval: FiniteDuration = null
 
     private var managedFlowPool: ObjectPool[ManagedFlow] = null
 
+    /* The callback of this shard's FlowManager awaiting a flow dump. */
+    private var dumpCallback: Callback1[Collection[Flow]] = null
+    /* In the first shard, the shards awaiting the dump in progress and the
+     * ones that asked for a dump after it started. */
+    private var dumpInProgress = false
+    private var dumpRequesters = new JHashSet[ActorRef]()
+    private var nextDumpRequesters = new JHashSet[ActorRef]()
+
     var metrics: FlowTablesMetrics = null
 
     private[this] implicit def executor: ExecutionContext = context.dispatcher
 
     override def preStart() {
         super.preStart()
-        meters = new MeterRegistry(midolmanConfig.getDatapathMaxFlowCount)
-        Metering.registerAsMXBean(meters)
-        val maxDpFlows = (midolmanConfig.getDatapathMaxFlowCount * 1.1).toInt
+        numShards = FlowController.numShards(midolmanConfig)
+        val maxFlows = midolmanConfig.getDatapathMaxFlowCount / numShards
+        meters = new MeterRegistry(maxFlows)
+        Metering.registerAsMXBean(meters, shard)
+        val maxDpFlows = (maxFlows * 1.1).toInt
         val idleFlowToleranceInterval = midolmanConfig.getIdleFlowToleranceInterval
         flowExpirationCheckInterval = Duration(midolmanConfig.getFlowExpirationInterval,
             TimeUnit.MILLISECONDS)
 
         flowManagerHelper = new FlowManagerInfoImpl()
-        flowManager = new FlowManager(flowManagerHelper, maxDpFlows, idleFlowToleranceInterval)
+        flowManager = new FlowManager(flowManagerHelper, maxDpFlows,
+                                      idleFlowToleranceInterval,
+                                      FlowManager.DEFAULT_FLOW_REMOVE_BATCH_SIZE,
+                                      midolmanConfig.getIdleFlowDumpThreshold)
 
         managedFlowPool = new ArrayObjectPool(maxDpFlows, new ManagedFlow(_))
 
         metrics = new FlowTablesMetrics(flowManager)
 
-        completedFlowRemoveCommands = new SpscArrayQueue(ejector.maxPendingRequests)
-        pooledFlowRemoveCommands = new ArrayObjectPool(ejector.maxPendingRequests,
-                                                       new FlowRemoveCommand(_, completedFlowRemoveCommands))
+        // The shards share the ejector's capacity
+        val maxPendingRequests = Math.max(1, ejector.maxPendingRequests / numShards)
+        completedFlowRemoveCommands = new SpscArrayQueue(maxPendingRequests)
+        pooledFlowRemoveCommands = new ArrayObjectPool(maxPendingRequests,
+                                                       new FlowRemoveCommand(_, completedFlowRemoveCommands, self))
     }
 
     def receive = LoggingReceive {
@@ -260,17 +307,22 @@ class FlowController extends Actor with ActorLogWithoutPath
                 pktCtx.callbackExecutor.schedule(pktCtx.flowRemovedCallbacks)
                 managedFlow.unref()   // the FlowController's ref
             }
+            pktCtx.scheduleUnref()
 
         case InvalidateFlowsByTag(tag) =>
-            tagToFlows.remove(tag) match {
-                case None =>
-                    log.debug(s"There are no flows to invalidate for tag $tag")
-                case Some(flowSet) =>
-                    log.debug(s"There are ${flowSet.size} flows to invalidate for tag $tag")
-                    for (wildFlow <- flowSet)
-                        removeWildcardFlow(wildFlow)
-            }
+            invalidateFlowsByTag(tag)
+            // The tag is recorded before forwarding the invalidation, such
+            // that a shard either rejects a flow with this tag or installs
+            // it before the invalidation arrives.
             invalidationHistory.put(tag)
+            var i = 1
+            while (i < numShards) {
+                FlowController.shard(i) ! InvalidateShardFlowsByTag_(tag)
+                i += 1
+            }
+
+        case InvalidateShardFlowsByTag_(tag) =>
+            invalidateFlowsByTag(tag)
 
         case CheckFlowExpiration_ =>
             flowManager.checkFlowsExpiration()
@@ -285,6 +337,45 @@ class FlowController extends Actor with ActorLogWithoutPath
         case GetFlowFailed_(callback) =>
             callback.call(null)
 
+        case RequestFlowDump_(requester) =>
+            // A dump already in progress may predate the requester's idle
+            // flows, so it gets the next one.
+            if (dumpInProgress) {
+                nextDumpRequesters.add(requester)
+            } else {
+                dumpRequesters.add(requester)
+                dumpDatapathFlows()
+            }
+
+        case FlowDumpCompleted_(flows) =>
+            if (flows ne null)
+                log.debug(s"Dumped ${flows.size} flows from the datapath")
+            val it = dumpRequesters.iterator()
+            while (it.hasNext)
+                it.next() ! FlowsDumped_(flows)
+            dumpRequesters.clear()
+            val requesters = dumpRequesters
+            dumpRequesters = nextDumpRequesters
+            nextDumpRequesters = requesters
+            dumpInProgress = false
+            if (!dumpRequesters.isEmpty)
+                dumpDatapathFlows()
+
+        case FlowsDumped_(flows) =>
+            val callback = dumpCallback
+            dumpCallback = null
+            if (callback ne null)
+                callback.call(flows)
+            if (flows ne null) {
+                // The meters of the other shards' flows are ignored
+                val it = flows.iterator()
+                while (it.hasNext) {
+                    val flow = it.next()
+                    if (flow.getStats ne null)
+                        meters.updateFlow(flow.getMatch, flow.getStats)
+                }
+            }
+
         case FlowMissing_(flowMatch, callback) =>
             callback.call(null)
             meters.forgetFlow(flowMatch)
@@ -294,17 +385,38 @@ class FlowController extends Actor with ActorLogWithoutPath
             retryFailedFlowRemovals()
     }
 
-    private def removeWildcardFlow(wildFlow: ManagedFlow) {
-        def tagsCleanup(tags: ArrayList[FlowTag]): Unit = {
-            var i = 0
-            while (i < tags.size()) {
-                tagToFlows.removeBinding(tags.get(i), wildFlow)
-                i += 1
+    /* Called in the first shard, which is the only one that dumps the
+     * datapath flows. */
+    private def dumpDatapathFlows(): Unit = {
+        log.debug("requesting a dump of the datapath flows")
+        dumpInProgress = true
+        val cb = new Callback[JSet[Flow]] {
+            def onError(ex: NetlinkException) {
+                log.error("Got exception when trying to dump the " +
+                          "datapath flows", ex)
+                self ! FlowDumpCompleted_(null)
+            }
+            def onSuccess(data: JSet[Flow]) {
+                self ! FlowDumpCompleted_(data)
             }
         }
+        datapathConnPool.get(0).flowsEnumerate(datapath, cb)
+    }
+
+    private def invalidateFlowsByTag(tag: FlowTag): Unit = {
+        val count = tagIndex.invalidate(tag, invalidatedFlows)
+        log.debug(s"There are $count flows to invalidate for tag $tag")
+        var i = 0
+        while (i < count) {
+            removeWildcardFlow(invalidatedFlows.get(i))
+            i += 1
+        }
+        invalidatedFlows.clear()
+    }
 
+    private def removeWildcardFlow(wildFlow: ManagedFlow) {
         if (flowManager.remove(wildFlow)) {
-            tagsCleanup(wildFlow.tags)
+            tagIndex.remove(wildFlow)
             wildFlow.cbExecutor.schedule(wildFlow.callbacks)
             context.system.eventStream.publish(WildcardFlowRemoved(wildFlow))
             wildFlow.unref() // FlowController's ref
@@ -320,10 +432,7 @@ class FlowController extends Actor with ActorLogWithoutPath
             return false
         }
 
-        val it = pktCtx.flowTags.iterator()
-        while (it.hasNext) {
-            tagToFlows.addBinding(it.next(), wildFlow)
-        }
+        tagIndex.add(wildFlow)
 
         meters.trackFlow(pktCtx.origMatch, wildFlow.tags)
 
@@ -431,15 +540,43 @@ class FlowController extends Actor with ActorLogWithoutPath
             }
             datapathConnection(flowMatch).flowsGet(datapath, flowMatch, cb)
         }
+
+        /* The flows of all the shards are dumped once, by the first shard,
+         * and each shard's FlowManager picks its own flows from the dump. */
+        def dumpFlows(callback: Callback1[Collection[Flow]]): Unit = {
+            dumpCallback = callback
+            FlowController.shard(0) ! RequestFlowDump_(self)
+        }
     }
 
     class FlowTablesMetrics(val flowManager: FlowManager) {
+        private val dpFlowsName = name(classOf[FlowTablesGauge],
+                                       "currentDatapathFlows")
+
         val currentDpFlowsMetric = metricsRegistry.register(name(
-                classOf[FlowTablesGauge], "currentDatapathFlows"),
+                dpFlowsName, s"shard-$shard"),
             new Gauge[Long]{
                  override def getValue = flowManager.getNumDpFlows
              })
 
+        // The first shard reports the datapath flows of all the shards
+        if (shard == 0) {
+            val shardsFilter = new MetricFilter {
+                override def matches(name: String, metric: Metric) =
+                    name.startsWith(dpFlowsName + ".shard-")
+            }
+            metricsRegistry.register(dpFlowsName, new Gauge[Long] {
+                override def getValue = {
+                    var flows = 0L
+                    val it = metricsRegistry.getGauges(shardsFilter)
+                                            .values.iterator()
+                    while (it.hasNext)
+                        flows += it.next().getValue.asInstanceOf[Long]
+                    flows
+                }
+            })
+        }
+
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
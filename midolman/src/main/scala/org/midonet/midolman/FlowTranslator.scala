@@ -17,9 +17,10 @@
 package org.midonet.midolman
 
 import java.lang.{Integer => JInteger}
-import java.util.UUID
+import java.util.{ArrayList, HashMap => JHashMap, HashSet => JHashSet, UUID}
 import java.util.concurrent.TimeUnit
 
+import scala.collection.mutable
 import scala.concurrent.ExecutionContextExecutor
 
 import akka.actor.ActorSystem
@@ -31,10 +32,74 @@ import org.midonet.midolman.topology.devices.{Port, VxLanPort}
 import org.midonet.odp.flows.FlowActions.{output, setKey}
 import org.midonet.odp.flows._
 import org.midonet.packets.{Ethernet, ICMP, IPv4, IPv4Addr}
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.sdn.flows.{FlowTagger, VirtualActions}
 
 object FlowTranslator {
     val NotADpPort: JInteger = -1
+
+    /* The number of flood plans a translator keeps before it drops them
+     * all and starts over. */
+    val MaxFloodPlans = 1024
+
+    /** Where the translation of a virtual action goes. */
+    sealed trait TranslationTarget {
+        def addAction(action: FlowAction): Unit
+        def addTag(tag: FlowTag): Unit
+        def addOutPort(port: UUID): Unit
+    }
+
+    /* Writes the translation straight to the packet context. */
+    private[midolman] final class ContextTarget extends TranslationTarget {
+        var context: PacketContext = _
+        override def addAction(action: FlowAction): Unit =
+            context.addFlowAndPacketAction(action)
+        override def addTag(tag: FlowTag): Unit = context.addFlowTag(tag)
+        override def addOutPort(port: UUID): Unit = context.outPorts.add(port)
+    }
+
+    case class FloodKey(bridge: UUID, vlan: Short, inPort: UUID)
+
+    /**
+     * The translation of a flood to a list of bridge ports, kept to be
+     * applied to the following packets flooded to the same ports. Besides
+     * the tags it adds to the flows, the plan depends on the device tags of
+     * the bridge and the ports it looked up, and it stays valid until any of
+     * them is invalidated after the epoch at which the plan was built. Plans
+     * that couldn't translate every port aren't kept.
+     */
+    final class FloodPlan(val portIds: List[UUID], val builtAt: Long)
+            extends TranslationTarget {
+        val actions = new ArrayList[FlowAction]()
+        val tags = new ArrayList[FlowTag]()
+        val outPorts = new ArrayList[UUID]()
+        val dependencies = new JHashSet[FlowTag]()
+        var validAt = builtAt
+        var complete = true
+
+        override def addAction(action: FlowAction): Unit = actions.add(action)
+        override def addTag(tag: FlowTag): Unit = {
+            tags.add(tag)
+            dependencies.add(tag)
+        }
+        override def addOutPort(port: UUID): Unit = outPorts.add(port)
+
+        def dependOn(tag: FlowTag): Unit = dependencies.add(tag)
+
+        def applyTo(context: PacketContext): Unit = {
+            var i = 0
+            while (i < actions.size()) {
+                context.addFlowAndPacketAction(actions.get(i))
+                i += 1
+            }
+            i = 0
+            while (i < tags.size()) {
+                context.addFlowTag(tags.get(i))
+                i += 1
+            }
+            context.outPorts.addAll(outPorts)
+        }
+    }
 }
 
 trait FlowTranslator {
@@ -47,6 +112,17 @@ trait FlowTranslator {
     implicit protected def system: ActorSystem
     implicit protected def executor: ExecutionContextExecutor = system.dispatcher
 
+    /**
+     * Whether a flood sends a single copy to each remote host whose ports
+     * on the bridge are all flooded, tunnelled with the bridge's tunnel
+     * key, rather than one copy per remote port. The receiving host outputs
+     * the copy to its exterior ports on the bridge.
+     */
+    protected def floodPerHostReplication: Boolean = false
+
+    private val contextTarget = new ContextTarget
+    private val floodPlans = new JHashMap[FloodKey, FloodPlan]()
+
     /**
      * Translates a Seq of FlowActions expressed in virtual references into a
      * Seq of FlowActions expressed in physical references.
@@ -100,58 +176,115 @@ trait FlowTranslator {
     /** Update the list of action and list of tags with the output actions
      *  for the given list of local datapath port numbers. */
     private def outputActionsForLocalPort(portNo: JInteger,
+                                          target: TranslationTarget,
                                           context: PacketContext): Unit = {
         context.log.debug(s"Emitting towards local dp port $portNo")
         if (portNo != NotADpPort) {
-            context.addFlowAndPacketAction(output(portNo))
-            context.addFlowTag(FlowTagger tagForDpPort portNo)
+            target.addAction(output(portNo))
+            target.addTag(FlowTagger tagForDpPort portNo)
         }
     }
 
     /** Update the list of action and list of tags with the output tunnelling
-     *  actions for the given list of remote host and tunnel key. */
-    def outputActionsToPeer(key: Long, peer: UUID,
-                            context: PacketContext): Unit = {
+     *  actions for the given list of remote host and tunnel key. Returns
+     *  false if there is no route to the remote host. */
+    def outputActionsToPeer(key: Long, peer: UUID, target: TranslationTarget,
+                            context: PacketContext): Boolean = {
         context.log.debug(s"Emitting towards remote host $peer with tunnel key $key")
         val routeInfo = dpState.peerTunnelInfo(peer)
         if (routeInfo.isEmpty) {
             context.log.warn("Unable to tunnel to peer {}, is the peer "+
                 "in the same tunnel zone as the current node?", peer)
+            false
         } else {
             val src = routeInfo.get.srcIp
             val dst = routeInfo.get.dstIp
-            context.addFlowTag(FlowTagger.tagForTunnelRoute(src, dst))
+            target.addTag(FlowTagger.tagForTunnelRoute(src, dst))
             // Each FlowActionSetKey must be followed by a corresponding
             // FlowActionOutput.
-            context.addFlowAndPacketAction(setKey(FlowKeys.tunnel(key, src, dst, 0)))
-            context.addFlowAndPacketAction(routeInfo.get.output)
+            target.addAction(setKey(FlowKeys.tunnel(key, src, dst, 0)))
+            target.addAction(routeInfo.get.output)
+            true
         }
     }
 
     /** Update the list of action and list of tags with the output tunnelling
      *  action for the given vtep tunnel addr and vni key. The tzId is the
      *  id of the tunnel zone specified by this VTEP's config which allows
-     *  us to determine which of the host's IP we should use */
+     *  us to determine which of the host's IP we should use. Returns false
+     *  if this host is not in the tunnel zone. */
     private def outputActionsToVtep(vni: Int, vtepIp: IPv4Addr, tzId: UUID,
-                                    context: PacketContext): Unit = {
+                                    target: TranslationTarget,
+                                    context: PacketContext): Boolean = {
         context.log.debug(s"Emitting towards vtep at $vtepIp with vni $vni")
 
         val tzMembership = dpState.host.zones.get(tzId)
         if (tzMembership eq None) {
             context.log.warn(s"Can't output to VTEP with tunnel IP: $vtepIp, host not in "
                              + s"VTEP's tunnel zone: $tzId")
-            return
+            return false
         }
 
         val localIp =  tzMembership.get.asInstanceOf[IPv4Addr].toInt
         val vtepIntIp = vtepIp.toInt
-        context.addFlowTag(FlowTagger.tagForTunnelRoute(localIp, vtepIntIp))
-        context.addFlowAndPacketAction(setKey(FlowKeys.tunnel(vni.toLong, localIp, vtepIntIp, 0)))
-        context.addFlowAndPacketAction(dpState.vtepTunnellingOutputAction)
+        target.addTag(FlowTagger.tagForTunnelRoute(localIp, vtepIntIp))
+        target.addAction(setKey(FlowKeys.tunnel(vni.toLong, localIp, vtepIntIp, 0)))
+        target.addAction(dpState.vtepTunnellingOutputAction)
+        true
     }
 
+    /* Floods reuse the plan of the previous flood of the same bridge, VLAN
+     * and ingress port, provided that it was for the same ports and that
+     * none of the tags it depends on has been invalidated since. Otherwise
+     * the flood is planned again, looking up every port. */
     private def expandFloodAction(bridge: UUID, portIds: List[UUID],
                                   context: PacketContext): Unit = {
+        val key = FloodKey(bridge, floodVlan(context), context.inPortId)
+        var plan = floodPlans.get(key)
+        if ((plan ne null) && isStillValid(plan, portIds)) {
+            context.log.debug(s"Reusing the flood plan of bridge $bridge")
+        } else {
+            plan = planFlood(bridge, portIds, context)
+            if (plan.complete) {
+                if (floodPlans.size() >= MaxFloodPlans)
+                    floodPlans.clear()
+                floodPlans.put(key, plan)
+            } else {
+                floodPlans.remove(key)
+            }
+        }
+        plan.applyTo(context)
+    }
+
+    private def floodVlan(context: PacketContext): Short = {
+        val wcmatch = context.wcmatch
+        wcmatch.doNotTrackSeenFields()
+        val vlanIds = wcmatch.getVlanIds
+        wcmatch.doTrackSeenFields()
+        if ((vlanIds eq null) || vlanIds.isEmpty) 0
+        else vlanIds.get(0).shortValue
+    }
+
+    private def isStillValid(plan: FloodPlan, portIds: List[UUID]): Boolean =
+        plan.portIds == portIds && {
+            val latest = FlowController.lastInvalidationEvent
+            if (plan.validAt == latest) {
+                true
+            } else if (FlowController.isTagSetStillValid(plan.validAt,
+                                                         plan.dependencies)) {
+                plan.validAt = latest
+                true
+            } else {
+                false
+            }
+        }
+
+    private def planFlood(bridgeId: UUID, portIds: List[UUID],
+                          context: PacketContext): FloodPlan = {
+        // The epoch is taken before looking up the devices, so that changes
+        // made while planning invalidate the plan.
+        val plan = new FloodPlan(portIds, FlowController.lastInvalidationEvent)
+
         def addLocal(allPorts: List[Port]) {
             var ports = allPorts
             while (ports.nonEmpty) {
@@ -160,23 +293,38 @@ trait FlowTranslator {
                 if (port.hostId == dpState.host.id) {
                     val portNo = dpState.getDpPortNumberForVport(port.id)
                     if (portNo.isDefined) {
-                        context.outPorts.add(port.id)
-                        outputActionsForLocalPort(portNo.get, context)
+                        plan.addOutPort(port.id)
+                        outputActionsForLocalPort(portNo.get, plan, context)
+                    } else {
+                        // No tag tells when the port gets its dp port
+                        plan.complete = false
                     }
                 }
             }
         }
 
-        def addRemote(allPorts: List[Port]) {
+        def addRemote(br: Bridge, allPorts: List[Port]) {
+            val replicated =
+                if (floodPerHostReplication && br.tunnelKey != 0)
+                    replicatedHosts(br, allPorts, plan)
+                else
+                    Set.empty[UUID]
             var ports = allPorts
             while (ports.nonEmpty) {
                 val port = ports.head
                 ports = ports.tail
                 if (port.hostId != dpState.host.id) {
-                    context.outPorts.add(port.id)
-                    outputActionsToPeer(port.tunnelKey, port.hostId, context)
+                    plan.addOutPort(port.id)
+                    if (!replicated.contains(port.hostId) &&
+                        !outputActionsToPeer(port.tunnelKey, port.hostId,
+                                             plan, context))
+                        plan.complete = false
                 }
             }
+            for (host <- replicated) {
+                if (!outputActionsToPeer(br.tunnelKey, host, plan, context))
+                    plan.complete = false
+            }
         }
 
         /* This is an awkward step, but necessary. After we figure out all the
@@ -195,31 +343,66 @@ trait FlowTranslator {
                 i += 1
                 tryAsk[Port](vxlanPortId) match {
                     case p: VxLanPort =>
-                        outputActionsToVtep(p.vtepVni, p.vtepTunnelIp,
-                                            p.vtepTunnelZoneId, context)
+                        plan.dependOn(p.deviceTag)
+                        if (!outputActionsToVtep(p.vtepVni, p.vtepTunnelIp,
+                                                 p.vtepTunnelZoneId, plan,
+                                                 context))
+                            plan.complete = false
                     case _ =>
                         context.log.warn("Bridge {} was expected to be bound to"
                                          + "VTEP through port {} that isn't "
                                          + "found", vxlanPortId, br)
+                        plan.complete = false
                 }
             }
         }
 
+        context.log.debug(s"Planning the flood of bridge $bridgeId")
         val ports = portIds.map(tryAsk[Port])
-        addLocal(ports)
-        addRemote(ports)
-
         // FIXME: at the moment (v1.5), this is need for
         // flooding traffic from a bridge. With mac
         // syncing, it will become unnecessary.
-        addVtepActions(tryAsk[Bridge](bridge))
+        val br = tryAsk[Bridge](bridgeId)
+        plan.dependOn(br.deviceTag)
+        ports foreach { port => plan.dependOn(port.deviceTag) }
+
+        addLocal(ports)
+        addRemote(br, ports)
+        addVtepActions(br)
+        plan
     }
 
-    private def expandPortAction(port: UUID, context: PacketContext): Unit =
+    /* The remote hosts that get a single copy of the flood: those with more
+     * than one flooded port, all of whose exterior ports on the bridge are
+     * flooded, so that the copy reaches the same ports when the receiving
+     * host outputs it to all of them. */
+    private def replicatedHosts(br: Bridge, ports: List[Port],
+                                plan: FloodPlan): collection.Set[UUID] = {
+        val portsPerHost = mutable.HashMap[UUID, Int]()
+        for (port <- ports if port.hostId != dpState.host.id) {
+            portsPerHost(port.hostId) = portsPerHost.getOrElse(port.hostId, 0) + 1
+        }
+        val hosts = mutable.HashSet[UUID]()
+        for ((host, count) <- portsPerHost if count > 1)
+            hosts += host
+        if (hosts.nonEmpty) {
+            val flooded = plan.portIds.toSet
+            for (id <- br.exteriorPorts if !flooded.contains(id)) {
+                val port = tryAsk[Port](id)
+                plan.dependOn(port.deviceTag)
+                hosts -= port.hostId
+            }
+        }
+        hosts
+    }
+
+    private def expandPortAction(port: UUID, context: PacketContext): Unit = {
+        val target = contextTarget
+        target.context = context
         dpState.getDpPortNumberForVport(port) map { portNum =>
             context.outPorts.add(port)
             // If the DPC has a local DP port for this UUID, translate
-            outputActionsForLocalPort(portNum, context)
+            outputActionsForLocalPort(portNum, target, context)
         } getOrElse {
             // Otherwise we translate to a remote port or a vtep peer
             // VxLanPort is a subtype of exterior port,
@@ -227,12 +410,13 @@ trait FlowTranslator {
             tryAsk[Port](port) match {
                 case p: VxLanPort =>
                     outputActionsToVtep(p.vtepVni, p.vtepTunnelIp,
-                                        p.vtepTunnelZoneId, context)
+                                        p.vtepTunnelZoneId, target, context)
                 case p: Port if p.isExterior =>
                     context.outPorts.add(port)
-                    outputActionsToPeer(p.tunnelKey, p.hostId, context)
+                    outputActionsToPeer(p.tunnelKey, p.hostId, target, context)
                 case _ =>
                     context.log.warn("Port {} was not exterior", port)
             }
         }
+    }
 }
@@ -15,7 +15,7 @@
  */
 package org.midonet.midolman
 
-import java.util.{HashMap => JHashMap, HashSet => JHashSet, Map => JMap, Set => JSet, UUID}
+import java.util.{Collections, Map => JMap, Set => JSet, UUID}
 
 import scala.concurrent.Future
 import scala.util.{Failure, Success}
@@ -36,20 +36,23 @@ object HostRequestProxy {
     case class FlowStateBatch(strongConnTrack: JSet[ConnTrackKey],
                               weakConnTrack: JSet[ConnTrackKey],
                               strongNat: JMap[NatKey, NatBinding],
-                              weakNat: JMap[NatKey, NatBinding]) {
-        def merge(other: FlowStateBatch): FlowStateBatch = {
-            strongConnTrack.addAll(other.strongConnTrack)
-            weakConnTrack.addAll(other.strongConnTrack)
-            strongNat.putAll(other.strongNat)
-            weakNat.putAll(other.weakNat)
-            this
-        }
-    }
-
-    def EmptyFlowStateBatch() = FlowStateBatch(new JHashSet[ConnTrackKey](),
-                                               new JHashSet[ConnTrackKey](),
-                                               new JHashMap[NatKey, NatBinding](),
-                                               new JHashMap[NatKey, NatBinding]())
+                              weakNat: JMap[NatKey, NatBinding])
+
+    /* The number of keys fetched from storage at a time, each page of keys
+     * is sent to the packet workers as a FlowStateBatch of its own */
+    val FlowStateFetchPageSize = 1000
+
+    def connTrackBatch(keys: JSet[ConnTrackKey], strong: Boolean) =
+        if (strong) FlowStateBatch(keys, Collections.emptySet(),
+                                   Collections.emptyMap(), Collections.emptyMap())
+        else FlowStateBatch(Collections.emptySet(), keys,
+                            Collections.emptyMap(), Collections.emptyMap())
+
+    def natBatch(keys: JMap[NatKey, NatBinding], strong: Boolean) =
+        if (strong) FlowStateBatch(Collections.emptySet(), Collections.emptySet(),
+                                   keys, Collections.emptyMap())
+        else FlowStateBatch(Collections.emptySet(), Collections.emptySet(),
+                            Collections.emptyMap(), keys)
 }
 
 
@@ -57,7 +60,8 @@ object HostRequestProxy {
   * This actor creates a host subscription in the VTPM on behalf of another
   * subscriber. It will proxy requests making sure per-flow state for the
   * host's ports is fetched from Cassandra before the subscriber receives
-  * the host object.
+  * the host object. The state is fetched and handed to the packet workers
+  * page by page, so that ports with many keys don't stall them.
   */
 class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
                        val subscriber: ActorRef) extends Actor
@@ -78,21 +82,20 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
         VTPM ! HostRequest(hostId)
     }
 
-    private def stateForPort(port: UUID): Future[FlowStateBatch] = {
-        val scf = storage.fetchStrongConnTrackRefs(port)
-        val wcf = storage.fetchWeakConnTrackRefs(port)
-        val snf = storage.fetchStrongNatRefs(port)
-        val wnf = storage.fetchWeakNatRefs(port)
-
-        ((scf zip wcf) zip (snf zip wnf)) map {
-            case ((sc, wc) , (sn, wn)) => FlowStateBatch(sc, wc, sn, wn)
-        }
-    }
-
-    private def stateForPorts(ports: Iterable[UUID]): Future[FlowStateBatch] =
-        Future.fold(ports map stateForPort)(EmptyFlowStateBatch()) {
-            (batch: FlowStateBatch, v: FlowStateBatch) => batch.merge(v)
-        }
+    private def stateForPort(port: UUID, strong: Boolean): Seq[Future[Unit]] = Seq(
+        storage.fetchConnTrackRefPages(port, strong, FlowStateFetchPageSize) {
+            keys => if (!keys.isEmpty)
+                        PacketsEntryPoint ! connTrackBatch(keys, strong)
+        },
+        storage.fetchNatRefPages(port, strong, FlowStateFetchPageSize) {
+            keys => if (!keys.isEmpty)
+                        PacketsEntryPoint ! natBatch(keys, strong)
+        })
+
+    private def stateForPorts(ports: Iterable[UUID]): Future[Unit] =
+        Future.sequence(ports.toSeq flatMap { port =>
+            stateForPort(port, strong = true) ++ stateForPort(port, strong = false)
+        }) map { _ => () }
 
     /* Resolve all ports into UUIDs, creating a ResolvedHost object.
      *
@@ -136,9 +139,8 @@ class HostRequestProxy(val hostId: UUID, val storage: FlowStateStorage,
                 val ps = h.portBindings.keySet -- lastPorts
                 val resolved = resolvePorts(h)
                 stateForPorts(ps).andThen {
-                        case Success(stateBatch) =>
+                        case Success(_) =>
                             lastPorts = ps
-                            PacketsEntryPoint ! stateBatch
                         case Failure(e) =>
                             log.warn("Failed to fetch state from Cassandra: {}", e)
                 }.andThen {
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.Queue
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorRef
+
+import org.jctools.queues.{MpscArrayQueue, SpscArrayQueue}
+
+import org.midonet.odp.Packet
+import org.midonet.util.concurrent.WakerUpper.Parkable
+
+object PacketWorkerQueue {
+    /* The maximum number of packets a worker processes before letting
+     * other messages in its mailbox through. */
+    val MaxBatchSize = 256
+
+    /**
+     * Creates the queue of a packet worker. The upcall threads hand off
+     * packets through a single producer queue when there's only one of them,
+     * as with the one_to_many input channel threading.
+     */
+    def apply(capacity: Int, singleProducer: Boolean): PacketWorkerQueue =
+        new PacketWorkerQueue(
+            if (singleProducer) new SpscArrayQueue[Packet](capacity)
+            else new MpscArrayQueue[Packet](capacity),
+            capacity)
+}
+
+/**
+ * A lock-free queue through which the upcall threads hand off packets to a
+ * packet worker, the DeduplicationActor, instead of sending it a message per
+ * batch of packets. The worker is only sent a CheckBackchannels message when
+ * it is not already busy with the queue, and then processes every queued
+ * packet to completion. Upcall threads park while the queue is full.
+ */
+final class PacketWorkerQueue(queue: Queue[Packet], capacity: Int)
+        extends Parkable {
+    import PacketWorkerQueue._
+
+    @volatile var worker: ActorRef = _
+
+    /* Whether the worker was told to process the queue and didn't finish */
+    private val scheduled = new AtomicBoolean(false)
+
+    def size = queue.size()
+
+    /**
+     * Called by an upcall thread to queue a packet. The worker is not
+     * alerted until the end of the batch, see wakeUp().
+     */
+    def submit(packet: Packet): Unit =
+        while (!queue.offer(packet)) {
+            wakeUp()
+            park()
+        }
+
+    /**
+     * Called by an upcall thread at the end of a batch of packets, alerts the
+     * worker if there are packets it doesn't know about.
+     */
+    def wakeUp(): Unit =
+        if (!queue.isEmpty && scheduled.compareAndSet(false, true))
+            worker ! CheckBackchannels
+
+    /**
+     * Called by the worker to process the queued packets, at most
+     * MaxBatchSize at a time.
+     */
+    def process(handle: Packet => Unit): Unit = {
+        var i = 0
+        var packet: Packet = null
+        while (i < MaxBatchSize && ({ packet = queue.poll(); packet } ne null)) {
+            handle(packet)
+            i += 1
+        }
+
+        if (i == MaxBatchSize && !queue.isEmpty) {
+            worker ! CheckBackchannels
+        } else {
+            // A packet may have been queued after the last poll() but before
+            // the flag is cleared, in which case its producer didn't alert us.
+            scheduled.set(false)
+            wakeUp()
+        }
+    }
+
+    override def shouldWakeUp(): Boolean = queue.size < capacity
+}
@@ -22,15 +22,16 @@ import akka.actor._
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
 
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.routingprotocols.RoutingWorkflow
-import org.midonet.midolman.simulation.{Coordinator, DhcpImpl, PacketContext}
+import org.midonet.midolman.simulation.{Bridge, Coordinator, DhcpImpl, PacketContext}
 import org.midonet.midolman.state.FlowStateReplicator
-import org.midonet.midolman.topology.devices.Port
-import org.midonet.midolman.topology.{VirtualTopologyActor, VxLanPortMapper}
+import org.midonet.midolman.topology.VirtualTopologyActor.tryAsk
+import org.midonet.midolman.topology.devices.{BridgePort, Port}
+import org.midonet.midolman.topology.{DhcpConfigCache, VirtualTopologyActor, VxLanPortMapper}
 import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.FlowActions.output
 import org.midonet.odp._
 import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger.tagForDpPort
@@ -44,10 +45,12 @@ trait PacketHandler {
 object PacketWorkflow {
     case class PacketIn(wMatch: FlowMatch,
                         inputPort: UUID,
-                        eth: Ethernet,
+                        packet: Packet,
                         dpMatch: FlowMatch,
                         reason: Packet.Reason,
-                        cookie: Int)
+                        cookie: Int) {
+        def eth: Ethernet = packet.getEthernet
+    }
 
     val TEMPORARY_DROP_MILLIS = 5 * 1000
     val IDLE_EXPIRATION_MILLIS = 60 * 1000
@@ -110,18 +113,82 @@ trait UnderlayTrafficHandler { this: PacketWorkflow =>
             case Some(dpPort) =>
                 addActionsForTunnelPacket(context, dpPort)
                 addTranslatedFlow(context)
+            case None if addActionsForFloodedPacket(context, tunnelKey) =>
+                addTranslatedFlow(context)
             case None =>
                 processSimulationResult(context, TemporaryDrop)
         }
     }
+
+    /* A tunnel key that doesn't belong to a port may be the key of a bridge,
+     * used by hosts that send a single copy of a flood per host, in which
+     * case the packet is output to the bridge's exterior ports on this host.
+     * The sender only does so if all of them were flooded. The flow is tagged
+     * with the device tags of all the bridge's exterior ports, so that it is
+     * invalidated when one of them is bound to this host or becomes active,
+     * and with the bridge's broadcast tag, for when the set of exterior ports
+     * changes. No tag announces a new datapath port, so if an active local
+     * port doesn't have one yet the flow only lives for a short while. */
+    private def addActionsForFloodedPacket(context: PacketContext,
+                                           tunnelKey: Long): Boolean = {
+        val bridge = localBridgeForTunnelKey(tunnelKey)
+        if (bridge eq null)
+            return false
+
+        var missingDpPort = false
+        val portIds = bridge.exteriorPorts.iterator
+        while (portIds.hasNext) {
+            val port = tryAsk[Port](portIds.next())
+            context.addFlowTag(port.deviceTag)
+            if (port.hostId == dpState.host.id && port.isActive &&
+                port.adminStateUp) {
+                dpState.getDpPortNumberForVport(port.id) match {
+                    case Some(portNo) =>
+                        context.addFlowTag(FlowTagger.tagForDpPort(portNo))
+                        context.addFlowAndPacketAction(output(portNo))
+                    case None =>
+                        missingDpPort = true
+                }
+            }
+        }
+
+        val origMatch = context.origMatch
+        context.addFlowTag(bridge.deviceTag)
+        context.addFlowTag(FlowTagger.tagForBroadcast(bridge.id))
+        context.addFlowTag(FlowTagger.tagForTunnelKey(tunnelKey))
+        context.addFlowTag(FlowTagger.tagForTunnelRoute(
+                           origMatch.getTunnelSrc, origMatch.getTunnelDst))
+        if (missingDpPort) {
+            context.idleExpirationMillis = 0
+            context.hardExpirationMillis = TEMPORARY_DROP_MILLIS
+        } else {
+            context.idleExpirationMillis = IDLE_EXPIRATION_MILLIS
+        }
+        true
+    }
+
+    private def localBridgeForTunnelKey(tunnelKey: Long): Bridge = {
+        val portIds = dpState.host.ports.keysIterator
+        while (portIds.hasNext) {
+            tryAsk[Port](portIds.next()) match {
+                case port: BridgePort =>
+                    val bridge = tryAsk[Bridge](port.deviceId)
+                    if (bridge.tunnelKey == tunnelKey)
+                        return bridge
+                case _ =>
+            }
+        }
+        null
+    }
 }
 
 class PacketWorkflow(protected val dpState: DatapathState,
                      datapath: Datapath,
-                     dataClient: DataClient,
+                     dhcpConfig: DhcpConfigCache,
                      dpChannel: DatapathChannel,
                      replicator: FlowStateReplicator,
-                     config: MidolmanConfig)
+                     config: MidolmanConfig,
+                     flowShard: Int = 0)
                     (implicit val system: ActorSystem)
         extends PacketHandler with FlowTranslator
         with RoutingWorkflow with UnderlayTrafficHandler {
@@ -129,6 +196,9 @@ class PacketWorkflow(protected val dpState: DatapathState,
 
     val resultLogger = Logger(LoggerFactory.getLogger("org.midonet.packets.results"))
 
+    override protected val floodPerHostReplication =
+        config.getBridgeFloodPerHostReplication
+
     override def start(context: PacketContext): SimulationResult = {
         context.prepareForSimulation(FlowController.lastInvalidationEvent)
         context.log.debug(s"Initiating processing, attempt: ${context.runs}")
@@ -181,7 +251,8 @@ class PacketWorkflow(protected val dpState: DatapathState,
                 val dpFlow = new Flow(context.origMatch, context.flowActions)
                 context.log.debug(s"Creating flow $dpFlow")
                 dpChannel.createFlow(dpFlow)
-                FlowController ! context
+                context.ref() // released by the FlowController
+                FlowController.shard(flowShard) ! context
                 FlowCreated
             }
         }
@@ -263,7 +334,7 @@ class PacketWorkflow(protected val dpState: DatapathState,
         val packet = context.packet
         system.eventStream.publish(
             PacketIn(context.origMatch.clone(), context.inputPort,
-                     packet.getEthernet,
+                     packet,
                      packet.getMatch, packet.getReason,
                      context.cookie))
 
@@ -305,7 +376,7 @@ class PacketWorkflow(protected val dpState: DatapathState,
                             dhcp: DHCP, mtu: Short): Boolean = {
         val srcMac = context.origMatch.getEthSrc
         val optMtu = Option(mtu)
-        DhcpImpl(dataClient, inPort, dhcp, srcMac, optMtu, context.log) match {
+        DhcpImpl(dhcpConfig, inPort, dhcp, srcMac, optMtu, context.log) match {
             case Some(dhcpReply) =>
                 context.log.debug(
                     "sending DHCP reply {} to port {}", dhcpReply, inPort.id)
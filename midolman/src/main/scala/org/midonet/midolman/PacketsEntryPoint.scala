@@ -23,17 +23,17 @@ import akka.event.LoggingReceive
 import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackLayout, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatLayout}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
-import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.midolman.topology.DhcpConfigCache
+import org.midonet.sdn.state.{FlowStateTable, OffHeapFlowStateTable, ShardedFlowStateTable}
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 import org.slf4j.LoggerFactory
@@ -43,7 +43,10 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    /* The queues are empty unless packets are handed off to the workers
+     * through PacketWorkerQueues, in which case there's one per worker. */
+    case class Workers(list: IndexedSeq[ActorRef],
+                       queues: IndexedSeq[PacketWorkerQueue] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
@@ -74,7 +77,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     var dpChannel: DatapathChannel = _
 
     @Inject
-    var clusterDataClient: DataClient = null
+    var dhcpConfig: DhcpConfigCache = null
 
     @Inject
     override val supervisorStrategy: SupervisorStrategy = null
@@ -85,6 +88,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var queues = immutable.IndexedSeq[PacketWorkerQueue]()
     private var rrIndex = 0
 
     @Inject
@@ -101,6 +105,8 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
     var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
     var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
+    var offHeapConnTrackTable: OffHeapFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var offHeapNatTable: OffHeapFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
 
     override def preStart(): Unit = {
@@ -108,16 +114,31 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         NUM_WORKERS = config.getSimulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        if (config.getOffHeapFlowState) {
+            offHeapConnTrackTable = new OffHeapFlowStateTable(ConnTrackLayout, clock)
+            offHeapNatTable = new OffHeapFlowStateTable(NatLayout, clock)
+        } else {
+            connTrackStateTable = new ShardedFlowStateTable(clock)
+            natStateTable = new ShardedFlowStateTable(clock)
+        }
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
         }
 
+        if (config.getPacketWorkerQueues) {
+            val singleProducer = config.getInputChannelThreading == "one_to_many"
+            for (i <- 0 until NUM_WORKERS) {
+                queues :+= PacketWorkerQueue(config.getPacketWorkerQueueSize,
+                                             singleProducer)
+            }
+        }
+
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
+            if (queues.nonEmpty)
+                queues(i).worker = workers(i)
         }
     }
 
@@ -133,17 +154,28 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         context.actorOf(props, s"PacketProcessor-$index")
     }
 
+    /* The off-heap tables are shared by all the workers */
+    private def connTrackShard: FlowStateTable[ConnTrackKey, ConnTrackValue] =
+        if (offHeapConnTrackTable ne null) offHeapConnTrackTable
+        else connTrackStateTable.addShard(log = shardLogger(connTrackStateTable))
+
+    private def natShard: FlowStateTable[NatKey, NatBinding] =
+        if (offHeapNatTable ne null) offHeapNatTable
+        else natStateTable.addShard(log = shardLogger(natStateTable))
+
     protected def propsForWorker(index: Int) = {
         val cookieGen = new CookieGenerator(index, NUM_WORKERS)
         Props(
             classOf[DeduplicationActor],
-            config, cookieGen, dpChannel, clusterDataClient,
-            connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
-            natStateTable.addShard(log = shardLogger(natStateTable)),
+            config, cookieGen, dpChannel, dhcpConfig,
+            connTrackShard,
+            natShard,
             storageFactory.create(),
             natLeaser,
             metrics,
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int),
+            if (queues.nonEmpty) queues(index) else null,
+            index % FlowController.numShards(config))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -163,6 +195,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, queues)
     }
 }
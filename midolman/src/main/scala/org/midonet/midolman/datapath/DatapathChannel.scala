@@ -51,7 +51,8 @@ class DisruptorDatapathChannel(val capacity: Int,
                                flowEjector: FlowEjector,
                                channelFactory: NetlinkChannelFactory,
                                ovsFamilies: OvsNetlinkFamilies,
-                               clock: NanoClock) extends DatapathChannel {
+                               clock: NanoClock,
+                               packetExecuteBatch: Int = 1) extends DatapathChannel {
     import org.midonet.midolman.datapath.DisruptorDatapathChannel._
 
     private val ringBuffer = RingBuffer.createMultiProducer[DatapathEvent](Factory, capacity)
@@ -86,12 +87,14 @@ class DisruptorDatapathChannel(val capacity: Int,
         if (threads <= 1) {
             val handler = new AggregateEventPollerHandler(
                 flowHandler,
-                new EventPollerHandlerAdapter(new PacketExecutor(1, 0, channelFactory)))
+                new EventPollerHandlerAdapter(new PacketExecutor(1, 0, channelFactory,
+                                                                 packetExecuteBatch)))
             List(new BackchannelEventProcessor(ringBuffer, handler, flowHandler))
         } else {
             val numPacketHandlers = threads - 1
             (0 until numPacketHandlers).map { id =>
-                val pexec = new PacketExecutor(numPacketHandlers, id, channelFactory)
+                val pexec = new PacketExecutor(numPacketHandlers, id, channelFactory,
+                                               packetExecuteBatch)
                 new BatchEventProcessor(ringBuffer, barrier, pexec)
             } :+ new BackchannelEventProcessor(ringBuffer, flowHandler, flowHandler)
         }
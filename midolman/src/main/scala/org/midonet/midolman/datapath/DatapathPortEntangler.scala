@@ -127,7 +127,10 @@ trait DatapathPortEntangler {
         })
 
     /**
-     * Register new interfaces, update their status or delete them.
+     * Register new interfaces, update their status or delete them. The
+     * descriptions that are the same instances as the ones already known are
+     * unchanged, and skipped unless the datapath port of their binding is yet
+     * to be created.
      */
     def updateInterfaces(itfs: JSet[InterfaceDescription]): Unit = {
         var interfacesToDelete = interfaceToDescription.keySet
@@ -135,8 +138,14 @@ trait DatapathPortEntangler {
         val it = itfs.iterator()
         while (it.hasNext) {
             val itf = it.next()
-            interfacesToDelete -= itf.getName
-            conveyor.handle(itf.getName, () => processUpdate(itf, itf.getName))
+            val ifname = itf.getName
+            interfacesToDelete -= ifname
+            val unchanged = interfaceToDescription.get(ifname) match {
+                case Some(known) => known eq itf
+                case None => false
+            }
+            if (!unchanged || awaitsDpPort(ifname))
+                conveyor.handle(ifname, () => processUpdate(itf, ifname))
         }
 
         for (ifname <- interfacesToDelete) {
@@ -168,6 +177,9 @@ trait DatapathPortEntangler {
         }
     }
 
+    private def awaitsDpPort(ifname: String): Boolean =
+        interfaceToVport.contains(ifname) && !interfaceToDpPort.contains(ifname)
+
     private def processUpdate(itf: InterfaceDescription, ifname: String): Future[_] =
         if (interfaceToDescription contains ifname) {
             updateInterface(itf, ifname)
@@ -24,8 +24,15 @@ import com.lmax.disruptor.{EventHandler, LifecycleAware}
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
 import org.midonet.netlink._
 
+/**
+ * Executes the packets of every numHandlers-th event. With a maxBatch greater
+ * than one, the executions of a batch of events are written together, with a
+ * single vectored write, at the end of the batch or as soon as maxBatch of
+ * them are gathered.
+ */
 sealed class PacketExecutor(numHandlers: Int, index: Int,
-                            channelFactory: NetlinkChannelFactory)
+                            channelFactory: NetlinkChannelFactory,
+                            maxBatch: Int = 1)
     extends EventHandler[DatapathEvent]
     with LifecycleAware {
 
@@ -42,18 +49,38 @@ sealed class PacketExecutor(numHandlers: Int, index: Int,
 
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
+    private val batch =
+        if (maxBatch > 1) new NetlinkBatchWriter(channel, maxBatch) else null
 
     override def onEvent(event: DatapathEvent, sequence: Long,
                          endOfBatch: Boolean): Unit = {
         if (event.op == PACKET_EXECUTION && sequence % numHandlers == index) {
-            try {
-                event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
-                writer.write(event.bb)
-                log.debug(s"Executed packet #$sequence")
-            } catch { case t: Throwable =>
-                log.error(s"Failed to execute packet #$sequence", t)
+            event.bb.putInt(NetlinkMessage.NLMSG_PID_OFFSET, pid)
+            if (batch eq null) {
+                try {
+                    writer.write(event.bb)
+                    log.debug(s"Executed packet #$sequence")
+                } catch { case t: Throwable =>
+                    log.error(s"Failed to execute packet #$sequence", t)
+                }
+            } else if (!batch.add(event.bb)) {
+                writeBatch()
+                batch.add(event.bb)
             }
         }
+        if (endOfBatch && (batch ne null) && !batch.isEmpty) {
+            writeBatch()
+        }
+    }
+
+    private def writeBatch(): Unit = {
+        val size = batch.size
+        try {
+            batch.write()
+            log.debug(s"Executed $size packets")
+        } catch { case t: Throwable =>
+            log.error(s"Failed to execute $size packets", t)
+        }
     }
 
     private def processError(): Unit =
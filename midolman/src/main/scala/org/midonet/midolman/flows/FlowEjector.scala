@@ -15,12 +15,13 @@
  */
 package org.midonet.midolman.flows
 
-import org.jctools.queues.{SpscArrayQueue, QueueFactory}
-import org.jctools.queues.spec.ConcurrentQueueSpec._
+import org.jctools.queues.MpscArrayQueue
 import org.midonet.midolman.FlowController.FlowRemoveCommand
 
+/* Flow removals are ejected by all the FlowController shards and consumed by
+ * the datapath channel's flow processor. */
 class FlowEjector(val maxPendingRequests: Int) {
-    private val queue = new SpscArrayQueue[FlowRemoveCommand](maxPendingRequests)
+    private val queue = new MpscArrayQueue[FlowRemoveCommand](maxPendingRequests)
 
     def size: Int = queue.size()
 
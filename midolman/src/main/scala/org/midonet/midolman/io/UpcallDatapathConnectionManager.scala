@@ -160,7 +160,39 @@ abstract class UpcallDatapathConnectionManagerBase(
         }
 
     protected def makeUpcallHandler(workers: Workers)
-                                   (implicit as: ActorSystem) =
+                                   (implicit as: ActorSystem)
+    : BatchCollector[Packet] =
+        if (workers.queues.nonEmpty) makeQueuedUpcallHandler(workers)
+        else makeBatchingUpcallHandler(workers)
+
+    /* Hands off each packet to its worker's queue, alerting the workers at
+     * the end of the batch if needed. */
+    private def makeQueuedUpcallHandler(workers: Workers) =
+        new BatchCollector[Packet] {
+
+            val NUM_WORKERS = workers.queues.length
+            val log = LoggerFactory.getLogger("PacketInHook")
+
+            override def endBatch() {
+                var i = 0
+                while (i < NUM_WORKERS) {
+                    workers.queues(i).wakeUp()
+                    i += 1
+                }
+            }
+
+            override def submit(data: Packet) {
+                log.trace("queueing packet: {}", data.getMatch)
+
+                data.startTimeNanos = NanoClock.DEFAULT.tick
+
+                val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
+                workers.queues(worker).submit(data)
+            }
+        }
+
+    private def makeBatchingUpcallHandler(workers: Workers)
+                                         (implicit as: ActorSystem) =
         new BatchCollector[Packet] {
 
             val BATCH_SIZE: Int = 16
@@ -16,7 +16,7 @@
 package org.midonet.midolman.management
 
 import java.lang.management._
-import java.util.Collections
+import java.util.{Collections, HashSet => JHashSet}
 import javax.management._
 
 import com.typesafe.scalalogging.Logger
@@ -29,15 +29,28 @@ object Metering extends MeteringMXBean {
     val log = Logger(LoggerFactory.getLogger("org.midonet.midolman.management"))
 
     private val ZERO = new FlowStats
-    private var registry: MeterRegistry = null
+
+    /* One registry per flow controller shard, the meters are the sum of the
+     * meters of all shards. */
+    @volatile private var registries = Map.empty[Int, MeterRegistry]
 
     override def listMeters = {
-        val keys = Collections.list(registry.meters.keys)
+        val keys = new JHashSet[String]()
+        for (registry <- registries.values)
+            keys.addAll(Collections.list(registry.meters.keys))
         keys.toArray(new Array[String](keys.size()))
     }
 
     override def getMeter(name: String) = {
-        val meter = registry.meters.get(name)
+        var meter: FlowStats = null
+        for (registry <- registries.values) {
+            val shardMeter = registry.meters.get(name)
+            if (shardMeter ne null) {
+                if (meter eq null)
+                    meter = new FlowStats
+                meter.add(shardMeter)
+            }
+        }
         if (meter ne null)
             meter
         else
@@ -48,9 +61,10 @@ object Metering extends MeteringMXBean {
      * happen on unit tests */
     private var registered = false
 
-    def registerAsMXBean(meters: MeterRegistry) = this.synchronized {
+    def registerAsMXBean(meters: MeterRegistry, shard: Int = 0) = this.synchronized {
         try {
-            registry = meters
+            registries = if (meters ne null) registries + (shard -> meters)
+                         else registries - shard
             if ((meters ne null) && !registered) {
                 ManagementFactory.getPlatformMBeanServer.registerMBean(this,
                     new ObjectName(MeteringMXBean.NAME))
@@ -72,8 +72,25 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    /**
+     * The flow state import metrics of a packet worker. Every worker imports
+     * all the keys fetched from storage into its own state tables, so they
+     * are kept per worker.
+     */
+    def flowStateImport(worker: String) =
+        new FlowStateImportMetrics(registry, worker)
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
     }
 }
+
+class FlowStateImportMetrics(registry: MetricRegistry, worker: String) {
+
+    val imported = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowStateImported", worker, "keys"))
+
+    val pendingImport = registry.counter(name(
+        classOf[PacketPipelineCounter], "flowStatePendingImport", worker))
+}
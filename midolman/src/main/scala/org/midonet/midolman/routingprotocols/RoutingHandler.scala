@@ -20,6 +20,7 @@ import java.util.UUID
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable
+import scala.concurrent.duration._
 
 import akka.actor.{Actor, ActorRef, Stash}
 import akka.pattern.pipe
@@ -81,6 +82,8 @@ object RoutingHandler {
                                        destination: IPv4Subnet,
                                        gateway: IPv4Addr)
 
+    private case object FlushPeerRoutes
+
     private case class DpPortCreateSuccess(port: DpPort, pid: Int)
     private case class DpPortDeleteSuccess(port: DpPort)
     private case class DpPortError(port: String, ex: Throwable)
@@ -157,6 +160,13 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
     private val peerRoutes = mutable.Map[Route, UUID]()
     private var socketAddress: AfUnix.Address = null
 
+    /* The peer route changes not yet written to ZooKeeper. They are written
+     * in batches, each a single multi, so that the router sees a full table
+     * from a peer as a few changes rather than one per route. */
+    private val pendingAdds = mutable.LinkedHashSet[Route]()
+    private val pendingDeletes = mutable.ArrayBuffer[UUID]()
+    private var flushScheduled = false
+
     // At this moment we only support one bgpd process
     private var bgpdProcess: BgpdProcess = null
 
@@ -380,10 +390,7 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     // If this is the last BGP for ths port, tear everything down.
                     if (bgps.size == 0) {
                         phase = Stopping
-                        peerRoutes.values foreach {
-                            routeId => deleteRoute(routeId)
-                        }
-                        peerRoutes.clear()
+                        deleteAllPeerRoutes()
                         stopBGP()
                     }
                 case Started =>
@@ -525,7 +532,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     log.debug("({}) AddPeerRoute: stashing", phase)
                     stash()
 
-                case Started if peerRoutes.size > config.getMaxBgpPeerRoutes =>
+                case Started if peerRoutes.size + pendingAdds.size >
+                                config.getMaxBgpPeerRoutes =>
                     log.warn(s"($phase) Max number of peer routes reached " +
                         s"(${config.getMaxBgpPeerRoutes}), please check the " +
                         "max_bgp_peer_routes config option.")
@@ -539,11 +547,11 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
                     route.setNextHopPort(rport.id)
                     route.setWeight(distance)
-                    val routeId = dataClient.routesCreateEphemeral(route)
-                    peerRoutes.put(route, routeId)
-                    log.debug("({}) announcing we've added a peer route", phase)
-                    context.system.eventStream.publish(
-                        new PEER_ROUTE_ADDED(rport.deviceId, route))
+                    // Replaces a pending add of the same route, whatever
+                    // its weight
+                    pendingAdds -= route
+                    pendingAdds += route
+                    batchPeerRoutes()
 
                 case _ =>
                     log.debug("({}) AddPeerRoute: ignoring", phase)
@@ -566,15 +574,24 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     route.setNextHopGateway(gateway.toString)
                     route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
                     route.setNextHopPort(rport.id)
-                    peerRoutes.remove(route) match {
-                        case Some(routeId) => deleteRoute(routeId)
-                        case None =>
+                    if (!pendingAdds.remove(route)) {
+                        peerRoutes.remove(route) foreach {
+                            pendingDeletes += _
+                        }
                     }
+                    batchPeerRoutes()
                 case _ =>
                     // ignore
                     log.debug("({}) RemovePeerRoute: ignoring", phase)
             }
 
+        case FlushPeerRoutes =>
+            flushScheduled = false
+            // Outside Started, the pending changes were dropped along with
+            // the peer routes.
+            if (phase == Started)
+                flushPeerRoutes()
+
         case PortActive(true) =>
             log.info("({}) Port became active", phase)
             portActive = true
@@ -648,29 +665,76 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 // these calls should be at the very end of this message
                 // handler's code path, after the flow invalidation and
                 // bgpd tear down.
-                peerRoutes.values foreach {
-                    routeId => deleteRoute(routeId)
-                }
-                peerRoutes.clear()
+                deleteAllPeerRoutes()
             case _ =>
                 phase = Disabled
         }
     }
 
-    def deleteRoute(routeId: UUID) {
+    /* Writes the pending peer route changes once there are enough of them,
+     * or else makes sure that they are written at the end of the window. */
+    private def batchPeerRoutes() {
+        if (pendingAdds.size + pendingDeletes.size >=
+                config.getBgpPeerRouteBatchSize) {
+            flushPeerRoutes()
+        } else if (!flushScheduled &&
+                   (pendingAdds.nonEmpty || pendingDeletes.nonEmpty)) {
+            flushScheduled = true
+            context.system.scheduler.scheduleOnce(
+                config.getBgpPeerRouteBatchWindowMillis millis,
+                self, FlushPeerRoutes)(context.dispatcher)
+        }
+    }
+
+    private def flushPeerRoutes() {
+        if (pendingDeletes.nonEmpty) {
+            deleteRoutes(pendingDeletes.toList)
+            pendingDeletes.clear()
+        }
+        if (pendingAdds.nonEmpty) {
+            val routes = pendingAdds.toList
+            pendingAdds.clear()
+            log.debug(s"($phase) adding ${routes.size} peer routes")
+            val routeIds = dataClient.routesCreateEphemeral(routes)
+            routes.zip(routeIds) foreach { case (route, routeId) =>
+                peerRoutes.put(route, routeId)
+            }
+            log.debug("({}) announcing we've added peer routes", phase)
+            routes foreach { route =>
+                context.system.eventStream.publish(
+                    new PEER_ROUTE_ADDED(rport.deviceId, route))
+            }
+        }
+    }
+
+    /* Deletes the peer routes in batches, so that a large table doesn't
+     * end up in a single ZooKeeper multi. */
+    private def deleteAllPeerRoutes() {
+        pendingAdds.clear()
+        (peerRoutes.values.toList ++ pendingDeletes)
+            .grouped(math.max(config.getBgpPeerRouteBatchSize, 1))
+            .foreach(deleteRoutes)
+        pendingDeletes.clear()
+        peerRoutes.clear()
+    }
+
+    def deleteRoutes(routeIds: List[UUID]) {
+        if (routeIds.isEmpty)
+            return
         try {
-            dataClient.routesDelete(routeId)
+            dataClient.routesDelete(routeIds)
         } catch {
             case e: StateAccessException =>
                 log.error(s"({$phase}) Exception", e)
                 val retry = new Runnable() {
                     @Override
                     override def run() {
-                        dataClient.routesDelete(routeId)
+                        dataClient.routesDelete(routeIds)
                     }
                 }
 
-                connWatcher.handleError("BGP delete route: " + routeId, retry, e)
+                connWatcher.handleError(
+                    s"BGP delete ${routeIds.size} routes", retry, e)
         }
     }
 
@@ -75,7 +75,18 @@ class MidolmanActorsService extends AbstractService {
         (propsFor(classOf[NetlinkCallbackDispatcher]),
             NetlinkCallbackDispatcher.Name),
         (propsFor(classOf[MtuIncreaser]).
-            withDispatcher("actors.pinned-dispatcher"), MtuIncreaser.Name))
+            withDispatcher("actors.pinned-dispatcher"), MtuIncreaser.Name)) ++
+        flowControllerShardSpecs
+
+    /* The FlowController is the first shard, the other shards are started
+     * after it. */
+    protected def flowControllerShardSpecs =
+        for (shard <- 1 until FlowController.numShards(config)) yield
+            (Props {
+                 val flowController = injector.getInstance(classOf[FlowController])
+                 flowController.shard = shard
+                 flowController
+             }, FlowController.shardName(shard))
 
     protected var supervisorActor: ActorRef = _
     private var childrenActors: List[ActorRef] = Nil
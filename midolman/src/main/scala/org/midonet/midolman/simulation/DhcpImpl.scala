@@ -19,13 +19,12 @@ import java.nio.{BufferOverflowException, ByteBuffer}
 import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
 import scala.collection.mutable
-import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.cluster.DataClient
-import org.midonet.cluster.data.dhcp.{Subnet, Host, Opt121}
-import org.midonet.midolman.topology.devices.{RouterPort, BridgePort, Port}
+import org.midonet.midolman.topology.DhcpConfigCache
+import org.midonet.midolman.topology.DhcpConfigCache.DhcpAssignment
+import org.midonet.midolman.topology.devices.{BridgePort, Port}
 import org.midonet.packets._
 
 /**
@@ -410,9 +409,9 @@ object DhcpValueParser {
 }
 
 object DhcpImpl {
-    def apply(dataClient: DataClient, inPort: Port, request: DHCP,
+    def apply(dhcpConfig: DhcpConfigCache, inPort: Port, request: DHCP,
               sourceMac: MAC, mtu: Option[Short], log: Logger) =
-        new DhcpImpl(dataClient, request, sourceMac, mtu, log).handleDHCP(inPort)
+        new DhcpImpl(dhcpConfig, request, sourceMac, mtu, log).handleDHCP(inPort)
 }
 
 class DhcpException extends Exception {
@@ -422,18 +421,12 @@ class DhcpException extends Exception {
 object UnsupportedDhcpRequestException extends DhcpException {}
 object MalformedDhcpRequestException extends DhcpException {}
 
-class DhcpImpl(val dataClient: DataClient,
+class DhcpImpl(val dhcpConfig: DhcpConfigCache,
                val request: DHCP, val sourceMac: MAC,
                val mtu: Option[Short], val log: Logger) {
-    import DhcpValueParser._
 
     private var serverAddr: IPv4Addr = null
-    private var serverMac: MAC = null
-    private var routerAddr: IPv4Addr = null
     private var yiaddr: IPv4Addr = null
-    private var yiAddrMaskLen: Int = 0
-    private var opt121Routes: mutable.Seq[Opt121] = null
-    private var dnsServerAddrsBytes: List[Array[Byte]] = Nil
 
     private var interfaceMTU : Short = 0
 
@@ -455,60 +448,23 @@ class DhcpImpl(val dataClient: DataClient,
         }
     }
 
-    private type HostAndSubnetOptPair = (Option[Host], Option[Subnet])
-
-    private
-    def getHostAndAssignedSubnet(port: BridgePort): HostAndSubnetOptPair = {
-        // TODO(pino): use an async API
-        val subnets = dataClient.dhcpSubnetsGetByBridgeEnabled(port.deviceId)
-
-        // Look for the DHCP's source MAC in the list of hosts in each subnet
-        var host: Option[Host] = None
-        val assignment = subnets.find { sub =>
-            log.debug("Looking up assignment for MAC {} on subnet {} ",
-                      sourceMac, sub.getId)
-            if (sub.isReplyReady) {
-                // TODO(pino): make this asynchronous?
-                host = Option(dataClient.dhcpHostsGet(port.deviceId,
-                                                    sub.getSubnetAddr,
-                                                    sourceMac.toString))
-                host.isDefined && (host.get.getIp != null)
-            } else {
-                log.warn("Can not create DHCP reply because the subnet" +
-                         s" ${sub.getId} does not have all necessary " +
-                         "information.")
-                false
-            }
-        }
-        (host, assignment)
-    }
-
     private def dhcpFromBridgePort(port: BridgePort): Option[Ethernet] = {
-        getHostAndAssignedSubnet(port) match {
-            case (Some(host: Host), Some(sub: Subnet)) =>
+        dhcpConfig.assignment(port.deviceId, sourceMac) match {
+            case Some(assignment) =>
                 log.debug(s"Found DHCP static assignment for MAC $sourceMac => "+
-                          s"${host.getName} @ ${host.getIp}")
+                          s"${assignment.host.getName} @ ${assignment.yiaddr}")
 
-                // TODO(pino): the server MAC should be in configuration.
-                serverMac = MAC.fromString("02:a8:9c:de:39:27")
-                serverAddr = sub.getServerAddr
-                routerAddr = sub.getDefaultGateway
-                yiaddr = host.getIp
-                yiAddrMaskLen = sub.getSubnetAddr.getPrefixLen
+                serverAddr = assignment.serverAddr
+                yiaddr = assignment.yiaddr
 
-                dnsServerAddrsBytes =
-                    Option(sub.getDnsServerAddrs).map{ _.toList}.getOrElse(Nil)
-                        .map { _.toBytes }
-                opt121Routes = sub.getOpt121Routes
-
-                (sub.getInterfaceMTU match {
+                (assignment.interfaceMtu match {
                     case 0 => mtu
                     case s: Short => Some(s)
                 }) match {
                     case Some(mtu) =>
                         interfaceMTU = mtu
                         log.debug(s"Building DHCP reply for MAC $sourceMac with MTU $mtu")
-                        makeDhcpReply(port, host)
+                        makeDhcpReply(port, assignment)
                     case _ =>
                         interfaceMTU = 0
                         log.warn("Failed to calculate interface MTU, cannot " +
@@ -522,7 +478,7 @@ class DhcpImpl(val dataClient: DataClient,
     }
 
     private def makeDhcpReply(port: BridgePort,
-                              host: Host): Option[Ethernet] = {
+                              assignment: DhcpAssignment): Option[Ethernet] = {
         val chaddr = request.getClientHardwareAddress
         if (null == chaddr) {
             log.warn("Dropping DHCP request with null hw addr")
@@ -568,32 +524,20 @@ class DhcpImpl(val dataClient: DataClient,
             }
         }
 
-        // Use mutable.HashMap to eliminate the duplication between the Midolman
-        // DHCP extra option handlings and the Neutron ones.
-        val optionMap = mutable.HashMap[Byte, DHCPOption]()
         val typeOpt = reqOptions.get(DHCPOption.Code.DHCP_TYPE.value)
         if (typeOpt == None) {
             log.warn("Dropping DHCP request, no dhcp msg type found")
             throw MalformedDhcpRequestException
         }
 
-        typeOpt.get.getData()(0) match {
+        val replyType = typeOpt.get.getData()(0) match {
             case v if v == DHCPOption.MsgType.DISCOVER.value =>
                 log.debug("Received a DHCP Discover message")
                 // Reply with a dchp OFFER.
-                optionMap.put(DHCPOption.Code.DHCP_TYPE.value,
-                    new DHCPOption(
-                        DHCPOption.Code.DHCP_TYPE.value,
-                        DHCPOption.Code.DHCP_TYPE.length,
-                        Array[Byte](DHCPOption.MsgType.OFFER.value)))
+                DHCPOption.MsgType.OFFER.value
             case v if v == DHCPOption.MsgType.REQUEST.value =>
                 log.debug("Received a DHCP Request message")
                 // Reply with a dchp ACK.
-                optionMap.put(DHCPOption.Code.DHCP_TYPE.value,
-                    new DHCPOption(
-                        DHCPOption.Code.DHCP_TYPE.value,
-                        DHCPOption.Code.DHCP_TYPE.length,
-                        Array[Byte](DHCPOption.MsgType.ACK.value)))
                 // http://tools.ietf.org/html/rfc2131 Section 3.1, Step 3:
                 // "The client broadcasts a DHCPREQUEST message that MUST include
                 // the 'server identifier' option to indicate which server is has
@@ -630,6 +574,7 @@ class DhcpImpl(val dataClient: DataClient,
                             return None
                         }
                 }
+                DHCPOption.MsgType.ACK.value
             case msgType =>
                 log.warn("Dropping DHCP request, unsupported msg type "+
                          s"$msgType:${DHCPOption.msgTypeToName.get(msgType)}")
@@ -645,89 +590,26 @@ class DhcpImpl(val dataClient: DataClient,
         reply.setServerIPAddress(serverAddr.addr)
         reply.setYourIPAddress(yiaddr.addr)
 
-        // TODO(pino): do we need to include the DNS option?
-        optionMap.put(DHCPOption.Code.MASK.value,
-            new DHCPOption(DHCPOption.Code.MASK.value,
-                DHCPOption.Code.MASK.length,
-                IPv4Addr.intToBytes(
-                    ~0 << (32 - yiAddrMaskLen))))
-
-        // Generate the broadcast address... this is nwAddr with 1's in the
-        // last 32-nwAddrLength bits.
-        val mask = ~0 >>> yiAddrMaskLen
-        val bcast = mask | yiaddr.addr
-        log.debug("Setting DHCP bcast addr option to {}", IPv4Addr.intToString(bcast))
-        optionMap.put(DHCPOption.Code.BCAST_ADDR.value,
-            new DHCPOption(DHCPOption.Code.BCAST_ADDR.value,
-                DHCPOption.Code.BCAST_ADDR.length,
-                IPv4Addr.intToBytes(bcast)))
-        optionMap.put(DHCPOption.Code.IP_LEASE_TIME.value,
-            new DHCPOption(DHCPOption.Code.IP_LEASE_TIME.value,
-                DHCPOption.Code.IP_LEASE_TIME.length,
-                IPv4Addr.intToBytes((1 day).toSeconds.toInt)))
-        optionMap.put(DHCPOption.Code.INTERFACE_MTU.value,
-            new DHCPOption(DHCPOption.Code.INTERFACE_MTU.value,
+        // The options that don't depend on the request were built along
+        // with the assignment, and extra options override the others.
+        val options = new mutable.ArrayBuffer[DHCPOption](
+            assignment.options.length + 3)
+        if (!assignment.hasTypeOption) {
+            options += new DHCPOption(
+                DHCPOption.Code.DHCP_TYPE.value,
+                DHCPOption.Code.DHCP_TYPE.length,
+                Array[Byte](replyType))
+        }
+        if (!assignment.hasMtuOption) {
+            options += new DHCPOption(DHCPOption.Code.INTERFACE_MTU.value,
                 DHCPOption.Code.INTERFACE_MTU.length,
                 Array[Byte]((interfaceMTU/256).toByte,
-                    (interfaceMTU%256).toByte)))
-        if (routerAddr != null) {
-            optionMap.put(DHCPOption.Code.ROUTER.value,
-                new DHCPOption(DHCPOption.Code.ROUTER.value,
-                    DHCPOption.Code.ROUTER.length,
-                    routerAddr.toBytes))
-        }
-        // in MidoNet the DHCP server is the same as the router
-        optionMap.put(DHCPOption.Code.SERVER_ID.value,
-            new DHCPOption(
-                DHCPOption.Code.SERVER_ID.value,
-                DHCPOption.Code.SERVER_ID.length,
-                serverAddr.toBytes))
-
-        if (dnsServerAddrsBytes.nonEmpty) {
-            val len = 4 * dnsServerAddrsBytes.length
-            val buffer = ByteBuffer.allocate(len)
-            dnsServerAddrsBytes.foreach{ bytes => buffer put bytes}
-            optionMap.put(DHCPOption.Code.DNS.value,
-                new DHCPOption(DHCPOption.Code.DNS.value,
-                    len.toByte, buffer.array))
+                    (interfaceMTU%256).toByte))
         }
-        // If there are classless static routes, add the option.
-        if (null != opt121Routes && opt121Routes.length > 0) {
-            val bytes = mutable.ListBuffer[Byte]()
-            opt121Routes foreach { rt =>
-                log.debug("Found classless route {}", rt)
-                // First append the destination subnet's maskLength
-                val maskLen = rt.getRtDstSubnet.getPrefixLen.toByte
-                bytes.append(maskLen)
-                // Now append the significant octets of the subnet.
-                val dstBytes = rt.getRtDstSubnet.getAddress.toBytes
-                if (maskLen > 0) bytes.append(dstBytes(0))
-                if (maskLen > 8) bytes.append(dstBytes(1))
-                if (maskLen > 16) bytes.append(dstBytes(2))
-                if (maskLen > 24) bytes.append(dstBytes(3))
-                // Now append the 4 octets of the gateway.
-                val gwBytes = rt.getGateway.toBytes
-                bytes.appendAll(gwBytes.toList)
-            }
-            log.debug("Adding Option 121 (classless static routes) with " +
-                      s"${opt121Routes.length} routes")
-            // Finally, construct the classless static routes option
-            optionMap.put(DHCPOption.Code.CLASSLESS_ROUTES.value,
-                new DHCPOption(
-                    DHCPOption.Code.CLASSLESS_ROUTES.value(),
-                    bytes.length.toByte,
-                    bytes.toArray))
-        }
-
-        // Add extra DHCP options. This overwrite the existing DHCP extra option
-        // set already before calling this method.
-        setExtraDhcpOptions(host, optionMap)
-
-        val options: mutable.ListBuffer[DHCPOption] =
-            optionMap.values.to[mutable.ListBuffer]
+        options ++= assignment.options
         // And finally add the END option.
-        options.add(new DHCPOption(DHCPOption.Code.END.value,
-            DHCPOption.Code.END.length, null))
+        options += new DHCPOption(DHCPOption.Code.END.value,
+            DHCPOption.Code.END.length, null)
         reply.setOptions(options)
 
         val udp = new UDP
@@ -745,34 +627,9 @@ class DhcpImpl(val dataClient: DataClient,
         eth.setEtherType(IPv4.ETHERTYPE)
         eth.setPayload(ip)
 
-        eth.setSourceMACAddress(serverMac)
+        eth.setSourceMACAddress(DhcpConfigCache.ServerMac)
         eth.setDestinationMACAddress(sourceMac)
 
         Some(eth)
     }
-
-    private
-    def setExtraDhcpOptions(host: Host,
-                            optMap: mutable.Map[Byte, DHCPOption]): Unit =
-        for (opt <- host.getExtraDhcpOpts if host != null) {
-            val dhcpOptOption: Option[DHCPOption] = for {
-                code <- parseDhcpOptionCode(opt.optName)
-                option <- CodeToOption.get(code)
-                value <- parseDhcpOptionValue(code, opt.optValue)
-                if (value.length != 0) &&
-                    (value.length % option.length == 0)
-            } yield new DHCPOption(
-                    code, value.length.toByte, value)
-            if (dhcpOptOption.isDefined) {
-                log.debug(s"Add extra DHCP Option ${opt.optName} " +
-                    s"with value ${opt.optValue}")
-                val dhcpOption = dhcpOptOption.get
-                optMap.put(dhcpOption.getCode, dhcpOption)
-            } else {
-                log.info(s"Invalid DHCP Option: ${opt.optName} " +
-                    s"with value ${opt.optValue}")
-                log.info("This invalid option will be treated as " +
-                    "UNKNOWN")
-            }
-        }
 }
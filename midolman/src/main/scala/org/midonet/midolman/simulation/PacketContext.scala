@@ -31,6 +31,7 @@ import org.midonet.odp.flows.{FlowAction, FlowActions, FlowKeys}
 import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
 import org.midonet.util.Clearable
+import org.midonet.util.collection.{ObjectPool, PooledObject}
 import org.midonet.util.functors.Callback0
 
 object PacketContext {
@@ -198,11 +199,23 @@ trait FlowContext extends Clearable { this: PacketContext =>
  * context of the same thread, the PacketContext can be safely mutated and
  * used to pass state between different simulation stages, or between virtual
  * devices.
+ *
+ * PacketContexts taken from a pool are recycled by the packet worker that
+ * owns it once no one holds a reference to them, and are then reset for the
+ * next packet, so that the collections they hold are reused. References
+ * are only taken and released by the simulation thread.
  */
-class PacketContext(val cookie: Int,
-                    val packet: Packet,
-                    val origMatch: FlowMatch,
-                    val egressPort: UUID = null) extends Clearable with FlowContext with StateContext {
+class PacketContext(var cookie: Int,
+                    var packet: Packet,
+                    var origMatch: FlowMatch,
+                    var egressPort: UUID,
+                    override val pool: ObjectPool[PacketContext])
+        extends Clearable with FlowContext with StateContext with PooledObject {
+
+    def this(cookie: Int, packet: Packet, origMatch: FlowMatch,
+             egressPort: UUID = null) =
+        this(cookie, packet, origMatch, egressPort, null)
+
     var tracing: Boolean = false
     var log = PacketContext.defaultLog
 
@@ -219,7 +232,7 @@ class PacketContext(val cookie: Int,
     var outPortId: UUID = _
     val outPorts = new ArrayList[UUID]()
 
-    val wcmatch = origMatch.clone()
+    val wcmatch = if (origMatch ne null) origMatch.clone() else new FlowMatch()
 
     var inputPort: UUID = _
 
@@ -255,6 +268,44 @@ class PacketContext(val cookie: Int,
         this.packetEmitter = packetEmitter
     }
 
+    /**
+     * Resets a recycled context so that it can simulate a new packet.
+     */
+    def reset(cookie: Int, packet: Packet, origMatch: FlowMatch,
+              egressPort: UUID): Unit = {
+        this.cookie = cookie
+        this.packet = packet
+        this.origMatch = origMatch
+        this.egressPort = egressPort
+        clear()
+        packetActions.clear()
+        flowRemovedCallbacks.clear()
+        outPorts.clear()
+        wcmatch.reset(origMatch)
+        tracing = false
+        log = PacketContext.defaultLog
+        portGroups = null
+        lastInvalidation = 0L
+        idle = true
+        runs = 0
+        inPortId = null
+        outPortId = null
+        inputPort = null
+    }
+
+    private val unrefCallback = new Callback0 {
+        override def call(): Unit = unref()
+    }
+
+    /**
+     * Called by another thread to release a reference that the simulation
+     * thread took on its behalf. The reference is released by the simulation
+     * thread, through the callback executor.
+     */
+    def scheduleUnref(): Unit =
+        if (pool ne null)
+            callbackExecutor.schedule(unrefCallback)
+
     def prepareForSimulation(lastInvalidationSeen: Long) {
         idle = false
         runs += 1
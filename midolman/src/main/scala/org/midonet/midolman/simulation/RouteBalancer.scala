@@ -23,13 +23,98 @@ import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.topology.RoutingTableWrapper
 import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.IPAddr
 
+object RouteBalancer {
+
+    private def mix(h: Long): Long = {
+        var x = h
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L
+        x ^ (x >>> 33)
+    }
+
+    /* Identifies the next hop of a route the same way on every agent */
+    private def nextHopHash(route: Route): Long = {
+        val port = route.nextHopPort
+        val portHash = if (port eq null) 0L
+                       else port.getMostSignificantBits ^ port.getLeastSignificantBits
+        mix(portHash * 31 + route.nextHopGateway)
+    }
+
+    /**
+     * Chooses one of the routes for a flow by weighted rendezvous hashing:
+     * every route scores -capacity / ln(u), with u uniform in (0, 1] derived
+     * from the flow and next hop hashes, and the route with the highest
+     * score wins. Routes get a capacity inversely proportional to their
+     * weight, and when all weights are equal the route with the highest
+     * hash wins. Adding or removing a route only moves the flows that
+     * choose it.
+     */
+    def selectByHash(routes: Iterable[Route], flowHash: Long): Route = {
+        val weight = routes.head.weight
+        if (routes.forall(_.weight == weight)) {
+            var best: Route = null
+            var bestHash = 0L
+            for (route <- routes) {
+                val h = mix(flowHash ^ nextHopHash(route))
+                if ((best eq null) || h > bestHash) {
+                    best = route
+                    bestHash = h
+                }
+            }
+            best
+        } else {
+            var best: Route = null
+            var bestScore = Double.NegativeInfinity
+            for (route <- routes) {
+                val h = mix(flowHash ^ nextHopHash(route))
+                val u = ((h >>> 11) + 1) * (1.0 / (1L << 53))
+                val score = -(1.0 / (1 + math.max(route.weight, 0))) / math.log(u)
+                if (score > bestScore) {
+                    best = route
+                    bestScore = score
+                }
+            }
+            best
+        }
+    }
+
+    private def ipHash(ip: IPAddr): Long = if (ip eq null) 0L else ip.hashCode
+
+    /**
+     * The hash of the connection a flow belongs to: the 5-tuple of L4 flows,
+     * and the source and destination addresses of the others. It only hashes
+     * fields it reads through the getters, which marks them as seen, since the
+     * choice of route depends on them. The protocol is always seen, so that an
+     * L4 connection doesn't match the flow of another protocol and take its
+     * route.
+     */
+    def flowHash(mmatch: FlowMatch): Long = {
+        var h = ipHash(mmatch.getNetworkSrcIP)
+        h = 31 * h + ipHash(mmatch.getNetworkDstIP)
+        val proto = mmatch.getNetworkProto
+        if (mmatch.isUsed(Field.SrcPort) && mmatch.isUsed(Field.DstPort)) {
+            h = 31 * h + proto
+            h = 31 * h + mmatch.getSrcPort
+            h = 31 * h + mmatch.getDstPort
+        }
+        mix(h)
+    }
+}
+
 /**
  * Handles lookups on the routing table. If multiple routes match, chooses
- * one in a pseudo-random way, to provide basic balancing.
+ * one in a pseudo-random way, to provide basic balancing. When hashFlows is
+ * set, the choice is made by hashing the connection of the flow instead, so
+ * that all the flows of a connection take the same route, on every agent,
+ * without sharing any state between lookups.
  */
-class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
+class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP],
+                                  val hashFlows: Boolean = false) {
+    import RouteBalancer._
+
     val lookups: AtomicLong = new AtomicLong()
 
     def lookup(mmatch: FlowMatch, logger: Logger): Route = {
@@ -39,6 +124,11 @@ class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
             case 1 =>
                 logger.debug("routing to {}", routes.head)
                 routes.head
+            case size if hashFlows =>
+                val ret = selectByHash(routes, flowHash(mmatch))
+                logger.debug("got multiple routes: {}, hashed flow to {}",
+                             routes, ret)
+                ret
             case size =>
                 val pos = (lookups.getAndIncrement % size).toInt
                 val ret = routes.slice(pos, pos+1).head
@@ -39,9 +39,11 @@ class Router(override val id: UUID,
              override val cfg: RouterConfig,
              override val rTable: RoutingTableWrapper[IPv4Addr],
              override val routerMgrTagger: TagManager,
-             val arpTable: ArpTable)
+             val arpTable: ArpTable,
+             override val ecmpFlowHash: Boolean = false)
             (implicit system: ActorSystem)
-        extends RouterBase[IPv4Addr](id, cfg, rTable, routerMgrTagger) {
+        extends RouterBase[IPv4Addr](id, cfg, rTable, routerMgrTagger,
+                                     ecmpFlowHash) {
 
     override def isValidEthertype(ether: Short) =
         ether == IPv4.ETHERTYPE || ether == ARP.ETHERTYPE
@@ -68,9 +70,8 @@ class Router(override val id: UUID,
                                             (implicit context: PacketContext) = {
 
         // Broadcast packet:  Handle if ARP, drop otherwise.
-        val payload = context.ethernet.getPayload
         if (context.wcmatch.getEtherType == ARP.ETHERTYPE)
-            processArp(payload, inPort)
+            processArp(context.ethernet.getPayload, inPort)
         else
             Drop
     }
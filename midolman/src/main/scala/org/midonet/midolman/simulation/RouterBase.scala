@@ -42,7 +42,8 @@ import org.midonet.sdn.flows.FlowTagger
 abstract class RouterBase[IP <: IPAddr](val id: UUID,
                                         val cfg: RouterConfig,
                                         val rTable: RoutingTableWrapper[IP],
-                                        val routerMgrTagger: TagManager)
+                                        val routerMgrTagger: TagManager,
+                                        val ecmpFlowHash: Boolean)
                                    (implicit system: ActorSystem,
                                              icmpErrors: IcmpErrorSender[IP])
     extends Coordinator.Device with RoutingWorkflow {
@@ -51,7 +52,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     def isValidEthertype(ether: Short): Boolean
 
-    val routeBalancer = new RouteBalancer(rTable)
+    val routeBalancer = new RouteBalancer(rTable, ecmpFlowHash)
     val deviceTag = FlowTagger.tagForDevice(id)
 
     /**
@@ -181,7 +182,8 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
 
     private def routing(inPort: RouterPort)
                        (implicit context: PacketContext): SimulationResult = {
-        val frame = context.ethernet
+        // Only parsed if an ICMP message needs to be built from it
+        lazy val frame = context.ethernet
         val wcmatch = context.wcmatch
         val dstIP = context.wcmatch.getNetworkDstIP
 
@@ -304,7 +306,7 @@ abstract class RouterBase[IP <: IPAddr](val id: UUID,
         implicit val packetContext = context
 
         val pMatch = context.wcmatch
-        val pFrame = context.ethernet
+        lazy val pFrame = context.ethernet
 
         context.outPortId = outPort.id
 
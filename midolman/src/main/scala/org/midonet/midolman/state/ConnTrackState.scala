@@ -25,8 +25,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, IPv6Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateLayout, FlowStateTransaction}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -54,6 +54,78 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * The layout of the connection tracking entries in an off-heap table:
+     *
+     *     [ address types | protocol ] [ source port | destination port ]
+     *     [ source address (2 words) ] [ destination address (2 words) ]
+     *     [ device id (2 words) ] and the flow direction.
+     */
+    object ConnTrackLayout extends FlowStateLayout[ConnTrackKey, ConnTrackValue] {
+        private final val NoAddress = 0L
+        private final val V4Address = 1L
+        private final val V6Address = 2L
+
+        override def keyWords = 8
+        override def valueWords = 1
+
+        private def encodeAddress(ip: IPAddr, words: Array[Long],
+                                  offset: Int): Long = ip match {
+            case ip: IPv4Addr =>
+                words(offset) = 0L
+                words(offset + 1) = ip.toInt & 0xffffffffL
+                V4Address
+            case ip: IPv6Addr =>
+                words(offset) = ip.upperWord
+                words(offset + 1) = ip.lowerWord
+                V6Address
+            case _ =>
+                words(offset) = 0L
+                words(offset + 1) = 0L
+                NoAddress
+        }
+
+        private def decodeAddress(addressType: Long, words: Array[Long],
+                                  offset: Int): IPAddr = addressType match {
+            case V4Address => IPv4Addr.fromInt(words(offset + 1).toInt)
+            case V6Address => IPv6Addr(words(offset), words(offset + 1))
+            case _ => null
+        }
+
+        override def encodeKey(key: ConnTrackKey, words: Array[Long],
+                               offset: Int): Unit = {
+            val srcType = encodeAddress(key.networkSrc, words, offset + 2)
+            val dstType = encodeAddress(key.networkDst, words, offset + 4)
+            words(offset) = (srcType << 10) | (dstType << 8) |
+                            (key.networkProtocol & 0xffL)
+            words(offset + 1) = (key.icmpIdOrTransportSrc.toLong << 32) |
+                                (key.icmpIdOrTransportDst & 0xffffffffL)
+            words(offset + 6) = key.deviceId.getMostSignificantBits
+            words(offset + 7) = key.deviceId.getLeastSignificantBits
+        }
+
+        override def decodeKey(words: Array[Long], offset: Int): ConnTrackKey =
+            ConnTrackKey(
+                decodeAddress((words(offset) >>> 10) & 0x3, words, offset + 2),
+                (words(offset + 1) >>> 32).toInt,
+                decodeAddress((words(offset) >>> 8) & 0x3, words, offset + 4),
+                words(offset + 1).toInt,
+                words(offset).toByte,
+                new UUID(words(offset + 6), words(offset + 7)))
+
+        override def encodeValue(value: ConnTrackValue, words: Array[Long],
+                                 offset: Int): Unit =
+            words(offset) = if (value eq null) -1L
+                            else if (value.booleanValue) 1L else 0L
+
+        override def decodeValue(words: Array[Long], offset: Int): ConnTrackValue =
+            words(offset) match {
+                case -1L => null
+                case 0L => java.lang.Boolean.FALSE
+                case _ => java.lang.Boolean.TRUE
+            }
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
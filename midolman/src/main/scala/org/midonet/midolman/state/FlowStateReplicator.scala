@@ -16,7 +16,7 @@
 
 package org.midonet.midolman.state
 
-import java.util.{ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Set => JSet, UUID}
+import java.util.{ArrayDeque, ArrayList, HashSet => JHashSet, Iterator => JIterator, List => JList, Map => JMap, Set => JSet, UUID}
 
 import akka.actor.ActorSystem
 import com.google.protobuf.{CodedOutputStream, MessageLite}
@@ -108,6 +108,10 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
     private[this] val currentMessage = Proto.StateMessage.newBuilder()
     private[this] var txIngressPort: UUID = _
     private[this] val txPeers: JSet[UUID] = new JHashSet[UUID]()
+
+    /* Keys fetched from storage that are yet to be imported */
+    private[this] val pendingImports = new ArrayDeque[JIterator[_]]()
+    private[this] var pendingImportCount = 0
     private[this] val txPorts: JSet[UUID] = new JHashSet[UUID]()
 
     private[this] val pendingMessages = new ArrayList[(JSet[UUID], MessageLite)]()
@@ -168,29 +172,65 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         currentMessage.setSeq(0x1)
     }
 
+    /**
+     * Queues the keys of a batch fetched from storage, to be imported into
+     * the state tables a few at a time by importPending().
+     */
     def importFromStorage(batch: FlowStateBatch) {
-        importConnTrack(batch.strongConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importConnTrack(batch.weakConnTrack.iterator(), ConnTrackState.RETURN_FLOW)
-        importNat(batch.strongNat.entrySet().iterator())
-        importNat(batch.weakNat.entrySet().iterator())
+        queueImport(batch.strongConnTrack.iterator(), batch.strongConnTrack.size)
+        queueImport(batch.weakConnTrack.iterator(), batch.weakConnTrack.size)
+        queueImport(batch.strongNat.entrySet().iterator(), batch.strongNat.size)
+        queueImport(batch.weakNat.entrySet().iterator(), batch.weakNat.size)
     }
 
-    private def importConnTrack(keys: JIterator[ConnTrackKey], v: ConnTrackState.ConnTrackValue) {
-        while (keys.hasNext) {
-            val k = keys.next()
-            log.debug("importing state key from storage: {}", k)
-            conntrackTable.putAndRef(k, v)
-            conntrackTable.unref(k)
+    private def queueImport(keys: JIterator[_], size: Int) {
+        if (size > 0) {
+            pendingImports.add(keys)
+            pendingImportCount += size
         }
     }
 
-    private def importNat(entries: JIterator[java.util.Map.Entry[NatKey, NatBinding]]) {
-        while (entries.hasNext) {
-            val e = entries.next()
-            log.debug("importing state key from storage: {}", e.getKey)
-            natTable.putAndRef(e.getKey, e.getValue)
-            natTable.unref(e.getKey)
+    /**
+     * The number of keys queued by importFromStorage() that are yet to be
+     * imported.
+     */
+    def pendingImportSize: Int = pendingImportCount
+
+    /**
+     * Imports at most maxKeys of the keys queued by importFromStorage(), so
+     * that importing the state of a port doesn't stall packet processing.
+     *
+     * @return The number of imported keys.
+     */
+    def importPending(maxKeys: Int): Int = {
+        var imported = 0
+        while (imported < maxKeys && !pendingImports.isEmpty) {
+            val keys = pendingImports.peek()
+            while (imported < maxKeys && keys.hasNext) {
+                keys.next() match {
+                    case k: ConnTrackKey => importConnTrack(k)
+                    case e: JMap.Entry[_, _] =>
+                        importNat(e.asInstanceOf[JMap.Entry[NatKey, NatBinding]])
+                }
+                imported += 1
+            }
+            if (!keys.hasNext)
+                pendingImports.poll()
         }
+        pendingImportCount -= imported
+        imported
+    }
+
+    private def importConnTrack(k: ConnTrackKey) {
+        log.debug("importing state key from storage: {}", k)
+        conntrackTable.putAndRef(k, ConnTrackState.RETURN_FLOW)
+        conntrackTable.unref(k)
+    }
+
+    private def importNat(e: JMap.Entry[NatKey, NatBinding]) {
+        log.debug("importing state key from storage: {}", e.getKey)
+        natTable.putAndRef(e.getKey, e.getValue)
+        natTable.unref(e.getKey)
     }
 
     /**
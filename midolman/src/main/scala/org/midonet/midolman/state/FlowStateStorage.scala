@@ -25,8 +25,9 @@ import scala.concurrent.{ExecutionContext, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 import org.midonet.cluster.backend.cassandra.CassandraClient
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
@@ -122,7 +123,25 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    def apply(client: CassandraClient, writer: FlowStateWriter): FlowStateStorage =
+        new FlowStateStorageImpl(client, writer)
+
+    /**
+     * A FlowStateWriter to the Cassandra client's current session, to be
+     * shared by the FlowStateStorage instances of all the packet workers.
+     */
+    def writer(client: CassandraClient, registry: MetricRegistry) = {
+        var session: Session = null
+        var writeSession: FlowStateWriter.Session = null
+        new FlowStateWriter(() => {
+            if (client.session ne session) {
+                session = client.session
+                writeSession = if (session eq null) null
+                               else new FlowStateWriter.CassandraWriteSession(session)
+            }
+            writeSession
+        }, registry)
+    }
 }
 
 trait FlowStateStorage {
@@ -138,6 +157,29 @@ trait FlowStateStorage {
     def fetchWeakNatRefs(portId: UUID)
         (implicit ec: ExecutionContext, as: ActorSystem): Future[JMap[NatKey, NatBinding]]
 
+    /**
+     * Fetches the conntrack keys for which a port is ingress (strong) or
+     * egress, calling page for every page of at most pageSize keys, so that
+     * the keys of a port never need to be held all at once.
+     */
+    def fetchConnTrackRefPages(portId: UUID, strong: Boolean, pageSize: Int)
+                              (page: JSet[ConnTrackKey] => Unit)
+                              (implicit ec: ExecutionContext, as: ActorSystem)
+    : Future[Unit] =
+        (if (strong) fetchStrongConnTrackRefs(portId)
+         else fetchWeakConnTrackRefs(portId)) map page
+
+    /**
+     * Fetches the nat keys for which a port is ingress (strong) or egress,
+     * calling page for every page of at most pageSize keys.
+     */
+    def fetchNatRefPages(portId: UUID, strong: Boolean, pageSize: Int)
+                        (page: JMap[NatKey, NatBinding] => Unit)
+                        (implicit ec: ExecutionContext, as: ActorSystem)
+    : Future[Unit] =
+        (if (strong) fetchStrongNatRefs(portId)
+         else fetchWeakNatRefs(portId)) map page
+
     def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID, weakRefs: JIterator[UUID])
     def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID, weakRefs: JIterator[UUID])
 
@@ -148,21 +190,20 @@ trait FlowStateStorage {
 /**
  * FlowStateStorage: store & fetch flow state keys from Cassandra.
  *
- * This class is *NOT* thread safe, each thread that needs to submit or fetch
- * state keys from Cassandra should get its own instance. The only reason it
- * is not thread safe is because write operations are batched, a batch is
- * prepared by a series of touch*() method calls and it's then fired
- * by invoking submit.
+ * Each thread that needs to submit or fetch state keys from Cassandra should
+ * get its own instance. Keys are written by a FlowStateWriter, which may be
+ * shared by several instances: touch*() calls queue the writes, which the
+ * writer sends in batches.
  *
- * All operations are asynchronous, submit is meant to be fire-and-forget with
- * no error control and for this reason, returns Unit.
+ * All operations are asynchronous, writes are fire-and-forget with no error
+ * control and for this reason, return Unit.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
+class FlowStateStorageImpl(val client: CassandraClient,
+                           val writer: FlowStateWriter) extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     class Prepared(query: String) {
@@ -178,26 +219,6 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     def fetchByPortStatement(table: String) =
         new Prepared(s"SELECT * FROM $table  WHERE port = ?;")
 
-    def touchConnTrackStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    def touchNatStatement(table: String) =
-        new Prepared(
-            s"INSERT INTO $table " +
-                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
-                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
-                " USING TTL ?;")
-
-    val touchIngressConnTrack = touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE)
-    val touchEgressConnTrack = touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE)
-
-    val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
-    val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
-
     val fetchIngressConnTrack = fetchByPortStatement(CONNTRACK_BY_INGRESS_TABLE)
     val fetchEgressConnTrack = fetchByPortStatement(CONNTRACK_BY_EGRESS_TABLE)
     val fetchIngressNat = fetchByPortStatement(NAT_BY_INGRESS_TABLE)
@@ -206,44 +227,19 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     final def withSession[U](body: (Session) => U): Option[U] =
         Option(client.session) map body
 
-    private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
-        st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
-    private def bind(st: PreparedStatement, port: UUID, k: NatKey, v: NatBinding) = {
-        st.bind(port, natKeyTypeToString(k.keyType).orNull,
-                      k.networkProtocol.toInt.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
-                      ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
-                      k.deviceId,
-                      ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
-                      k.expiresAfter.toSeconds.toInt: java.lang.Integer)
-    }
-
     /**
-     * Adds a connection tracking key to the next batch that will be sent
-     * to cassandra.
+     * Queues the write of a connection tracking key.
      *
      * @param k The key
      * @param strongRef Ingress port.
      * @param weakRefs Egress ports.
      */
     override def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
-            }
-    }
+            weakRefs: JIterator[UUID]): Unit =
+        writer.touchConnTrackKey(k, strongRef, weakRefs)
 
     /**
-     * Addss a NAT key to the next batch that will be sent to Cassandra.
+     * Queues the write of a NAT key.
      *
      * @param k The key
      * @param v Its value
@@ -251,25 +247,14 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
      * @param weakRefs Egress ports.
      */
     override def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
-            weakRefs: JIterator[UUID]): Unit = withSession {
-        s =>
-            if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
-            while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
-            }
-    }
+            weakRefs: JIterator[UUID]): Unit =
+        writer.touchNatKey(k, v, strongRef, weakRefs)
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * The writer sends the writes queued through touchConnTrackKey() and
+     * touchNatKey() on its own, at the end of every coalescing window.
      */
-    override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
-    }
+    override def submit(): Unit = {}
 
     /**
      * Fetch all conntrack keys for which a give port is ingress.
@@ -295,6 +280,18 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     override def fetchWeakNatRefs(port: UUID)(implicit ec: ExecutionContext, as: ActorSystem) =
         fetch(fetchEgressNat, port, resultSetToNatBindings)
 
+    override def fetchConnTrackRefPages(port: UUID, strong: Boolean, pageSize: Int)
+                                       (page: JSet[ConnTrackKey] => Unit)
+                                       (implicit ec: ExecutionContext, as: ActorSystem) =
+        fetchPages(if (strong) fetchIngressConnTrack else fetchEgressConnTrack,
+                   port, pageSize, pageToConnTrackKeys andThen page)
+
+    override def fetchNatRefPages(port: UUID, strong: Boolean, pageSize: Int)
+                                 (page: JMap[NatKey, NatBinding] => Unit)
+                                 (implicit ec: ExecutionContext, as: ActorSystem) =
+        fetchPages(if (strong) fetchIngressNat else fetchEgressNat,
+                   port, pageSize, pageToNatBindings andThen page)
+
     private def resultSetToConnTrackKeys(rs: ResultSet): JSet[ConnTrackKey] = {
         val keys = new JHashSet[ConnTrackKey]()
         val rows = rs.iterator()
@@ -314,6 +311,28 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         bindings
     }
 
+    /* Consumes the rows fetched so far, without fetching more */
+    private val pageToConnTrackKeys = (rs: ResultSet) => {
+        var n = rs.getAvailableWithoutFetching
+        val keys = new JHashSet[ConnTrackKey](n * 2)
+        while (n > 0) {
+            keys.add(rowToConnTrack(rs.one()))
+            n -= 1
+        }
+        keys
+    }
+
+    private val pageToNatBindings = (rs: ResultSet) => {
+        var n = rs.getAvailableWithoutFetching
+        val bindings = new JHashMap[NatKey, NatBinding](n * 2)
+        while (n > 0) {
+            val row = rs.one()
+            bindings.put(rowToNatKey(row), rowToNatBinding(row))
+            n -= 1
+        }
+        bindings
+    }
+
     private def peelResult[U](result: Option[Future[U]]): Future[U] = result match {
         case Some(f) => f
         case None =>
@@ -327,23 +346,30 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
+    private def fetchPages(statement: Prepared, portId: UUID, pageSize: Int,
+                           page: (ResultSet) => Unit)
+                          (implicit ec: ExecutionContext, as: ActorSystem)
+    : Future[Unit] = {
+        def nextPages(rs: ResultSet): Future[Unit] = {
+            page(rs)
+            if (rs.isFullyFetched) Future.successful(())
+            else toScalaFuture(rs.fetchMoreResults()) flatMap { _ => nextPages(rs) }
         }
 
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
-        }
+        peelResult (withSession { s =>
+            val query = statement(s).bind(portId)
+            query.setFetchSize(pageSize)
+            toScalaFuture(s.executeAsync(query)) flatMap nextPages
+        })
     }
 
-    private def toScalaFuture(f: ResultSetFuture)
+    private def toScalaFuture[T](f: ListenableFuture[T])
             (implicit ec: ExecutionContext,
-                      as: ActorSystem): Future[ResultSet] = {
+                      as: ActorSystem): Future[T] = {
 
-        val p: Promise[ResultSet] = Promise[ResultSet]()
-        Futures.addCallback(f, new FutureCallback[ResultSet](){
-            override def onSuccess(result: ResultSet): Unit = {
+        val p: Promise[T] = Promise[T]()
+        Futures.addCallback(f, new FutureCallback[T](){
+            override def onSuccess(result: T): Unit = {
                 if(!p.trySuccess(result)) {
                     log.warn("failed to complete future with success {}", result)
                 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.lang.{Integer => JInt}
+import java.util.{ArrayList, HashMap => JHashMap, Iterator => JIterator,
+                  LinkedHashMap => JLinkedHashMap, List => JList, UUID}
+import java.util.concurrent.{Semaphore, TimeUnit}
+import java.util.concurrent.locks.LockSupport
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+import com.datastax.driver.core.{BatchStatement, PreparedStatement, ResultSet,
+                                 Session => CassandraSession}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
+import org.jctools.queues.MpscArrayQueue
+import org.slf4j.LoggerFactory
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+
+object FlowStateWriter {
+
+    /* The time during which repeated touches of a key are coalesced */
+    val DefaultWindowMillis = 100
+    val DefaultQueueCapacity = 64 * 1024
+    val DefaultMaxBatchSize = 64
+    val DefaultMaxInFlight = 32
+    val DefaultMaxPending = 256 * 1024
+
+    /**
+     * A write of a flow state key to the table of its ingress or egress port.
+     * Writes of the same key to the same port are equal, whatever the value.
+     */
+    sealed trait Write {
+        def port: UUID
+        def ingress: Boolean
+    }
+
+    case class ConnTrackWrite(port: UUID, ingress: Boolean, key: ConnTrackKey)
+        extends Write
+
+    case class NatWrite(port: UUID, ingress: Boolean, key: NatKey)
+                       (val value: NatBinding) extends Write
+
+    /**
+     * Writes the flow state of a port, the only partition a batch of writes
+     * spans.
+     */
+    trait Session {
+        def write(port: UUID, writes: JList[Write]): ListenableFuture[ResultSet]
+    }
+
+    /**
+     * Writes the flow state of a port to Cassandra, in an unlogged batch.
+     */
+    class CassandraWriteSession(session: CassandraSession) extends Session {
+        import FlowStateStorage._
+
+        private def touchConnTrackStatement(table: String) = session.prepare(
+            s"INSERT INTO $table " +
+                "  (port, proto, srcIp, srcPort, dstIp, dstPort, device) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+        private def touchNatStatement(table: String) = session.prepare(
+            s"INSERT INTO $table " +
+                "  (port, type, proto, srcIp, srcPort, dstIp, dstPort, device, translateIp, translatePort) " +
+                " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+                " USING TTL ?;")
+
+        private val touchIngressConnTrack =
+            touchConnTrackStatement(CONNTRACK_BY_INGRESS_TABLE)
+        private val touchEgressConnTrack =
+            touchConnTrackStatement(CONNTRACK_BY_EGRESS_TABLE)
+        private val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
+        private val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
+
+        private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) =
+            st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkDst), k.icmpIdOrTransportDst.asInstanceOf[JInt],
+                    k.deviceId,
+                    k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+
+        private def bind(st: PreparedStatement, port: UUID, k: NatKey,
+                         v: NatBinding) =
+            st.bind(port, natKeyTypeToString(k.keyType).orNull,
+                    k.networkProtocol.toInt.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkSrc), k.transportSrc.asInstanceOf[JInt],
+                    ipAddrToInet(k.networkDst), k.transportDst.asInstanceOf[JInt],
+                    k.deviceId,
+                    ipAddrToInet(v.networkAddress), v.transportPort.asInstanceOf[JInt],
+                    k.expiresAfter.toSeconds.toInt: java.lang.Integer)
+
+        override def write(port: UUID, writes: JList[Write])
+        : ListenableFuture[ResultSet] = {
+            val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+            var i = 0
+            while (i < writes.size) {
+                writes.get(i) match {
+                    case w: ConnTrackWrite =>
+                        batch.add(bind(if (w.ingress) touchIngressConnTrack
+                                       else touchEgressConnTrack, port, w.key))
+                    case w: NatWrite =>
+                        batch.add(bind(if (w.ingress) touchIngressNat
+                                       else touchEgressNat, port, w.key, w.value))
+                }
+                i += 1
+            }
+            session.executeAsync(batch)
+        }
+    }
+}
+
+/**
+ * The stage through which the packet workers persist flow state, so that
+ * they don't wait for, nor are slowed down by, the Cassandra driver. The
+ * workers queue writes, which the writer thread drains every window.
+ *
+ * Writes of the same key to the same port within a window are coalesced into
+ * the last one. The writes of each port are sent in unlogged batches of at
+ * most maxBatchSize statements, with at most maxInFlight batches awaiting a
+ * response. When that many are in flight, the remaining writes are deferred
+ * to the next window, where they may be coalesced with new ones. Writes are
+ * dropped when the queue is full, when more than maxPending writes are
+ * deferred, and when there is no session to Cassandra.
+ *
+ * The writer reports the writes per second, the queue depth and the deferred
+ * and dropped writes through the metrics registry.
+ */
+class FlowStateWriter(session: () => FlowStateWriter.Session,
+                      registry: MetricRegistry,
+                      windowMillis: Int = FlowStateWriter.DefaultWindowMillis,
+                      queueCapacity: Int = FlowStateWriter.DefaultQueueCapacity,
+                      maxBatchSize: Int = FlowStateWriter.DefaultMaxBatchSize,
+                      maxInFlight: Int = FlowStateWriter.DefaultMaxInFlight,
+                      maxPending: Int = FlowStateWriter.DefaultMaxPending) {
+    import FlowStateWriter._
+
+    private val log = LoggerFactory.getLogger(classOf[FlowStateWriter])
+
+    private val queue = new MpscArrayQueue[Write](queueCapacity)
+    private val inFlight = new Semaphore(maxInFlight)
+
+    /* Coalesced writes, only accessed by the writer thread */
+    private val pending = new JLinkedHashMap[Write, Write]()
+    private val byPort = new JHashMap[UUID, ArrayList[Write]]()
+
+    val writes = registry.meter(name(classOf[FlowStateWriter], "writes"))
+    val batches = registry.meter(name(classOf[FlowStateWriter], "batches"))
+    val coalesced = registry.meter(name(classOf[FlowStateWriter], "coalesced"))
+    val deferred = registry.meter(name(classOf[FlowStateWriter], "deferred"))
+    val dropped = registry.meter(name(classOf[FlowStateWriter], "dropped"))
+    val failed = registry.meter(name(classOf[FlowStateWriter], "failed"))
+
+    registry.register(name(classOf[FlowStateWriter], "queueDepth"),
+        new Gauge[Int] { override def getValue = queue.size() })
+
+    registry.register(name(classOf[FlowStateWriter], "inFlight"),
+        new Gauge[Int] {
+            override def getValue = maxInFlight - inFlight.availablePermits()
+        })
+
+    @volatile private var thread: Thread = _
+
+    /**
+     * Starts the writer thread, which flushes the queued writes every window.
+     */
+    def start(): Unit = {
+        thread = new Thread("flow-state-writer") {
+            override def run(): Unit =
+                while (thread eq this) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(windowMillis))
+                    try {
+                        flush()
+                    } catch { case e: Exception =>
+                        log.error("Failed to write flow state", e)
+                    }
+                }
+        }
+        thread.setDaemon(true)
+        thread.start()
+    }
+
+    def stop(): Unit = {
+        val t = thread
+        thread = null
+        if (t ne null)
+            LockSupport.unpark(t)
+    }
+
+    /**
+     * Queues the write of a connection tracking key to the tables of its
+     * ingress and egress ports. Called by the packet workers.
+     */
+    def touchConnTrackKey(k: ConnTrackKey, strongRef: UUID,
+                          weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            offer(ConnTrackWrite(strongRef, ingress = true, k))
+        while (weakRefs.hasNext)
+            offer(ConnTrackWrite(weakRefs.next(), ingress = false, k))
+    }
+
+    /**
+     * Queues the write of a NAT binding to the tables of its ingress and
+     * egress ports. Called by the packet workers.
+     */
+    def touchNatKey(k: NatKey, v: NatBinding, strongRef: UUID,
+                    weakRefs: JIterator[UUID]): Unit = {
+        if (strongRef ne null)
+            offer(NatWrite(strongRef, ingress = true, k)(v))
+        while (weakRefs.hasNext)
+            offer(NatWrite(weakRefs.next(), ingress = false, k)(v))
+    }
+
+    private def offer(write: Write): Unit =
+        if (!queue.offer(write))
+            dropped.mark()
+
+    /**
+     * Writes the queued and the deferred writes, as far as the bound on the
+     * in-flight batches allows. Called by the writer thread.
+     */
+    def flush(): Unit = {
+        var write = queue.poll()
+        while (write ne null) {
+            if (pending.put(write, write) ne null)
+                coalesced.mark()
+            write = queue.poll()
+        }
+        if (pending.isEmpty)
+            return
+
+        val s = session()
+        if (s eq null) {
+            log.debug("Dropping {} flow state writes: no session to Cassandra",
+                      pending.size)
+            dropped.mark(pending.size)
+            pending.clear()
+            return
+        }
+
+        val it = pending.values.iterator()
+        while (it.hasNext) {
+            val w = it.next()
+            var writes = byPort.get(w.port)
+            if (writes eq null) {
+                writes = new ArrayList[Write]()
+                byPort.put(w.port, writes)
+            }
+            writes.add(w)
+        }
+
+        val ports = byPort.entrySet.iterator()
+        var sending = true
+        while (sending && ports.hasNext) {
+            val e = ports.next()
+            val writes = e.getValue
+            var from = 0
+            while (sending && from < writes.size) {
+                val to = Math.min(from + maxBatchSize, writes.size)
+                val batch = new ArrayList[Write](writes.subList(from, to))
+                sending = send(s, e.getKey, batch)
+                if (sending)
+                    removeFromPending(batch)
+                from = to
+            }
+        }
+        byPort.clear()
+
+        if (!pending.isEmpty) {
+            deferred.mark(pending.size)
+            if (pending.size > maxPending) {
+                log.warn(s"Dropping ${pending.size} flow state writes: " +
+                         "Cassandra is not keeping up")
+                dropped.mark(pending.size)
+                pending.clear()
+            }
+        }
+    }
+
+    private def removeFromPending(writes: JList[Write]): Unit = {
+        var i = 0
+        while (i < writes.size) {
+            pending.remove(writes.get(i))
+            i += 1
+        }
+    }
+
+    /* Sends a batch unless too many are in flight */
+    private def send(s: Session, port: UUID, batch: ArrayList[Write]): Boolean = {
+        if (!inFlight.tryAcquire())
+            return false
+        val size = batch.size
+        val result = try s.write(port, batch) catch { case e: Exception =>
+            inFlight.release()
+            throw e
+        }
+        batches.mark()
+        Futures.addCallback(result, new FutureCallback[ResultSet] {
+            override def onSuccess(result: ResultSet): Unit = {
+                inFlight.release()
+                writes.mark(size)
+            }
+
+            override def onFailure(t: Throwable): Unit = {
+                inFlight.release()
+                failed.mark(size)
+                log.warn("failed to touch keys", t)
+            }
+        })
+        true
+    }
+}
@@ -28,7 +28,7 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateLayout, FlowStateTransaction}
 
 object NatState {
     private val WILDCARD_PORT = 0
@@ -160,6 +160,54 @@ object NatState {
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
 
+    /**
+     * The layout of the NAT entries in an off-heap table:
+     *
+     *     [ key type | protocol ] [ source address | destination address ]
+     *     [ source port | destination port ] [ device id (2 words) ]
+     *
+     * and the binding's [ address | port ].
+     */
+    object NatLayout extends FlowStateLayout[NatKey, NatBinding] {
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        override def keyWords = 5
+        override def valueWords = 1
+
+        private def pack(high: Int, low: Int): Long =
+            (high.toLong << 32) | (low & 0xffffffffL)
+
+        override def encodeKey(key: NatKey, words: Array[Long],
+                               offset: Int): Unit = {
+            words(offset) = (keyTypes.indexOf(key.keyType).toLong << 8) |
+                            (key.networkProtocol & 0xffL)
+            words(offset + 1) = pack(key.networkSrc.toInt, key.networkDst.toInt)
+            words(offset + 2) = pack(key.transportSrc, key.transportDst)
+            words(offset + 3) = key.deviceId.getMostSignificantBits
+            words(offset + 4) = key.deviceId.getLeastSignificantBits
+        }
+
+        override def decodeKey(words: Array[Long], offset: Int): NatKey =
+            NatKey(keyTypes((words(offset) >>> 8).toInt),
+                   IPv4Addr.fromInt((words(offset + 1) >>> 32).toInt),
+                   (words(offset + 2) >>> 32).toInt,
+                   IPv4Addr.fromInt(words(offset + 1).toInt),
+                   words(offset + 2).toInt,
+                   words(offset).toByte,
+                   new UUID(words(offset + 3), words(offset + 4)))
+
+        override def encodeValue(value: NatBinding, words: Array[Long],
+                                 offset: Int): Unit =
+            words(offset) = pack(value.networkAddress.toInt,
+                                 value.transportPort)
+
+        override def decodeValue(words: Array[Long], offset: Int): NatBinding =
+            NatBinding(IPv4Addr.fromInt((words(offset) >>> 32).toInt),
+                       words(offset).toInt)
+    }
+
     def releaseBinding(key: NatKey, binding: NatBinding, natLeaser: NatLeaser): Unit =
         if ((key.keyType eq NatState.FWD_SNAT) &&
             key.networkProtocol != ICMP.PROTOCOL_NUMBER) {
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.nio.ByteBuffer
+import java.util.{HashMap => JHashMap, HashSet => JHashSet,
+                  LinkedHashMap => JLinkedHashMap, UUID}
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.collection.JavaConversions._
+import scala.collection.immutable.HashMap
+import scala.collection.mutable
+import scala.concurrent.Promise
+import scala.concurrent.duration._
+
+import com.google.inject.Inject
+import org.slf4j.LoggerFactory
+
+import org.midonet.cluster.Client
+import org.midonet.cluster.client.BridgeDhcpBuilder
+import org.midonet.cluster.data.dhcp.{Host, Subnet}
+import org.midonet.midolman.NotYetException
+import org.midonet.midolman.simulation.DhcpValueParser
+import org.midonet.packets.{DHCPOption, IPv4Addr, IPv4Subnet, MAC}
+
+object DhcpConfigCache {
+
+    // TODO(pino): the server MAC should be in configuration.
+    val ServerMac = MAC.fromString("02:a8:9c:de:39:27")
+
+    private val log = LoggerFactory.getLogger(classOf[DhcpConfigCache])
+
+    /**
+     * The static assignment of a MAC in a bridge, with the options of its
+     * DHCP replies built ahead of time. Only the message type and, unless
+     * the subnet sets it, the interface MTU depend on the request.
+     */
+    class DhcpAssignment(val subnet: Subnet, val host: Host,
+                         val options: Array[DHCPOption]) {
+        val serverAddr: IPv4Addr = subnet.getServerAddr
+        val yiaddr: IPv4Addr = host.getIp
+        val interfaceMtu: Short = subnet.getInterfaceMTU
+        val hasTypeOption = hasOption(DHCPOption.Code.DHCP_TYPE)
+        val hasMtuOption = hasOption(DHCPOption.Code.INTERFACE_MTU)
+
+        private def hasOption(code: DHCPOption.Code) =
+            options.exists(_.getCode == code.value)
+    }
+
+    private[topology] def assignment(subnet: Subnet, host: Host)
+    : DhcpAssignment = {
+        val optionMap = mutable.HashMap[Byte, DHCPOption]()
+        val yiaddr = host.getIp
+        val yiAddrMaskLen = subnet.getSubnetAddr.getPrefixLen
+
+        optionMap.put(DHCPOption.Code.MASK.value,
+            new DHCPOption(DHCPOption.Code.MASK.value,
+                DHCPOption.Code.MASK.length,
+                IPv4Addr.intToBytes(~0 << (32 - yiAddrMaskLen))))
+
+        // Generate the broadcast address... this is nwAddr with 1's in the
+        // last 32-nwAddrLength bits.
+        val bcast = (~0 >>> yiAddrMaskLen) | yiaddr.addr
+        optionMap.put(DHCPOption.Code.BCAST_ADDR.value,
+            new DHCPOption(DHCPOption.Code.BCAST_ADDR.value,
+                DHCPOption.Code.BCAST_ADDR.length,
+                IPv4Addr.intToBytes(bcast)))
+        optionMap.put(DHCPOption.Code.IP_LEASE_TIME.value,
+            new DHCPOption(DHCPOption.Code.IP_LEASE_TIME.value,
+                DHCPOption.Code.IP_LEASE_TIME.length,
+                IPv4Addr.intToBytes((1 day).toSeconds.toInt)))
+        if (subnet.getDefaultGateway != null) {
+            optionMap.put(DHCPOption.Code.ROUTER.value,
+                new DHCPOption(DHCPOption.Code.ROUTER.value,
+                    DHCPOption.Code.ROUTER.length,
+                    subnet.getDefaultGateway.toBytes))
+        }
+        // in MidoNet the DHCP server is the same as the router
+        optionMap.put(DHCPOption.Code.SERVER_ID.value,
+            new DHCPOption(
+                DHCPOption.Code.SERVER_ID.value,
+                DHCPOption.Code.SERVER_ID.length,
+                subnet.getServerAddr.toBytes))
+
+        val dnsServerAddrs = Option(subnet.getDnsServerAddrs).map(_.toList)
+                                                             .getOrElse(Nil)
+        if (dnsServerAddrs.nonEmpty) {
+            val buffer = ByteBuffer.allocate(4 * dnsServerAddrs.length)
+            dnsServerAddrs.foreach { addr => buffer put addr.toBytes }
+            optionMap.put(DHCPOption.Code.DNS.value,
+                new DHCPOption(DHCPOption.Code.DNS.value,
+                    buffer.capacity.toByte, buffer.array))
+        }
+        // If there are classless static routes, add the option.
+        val opt121Routes = subnet.getOpt121Routes
+        if (null != opt121Routes && opt121Routes.length > 0) {
+            val bytes = mutable.ListBuffer[Byte]()
+            opt121Routes foreach { rt =>
+                // First append the destination subnet's maskLength
+                val maskLen = rt.getRtDstSubnet.getPrefixLen.toByte
+                bytes.append(maskLen)
+                // Now append the significant octets of the subnet.
+                val dstBytes = rt.getRtDstSubnet.getAddress.toBytes
+                if (maskLen > 0) bytes.append(dstBytes(0))
+                if (maskLen > 8) bytes.append(dstBytes(1))
+                if (maskLen > 16) bytes.append(dstBytes(2))
+                if (maskLen > 24) bytes.append(dstBytes(3))
+                // Now append the 4 octets of the gateway.
+                bytes.appendAll(rt.getGateway.toBytes.toList)
+            }
+            optionMap.put(DHCPOption.Code.CLASSLESS_ROUTES.value,
+                new DHCPOption(
+                    DHCPOption.Code.CLASSLESS_ROUTES.value(),
+                    bytes.length.toByte,
+                    bytes.toArray))
+        }
+
+        // Add extra DHCP options. These overwrite the ones set above.
+        setExtraDhcpOptions(host, optionMap)
+
+        new DhcpAssignment(subnet, host, optionMap.values.toArray)
+    }
+
+    private def setExtraDhcpOptions(host: Host,
+                                    optMap: mutable.Map[Byte, DHCPOption])
+    : Unit = {
+        import DhcpValueParser._
+        if (host.getExtraDhcpOpts eq null)
+            return
+        for (opt <- host.getExtraDhcpOpts) {
+            val dhcpOptOption: Option[DHCPOption] = for {
+                code <- parseDhcpOptionCode(opt.optName)
+                option <- CodeToOption.get(code)
+                value <- parseDhcpOptionValue(code, opt.optValue)
+                if (value.length != 0) &&
+                    (value.length % option.length == 0)
+            } yield new DHCPOption(code, value.length.toByte, value)
+            if (dhcpOptOption.isDefined) {
+                log.debug(s"Add extra DHCP Option ${opt.optName} " +
+                          s"with value ${opt.optValue} for ${host.getMAC}")
+                val dhcpOption = dhcpOptOption.get
+                optMap.put(dhcpOption.getCode, dhcpOption)
+            } else {
+                log.info(s"Invalid DHCP Option: ${opt.optName} with value " +
+                         s"${opt.optValue} for ${host.getMAC}. This invalid " +
+                         "option will be treated as UNKNOWN")
+            }
+        }
+    }
+
+    /**
+     * The DHCP configuration of a bridge, which the cluster client keeps up
+     * to date. The subnets and hosts are only accessed by the cluster
+     * reactor thread, which resolves the assignments of the MACs that a
+     * change affects and then publishes them, in a persistent map, to the
+     * simulation threads.
+     */
+    private class BridgeDhcp(bridgeId: UUID) extends BridgeDhcpBuilder {
+        private val subnets = new JLinkedHashMap[IPv4Subnet, Subnet]()
+        private val hosts = new JHashMap[IPv4Subnet, JHashMap[MAC, Host]]()
+        private val changed = new JHashSet[MAC]()
+        private var byMac = HashMap.empty[MAC, DhcpAssignment]
+
+        @volatile var assignments: HashMap[MAC, DhcpAssignment] = null
+        val ready = Promise[HashMap[MAC, DhcpAssignment]]()
+
+        private def hostsOf(subnetAddr: IPv4Subnet) = {
+            var subnetHosts = hosts.get(subnetAddr)
+            if (subnetHosts eq null) {
+                subnetHosts = new JHashMap[MAC, Host]()
+                hosts.put(subnetAddr, subnetHosts)
+            }
+            subnetHosts
+        }
+
+        override def setSubnet(subnet: Subnet): Unit = {
+            if (!subnet.isReplyReady)
+                log.warn(s"Can not create DHCP replies for subnet " +
+                         s"${subnet.getId} of bridge $bridgeId because it " +
+                         "does not have all necessary information.")
+            subnets.put(subnet.getSubnetAddr, subnet)
+            changed.addAll(hostsOf(subnet.getSubnetAddr).keySet)
+        }
+
+        override def removeSubnet(subnetAddr: IPv4Subnet): Unit = {
+            subnets.remove(subnetAddr)
+            val subnetHosts = hosts.remove(subnetAddr)
+            if (subnetHosts ne null)
+                changed.addAll(subnetHosts.keySet)
+        }
+
+        override def setHost(subnetAddr: IPv4Subnet, host: Host): Unit = {
+            hostsOf(subnetAddr).put(host.getMAC, host)
+            changed.add(host.getMAC)
+        }
+
+        override def removeHost(subnetAddr: IPv4Subnet, mac: MAC): Unit = {
+            hostsOf(subnetAddr).remove(mac)
+            changed.add(mac)
+        }
+
+        override def build(): Unit = {
+            for (mac <- changed) resolve(mac) match {
+                case Some(a) => byMac += mac -> a
+                case None => byMac -= mac
+            }
+            changed.clear()
+            assignments = byMac
+            ready.trySuccess(byMac)
+        }
+
+        /* The first enabled subnet that assigns an address to the MAC */
+        private def resolve(mac: MAC): Option[DhcpAssignment] = {
+            val it = subnets.values.iterator
+            while (it.hasNext) {
+                val subnet = it.next()
+                // A null enabled field, from data created in v1.3 or
+                // earlier, is treated as true.
+                if ((subnet.isEnabled == null || subnet.isEnabled) &&
+                    subnet.isReplyReady) {
+                    val host = hostsOf(subnet.getSubnetAddr).get(mac)
+                    if ((host ne null) && (host.getIp ne null))
+                        return Some(assignment(subnet, host))
+                }
+            }
+            None
+        }
+    }
+}
+
+/**
+ * Serves the static DHCP assignments of the bridges from memory. The first
+ * request on a bridge subscribes to its DHCP configuration, and from then on
+ * the cluster client pushes each change of a subnet or host to the cache,
+ * which builds the options of the DHCP replies to the affected MACs ahead of
+ * the requests. Replying thus never blocks on storage.
+ */
+class DhcpConfigCache @Inject()(client: Client) {
+    import DhcpConfigCache._
+
+    private val bridges = new ConcurrentHashMap[UUID, BridgeDhcp]()
+
+    /**
+     * Returns the assignment of a MAC in a bridge, or throws NotYetException
+     * while the bridge's DHCP configuration is loaded for the first time.
+     */
+    @throws[NotYetException]
+    def assignment(bridgeId: UUID, mac: MAC): Option[DhcpAssignment] = {
+        var bridge = bridges.get(bridgeId)
+        if (bridge eq null) {
+            val newBridge = new BridgeDhcp(bridgeId)
+            bridge = bridges.putIfAbsent(bridgeId, newBridge)
+            if (bridge eq null) {
+                bridge = newBridge
+                client.getBridgeDhcp(bridgeId, newBridge)
+            }
+        }
+        val assignments = bridge.assignments
+        if (assignments eq null)
+            throw NotYetException(bridge.ready.future,
+                s"Waiting for the DHCP configuration of bridge $bridgeId")
+        assignments.get(mac)
+    }
+}
@@ -108,7 +108,8 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
     def topologyReady() {
         log.debug("Sending a Router to the VTA")
 
-        val router = new Router(id, cfg, rTable, new TagManagerImpl, arpTable)
+        val router = new Router(id, cfg, rTable, new TagManagerImpl, arpTable,
+                                config.getEcmpFlowHash)
 
         // Not using context.actorFor("..") because in tests it will
         // bypass the probes and make it harder to fish for these messages
@@ -28,7 +28,7 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     private var cfg: RouterConfig = new RouterConfig
     private var arpCache: ArpCache = null
-    private val routes = new scala.collection.mutable.HashSet[Route]()
+    private val table = new IPv4RoutingTable()
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
 
@@ -40,12 +40,12 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def addRoute(rt: Route) {
-        routes.add(rt)
+        table.addRoute(rt)
         routesToAdd.add(rt)
     }
 
     def removeRoute(rt: Route) {
-        routes.remove(rt)
+        table.deleteRoute(rt)
         routesToRemove.add(rt)
     }
 
@@ -69,11 +69,9 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def build() {
-        // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
-            table.addRoute(rt)
+        // we always pass a snapshot of the RoutingTable since this is
+        // accessed by the RCU Router, it shares the unchanged parts of the
+        // table with the previous one
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
             val deleted = routesToRemove.clone()
@@ -81,7 +79,8 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
         }
         routesToAdd.clear()
         routesToRemove.clear()
-        routerManager ! TriggerUpdate(cfg, arpCache, new RoutingTableWrapper(table))
+        routerManager ! TriggerUpdate(cfg, arpCache,
+                                     new RoutingTableWrapper(table.snapshot()))
     }
 
     def start() = null
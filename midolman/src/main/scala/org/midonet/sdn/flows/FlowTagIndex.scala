@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList, Arrays, HashMap => JHashMap}
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowTagIndex {
+    final val NoSlot = -1
+
+    private final val InitialTags = 64
+    private final val InitialPostingSize = 4
+    /* Postings larger than this are freed with their tag rather than kept
+     * for the next tag that takes their ID. */
+    private final val MaxRecycledPostingSize = 256
+}
+
+/**
+ * The inverted index from FlowTags to the ManagedFlows that carry them, used
+ * by the FlowController to invalidate flows by tag.
+ *
+ * Tags are interned to dense int IDs, which are recycled once no flow carries
+ * them, and flows are given dense int slots. The flows that carry a tag are
+ * listed in the tag's posting, an int array of flow slots. For each flow, a
+ * single int array holds the ID of each of its tags next to the flow's
+ * position in that tag's posting, so that a flow leaves a posting by moving
+ * the posting's last slot into its place, without searching the posting.
+ * Once the arrays have grown, adding and removing flows allocates nothing.
+ *
+ * When invalidating a tag, its posting is dropped as a whole and the flows
+ * only leave the postings of their other tags.
+ *
+ * Not thread-safe.
+ */
+final class FlowTagIndex(initialFlows: Int) {
+    import FlowTagIndex._
+
+    private val tagIds = new JHashMap[FlowTag, Integer]()
+    private var tags = new Array[FlowTag](InitialTags)
+    private var postings = new Array[Array[Int]](InitialTags)
+    private var postingSizes = new Array[Int](InitialTags)
+    private var freeTagIds = new Array[Int](InitialTags)
+    private var numFreeTagIds = 0
+    private var nextTagId = 0
+
+    private var flows = new Array[ManagedFlow](math.max(initialFlows, 16))
+    /* The (tag ID, posting position) pairs of each flow slot */
+    private var flowEntries = new Array[Array[Int]](flows.length)
+    private var flowTagCounts = new Array[Int](flows.length)
+    private var freeSlots = new Array[Int](flows.length)
+    private var numFreeSlots = 0
+    private var nextSlot = 0
+    private var numFlows = 0
+
+    /** The number of flows in the index. */
+    def size: Int = numFlows
+
+    /** The number of tags carried by the flows in the index. */
+    def numTags: Int = tagIds.size()
+
+    def contains(flow: ManagedFlow): Boolean = {
+        val slot = flow.tagIndexSlot
+        slot != NoSlot && (flows(slot) eq flow)
+    }
+
+    /** The number of flows that carry the tag. */
+    def count(tag: FlowTag): Int = {
+        val id = tagIds.get(tag)
+        if (id eq null) 0 else postingSizes(id)
+    }
+
+    /** The flows that carry the tag. It allocates, so it is meant for
+      * tests and diagnostics. */
+    def flowsFor(tag: FlowTag): IndexedSeq[ManagedFlow] = {
+        val id = tagIds.get(tag)
+        if (id eq null)
+            IndexedSeq.empty
+        else
+            postings(id).view(0, postingSizes(id)).map(flows(_)).toIndexedSeq
+    }
+
+    /**
+     * Indexes the flow by its tags. Returns false if the flow was already
+     * in the index.
+     */
+    def add(flow: ManagedFlow): Boolean = {
+        if (flow.tagIndexSlot != NoSlot)
+            return false
+
+        val slot = takeSlot()
+        val flowTags = flow.tags
+        var entries = flowEntries(slot)
+        if ((entries eq null) || entries.length < flowTags.size() * 2) {
+            entries = new Array[Int](flowTags.size() * 2)
+            flowEntries(slot) = entries
+        }
+
+        var count = 0
+        var i = 0
+        while (i < flowTags.size()) {
+            val tagId = intern(flowTags.get(i))
+            if (!hasTag(entries, count, tagId)) {
+                entries(count * 2) = tagId
+                entries(count * 2 + 1) = append(tagId, slot)
+                count += 1
+            }
+            i += 1
+        }
+
+        flows(slot) = flow
+        flowTagCounts(slot) = count
+        flow.tagIndexSlot = slot
+        numFlows += 1
+        true
+    }
+
+    /**
+     * Removes the flow from the index. Returns false if the flow wasn't in
+     * the index.
+     */
+    def remove(flow: ManagedFlow): Boolean = {
+        if (!contains(flow))
+            return false
+        removeSlot(flow.tagIndexSlot, NoSlot)
+        true
+    }
+
+    /**
+     * Removes all the flows that carry the tag from the index and adds them
+     * to the specified list. Returns the number of flows removed.
+     */
+    def invalidate(tag: FlowTag, removed: ArrayList[ManagedFlow]): Int = {
+        val id = tagIds.get(tag)
+        if (id eq null)
+            return 0
+
+        val tagId = id.intValue
+        val posting = postings(tagId)
+        val count = postingSizes(tagId)
+        var i = 0
+        while (i < count) {
+            val slot = posting(i)
+            removed.add(flows(slot))
+            removeSlot(slot, tagId)
+            i += 1
+        }
+        postingSizes(tagId) = 0
+        releaseTag(tagId)
+        count
+    }
+
+    /** Removes all the flows and tags. */
+    def clear(): Unit = {
+        var slot = 0
+        while (slot < nextSlot) {
+            if (flows(slot) ne null) {
+                flows(slot).tagIndexSlot = NoSlot
+                flows(slot) = null
+            }
+            slot += 1
+        }
+        tagIds.clear()
+        Arrays.fill(tags.asInstanceOf[Array[AnyRef]], null)
+        Arrays.fill(postingSizes, 0)
+        numFreeTagIds = 0
+        nextTagId = 0
+        numFreeSlots = 0
+        nextSlot = 0
+        numFlows = 0
+    }
+
+    private def hasTag(entries: Array[Int], count: Int, tagId: Int): Boolean = {
+        var i = 0
+        while (i < count) {
+            if (entries(i * 2) == tagId)
+                return true
+            i += 1
+        }
+        false
+    }
+
+    /* Removes the slot from the postings of its tags, except for the posting
+     * of the specified tag, which is being dropped. */
+    private def removeSlot(slot: Int, droppedTagId: Int): Unit = {
+        val entries = flowEntries(slot)
+        var i = 0
+        while (i < flowTagCounts(slot)) {
+            val tagId = entries(i * 2)
+            if (tagId != droppedTagId)
+                removeFromPosting(tagId, entries(i * 2 + 1), slot)
+            i += 1
+        }
+
+        flows(slot).tagIndexSlot = NoSlot
+        flows(slot) = null
+        flowTagCounts(slot) = 0
+        freeSlots(numFreeSlots) = slot
+        numFreeSlots += 1
+        numFlows -= 1
+    }
+
+    private def removeFromPosting(tagId: Int, position: Int, slot: Int): Unit = {
+        val posting = postings(tagId)
+        val last = postingSizes(tagId) - 1
+        val movedSlot = posting(last)
+        posting(position) = movedSlot
+        postingSizes(tagId) = last
+        if (movedSlot != slot) {
+            // Update the position of the moved flow in this posting
+            val entries = flowEntries(movedSlot)
+            var i = 0
+            while (entries(i * 2) != tagId)
+                i += 1
+            entries(i * 2 + 1) = position
+        }
+        if (last == 0)
+            releaseTag(tagId)
+    }
+
+    private def append(tagId: Int, slot: Int): Int = {
+        var posting = postings(tagId)
+        val position = postingSizes(tagId)
+        if (posting eq null) {
+            posting = new Array[Int](InitialPostingSize)
+            postings(tagId) = posting
+        } else if (position == posting.length) {
+            posting = Arrays.copyOf(posting, posting.length * 2)
+            postings(tagId) = posting
+        }
+        posting(position) = slot
+        postingSizes(tagId) = position + 1
+        position
+    }
+
+    private def intern(tag: FlowTag): Int = {
+        val id = tagIds.get(tag)
+        if (id ne null)
+            return id.intValue
+
+        val tagId = if (numFreeTagIds > 0) {
+            numFreeTagIds -= 1
+            freeTagIds(numFreeTagIds)
+        } else {
+            if (nextTagId == tags.length)
+                growTags()
+            nextTagId += 1
+            nextTagId - 1
+        }
+        tags(tagId) = tag
+        tagIds.put(tag, tagId)
+        tagId
+    }
+
+    private def releaseTag(tagId: Int): Unit = {
+        tagIds.remove(tags(tagId))
+        tags(tagId) = null
+        val posting = postings(tagId)
+        if ((posting ne null) && posting.length > MaxRecycledPostingSize)
+            postings(tagId) = null
+        freeTagIds(numFreeTagIds) = tagId
+        numFreeTagIds += 1
+    }
+
+    private def takeSlot(): Int =
+        if (numFreeSlots > 0) {
+            numFreeSlots -= 1
+            freeSlots(numFreeSlots)
+        } else {
+            if (nextSlot == flows.length)
+                growFlows()
+            nextSlot += 1
+            nextSlot - 1
+        }
+
+    private def growTags(): Unit = {
+        val capacity = tags.length * 2
+        tags = Arrays.copyOf(tags.asInstanceOf[Array[AnyRef]], capacity)
+                     .asInstanceOf[Array[FlowTag]]
+        postings = Arrays.copyOf(postings.asInstanceOf[Array[AnyRef]], capacity)
+                         .asInstanceOf[Array[Array[Int]]]
+        postingSizes = Arrays.copyOf(postingSizes, capacity)
+        freeTagIds = Arrays.copyOf(freeTagIds, capacity)
+    }
+
+    private def growFlows(): Unit = {
+        val capacity = flows.length * 2
+        flows = Arrays.copyOf(flows.asInstanceOf[Array[AnyRef]], capacity)
+                      .asInstanceOf[Array[ManagedFlow]]
+        flowEntries = Arrays.copyOf(flowEntries.asInstanceOf[Array[AnyRef]], capacity)
+                            .asInstanceOf[Array[Array[Int]]]
+        flowTagCounts = Arrays.copyOf(flowTagCounts, capacity)
+        freeSlots = Arrays.copyOf(freeSlots, capacity)
+    }
+}
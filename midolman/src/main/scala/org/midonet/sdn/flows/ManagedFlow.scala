@@ -22,7 +22,7 @@ import org.midonet.midolman.CallbackExecutor
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.odp.FlowMatch
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.util.collection.{ObjectPool, PooledObject}
+import org.midonet.util.collection.{ObjectPool, PooledObject, TimingWheel}
 import org.midonet.util.functors.Callback0
 
 /**
@@ -30,12 +30,24 @@ import org.midonet.util.functors.Callback0
  * Once the instance is no longer used, the pool entry can be reused.
  *
  * Users should refrain from changing attributes after resetting.
+ *
+ * A flow is scheduled in one of the FlowManager's time-out wheels through the
+ * links it inherits from TimingWheel.Entry, and kept in the FlowManager's
+ * ManagedFlowTable through tablePrev and tableNext. Its slot in the
+ * FlowController's FlowTagIndex is held in tagIndexSlot.
  */
 final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
-        extends PooledObject {
+        extends PooledObject with TimingWheel.Entry {
 
     var creationTimeMillis: Long = 0L
     var lastUsedTimeMillis: Long = 0L
+    /* The datapath flow dump this flow is waiting for, see FlowManager */
+    var dumpGeneration: Long = 0L
+    /* The insertion order links of the ManagedFlowTable */
+    private[flows] var tablePrev: ManagedFlow = null
+    private[flows] var tableNext: ManagedFlow = null
+    /* The slot of the flow in a FlowTagIndex */
+    private[flows] var tagIndexSlot: Int = FlowTagIndex.NoSlot
     val callbacks = new ArrayList[Callback0]()
     val tags = new ArrayList[FlowTag]
 
@@ -55,6 +67,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     }
 
     def clear(): Unit = {
+        this.dumpGeneration = 0L
         this.flowMatch.clear()
         this.callbacks.clear()
         this.tags.clear()
@@ -62,6 +75,7 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
 
     def getLastUsedTimeMillis = lastUsedTimeMillis
     def getCreationTimeMillis = creationTimeMillis
+    def getDumpGeneration = dumpGeneration
 
     def setLastUsedTimeMillis(lastUsedTimeMillis: Long): this.type = {
         this.lastUsedTimeMillis = lastUsedTimeMillis
@@ -73,6 +87,11 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
         this
     }
 
+    def setDumpGeneration(dumpGeneration: Long): this.type = {
+        this.dumpGeneration = dumpGeneration
+        this
+    }
+
     override def hashCode(): Int =
        flowMatch.hashCode()
 
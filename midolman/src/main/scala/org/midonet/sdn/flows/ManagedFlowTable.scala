@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import org.midonet.odp.FlowMatch
+
+object ManagedFlowTable {
+    private final val MaxLoadFactor = 0.75
+
+    private def capacityFor(flows: Int): Int = {
+        val minCapacity = math.min(1L << 30,
+                                   math.max(16L, (flows / MaxLoadFactor).toLong + 1))
+        Integer.highestOneBit(minCapacity.toInt - 1) << 1
+    }
+
+    /* FlowMatch hash codes are built by multiplying by 31, so their low bits
+     * are poorly distributed. */
+    @inline private def spread(hash: Int): Int = {
+        val h = hash * 0x9E3779B9
+        h ^ (h >>> 16)
+    }
+}
+
+/**
+ * The table of ManagedFlows indexed by their FlowMatch, used by the
+ * FlowManager. It is an open addressing table with linear probing that keeps
+ * the hash of each FlowMatch next to the reference to its ManagedFlow in two
+ * parallel arrays, so that lookups compare hashes without dereferencing
+ * the flows and adding or removing a flow allocates nothing.
+ *
+ * The flows are also kept in a doubly linked list, in insertion order,
+ * through links held by the ManagedFlows themselves, so that the oldest flows
+ * can be found without iterating over the table.
+ *
+ * Not thread-safe.
+ */
+final class ManagedFlowTable(initialFlows: Int) {
+    import ManagedFlowTable._
+
+    private var hashes = new Array[Int](capacityFor(initialFlows))
+    private var flows = new Array[ManagedFlow](hashes.length)
+    private var mask = hashes.length - 1
+    private var threshold = (hashes.length * MaxLoadFactor).toInt
+    private var count = 0
+
+    private var oldestFlow: ManagedFlow = null
+    private var newestFlow: ManagedFlow = null
+
+    def size = count
+
+    def isEmpty = count == 0
+
+    /** The flow that has been in the table for the longest time, or null. */
+    def oldest: ManagedFlow = oldestFlow
+
+    /** The flow added to the table after the specified one, or null. */
+    def newer(flow: ManagedFlow): ManagedFlow = flow.tableNext
+
+    def get(flowMatch: FlowMatch): ManagedFlow = {
+        val i = indexOf(flowMatch)
+        if (i >= 0) flows(i) else null
+    }
+
+    def contains(flowMatch: FlowMatch): Boolean = indexOf(flowMatch) >= 0
+
+    /**
+     * Adds a flow, unless the table already contains a flow for the same
+     * FlowMatch. Returns whether the flow was added.
+     */
+    def putIfAbsent(flow: ManagedFlow): Boolean = {
+        val hash = flow.flowMatch.hashCode()
+        var i = spread(hash) & mask
+        var other = flows(i)
+        while (other ne null) {
+            if (hashes(i) == hash && flow.flowMatch.equals(other.flowMatch))
+                return false
+            i = (i + 1) & mask
+            other = flows(i)
+        }
+
+        hashes(i) = hash
+        flows(i) = flow
+        count += 1
+        linkNewest(flow)
+        if (count > threshold)
+            resize(hashes.length << 1)
+        true
+    }
+
+    /**
+     * Removes the flow for the specified FlowMatch and returns it, or null
+     * if there was none.
+     */
+    def remove(flowMatch: FlowMatch): ManagedFlow = {
+        val i = indexOf(flowMatch)
+        if (i < 0)
+            return null
+        val flow = flows(i)
+        removeAt(i)
+        flow
+    }
+
+    /**
+     * Removes the specified flow, only if it is the one the table holds for
+     * its FlowMatch. Returns whether it was removed.
+     */
+    def remove(flow: ManagedFlow): Boolean = {
+        val i = indexOf(flow.flowMatch)
+        if (i < 0 || (flows(i) ne flow))
+            return false
+        removeAt(i)
+        true
+    }
+
+    private def indexOf(flowMatch: FlowMatch): Int = {
+        val hash = flowMatch.hashCode()
+        var i = spread(hash) & mask
+        var flow = flows(i)
+        while (flow ne null) {
+            if (hashes(i) == hash && flowMatch.equals(flow.flowMatch))
+                return i
+            i = (i + 1) & mask
+            flow = flows(i)
+        }
+        -1
+    }
+
+    /* Backward shift deletion: the entries that follow the removed one in
+     * its probe sequence are moved back, so that there are no tombstones. */
+    private def removeAt(slot: Int): Unit = {
+        unlink(flows(slot))
+        count -= 1
+
+        var hole = slot
+        var i = (slot + 1) & mask
+        while (flows(i) ne null) {
+            val home = spread(hashes(i)) & mask
+            // Move the entry if the hole lies between its home slot and it
+            val movable = if (hole <= i) home <= hole || home > i
+                          else home <= hole && home > i
+            if (movable) {
+                hashes(hole) = hashes(i)
+                flows(hole) = flows(i)
+                hole = i
+            }
+            i = (i + 1) & mask
+        }
+        hashes(hole) = 0
+        flows(hole) = null
+    }
+
+    private def resize(capacity: Int): Unit = {
+        val oldHashes = hashes
+        val oldFlows = flows
+        hashes = new Array[Int](capacity)
+        flows = new Array[ManagedFlow](capacity)
+        mask = capacity - 1
+        threshold = (capacity * MaxLoadFactor).toInt
+        var j = 0
+        while (j < oldFlows.length) {
+            val flow = oldFlows(j)
+            if (flow ne null) {
+                var i = spread(oldHashes(j)) & mask
+                while (flows(i) ne null)
+                    i = (i + 1) & mask
+                hashes(i) = oldHashes(j)
+                flows(i) = flow
+            }
+            j += 1
+        }
+    }
+
+    private def linkNewest(flow: ManagedFlow): Unit = {
+        flow.tablePrev = newestFlow
+        flow.tableNext = null
+        if (newestFlow ne null)
+            newestFlow.tableNext = flow
+        else
+            oldestFlow = flow
+        newestFlow = flow
+    }
+
+    private def unlink(flow: ManagedFlow): Unit = {
+        val prev = flow.tablePrev
+        val next = flow.tableNext
+        if (prev ne null)
+            prev.tableNext = next
+        else
+            oldestFlow = next
+        if (next ne null)
+            next.tablePrev = prev
+        else
+            newestFlow = prev
+        flow.tablePrev = null
+        flow.tableNext = null
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.{Callable, ExecutorService, Executors, TimeUnit}
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import akka.actor._
+import akka.pattern.ask
+import akka.util.Timeout
+import com.codahale.metrics.MetricRegistry
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.config.ConfigProvider
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.flows.FlowEjector
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.sdn.flows.FlowTagger
+
+/**
+ * Measures the time for a number of packet workers to set up a batch of
+ * flows through the FlowController, both when all the workers add their
+ * flows to a single FlowController and when each worker owns a shard. The
+ * flow setup rate is the number of flows divided by the time.
+ *
+ * Each iteration starts new FlowControllers, such that every flow is new to
+ * the flow tables.
+ */
+@BenchmarkMode(Array(Mode.SingleShotTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowSetupBenchmark {
+
+    @Param(Array("1", "2", "4", "8"))
+    var workers: Int = _
+
+    @Param(Array("false", "true"))
+    var sharded: Boolean = _
+
+    @Param(Array("200000"))
+    var flows: Int = _
+
+    implicit val timeout = Timeout(10 seconds)
+
+    val devices = Array.fill(16)(UUID.randomUUID)
+
+    var system: ActorSystem = _
+    var executor: ExecutorService = _
+    var shards: Array[ActorRef] = _
+    var contexts: Array[Array[PacketContext]] = _
+
+    class FlowControllers(config: MidolmanConfig) extends Actor {
+        val ejector = new FlowEjector(1024)
+        val metricsRegistry = new MetricRegistry
+
+        for (shard <- 0 until FlowController.numShards(config)) {
+            context.actorOf(Props {
+                val flowController = new FlowController
+                flowController.midolmanConfig = config
+                flowController.ejector = ejector
+                flowController.metricsRegistry = metricsRegistry
+                flowController.shard = shard
+                flowController
+            }, FlowController.shardName(shard))
+        }
+
+        override def receive = Actor.emptyBehavior
+    }
+
+    private def resolve(name: String): ActorRef = {
+        val selection = system.actorSelection(
+            Referenceable.getReferenceablePath(SupervisorActor.Name, name))
+        var ref: Option[ActorRef] = None
+        while (ref.isEmpty) {
+            ref = Await.result(selection ? Identify(name), timeout.duration)
+                       .asInstanceOf[ActorIdentity].ref
+        }
+        ref.get
+    }
+
+    private def newContext(worker: Int, i: Int): PacketContext = {
+        val flowMatch = new FlowMatch()
+        flowMatch.addKey(FlowKeys.inPort(worker))
+                 .addKey(FlowKeys.tunnel(i, worker, ~i, 0))
+        val context = new PacketContext(i, null, flowMatch)
+        context.callbackExecutor = CallbackExecutor.Immediate
+        context.addFlowTag(FlowTagger.tagForDevice(devices(i % devices.length)))
+        context.addFlowTag(FlowTagger.tagForTunnelRoute(i, worker))
+        context
+    }
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        executor = Executors.newFixedThreadPool(workers)
+        contexts = Array.tabulate(workers, flows / workers)(newContext)
+    }
+
+    @JmhSetup(Level.Iteration)
+    def startFlowControllers(): Unit = {
+        val config = new HierarchicalConfiguration
+        config.setProperty("midolman.simulation_threads",
+                           if (sharded) workers else 1)
+        config.setProperty("datapath.max_flow_count", flows * 2)
+        val midolmanConfig = ConfigProvider.providerForIniConfig(config)
+                                           .getConfig(classOf[MidolmanConfig])
+
+        system = ActorSystem.create("FlowSetupBenchmark")
+        system.actorOf(Props(new FlowControllers(midolmanConfig)),
+                       SupervisorActor.Name)
+        shards = Array.tabulate(FlowController.numShards(midolmanConfig))(
+            shard => resolve(FlowController.shardName(shard)))
+    }
+
+    @TearDown(Level.Iteration)
+    def stopFlowControllers(): Unit = {
+        system.shutdown()
+        system.awaitTermination()
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = {
+        executor.shutdown()
+    }
+
+    @Benchmark
+    def setupFlows(): Unit = {
+        val futures = for (worker <- 0 until workers) yield {
+            executor.submit(new Callable[Unit] {
+                override def call(): Unit = {
+                    val shard = shards(worker % shards.length)
+                    val workerContexts = contexts(worker)
+                    var i = 0
+                    while (i < workerContexts.length) {
+                        shard ! workerContexts(i)
+                        i += 1
+                    }
+                    // The reply follows this worker's flows in the mailbox
+                    Await.result(shard ? Identify(worker), timeout.duration)
+                }
+            })
+        }
+        futures.foreach(_.get)
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.LinkedList
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.simulation.{Bridge, PacketContext, PacketEmitter}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.util.collection.ArrayObjectPool
+
+/**
+ * Measures the garbage that the simulation of a packet through a bridge
+ * makes in steady state, when each packet is simulated with a new
+ * PacketContext and when the PacketContexts are recycled, as packet workers
+ * do. Run with -prof gc: the allocation rate per operation of the pooled
+ * benchmark is the regression figure to watch.
+ *
+ * The pooled simulation still allocates, for each packet:
+ *  - the device results, such as the ToPortAction of the bridge, and the
+ *    Options of its MAC table and port lookups;
+ *  - the clone of the match that the Coordinator keeps for forks;
+ *  - the output and set key FlowActions of the translation, which the flow
+ *    keeps after the context is recycled.
+ * These belong to the devices and the translation rather than to the
+ * context, so they are not pooled here.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class PacketContextBenchmark extends MidolmanBenchmark {
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    val leftMac = MAC.random
+    val rightMac = MAC.random
+
+    var leftPort: BridgePort = _
+    var rightPort: BridgePort = _
+
+    var frame: Ethernet = _
+    var packet: Packet = _
+
+    val pool = new ArrayObjectPool[PacketContext](
+        1, new PacketContext(0, null, null, null, _))
+    var emitter: PacketEmitter = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        val clusterBridge = newBridge("bridge")
+        leftPort = newBridgePort(clusterBridge)
+        rightPort = newBridgePort(clusterBridge)
+        materializePort(rightPort, hostId, "port0")
+        fetchTopology(clusterBridge, leftPort, rightPort)
+
+        val bridge: Bridge = fetchDevice(clusterBridge)
+        val macTable = bridge.vlanMacTableMap(0.toShort)
+        macTable.add(leftMac, leftPort.getId)
+        macTable.add(rightMac, rightPort.getId)
+
+        frame = { eth addr leftMac -> rightMac } <<
+                { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                { udp ports 5003 ---> 53 } << payload("payload")
+        packet = new Packet(frame,
+                            new FlowMatch(FlowKeys.fromEthernetPacket(frame)))
+        emitter = new PacketEmitter(new LinkedList, actorSystem.deadLetters)
+    }
+
+    @Benchmark
+    def newContext(bh: Blackhole): Unit =
+        bh.consume(sendPacket(leftPort -> frame))
+
+    @Benchmark
+    def pooledContext(bh: Blackhole): Unit = {
+        val context = pool.take
+        context.reset(-1, packet, packet.getMatch, null)
+        context.ref()
+        context.packetEmitter = emitter
+        context.prepareForSimulation(0)
+        context.inputPort = leftPort.getId
+        context.inPortId = leftPort.getId
+        bh.consume(simulate(context))
+        context.unref()
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+/**
+ * Measures the lookups and the updates per second of the legacy
+ * RoutingTable and of the MultibitRoutesTrie, filled with a table whose
+ * prefix lengths are distributed like those of an Internet routing table:
+ * mostly /24s, then /16s to /23s, with a few shorter and longer prefixes.
+ * An update adds a route and deletes it.
+ *
+ * The table updates go through an IPv4RoutingTable and take a snapshot after
+ * each change, as the RouterBuilderImpl does when it builds a Router. The
+ * table rebuild measures what building a Router cost when it copied every
+ * route into a new table.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class RoutingTableBenchmark {
+
+    @Param(Array("1000", "100000"))
+    var routes: Int = _
+
+    val random = new Random(42)
+
+    var legacy: RoutingTable = _
+    var trie: MultibitRoutesTrie = _
+    var table: IPv4RoutingTable = _
+    var tableRoutes: Array[Route] = _
+    var addresses: Array[Int] = _
+    var updates: Array[Route] = _
+    var next = 0
+
+    private def prefixLength(): Int = random.nextInt(100) match {
+        case i if i < 55 => 24
+        case i if i < 90 => 16 + random.nextInt(8)
+        case i if i < 95 => 8 + random.nextInt(8)
+        case _ => 25 + random.nextInt(8)
+    }
+
+    private def newRoute(): Route =
+        new Route(0, 0, random.nextInt(), prefixLength(), NextHop.PORT,
+                  UUID.randomUUID(), 0, 100, null, null)
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        legacy = new RoutingTable()
+        trie = MultibitRoutesTrie.EMPTY
+        table = new IPv4RoutingTable()
+        tableRoutes = Array.fill(routes)(newRoute())
+        for (rt <- tableRoutes) {
+            legacy.addRoute(rt)
+            trie = trie.withRoute(rt)
+            table.addRoute(rt)
+        }
+        addresses = Array.fill(4096)(random.nextInt())
+        updates = Array.fill(4096)(newRoute())
+    }
+
+    private def nextIndex(): Int = {
+        next = (next + 1) & 4095
+        next
+    }
+
+    @Benchmark
+    def legacyLookup(): java.lang.Iterable[Route] =
+        legacy.lookup(0x0a000001, addresses(nextIndex()))
+
+    @Benchmark
+    def trieLookup(): java.util.List[Route] =
+        trie.lookup(0x0a000001, addresses(nextIndex()))
+
+    @Benchmark
+    def legacyUpdate(): Unit = {
+        val rt = updates(nextIndex())
+        legacy.addRoute(rt)
+        legacy.deleteRoute(rt)
+    }
+
+    @Benchmark
+    def trieUpdate(): MultibitRoutesTrie = {
+        val rt = updates(nextIndex())
+        trie.withRoute(rt).withoutRoute(rt)
+    }
+
+    @Benchmark
+    def tableUpdate(): IPv4RoutingTable = {
+        val rt = updates(nextIndex())
+        table.addRoute(rt)
+        table.snapshot()
+        table.deleteRoute(rt)
+        table.snapshot()
+    }
+
+    @Benchmark
+    def tableRebuild(): IPv4RoutingTable = {
+        val rebuilt = new IPv4RoutingTable()
+        for (rt <- tableRoutes)
+            rebuilt.addRoute(rt)
+        rebuilt
+    }
+}
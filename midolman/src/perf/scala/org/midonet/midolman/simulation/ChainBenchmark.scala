@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4, IPv4Addr, IPv4Subnet, TCP}
+import org.midonet.util.Range
+
+/**
+ * Compares applying a chain that processes every rule with applying the same
+ * chain compiled into a RuleClassifier. The chain looks like a security
+ * group: each rule accepts TCP traffic from a remote subnet to a port, and
+ * packets that match none of them are dropped. Half of the packets match a
+ * random rule, the others match none.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var rules: Int = _
+
+    val ownerId = UUID.randomUUID()
+    val random = new Random(42)
+
+    var linear: Chain = _
+    var compiled: Chain = _
+    var contexts: Array[PacketContext] = _
+    var next = 0
+
+    private def address(i: Int) = 0x0a000000 + (i << 8)
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        val ruleList = (0 until rules) map { i =>
+            val cond = new Condition()
+            cond.etherType = IPv4.ETHERTYPE.toInt
+            cond.nwProto = TCP.PROTOCOL_NUMBER
+            cond.nwSrcIp = new IPv4Subnet(address(i), 24)
+            cond.tpDst = new Range[Integer](1000 + i)
+            new LiteralRule(cond, Action.ACCEPT): Rule
+        }
+        val allRules = (ruleList :+ new LiteralRule(Condition.TRUE,
+                                                    Action.DROP)).asJava
+        linear = new Chain(UUID.randomUUID(), allRules, Map[UUID, Chain](),
+                           "linear", false)
+        compiled = new Chain(UUID.randomUUID(), allRules, Map[UUID, Chain](),
+                             "compiled", true)
+
+        contexts = Array.tabulate(1024) { _ =>
+            val i = random.nextInt(rules)
+            val fmatch = new FlowMatch()
+            fmatch.setEtherType(IPv4.ETHERTYPE)
+            fmatch.setNetworkProto(TCP.PROTOCOL_NUMBER)
+            fmatch.setNetworkSrc(IPv4Addr.fromInt(address(i) + 1))
+            fmatch.setNetworkDst(IPv4Addr.fromString("192.168.0.1"))
+            fmatch.setSrcPort(30000)
+            fmatch.setDstPort(if (random.nextBoolean()) 1000 + i else 80)
+            new PacketContext(1, null, fmatch)
+        }
+    }
+
+    private def nextContext(): PacketContext = {
+        next = (next + 1) & (contexts.length - 1)
+        contexts(next)
+    }
+
+    @Benchmark
+    def linearWalk(): RuleResult =
+        Chain.apply(linear, nextContext(), ownerId, false)
+
+    @Benchmark
+    def compiledChain(): RuleResult =
+        Chain.apply(compiled, nextContext(), ownerId, false)
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.topology.RoutingTableWrapper
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, TCP}
+
+object RouteBalancerBenchmark {
+
+    /* The flow each thread routes, with a new source port every time */
+    @State(Scope.Thread)
+    class Flow {
+        val fmatch = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+            .setNetworkDst(IPv4Addr.fromString("21.31.41.51"))
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setDstPort(80)
+        var srcPort = 0
+
+        def next(): FlowMatch = {
+            srcPort = (srcPort + 1) & 0xffff
+            fmatch.setSrcPort(srcPort)
+        }
+    }
+}
+
+/**
+ * Measures the routed flows per second of a router with equal cost routes
+ * to four next hops, choosing among them in round robin or by hashing the
+ * flows, as the number of threads doing lookups grows from 1 to 32. Round
+ * robin contends on the counter shared by all lookups.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class RouteBalancerBenchmark {
+    import RouteBalancerBenchmark._
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+
+    var roundRobin: RouteBalancer[IPv4Addr] = _
+    var flowHash: RouteBalancer[IPv4Addr] = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        val table = new IPv4RoutingTable()
+        for (i <- 1 to 4) {
+            table.addRoute(new Route(0, 0, IPv4Addr.stringToInt("21.31.41.0"),
+                                     24, NextHop.PORT, UUID.randomUUID(),
+                                     IPv4Addr.stringToInt("180.0.1.0") + i,
+                                     100, null, null))
+        }
+        val wrapper = new RoutingTableWrapper[IPv4Addr](table)
+        roundRobin = new RouteBalancer(wrapper)
+        flowHash = new RouteBalancer(wrapper, hashFlows = true)
+    }
+
+    @Benchmark @Threads(1)
+    def roundRobin01(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(2)
+    def roundRobin02(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(4)
+    def roundRobin04(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(8)
+    def roundRobin08(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(16)
+    def roundRobin16(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(32)
+    def roundRobin32(flow: Flow): Route = roundRobin.lookup(flow.next(), log)
+
+    @Benchmark @Threads(1)
+    def flowHash01(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+
+    @Benchmark @Threads(2)
+    def flowHash02(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+
+    @Benchmark @Threads(4)
+    def flowHash04(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+
+    @Benchmark @Threads(8)
+    def flowHash08(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+
+    @Benchmark @Threads(16)
+    def flowHash16(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+
+    @Benchmark @Threads(32)
+    def flowHash32(flow: Flow): Route = flowHash.lookup(flow.next(), log)
+}
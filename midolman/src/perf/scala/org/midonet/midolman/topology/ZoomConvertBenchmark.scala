@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.topology
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.ZoomConvert
+import org.midonet.cluster.models.Topology.{Host => ProtoHost, Port => ProtoPort, Rule => ProtoRule}
+import org.midonet.cluster.models.Topology.Rule.Action
+import org.midonet.cluster.util.{IPSubnetUtil, RangeUtil, UUIDUtil}
+import org.midonet.midolman.rules.{Rule => SimRule}
+import org.midonet.midolman.topology.devices.{Host, Port}
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.util.Range
+
+/**
+ * Measures the conversions of ports, rules and hosts between Protocol Buffers
+ * messages and their simulation objects, with the compiled converters of
+ * ZoomConvert and, in the benchmarks with the Reflective suffix, walking the
+ * annotations of the classes with reflection on every conversion. There is
+ * no router simulation object converted by ZoomConvert, so hosts take their
+ * place.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class ZoomConvertBenchmark extends TopologyBuilder {
+
+    var portProto: ProtoPort = _
+    var port: Port = _
+    var ruleProto: ProtoRule = _
+    var hostProto: ProtoHost = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        portProto = createRouterPort(
+            routerId = Some(UUID.randomUUID),
+            inboundFilterId = Some(UUID.randomUUID),
+            outboundFilterId = Some(UUID.randomUUID),
+            tunnelKey = 1024L,
+            peerId = Some(UUID.randomUUID),
+            hostId = Some(UUID.randomUUID),
+            interfaceName = Some("eth0"),
+            portGroupIds = Set(UUID.randomUUID, UUID.randomUUID),
+            portSubnet = new IPv4Subnet("10.0.0.0", 24),
+            portAddress = IPv4Addr.fromString("10.0.0.1"))
+        port = ZoomConvert.fromProto(portProto, classOf[Port])
+
+        ruleProto = createLiteralRuleBuilder(id = UUID.randomUUID,
+                                             chainId = Some(UUID.randomUUID),
+                                             action = Some(Action.ACCEPT))
+            .addInPortIds(UUIDUtil.toProto(UUID.randomUUID))
+            .setNwSrcIp(IPSubnetUtil.toProto(new IPv4Subnet("10.0.0.0", 24)))
+            .setNwDstIp(IPSubnetUtil.toProto(new IPv4Subnet("10.0.1.0", 24)))
+            .setTpDst(RangeUtil.toProto(new Range[Integer](80, 80)))
+            .build()
+
+        hostProto = createHost(
+            portBindings = Map(UUID.randomUUID -> "eth0",
+                               UUID.randomUUID -> "eth1"),
+            tunnelZoneIds = Set(UUID.randomUUID))
+    }
+
+    @Benchmark
+    def portFromProto(): Port = {
+        ZoomConvert.fromProto(portProto, classOf[Port])
+    }
+
+    @Benchmark
+    def portToProto(): ProtoPort = {
+        ZoomConvert.toProto(port, classOf[ProtoPort])
+    }
+
+    @Benchmark
+    def ruleFromProto(): SimRule = {
+        ZoomConvert.fromProto(ruleProto, classOf[SimRule])
+    }
+
+    @Benchmark
+    def hostFromProto(): Host = {
+        ZoomConvert.fromProto(hostProto, classOf[Host])
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = Array("-Dmidonet.zoom.reflective=true"))
+    def portFromProtoReflective(): Port = portFromProto()
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = Array("-Dmidonet.zoom.reflective=true"))
+    def portToProtoReflective(): ProtoPort = portToProto()
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = Array("-Dmidonet.zoom.reflective=true"))
+    def ruleFromProtoReflective(): SimRule = ruleFromProto()
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = Array("-Dmidonet.zoom.reflective=true"))
+    def hostFromProtoReflective(): Host = hostFromProto()
+}
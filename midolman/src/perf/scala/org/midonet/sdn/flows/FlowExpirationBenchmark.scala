@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{Collection, HashMap => JHashMap}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.util.functors.Callback1
+
+/**
+ * Measures the cost of checking the idle expiration of every flow in the
+ * flow table, either querying the kernel for each flow (dumpThreshold = 0)
+ * or with a single flow dump. The kernel is modelled by a map, so this
+ * measures the userspace side of the work; the number of netlink requests
+ * issued is flows for the former and 1 for the latter.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowExpirationBenchmark {
+
+    @Param(Array("10000", "100000", "1000000"))
+    var flows: Int = _
+
+    @Param(Array("0", "1"))
+    var dumpThreshold: Int = _
+
+    val idleTimeout = 60000
+    val kernelFlows = new JHashMap[FlowMatch, Flow]()
+    var flowManager: FlowManager = _
+    var now: Long = _
+
+    val helper = new FlowManagerHelper {
+        override def getFlow(flowMatch: FlowMatch, cb: Callback1[Flow]): Unit =
+            cb.call(kernelFlows.get(flowMatch))
+
+        override def dumpFlows(cb: Callback1[Collection[Flow]]): Unit =
+            cb.call(kernelFlows.values())
+
+        override def removeFlow(flow: ManagedFlow): Unit =
+            kernelFlows.remove(flow.flowMatch)
+
+        override def removeWildcardFlow(flow: ManagedFlow): Unit =
+            flowManager.remove(flow)
+    }
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        kernelFlows.clear()
+        flowManager = new FlowManager(helper, flows * 2, 0L, 512,
+                                      dumpThreshold)
+        var i = 0
+        while (i < flows) {
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.addKey(FlowKeys.inPort(i))
+                          .addKey(FlowKeys.tunnel(i, i, ~i, 0))
+            flow.idleExpirationMillis = idleTimeout
+            flowManager.add(flow)
+            kernelFlows.put(flow.flowMatch, new Flow(flow.flowMatch))
+            i += 1
+        }
+        now = System.currentTimeMillis()
+    }
+
+    /* Moves the clock past the idle time-out so that every flow is due for
+     * expiration, while the kernel reports all of them as recently used so
+     * that they survive the check. */
+    @JmhSetup(Level.Invocation)
+    def expireFlows(): Unit = {
+        now += idleTimeout
+        val kernelFlowsIt = kernelFlows.values().iterator()
+        while (kernelFlowsIt.hasNext) {
+            kernelFlowsIt.next().setLastUsedTime(now)
+        }
+    }
+
+    @Benchmark
+    def checkIdleExpiration(): Int = {
+        flowManager.checkFlowsExpiration(now)
+        flowManager.getNumDpFlows
+    }
+}
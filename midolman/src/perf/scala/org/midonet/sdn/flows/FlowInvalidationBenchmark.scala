@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.Collection
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.util.functors.Callback1
+
+/**
+ * Measures the cost of a mass invalidation, where all the flows sharing a
+ * tag (e.g., those of a port that goes down) are removed from the flow
+ * manager at once. The measurement includes the next expiration check, which
+ * is where the time-out bookkeeping of removed flows used to be paid.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowInvalidationBenchmark {
+
+    @Param(Array("10000", "50000", "100000"))
+    var taggedFlows: Int = _
+
+    /* Flows that don't share the tag and stay in the flow manager */
+    val otherFlows = 50000
+
+    var flowManager: FlowManager = _
+    var flows: Array[ManagedFlow] = _
+
+    val helper = new FlowManagerHelper {
+        override def getFlow(flowMatch: FlowMatch, cb: Callback1[Flow]): Unit =
+            cb.call(null)
+
+        override def dumpFlows(cb: Callback1[Collection[Flow]]): Unit =
+            cb.call(null)
+
+        override def removeFlow(flow: ManagedFlow): Unit = { }
+
+        override def removeWildcardFlow(flow: ManagedFlow): Unit =
+            flowManager.remove(flow)
+    }
+
+    private def newFlow(i: Int, idleTimeout: Int, hardTimeout: Int) = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.addKey(FlowKeys.inPort(i))
+                      .addKey(FlowKeys.tunnel(i, i, ~i, 0))
+        flow.idleExpirationMillis = idleTimeout
+        flow.hardExpirationMillis = hardTimeout
+        flow
+    }
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        flowManager = new FlowManager(helper, (taggedFlows + otherFlows) * 2,
+                                      0L, 512, 0)
+        flows = new Array[ManagedFlow](taggedFlows)
+        var i = 0
+        while (i < otherFlows) {
+            flowManager.add(newFlow(-i - 1, 60000, if (i % 2 == 0) 0 else 120000))
+            i += 1
+        }
+    }
+
+    @JmhSetup(Level.Invocation)
+    def addTaggedFlows(): Unit = {
+        var i = 0
+        while (i < taggedFlows) {
+            val flow = newFlow(i, 60000, if (i % 2 == 0) 0 else 120000)
+            flowManager.add(flow)
+            flows(i) = flow
+            i += 1
+        }
+    }
+
+    @Benchmark
+    def invalidateTag(): Int = {
+        var i = 0
+        while (i < taggedFlows) {
+            flowManager.remove(flows(i))
+            i += 1
+        }
+        flowManager.checkFlowsExpiration()
+        flowManager.getNumDpFlows
+    }
+}
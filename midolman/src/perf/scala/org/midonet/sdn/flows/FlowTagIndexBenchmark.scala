@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+
+import scala.collection.mutable
+import scala.collection.mutable.{HashMap, MultiMap}
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+/**
+ * Compares the FlowTagIndex with the MultiMap of tags to sets of flows that
+ * the FlowController used before. Each flow carries tags of increasing
+ * cardinality, from one shared by all the flows to one per flow, as the
+ * tags of a tunnel, a device, a port or a MAC would be.
+ *
+ * The benchmark measures the invalidation of a tag shared by a tenth of the
+ * flows, and the indexing of all the flows. Run the latter with -prof gc:
+ * the bytes allocated per operation bound the memory that the index of all
+ * the flows takes.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class FlowTagIndexBenchmark {
+    import FlowTagIndexBenchmark._
+
+    @Param(Array("multimap", "compact"))
+    var index: String = _
+
+    @Param(Array("100000"))
+    var flows: Int = _
+
+    @Param(Array("5", "10", "20"))
+    var tagsPerFlow: Int = _
+
+    var tagIndex: TagIndex = _
+    var allFlows: Array[ManagedFlow] = _
+    var unindexedFlows: Array[ManagedFlow] = _
+    var invalidatedTag: FlowTag = _
+    val removed = new ArrayList[ManagedFlow]()
+
+    private def newTagIndex(): TagIndex = index match {
+        case "multimap" => new MultiMapTagIndex
+        case "compact" => new CompactTagIndex(flows)
+    }
+
+    private def newFlows(): Array[ManagedFlow] =
+        Array.tabulate(flows) { i =>
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.addKey(FlowKeys.inPort(i))
+            var j = 0
+            while (j < tagsPerFlow) {
+                val cardinality = math.min(flows, math.pow(10, j).toInt)
+                flow.tags.add(BenchTag(j, i % cardinality))
+                j += 1
+            }
+            flow
+        }
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        allFlows = newFlows()
+        unindexedFlows = newFlows()
+        invalidatedTag = BenchTag(1, 0)
+        tagIndex = newTagIndex()
+        allFlows foreach tagIndex.add
+    }
+
+    /* Indexes again the flows that the last invalidation removed, if any */
+    @JmhSetup(Level.Invocation)
+    def addInvalidatedFlows(): Unit = {
+        var i = 0
+        while (i < removed.size) {
+            tagIndex.add(removed.get(i))
+            i += 1
+        }
+        removed.clear()
+    }
+
+    /* The flows remember their slot in a FlowTagIndex, forget it so that
+     * indexFlows() indexes them again */
+    @JmhSetup(Level.Invocation)
+    def forgetIndexedFlows(): Unit =
+        if (unindexedFlows(0).tagIndexSlot != FlowTagIndex.NoSlot) {
+            var i = 0
+            while (i < unindexedFlows.length) {
+                unindexedFlows(i).tagIndexSlot = FlowTagIndex.NoSlot
+                i += 1
+            }
+        }
+
+    @Benchmark
+    def invalidateTag(): Int =
+        tagIndex.invalidate(invalidatedTag, removed)
+
+    @Benchmark
+    def indexFlows(): TagIndex = {
+        val newIndex = newTagIndex()
+        var i = 0
+        while (i < unindexedFlows.length) {
+            newIndex.add(unindexedFlows(i))
+            i += 1
+        }
+        newIndex
+    }
+}
+
+object FlowTagIndexBenchmark {
+
+    case class BenchTag(kind: Int, id: Int) extends FlowTag
+
+    trait TagIndex {
+        def add(flow: ManagedFlow): Unit
+        def invalidate(tag: FlowTag, removed: ArrayList[ManagedFlow]): Int
+    }
+
+    /* The index as the FlowController kept it: invalidating a tag removes
+     * the flows from the sets of their other tags, one binding at a time. */
+    class MultiMapTagIndex extends TagIndex {
+        val tagToFlows: MultiMap[FlowTag, ManagedFlow] =
+            new HashMap[FlowTag, mutable.Set[ManagedFlow]]
+                with MultiMap[FlowTag, ManagedFlow]
+
+        override def add(flow: ManagedFlow): Unit = {
+            var i = 0
+            while (i < flow.tags.size()) {
+                tagToFlows.addBinding(flow.tags.get(i), flow)
+                i += 1
+            }
+        }
+
+        override def invalidate(tag: FlowTag,
+                                removed: ArrayList[ManagedFlow]): Int =
+            tagToFlows.remove(tag) match {
+                case Some(flowSet) =>
+                    for (flow <- flowSet) {
+                        var i = 0
+                        while (i < flow.tags.size()) {
+                            tagToFlows.removeBinding(flow.tags.get(i), flow)
+                            i += 1
+                        }
+                        removed.add(flow)
+                    }
+                    flowSet.size
+                case None => 0
+            }
+    }
+
+    class CompactTagIndex(flows: Int) extends TagIndex {
+        val index = new FlowTagIndex(flows)
+
+        override def add(flow: ManagedFlow): Unit = index.add(flow)
+
+        override def invalidate(tag: FlowTag,
+                                removed: ArrayList[ManagedFlow]): Int =
+            index.invalidate(tag, removed)
+    }
+}
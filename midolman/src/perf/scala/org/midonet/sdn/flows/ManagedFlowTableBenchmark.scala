@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.LinkedHashMap
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowKeys
+
+/**
+ * Compares the ManagedFlowTable with the LinkedHashMap it replaced in the
+ * FlowManager, on a full table where each operation evicts the oldest flow,
+ * adds a new one and looks up a random one. Run with -prof gc to compare the
+ * allocation rates.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+class ManagedFlowTableBenchmark {
+
+    @Param(Array("100000", "1000000"))
+    var flows: Int = _
+
+    var table: ManagedFlowTable = _
+    var map: LinkedHashMap[FlowMatch, ManagedFlow] = _
+    var lookups: Array[FlowMatch] = _
+    var next = 0
+
+    private def newFlow(i: Int) = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.addKey(FlowKeys.inPort(i))
+                      .addKey(FlowKeys.tunnel(i, i, ~i, 0))
+        flow
+    }
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        table = new ManagedFlowTable(flows)
+        map = new LinkedHashMap[FlowMatch, ManagedFlow](flows)
+        lookups = new Array[FlowMatch](flows)
+        var i = 0
+        while (i < flows) {
+            val flow = newFlow(i)
+            table.putIfAbsent(flow)
+            map.put(flow.flowMatch, flow)
+            lookups(i) = flow.flowMatch
+            i += 1
+        }
+        next = 0
+    }
+
+    /* Evicted flows are added back as the newest ones, so that the table
+     * stays full. */
+    @Benchmark
+    def managedFlowTable(): ManagedFlow = {
+        val evicted = table.oldest
+        table.remove(evicted)
+        table.putIfAbsent(evicted)
+        next = (next + 7919) % flows
+        table.get(lookups(next))
+    }
+
+    @Benchmark
+    def linkedHashMap(): ManagedFlow = {
+        val it = map.values().iterator()
+        val evicted = it.next()
+        it.remove()
+        map.put(evicted.flowMatch, evicted)
+        next = (next + 7919) % flows
+        map.get(lookups(next))
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.midonet.cluster;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -39,6 +40,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 
 
@@ -71,6 +73,43 @@ public class LocalDataClientImplTest extends LocalDataClientImplTestBase {
         assertThat(routes, hasSize(0));
     }
 
+    @Test
+    public void peerRouteBatchLifecycleTest() throws StateAccessException,
+            SerializationException {
+        UUID routerId = client.routersCreate(new Router());
+        UUID portId = client.portsCreate(
+            new RouterPort().setDeviceId(routerId)
+                .setHwAddr(MAC.fromString("02:BB:EE:EE:FF:01"))
+                .setPortAddr("10.0.0.3").setNwAddr("10.0.0.0")
+                .setNwLength(24)
+        );
+        List<Route> routes = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            routes.add(new Route().setRouterId(routerId)
+                           .setDstNetworkAddr("192.168." + i + ".0")
+                           .setDstNetworkLength(24)
+                           .setNextHop(NextHop.PORT)
+                           .setNextHopPort(portId)
+                           .setNextHopGateway("10.0.0.1"));
+        }
+        // Create the routes in one batch and verify that they all exist.
+        List<UUID> routeIds = client.routesCreateEphemeral(routes);
+        assertThat(routeIds, hasSize(3));
+        for (int i = 0; i < routes.size(); i++) {
+            Route rt = client.routesGet(routeIds.get(i));
+            assertThat(rt, notNullValue());
+            assertThat(rt.getDstNetworkAddr(),
+                       equalTo(routes.get(i).getDstNetworkAddr()));
+        }
+        // Delete them in one batch, along with a route that doesn't exist.
+        List<UUID> deleted = new ArrayList<>(routeIds);
+        deleted.add(UUID.randomUUID());
+        client.routesDelete(deleted);
+        for (UUID routeId : routeIds) {
+            assertThat(client.routesGet(routeId), nullValue());
+        }
+    }
+
     private void assertIsLeader(boolean[] leaderArr, int leader) {
         assertThat(leaderArr[leader], equalTo(true));
         for(int i = 0; i < leaderArr.length; i++) {
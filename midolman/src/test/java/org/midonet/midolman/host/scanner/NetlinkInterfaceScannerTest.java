@@ -0,0 +1,272 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.host.scanner;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.midolman.host.interfaces.InterfaceDescription;
+import org.midonet.midolman.host.interfaces.InterfaceDescription.Endpoint;
+import org.midonet.midolman.host.scanner.NetlinkInterfaceScanner.InterfaceTable;
+import org.midonet.netlink.BytesUtil;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.rtnetlink.Addr;
+import org.midonet.netlink.rtnetlink.Link;
+import org.midonet.netlink.rtnetlink.Rtnetlink;
+import org.midonet.odp.DpPort;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class NetlinkInterfaceScannerTest {
+
+    private static final int UP = Link.Flag.IFF_UP | Link.Flag.IFF_LOWER_UP;
+
+    private InterfaceTable table;
+    private ByteBuffer buf;
+    private int seq;
+
+    @Before
+    public void setUp() {
+        table = new InterfaceTable() {
+            @Override
+            protected boolean isVirtual(String name) {
+                return false;
+            }
+        };
+        buf = BytesUtil.instance.allocate(8192);
+    }
+
+    private int beginMessage(short type, int seq) {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.putShort(type);
+        buf.putShort((short) 0);
+        buf.putInt(seq);
+        buf.putInt(0);
+        return start;
+    }
+
+    private void endMessage(int start) {
+        NetlinkMessage.alignBuffer(buf);
+        buf.putInt(start, buf.position() - start);
+    }
+
+    private void link(short type, int seq, int index, String name, int flags,
+                      int master, String kind) {
+        int start = beginMessage(type, seq);
+        buf.putShort((short) 0);
+        buf.putShort((short) 1);
+        buf.putInt(index);
+        buf.putInt(flags);
+        buf.putInt(0);
+        NetlinkMessage.writeStringAttr(buf, Link.Attr.IFNAME, name);
+        NetlinkMessage.writeIntAttr(buf, Link.Attr.MTU, 1500);
+        NetlinkMessage.writeRawAttribute(buf, Link.Attr.ADDRESS,
+            new byte[] { 2, 0, 0, 0, 0, (byte) index });
+        if (master != 0)
+            NetlinkMessage.writeIntAttr(buf, Link.Attr.MASTER, master);
+        if (kind != null) {
+            int info = buf.position();
+            NetlinkMessage.setAttrHeader(buf, Link.Attr.LINKINFO, 0);
+            NetlinkMessage.writeStringAttr(buf, Link.InfoAttr.KIND, kind);
+            buf.putShort(info, (short) (buf.position() - info));
+        }
+        endMessage(start);
+    }
+
+    private void newLink(int index, String name, int flags) {
+        link(Rtnetlink.Type.NEWLINK, seq, index, name, flags, 0, null);
+    }
+
+    private void addr(short type, int index, String address) throws Exception {
+        int start = beginMessage(type, seq);
+        byte[] bytes = InetAddress.getByName(address).getAddress();
+        buf.put((byte) (bytes.length == 4 ? 2 : 10));
+        buf.put((byte) 24);
+        buf.put((byte) 0);
+        buf.put((byte) 0);
+        buf.putInt(index);
+        NetlinkMessage.writeRawAttribute(buf, Addr.Attr.LOCAL, bytes);
+        endMessage(start);
+    }
+
+    private void done() {
+        endMessage(beginMessage(NLMessageType.DONE, seq));
+    }
+
+    private void process() {
+        buf.flip();
+        table.process(buf);
+        buf.clear();
+    }
+
+    private void startDump(short type) {
+        assertThat(table.requestPending(), is(true));
+        assertThat(table.dumpType(), is(type));
+        table.requestSent(++seq);
+    }
+
+    /* Dumps eth0, with an address, the loopback and a tap */
+    private void initialDump() throws Exception {
+        table.resync();
+        startDump(Rtnetlink.Type.GETLINK);
+        newLink(1, "lo", UP | Link.Flag.IFF_LOOPBACK);
+        newLink(2, "eth0", UP);
+        link(Rtnetlink.Type.NEWLINK, seq, 3, "tap0", 0, 0, "tun");
+        done();
+        process();
+        startDump(Rtnetlink.Type.GETADDR);
+        addr(Rtnetlink.Type.NEWADDR, 2, "10.0.0.1");
+        done();
+        process();
+    }
+
+    private static Map<String, InterfaceDescription> byName(
+            Set<InterfaceDescription> interfaces) {
+        Map<String, InterfaceDescription> map = new HashMap<>();
+        for (InterfaceDescription desc : interfaces) {
+            map.put(desc.getName(), desc);
+        }
+        return map;
+    }
+
+    @Test
+    public void testDumpBuildsTheInterfaces() throws Exception {
+        table.resync();
+        startDump(Rtnetlink.Type.GETLINK);
+        newLink(1, "lo", UP | Link.Flag.IFF_LOOPBACK);
+        newLink(2, "eth0", UP);
+        process();
+        assertThat(table.isIdle(), is(false));
+
+        link(Rtnetlink.Type.NEWLINK, seq, 3, "tap0", 0, 0, "tun");
+        done();
+        process();
+        startDump(Rtnetlink.Type.GETADDR);
+        addr(Rtnetlink.Type.NEWADDR, 2, "10.0.0.1");
+        done();
+        process();
+
+        assertThat(table.isIdle(), is(true));
+        assertThat(table.hasChanges(), is(true));
+        Map<String, InterfaceDescription> itfs = byName(table.interfaces());
+        assertThat(itfs.size(), is(3));
+        assertThat(table.hasChanges(), is(false));
+
+        assertThat(itfs.get("lo").getEndpoint(), is(Endpoint.LOCALHOST));
+        InterfaceDescription eth0 = itfs.get("eth0");
+        assertThat(eth0.getEndpoint(), is(Endpoint.PHYSICAL));
+        assertThat(eth0.isUp(), is(true));
+        assertThat(eth0.hasLink(), is(true));
+        assertThat(eth0.getMtu(), is(1500));
+        assertThat(eth0.getMac(),
+                   equalTo(new byte[] { 2, 0, 0, 0, 0, 2 }));
+        assertThat(eth0.getInetAddresses(),
+                   contains(InetAddress.getByName("10.0.0.1")));
+        InterfaceDescription tap0 = itfs.get("tap0");
+        assertThat(tap0.getEndpoint(), is(Endpoint.TUNTAP));
+        assertThat(tap0.isUp(), is(false));
+    }
+
+    @Test
+    public void testOnlyChangedInterfacesAreRebuilt() throws Exception {
+        initialDump();
+        Map<String, InterfaceDescription> before = byName(table.interfaces());
+
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, 0, "tun");
+        process();
+        assertThat(table.hasChanges(), is(true));
+        Map<String, InterfaceDescription> after = byName(table.interfaces());
+
+        assertThat(after.get("tap0"), not(sameInstance(before.get("tap0"))));
+        assertThat(after.get("tap0").isUp(), is(true));
+        assertThat(after.get("eth0"), sameInstance(before.get("eth0")));
+        assertThat(after.get("lo"), sameInstance(before.get("lo")));
+
+        // A repeated notification changes nothing
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, 0, "tun");
+        process();
+        assertThat(table.hasChanges(), is(false));
+    }
+
+    @Test
+    public void testAddressAndLinkDeletions() throws Exception {
+        initialDump();
+        table.interfaces();
+
+        addr(Rtnetlink.Type.DELADDR, 2, "10.0.0.1");
+        link(Rtnetlink.Type.DELLINK, 0, 3, "tap0", 0, 0, "tun");
+        process();
+
+        Map<String, InterfaceDescription> itfs = byName(table.interfaces());
+        assertThat(itfs.keySet().contains("tap0"), is(false));
+        assertThat(itfs.get("eth0").getInetAddresses().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testResyncRemovesWhatTheDumpMissed() throws Exception {
+        initialDump();
+        table.interfaces();
+
+        table.resync();
+        startDump(Rtnetlink.Type.GETLINK);
+        newLink(1, "lo", UP | Link.Flag.IFF_LOOPBACK);
+        newLink(2, "eth0", UP);
+        process();
+        // A link created during the dump, after its turn
+        link(Rtnetlink.Type.NEWLINK, 0, 4, "tap1", UP, 0, "tun");
+        process();
+        done();
+        process();
+        startDump(Rtnetlink.Type.GETADDR);
+        done();
+        process();
+
+        Map<String, InterfaceDescription> itfs = byName(table.interfaces());
+        assertThat(itfs.keySet().contains("tap0"), is(false));
+        assertThat(itfs.keySet().contains("tap1"), is(true));
+        assertThat(itfs.get("eth0").getInetAddresses().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testDatapathPorts() throws Exception {
+        initialDump();
+        table.interfaces();
+
+        link(Rtnetlink.Type.NEWLINK, 0, 10, "midonet", UP, 0, "openvswitch");
+        link(Rtnetlink.Type.NEWLINK, 0, 3, "tap0", UP, 10, "tun");
+        process();
+
+        Map<String, InterfaceDescription> itfs = byName(table.interfaces());
+        assertThat(itfs.get("midonet").getEndpoint(), is(Endpoint.DATAPATH));
+        assertThat(itfs.get("midonet").getPortType(),
+                   is(DpPort.Type.Internal));
+        assertThat(itfs.get("tap0").getEndpoint(), is(Endpoint.DATAPATH));
+        assertThat(itfs.get("tap0").getPortType(), is(DpPort.Type.NetDev));
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Subnet;
+
+public class TestMultibitRoutesTrie {
+
+    private static Route route(int src, int srcLen, int dst, int dstLen,
+                               int weight) {
+        return new Route(src, srcLen, dst, dstLen, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static Set<Route> lookup(MultibitRoutesTrie trie, int src,
+                                     int dst) {
+        return new HashSet<>(trie.lookup(src, dst));
+    }
+
+    private static Set<Route> set(Route... routes) {
+        Set<Route> set = new HashSet<>();
+        for (Route rt : routes)
+            set.add(rt);
+        return set;
+    }
+
+    @Test
+    public void testEmptyTrie() {
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        Assert.assertTrue(trie.lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(trie.lookup(0x00000009, 0xfffffffe).isEmpty());
+        Assert.assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void testLongestPrefixAtEveryLevel() {
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        Route rt0 = route(0, 0, 0, 0, 100);
+        Route rt7 = route(0, 0, 0x0a000000, 7, 100);
+        Route rt8 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt12 = route(0, 0, 0x0a140000, 12, 100);
+        Route rt18 = route(0, 0, 0x0a140000, 18, 100);
+        Route rt24 = route(0, 0, 0x0a140000, 24, 100);
+        Route rt25 = route(0, 0, 0x0a140080, 25, 100);
+        Route rt32 = route(0, 0, 0x0a140085, 32, 100);
+        for (Route rt : new Route[] { rt32, rt0, rt18, rt8, rt25, rt7, rt24,
+                                      rt12 })
+            trie = trie.withRoute(rt);
+        Assert.assertEquals(8, trie.size());
+
+        Assert.assertEquals(set(rt32), lookup(trie, 1, 0x0a140085));
+        Assert.assertEquals(set(rt25), lookup(trie, 1, 0x0a140086));
+        Assert.assertEquals(set(rt24), lookup(trie, 1, 0x0a140001));
+        Assert.assertEquals(set(rt18), lookup(trie, 1, 0x0a141001));
+        Assert.assertEquals(set(rt12), lookup(trie, 1, 0x0a1f0001));
+        Assert.assertEquals(set(rt8), lookup(trie, 1, 0x0aff0001));
+        Assert.assertEquals(set(rt7), lookup(trie, 1, 0x0b000001));
+        Assert.assertEquals(set(rt0), lookup(trie, 1, 0xc0a80001));
+
+        // Deleting a prefix gives its addresses to the next longest one.
+        trie = trie.withoutRoute(rt25);
+        Assert.assertEquals(set(rt24), lookup(trie, 1, 0x0a140086));
+        trie = trie.withoutRoute(rt24);
+        Assert.assertEquals(set(rt18), lookup(trie, 1, 0x0a140086));
+        trie = trie.withoutRoute(rt18);
+        trie = trie.withoutRoute(rt12);
+        Assert.assertEquals(set(rt8), lookup(trie, 1, 0x0a140086));
+        Assert.assertEquals(set(rt32), lookup(trie, 1, 0x0a140085));
+        trie = trie.withoutRoute(rt8);
+        trie = trie.withoutRoute(rt32);
+        Assert.assertEquals(set(rt7), lookup(trie, 1, 0x0a140085));
+        trie = trie.withoutRoute(rt7);
+        Assert.assertEquals(set(rt0), lookup(trie, 1, 0x0a140085));
+        trie = trie.withoutRoute(rt0);
+        Assert.assertTrue(trie.lookup(1, 0x0a140085).isEmpty());
+        Assert.assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void testEqualCostMultiPath() {
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        Route rt1 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt2 = route(0, 0, 0x0a140000, 16, 100);
+        Route rt3 = route(0, 0, 0x0a140000, 16, 200);
+        trie = trie.withRoute(rt1);
+        trie = trie.withRoute(rt2);
+        trie = trie.withRoute(rt3);
+        // Adding the same route again doesn't change the table
+        trie = trie.withRoute(rt1);
+        Assert.assertEquals(3, trie.size());
+        Assert.assertEquals(set(rt1, rt2), lookup(trie, 1, 0x0a140101));
+
+        trie = trie.withoutRoute(rt1);
+        Assert.assertEquals(set(rt2), lookup(trie, 1, 0x0a140101));
+        trie = trie.withoutRoute(rt2);
+        Assert.assertEquals(set(rt3), lookup(trie, 1, 0x0a140101));
+        trie = trie.withoutRoute(rt2);
+        Assert.assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void testSourceMismatchFallsBackToShorterPrefix() {
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        Route wide = route(0, 0, 0x0a000000, 8, 100);
+        Route narrow = route(0xc0a80000, 16, 0x0a140000, 24, 100);
+        trie = trie.withRoute(wide);
+        trie = trie.withRoute(narrow);
+        Assert.assertEquals(set(narrow), lookup(trie, 0xc0a80101, 0x0a140001));
+        Assert.assertEquals(set(wide), lookup(trie, 0xc0a90101, 0x0a140001));
+    }
+
+    @Test
+    public void testHostBitsAreIgnored() {
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        Route rt = route(0, 0, 0x0a140085, 25, 100);
+        trie = trie.withRoute(rt);
+        Assert.assertEquals(set(rt), lookup(trie, 1, 0x0a140080));
+        trie = trie.withoutRoute(rt);
+        Assert.assertTrue(trie.lookup(1, 0x0a140080).isEmpty());
+    }
+
+    @Test
+    public void testUpdatesDontChangeTheTrie() {
+        MultibitRoutesTrie empty = MultibitRoutesTrie.EMPTY;
+        Route wide = route(0, 0, 0x0a000000, 8, 100);
+        Route narrow = route(0, 0, 0x0a140000, 24, 100);
+        MultibitRoutesTrie withWide = empty.withRoute(wide);
+        MultibitRoutesTrie withBoth = withWide.withRoute(narrow);
+        MultibitRoutesTrie withNarrow = withBoth.withoutRoute(wide);
+
+        Assert.assertTrue(empty.lookup(1, 0x0a140001).isEmpty());
+        Assert.assertEquals(0, empty.size());
+        Assert.assertEquals(set(wide), lookup(withWide, 1, 0x0a140001));
+        Assert.assertEquals(1, withWide.size());
+        Assert.assertEquals(set(narrow), lookup(withBoth, 1, 0x0a140001));
+        Assert.assertEquals(set(wide), lookup(withBoth, 1, 0x0a150001));
+        Assert.assertEquals(set(narrow), lookup(withNarrow, 1, 0x0a140001));
+        Assert.assertTrue(withNarrow.lookup(1, 0x0a150001).isEmpty());
+
+        // Updates that don't change the routes return the same trie.
+        Assert.assertSame(withBoth, withBoth.withRoute(narrow));
+        Assert.assertSame(withWide, withWide.withoutRoute(narrow));
+    }
+
+    /* The routes that a linear scan of the table selects. */
+    private static Set<Route> reference(List<Route> routes, int src, int dst) {
+        for (int length = 32; length >= 0; length--) {
+            int mask = length == 0 ? 0 : -1 << (32 - length);
+            Set<Route> matching = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.dstNetworkLength != length ||
+                    ((rt.dstNetworkAddr ^ dst) & mask) != 0 ||
+                    !IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                          rt.srcNetworkLength))
+                    continue;
+                if (rt.weight < minWeight) {
+                    matching.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    matching.add(rt);
+            }
+            if (!matching.isEmpty())
+                return matching;
+        }
+        return new HashSet<>();
+    }
+
+    @Test
+    public void testSameResultsAsLinearScan() {
+        Random random = new Random(42);
+        MultibitRoutesTrie trie = MultibitRoutesTrie.EMPTY;
+        List<Route> routes = new ArrayList<>();
+
+        // Few distinct networks so that prefixes nest and share routes.
+        int[] networks = new int[16];
+        for (int i = 0; i < networks.length; i++)
+            networks[i] = random.nextInt();
+
+        for (int round = 0; round < 5000; round++) {
+            if (routes.isEmpty() || random.nextInt(3) != 0) {
+                int length = random.nextInt(33);
+                int dst = networks[random.nextInt(networks.length)];
+                int srcLength = random.nextInt(4) == 0 ? 1 : 0;
+                int src = random.nextBoolean() ? 0x80000000 : 0;
+                Route rt = route(src, srcLength, dst, length,
+                                 random.nextInt(3));
+                routes.add(rt);
+                trie = trie.withRoute(rt);
+            } else {
+                Route rt = routes.remove(random.nextInt(routes.size()));
+                trie = trie.withoutRoute(rt);
+            }
+
+            for (int i = 0; i < 8; i++) {
+                int dst = networks[random.nextInt(networks.length)] ^
+                          (random.nextInt() >>> random.nextInt(32));
+                int src = random.nextInt();
+                Assert.assertEquals(reference(routes, src, dst),
+                                    lookup(trie, src, dst));
+            }
+        }
+        Assert.assertEquals(routes.size(), trie.size());
+    }
+}
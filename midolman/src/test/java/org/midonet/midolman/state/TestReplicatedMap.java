@@ -16,7 +16,10 @@
 
 package org.midonet.midolman.state;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.zookeeper.CreateMode;
@@ -32,6 +35,8 @@ public class TestReplicatedMap {
 
     private class ReplicatedStringMap extends ReplicatedMap<String, String> {
 
+        int decodedKeys = 0;
+
         public ReplicatedStringMap(Directory dir) {
             super(dir);
         }
@@ -43,6 +48,7 @@ public class TestReplicatedMap {
 
         @Override
         protected String decodeKey(String str) {
+            decodedKeys++;
             return str;
         }
 
@@ -387,4 +393,77 @@ public class TestReplicatedMap {
         expectedMap.clear();
         Assert.assertEquals(expectedMap, strMap.getMap());
     }
+
+    @Test
+    public void testChangesAreProcessedIncrementally()
+            throws KeeperException, InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            mapDir.add("/key" + i + ",value" + i + ",", null,
+                       CreateMode.PERSISTENT_SEQUENTIAL);
+        }
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        final List<String> changes = new ArrayList<>();
+        strMap.addWatcher(new ReplicatedMap.Watcher<String, String>() {
+            @Override
+            public void processChange(String key, String oldValue,
+                                      String newValue) {
+                changes.add(key + ":" + oldValue + "->" + newValue);
+            }
+        });
+        strMap.start();
+        Assert.assertEquals(100, strMap.decodedKeys);
+        Assert.assertEquals(100, changes.size());
+
+        changes.clear();
+        String path = mapDir.add("/key5,changed,", null,
+                                 CreateMode.PERSISTENT_SEQUENTIAL);
+        Assert.assertEquals(101, strMap.decodedKeys);
+        Assert.assertEquals(Arrays.asList("key5:value5->changed"), changes);
+
+        changes.clear();
+        mapDir.delete(path);
+        Assert.assertEquals(101, strMap.decodedKeys);
+        Assert.assertEquals(Arrays.asList("key5:changed->value5"), changes);
+        Assert.assertEquals(100, strMap.getMap().size());
+    }
+
+    @Test
+    public void testOwnedOldVersionsAreCleanedUp()
+            throws KeeperException, InterruptedException {
+        ReplicatedStringMap strMap = new ReplicatedStringMap(mapDir);
+        strMap.start();
+        strMap.put("one", "100");
+        strMap.put("one", "200");
+        Assert.assertEquals("200", strMap.get("one"));
+        Assert.assertEquals(1, mapDir.getChildren("/", null).size());
+        Assert.assertTrue(strMap.isKeyOwner("one"));
+    }
+
+    @Test
+    public void testFailedCleanupsAreRetried()
+            throws KeeperException, InterruptedException {
+        Directory dir = new MockDirectory() {
+            int failures = 1;
+
+            @Override
+            public void asyncDelete(String relativePath,
+                                    DirectoryCallback.Void callback) {
+                if (failures-- > 0)
+                    callback.onError(new KeeperException.ConnectionLossException());
+                else
+                    super.asyncDelete(relativePath, callback);
+            }
+        };
+        ReplicatedStringMap strMap = new ReplicatedStringMap(dir);
+        strMap.start();
+        strMap.put("one", "100");
+        strMap.put("one", "200");
+        Assert.assertEquals("200", strMap.get("one"));
+        Assert.assertEquals(2, dir.getChildren("/", null).size());
+
+        strMap.put("two", "300");
+        Assert.assertEquals(2, dir.getChildren("/", null).size());
+        Assert.assertEquals("200", strMap.get("one"));
+        Assert.assertEquals("300", strMap.get("two"));
+    }
 }
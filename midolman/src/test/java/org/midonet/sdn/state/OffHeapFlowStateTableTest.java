@@ -0,0 +1,319 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.util.collection.Reducer;
+import org.midonet.util.concurrent.MockClock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class OffHeapFlowStateTableTest {
+    static final Duration IDLE_EXPIRATION = new FiniteDuration(60, TimeUnit.SECONDS);
+
+    static class TestKey implements IdleExpiration {
+        final long key;
+
+        public TestKey(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public Duration expiresAfter() {
+            return IDLE_EXPIRATION;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TestKey && ((TestKey) o).key == key;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+
+    static class TestLayout implements FlowStateLayout<TestKey, Integer> {
+        @Override
+        public int keyWords() {
+            return 1;
+        }
+
+        @Override
+        public int valueWords() {
+            return 1;
+        }
+
+        @Override
+        public void encodeKey(TestKey key, long[] words, int offset) {
+            words[offset] = key.key;
+        }
+
+        @Override
+        public TestKey decodeKey(long[] words, int offset) {
+            return new TestKey(words[offset]);
+        }
+
+        @Override
+        public void encodeValue(Integer value, long[] words, int offset) {
+            words[offset] = value;
+        }
+
+        @Override
+        public Integer decodeValue(long[] words, int offset) {
+            return (int) words[offset];
+        }
+    }
+
+    private static TestKey key(long k) {
+        return new TestKey(k);
+    }
+
+    private final TestKey[] keys = { key(1), key(2), key(3),
+                                     key(4), key(5), key(6) };
+    private final Integer[] vals = {100, 200, 300, 400, 500, 600};
+    private final MockClock clock = new MockClock();
+
+    private OffHeapFlowStateTable<TestKey, Integer> table;
+
+    @Before
+    public void before() {
+        table = new OffHeapFlowStateTable<>(new TestLayout(), clock, 4, 8);
+    }
+
+    @Test
+    public void testSetGet() {
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(table.get(keys[i]), nullValue());
+            assertThat(table.putAndRef(keys[i], vals[i]), nullValue());
+            assertThat(table.get(keys[i]), equalTo(vals[i]));
+        }
+
+        for (int i = 0; i < keys.length; i++)
+            assertThat(table.get(keys[i]), equalTo(vals[i]));
+
+        assertThat(table.putAndRef(keys[0], 9595), equalTo(vals[0]));
+        assertThat(table.get(keys[0]), equalTo(9595));
+        assertThat(table.getRefCount(keys[0]), equalTo(2));
+        assertThat(table.size(), equalTo(keys.length));
+    }
+
+    @Test
+    public void testTransactionCommit() {
+        FlowStateTransaction<TestKey, Integer> tx =
+                new FlowStateTransaction<>(table);
+        tx.putAndRef(key(10), 1);
+        tx.putAndRef(key(11), 2);
+        assertThat(table.get(key(10)), nullValue());
+
+        tx.commit();
+
+        assertThat(table.get(key(10)), equalTo(1));
+        assertThat(table.get(key(11)), equalTo(2));
+    }
+
+    @Test
+    public void testTouch() {
+        for (int i = 0; i < keys.length; i++) {
+            table.touch(keys[i], vals[i]);
+            assertThat(table.get(keys[i]), equalTo(vals[i]));
+            assertThat(table.getRefCount(keys[i]), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testFold() {
+        for (int i = 0; i < keys.length; i++)
+            table.putAndRef(keys[i], vals[i]);
+
+        Set<TestKey> foldedKeys = table.fold(new HashSet<TestKey>(),
+            new Reducer<TestKey, Integer, Set<TestKey>>() {
+                @Override
+                public Set<TestKey> apply(Set<TestKey> seed, TestKey key,
+                                          Integer value) {
+                    seed.add(key);
+                    return seed;
+                }
+            });
+        assertThat(foldedKeys, equalTo((Set<TestKey>) new HashSet<>(
+            Arrays.asList(keys))));
+    }
+
+    @Test
+    public void testRefCount() {
+        for (int i = 0; i < keys.length; i++)
+            table.putAndRef(keys[i], vals[i]);
+
+        for (TestKey key : keys) {
+            table.unref(key);
+            table.ref(key);
+        }
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() * 2);
+        table.expireIdleEntries();
+
+        for (int i = 0; i < keys.length; i++)
+            assertThat(table.get(keys[i]), equalTo(vals[i]));
+
+        long baseTime = clock.time();
+        for (TestKey key : keys) {
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos());
+            table.unref(key);
+            table.ref(key);
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos());
+            table.unref(key);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            clock.time_$eq(baseTime + ((i+1) * IDLE_EXPIRATION.toNanos() * 2));
+            clock.time_$eq(clock.time() + IDLE_EXPIRATION.toNanos() + 1);
+            table.expireIdleEntries();
+
+            for (int j = 0; j < keys.length; j++) {
+                if (j <= i)
+                    assertThat(table.get(keys[j]), nullValue());
+                else
+                    assertThat(table.get(keys[j]), equalTo(vals[j]));
+            }
+        }
+        assertThat(table.size(), equalTo(0));
+    }
+
+    @Test
+    public void testExpiredEntriesAreReduced() {
+        for (int i = 0; i < keys.length; i++)
+            table.touch(keys[i], vals[i]);
+        table.ref(keys[0]);
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() * 2);
+        Map<TestKey, Integer> expired = table.expireIdleEntries(
+            new HashMap<TestKey, Integer>(),
+            new Reducer<TestKey, Integer, Map<TestKey, Integer>>() {
+                @Override
+                public Map<TestKey, Integer> apply(Map<TestKey, Integer> seed,
+                                                   TestKey key, Integer value) {
+                    seed.put(key, value);
+                    return seed;
+                }
+            });
+
+        assertThat(expired.size(), equalTo(keys.length - 1));
+        for (int i = 1; i < keys.length; i++)
+            assertThat(expired.get(keys[i]), equalTo(vals[i]));
+        assertThat(table.get(keys[0]), equalTo(vals[0]));
+    }
+
+    @Test
+    public void testTableGrows() {
+        int n = 10000;
+        for (int i = 0; i < n; i++)
+            table.touch(key(i), i);
+        // Entries expiring after the table grew
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() / 2);
+        for (int i = 0; i < n; i += 2)
+            table.putAndRef(key(i), -i);
+
+        assertThat(table.size(), equalTo(n));
+        for (int i = 0; i < n; i++)
+            assertThat(table.get(key(i)), equalTo(i % 2 == 0 ? -i : i));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() + 1);
+        table.expireIdleEntries();
+        assertThat(table.size(), equalTo(n / 2));
+        for (int i = 0; i < n; i++) {
+            if (i % 2 == 0)
+                assertThat(table.get(key(i)), equalTo(-i));
+            else
+                assertThat(table.get(key(i)), nullValue());
+        }
+
+        // Deleted slots are reused
+        for (int i = 1; i < n; i += 2)
+            table.putAndRef(key(i), i);
+        assertThat(table.size(), equalTo(n));
+        for (int i = 0; i < n; i++)
+            assertThat(table.get(key(i)), equalTo(i % 2 == 0 ? -i : i));
+    }
+
+    @Test
+    public void testConcurrentReadersSeeConsistentValues() throws Exception {
+        final int n = 4096;
+        final int writes = 200000;
+        for (int i = 0; i < n; i++)
+            table.putAndRef(key(i), i);
+
+        // Values are always multiples of n plus the key.
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Random random = new Random(42);
+                    for (int i = 0; i < writes; i++) {
+                        int k = random.nextInt(2 * n);
+                        if (k < n) {
+                            table.putAndRef(key(k), k + n * (i % 1000));
+                            table.unref(key(k));
+                        } else {
+                            table.touch(key(k), k);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    try {
+                        while (done.getCount() > 0) {
+                            int k = random.nextInt(n);
+                            Integer v = table.get(key(k));
+                            assertThat(v, notNullValue());
+                            assertThat(v % n, equalTo(k));
+                        }
+                    } catch (Throwable t) {
+                        error.set(t);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+}
@@ -26,7 +26,6 @@ import com.codahale.metrics.{MetricFilter, MetricRegistry}
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
-import org.midonet.cluster.DataClient
 import org.midonet.midolman.PacketWorkflow.{FlowCreated, StateMessage}
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
@@ -37,6 +36,7 @@ import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.state.{FlowStatePackets, HappyGoLuckyLeaser, MockStateStorage}
+import org.midonet.midolman.topology.DhcpConfigCache
 import org.midonet.midolman.topology.rcu.ResolvedHost
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.midolman.util.mock.MessageAccumulator
@@ -53,6 +53,7 @@ import org.midonet.sdn.state.ShardedFlowStateTable
 class DeduplicationActorTest extends MidolmanSpec {
     var datapath: Datapath = null
     var packetsSeen = List[(Packet, Int)]()
+    var contextsSeen = List[PacketContext]()
     var stateMessagesExecuted = 0
     var ddaRef: TestActorRef[TestableDDA] = _
     def dda = ddaRef.underlyingActor
@@ -65,7 +66,8 @@ class DeduplicationActorTest extends MidolmanSpec {
         createDda()
     }
 
-    def createDda(simulationExpireMillis: Long = 5000L): Unit = {
+    def createDda(simulationExpireMillis: Long = 5000L,
+                  packetQueue: PacketWorkerQueue = null): Unit = {
         if (ddaRef != null)
             actorSystem.stop(ddaRef)
 
@@ -73,14 +75,17 @@ class DeduplicationActorTest extends MidolmanSpec {
 
         val ddaProps = Props {
             new TestableDDA(new CookieGenerator(1, 1),
-            mockDpChannel, clusterDataClient,
+            mockDpChannel, dhcpConfig,
             new PacketPipelineMetrics(metricsReg),
             (x: Int) => { packetsOut += x },
-            simulationExpireMillis)
+            simulationExpireMillis,
+            packetQueue)
         }
 
         ddaRef = TestActorRef(ddaProps)(actorSystem)
         dda should not be null
+        if (packetQueue ne null)
+            packetQueue.worker = ddaRef
         ddaRef ! DatapathController.DatapathReady(datapath, new DatapathState {
             override def getDpPortForInterface(itfName: String): Option[DpPort] = ???
             override def dpPortNumberForTunnelKey(tunnelKey: Long): Option[DpPort] = ???
@@ -288,6 +293,99 @@ class DeduplicationActorTest extends MidolmanSpec {
         }
     }
 
+    feature("DeduplicationActor recycles packet contexts") {
+        scenario("the context of a completed packet is reused") {
+            Given("a packet that was simulated to completion")
+            ddaRef ! DeduplicationActor.HandlePackets(Array(makeStatePacket()))
+            dda.complete(null)
+            stateMessagesExecuted should be (1)
+
+            When("another packet is fed to the DDA")
+            val pkt = makePacket(1)
+            ddaRef ! DeduplicationActor.HandlePackets(Array(pkt))
+
+            Then("it should be simulated with the same context")
+            contextsSeen should have size 2
+            contextsSeen(1) should be theSameInstanceAs contextsSeen(0)
+
+            And("the context should have been reset for the new packet")
+            packetsSeen(1) should be ((pkt, 2))
+            contextsSeen(1).packet should be theSameInstanceAs pkt
+            contextsSeen(1).wcmatch should be (pkt.getMatch)
+        }
+
+        scenario("the context of a postponed packet is not reused") {
+            Given("a postponed packet")
+            ddaRef ! DeduplicationActor.HandlePackets(Array(makePacket(1)))
+
+            When("a packet with another match is fed to the DDA")
+            ddaRef ! DeduplicationActor.HandlePackets(Array(makePacket(2)))
+
+            Then("it should be simulated with another context")
+            contextsSeen should have size 2
+            contextsSeen(1) should not be theSameInstanceAs (contextsSeen(0))
+
+            When("the simulations complete")
+            dda.complete(Nil)
+
+            And("another packet is fed to the DDA")
+            ddaRef ! DeduplicationActor.HandlePackets(Array(makePacket(3)))
+
+            Then("it should be simulated with one of the recycled contexts")
+            contextsSeen should have size 3
+            contextsSeen take 2 exists (_ eq contextsSeen(2)) should be (true)
+        }
+    }
+
+    feature("DeduplicationActor handles packets from its packet queue") {
+        scenario("simulates the packets handed off through the queue") {
+            Given("a DDA with a packet queue")
+            val queue = PacketWorkerQueue(16, singleProducer = true)
+            createDda(packetQueue = queue)
+            dda.getAndClear()
+
+            When("4 packets with 3 different matches are queued")
+            val pkts = List(makePacket(1), makePacket(2), makePacket(3), makePacket(2))
+            pkts foreach queue.submit
+
+            Then("the DDA is not alerted before the end of the batch")
+            dda.messages should be (empty)
+            packetsSeen should be (empty)
+
+            When("the batch ends")
+            queue.wakeUp()
+
+            Then("the DDA should be alerted once")
+            dda.getAndClear() should be (List(CheckBackchannels))
+
+            And("3 packet workflows should be executed")
+            packetsSeen map (_._2) should be (1 to 3)
+            packetsOut should be (4)
+            queue.size should be (0)
+
+            When("another batch is queued")
+            queue.submit(makePacket(4))
+            queue.wakeUp()
+
+            Then("the DDA should be alerted again")
+            dda.getAndClear() should be (List(CheckBackchannels))
+            packetsSeen should have size 4
+        }
+
+        scenario("the DDA is alerted only when there are queued packets") {
+            Given("a DDA with an empty packet queue")
+            val queue = PacketWorkerQueue(16, singleProducer = false)
+            createDda(packetQueue = queue)
+            dda.getAndClear()
+
+            When("a batch ends without packets")
+            queue.wakeUp()
+
+            Then("the DDA should not be alerted")
+            dda.messages should be (empty)
+        }
+    }
+
     class MockPacketHandler() extends PacketHandler {
         var p = Promise[Any]()
         var generatedPacket: GeneratedPacket = _
@@ -297,6 +395,7 @@ class DeduplicationActorTest extends MidolmanSpec {
             pktCtx.runs += 1
             if (pktCtx.runs == 1) {
                 packetsSeen = packetsSeen :+ (pktCtx.packet, pktCtx.cookie)
+                contextsSeen = contextsSeen :+ pktCtx
                 if (pktCtx.isGenerated) {
                     FlowCreated
                 } else {
@@ -332,17 +431,18 @@ class DeduplicationActorTest extends MidolmanSpec {
 
     class TestableDDA(cookieGen: CookieGenerator,
                       dpChannel: DatapathChannel,
-                      clusterDataClient: DataClient,
+                      dhcpConfig: DhcpConfigCache,
                       metrics: PacketPipelineMetrics,
                       packetOut: Int => Unit,
-                      override val simulationExpireMillis: Long)
+                      override val simulationExpireMillis: Long,
+                      packetQueue: PacketWorkerQueue)
             extends DeduplicationActor(injector.getInstance(classOf[MidolmanConfig]),
-                                       cookieGen, dpChannel, clusterDataClient,
+                                       cookieGen, dpChannel, dhcpConfig,
                                        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
                                        new ShardedFlowStateTable[NatKey, NatBinding](),
                                        new MockStateStorage(),
                                        HappyGoLuckyLeaser,
-                                       metrics, packetOut)
+                                       metrics, packetOut, packetQueue)
             with MessageAccumulator {
 
         implicit override val dispatcher = this.context.dispatcher
@@ -154,6 +154,14 @@ class DhcpTest extends MidolmanSpec {
 
     def injectDhcpDiscover(port: BridgePort, portNumber: Int,
                            srcMac : MAC): Ethernet = {
+        val emitter = dhcpDiscover(portNumber, srcMac)
+        emitter should have size 1
+        emitter.head.egressPort should be (port.getId)
+        emitter.head.eth
+    }
+
+    def dhcpDiscover(portNumber: Int,
+                     srcMac: MAC): LinkedList[GeneratedPacket] = {
         val pkt = { eth src srcMac dst "ff:ff:ff:ff:ff:ff" } <<
                   { ip4 src 0 dst 0xffffffff } <<
                   { udp src 68 dst 67 } <<
@@ -174,10 +182,7 @@ class DhcpTest extends MidolmanSpec {
         val pktCtx = packetContextFor(pkt, inPortNumber = portNumber,
                                       emitter = emitter)
         workflow.start(pktCtx)
-
-        emitter should have size 1
-        emitter.head.egressPort should be (port.getId)
-        emitter.head.eth
+        emitter
     }
 
     def extractDhcpReply(ethPkt : Ethernet) = {
@@ -496,4 +501,32 @@ class DhcpTest extends MidolmanSpec {
         dhcpReply.getOptions.contains(
             classlessRoutesDhcpOption.get) should be (true)
     }
+
+    scenario("Assignments follow the changes of hosts and subnets") {
+        sendDhcpDiscoveryAndGetDhcpOffer(mac = vm1Mac)
+            .getYourIPAddress should be (vm1IP.getIntAddress)
+
+        val vm3Mac = MAC.fromString("02:33:33:33:33:33")
+        val vm3IP = IPv4Addr.fromString("10.0.2.3")
+        addDhcpHost(bridge, dhcpSubnet1,
+                    new DhcpHost().setMAC(vm3Mac).setIp(vm3IP))
+        sendDhcpDiscoveryAndGetDhcpOffer(mac = vm3Mac)
+            .getYourIPAddress should be (vm3IP.toInt)
+
+        clusterDataClient.dhcpHostsDelete(bridge.getId,
+                                          dhcpSubnet1.getSubnetAddr,
+                                          vm1Mac.toString)
+        dhcpDiscover(bridgePortNumber1, vm1Mac) should be ('empty)
+        sendDhcpDiscoveryAndGetDhcpOffer(mac = vm3Mac)
+            .getYourIPAddress should be (vm3IP.toInt)
+
+        dhcpSubnet2.setEnabled(false)
+        clusterDataClient.dhcpSubnetsUpdate(bridge.getId, dhcpSubnet2)
+        dhcpDiscover(bridgePortNumber1, vm2Mac) should be ('empty)
+
+        dhcpSubnet2.setEnabled(true)
+        clusterDataClient.dhcpSubnetsUpdate(bridge.getId, dhcpSubnet2)
+        sendDhcpDiscoveryAndGetDhcpOffer(mac = vm2Mac)
+            .getYourIPAddress should be (vm2IP.getIntAddress)
+    }
 }
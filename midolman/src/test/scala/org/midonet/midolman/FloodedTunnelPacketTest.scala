@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.cluster.data.{Bridge => ClusterBridge}
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.PacketWorkflow._
+import org.midonet.midolman.simulation.{Bridge, PacketContext}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.rcu.PortBinding
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.flows.FlowActions.output
+import org.midonet.packets._
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+
+@RunWith(classOf[JUnitRunner])
+class FloodedTunnelPacketTest extends MidolmanSpec {
+    var bridge: ClusterBridge = _
+    var localPort: BridgePort = _
+    var remotePort: BridgePort = _
+    var bridgeKey: Long = _
+
+    val tunnelPortNumber = 1
+    val localPortNumber = 2
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    override def beforeTest(): Unit = {
+        val remoteHost = newHost("remoteHost")
+
+        bridge = newBridge("bridge")
+        localPort = newBridgePort(bridge)
+        remotePort = newBridgePort(bridge)
+
+        materializePort(localPort, hostId, "localPort")
+        materializePort(remotePort, remoteHost.getId, "remotePort")
+
+        fetchTopology(bridge, localPort, remotePort)
+        bridgeKey = fetchDevice[Bridge](bridge).tunnelKey
+    }
+
+    feature("A packet tunnelled with a bridge's key") {
+        scenario("It is output to the bridge's local ports") {
+            Given("a local port with a datapath port")
+            val wf = workflow(Map(localPortNumber -> localPort.getId))
+
+            When("a packet with the bridge's key comes from the tunnel")
+            val context = tunnelledPacket(bridgeKey)
+            wf.start(context) should not be Drop
+
+            Then("it is output to the local port")
+            context.flowActions should contain (output(localPortNumber))
+
+            And("the flow is tagged with the bridge's exterior ports")
+            context should be (taggedWith(
+                FlowTagger.tagForDevice(localPort.getId),
+                FlowTagger.tagForDevice(remotePort.getId),
+                FlowTagger.tagForDpPort(localPortNumber),
+                FlowTagger.tagForBroadcast(bridge.getId),
+                FlowTagger.tagForTunnelKey(bridgeKey)))
+            context.idleExpirationMillis should be (IDLE_EXPIRATION_MILLIS)
+            context.hardExpirationMillis should be (0)
+        }
+
+        scenario("No local bridge has the key") {
+            Given("a local port with a datapath port")
+            val wf = workflow(Map(localPortNumber -> localPort.getId))
+
+            When("a packet with an unknown key comes from the tunnel")
+            val context = tunnelledPacket(bridgeKey + 1)
+            wf.start(context)
+
+            Then("the packet is temporarily dropped")
+            context.flowActions should be (empty)
+            context.idleExpirationMillis should be (0)
+            context.hardExpirationMillis should be (TEMPORARY_DROP_MILLIS)
+        }
+
+        scenario("The datapath port of a local port arrives late") {
+            Given("a local port without a datapath port")
+            val wf = workflow(Map())
+
+            When("a packet with the bridge's key comes from the tunnel")
+            val context = tunnelledPacket(bridgeKey)
+            wf.start(context)
+
+            Then("the flow has no output and expires shortly")
+            context.flowActions should be (empty)
+            context.idleExpirationMillis should be (0)
+            context.hardExpirationMillis should be (TEMPORARY_DROP_MILLIS)
+
+            And("it is tagged with the local port")
+            context should be (taggedWith(
+                FlowTagger.tagForDevice(localPort.getId),
+                FlowTagger.tagForBroadcast(bridge.getId)))
+
+            When("the datapath port appears")
+            val lateWf = workflow(Map(localPortNumber -> localPort.getId))
+            val lateContext = tunnelledPacket(bridgeKey)
+            lateWf.start(lateContext)
+
+            Then("the next packet is output to it")
+            lateContext.flowActions should contain (output(localPortNumber))
+            lateContext.idleExpirationMillis should be (IDLE_EXPIRATION_MILLIS)
+        }
+    }
+
+    def tunnelledPacket(key: Long): PacketContext = {
+        val context = packetContextFor(
+            { eth src MAC.random() dst MAC.random() },
+            inPortNumber = tunnelPortNumber)
+        context.origMatch.setTunnelKey(key)
+                         .setTunnelSrc(IPv4Addr.stringToInt("10.0.0.1"))
+                         .setTunnelDst(IPv4Addr.stringToInt("10.0.0.2"))
+        context.wcmatch.reset(context.origMatch)
+        context
+    }
+
+    def workflow(dpPortToVport: Map[Int, UUID]) =
+        packetWorkflow(dpPortToVport,
+                       Map(localPort.getId ->
+                           PortBinding(localPort.getId, localPort.getTunnelKey,
+                                       "localPort")),
+                       Set(tunnelPortNumber))
+}
@@ -21,6 +21,7 @@ import java.util.{ArrayList, HashSet => JHashSet}
 import scala.collection.JavaConversions._
 import scala.util.Random
 
+import org.apache.commons.configuration.HierarchicalConfiguration
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
@@ -36,7 +37,21 @@ import org.midonet.util.functors.Callback0
 @RunWith(classOf[JUnitRunner])
 class FlowControllerTest extends MidolmanSpec {
 
-    registerActors(FlowController -> (() => new FlowController))
+    object FlowControllerShard extends Referenceable {
+        override val Name = FlowController.shardName(1)
+    }
+
+    registerActors(FlowController -> (() => new FlowController),
+                   FlowControllerShard -> (() => {
+                       val shard = new FlowController
+                       shard.shard = 1
+                       shard
+                   }))
+
+    override def fillConfig(config: HierarchicalConfiguration) = {
+        config.setProperty("midolman.simulation_threads", 2)
+        super.fillConfig(config)
+    }
 
     val flowTimeout: Int = 1000
     val tagCount: Int = 10
@@ -127,7 +142,7 @@ class FlowControllerTest extends MidolmanSpec {
             val tag = TestableFlow.getTag(4)
 
             Then("The tag should not appear in the tag to flows map")
-            flowController.tagToFlows.get(tag) should be (None)
+            flowController.tagIndex.count(tag) should be (0)
 
             When("The flow is invalidated by a tag")
             FlowController ! FlowController.InvalidateFlowsByTag(tag)
@@ -152,11 +167,9 @@ class FlowControllerTest extends MidolmanSpec {
 
             val mwcFlow = testFlowAdded(flow, state)
 
-            When("The flow has expired")
-            expireFlowIdle(mwcFlow)
-
-            And("The flow controller checks the flow expiration")
-            FlowController ! FlowController.CheckFlowExpiration_
+            When("The flow controller checks the flow expiration once the " +
+                 "flow has expired")
+            checkFlowsExpirationAfter(flowTimeout)
 
             testFlowRemoved(flow, mwcFlow, state)
         }
@@ -173,11 +186,9 @@ class FlowControllerTest extends MidolmanSpec {
 
             val mwcFlow = testFlowAdded(flow, state)
 
-            When("The flow has expired")
-            expireFlowHard(mwcFlow)
-
-            And("The flow controller checks the flow expiration")
-            FlowController ! FlowController.CheckFlowExpiration_
+            When("The flow controller checks the flow expiration once the " +
+                 "flow has expired")
+            checkFlowsExpirationAfter(flowTimeout)
 
             testFlowRemoved(flow, mwcFlow, state)
         }
@@ -224,10 +235,7 @@ class FlowControllerTest extends MidolmanSpec {
 
             And("The flow controller should contain the flow tag mapping tags")
             for (tag <- flow.tagsSet) {
-                flowController.tagToFlows.get(tag) match {
-                    case None =>
-                    case Some(set) => set should contain (mwcFlow)
-                }
+                flowController.tagIndex.flowsFor(tag) should contain (mwcFlow)
             }
 
             And("The flow removal callback method should not have been called")
@@ -251,6 +259,35 @@ class FlowControllerTest extends MidolmanSpec {
         }
     }
 
+    feature("The flow controller shards share the invalidations") {
+        scenario("Invalidating a tag removes its flows from every shard") {
+            Given("A flow with the same tag in each shard")
+            val tag = TestableFlow.getTag(9)
+            val flow = new TestableFlow(9, extraTags = Seq(tag))
+            val shardFlow = new TestableFlow(10, extraTags = Seq(tag))
+            val shard = FlowControllerShard.as[FlowController]
+
+            When("The flows are added to their shards")
+            flow.add()
+            shardFlow.add(FlowControllerShard)
+
+            Then("Each shard should index its own flow")
+            flowController.tagIndex.count(tag) should be (1)
+            shard.tagIndex.count(tag) should be (1)
+            shard.flowManager.getNumDpFlows should be (1)
+
+            When("The tag is invalidated")
+            FlowController ! InvalidateFlowsByTag(tag)
+
+            Then("Both flows should be removed")
+            flow.isFlowRemoved should be (true)
+            shardFlow.isFlowRemoved should be (true)
+            flowController.tagIndex.count(tag) should be (0)
+            shard.tagIndex.count(tag) should be (0)
+            shard.flowManager.getNumDpFlows should be (0)
+        }
+    }
+
     private def testFlowAdded(flow: TestableFlow,
                               state: MetricsSnapshot): ManagedFlow = {
         Then("The datapath flow metric should be incremented by one")
@@ -266,8 +303,8 @@ class FlowControllerTest extends MidolmanSpec {
         And("The flow controller contains the correct tag mappings")
         var mwcFlow: ManagedFlow = null
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be None
-            mwcFlow = flowController.tagToFlows.get(tag).get.head
+            flowController.tagIndex.count(tag) should not be 0
+            mwcFlow = flowController.tagIndex.flowsFor(tag).head
             mwcFlow should not be null
         }
 
@@ -287,10 +324,7 @@ class FlowControllerTest extends MidolmanSpec {
 
         And("The flow controller should not contain the flow tag mapping tags")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) match {
-                case None =>
-                case Some(set) => set should not contain mwcFlow
-            }
+            flowController.tagIndex.flowsFor(tag) should not contain mwcFlow
         }
 
         And("The flow removal callback method was called")
@@ -310,20 +344,17 @@ class FlowControllerTest extends MidolmanSpec {
 
         And("The flow controller contains the correct tag mappings")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be None
-            flowController.tagToFlows.get(tag).get should contain (mwcFlow)
+            flowController.tagIndex.flowsFor(tag) should contain (mwcFlow)
         }
 
         And("The flow removal callback method was not called")
         flow.isFlowRemoved should be (false)
     }
 
-    private def expireFlowHard(mwcFlow: ManagedFlow) {
-        mwcFlow.setCreationTimeMillis(System.currentTimeMillis() - flowTimeout)
-    }
-
-    private def expireFlowIdle(mwcFlow: ManagedFlow) {
-        mwcFlow.setLastUsedTimeMillis(System.currentTimeMillis() - flowTimeout)
+    private def checkFlowsExpirationAfter(millis: Long) {
+        flowController.flowManager.checkFlowsExpiration(
+            System.currentTimeMillis() + millis +
+            FlowManager.TIMEOUT_WHEEL_TICK_MILLIS)
     }
 
     sealed abstract class TestableFlowType
@@ -332,13 +363,15 @@ class FlowControllerTest extends MidolmanSpec {
 
     sealed class TestableFlow(key: Int,
                               expirationMillis: Int = -1,
-                              flowType: TestableFlowType = TestableFlowIdleExpiration) {
+                              flowType: TestableFlowType = TestableFlowIdleExpiration,
+                              extraTags: Seq[FlowTag] = Seq()) {
         private var flowRemoved = false
         private val tunnelId = (key.toLong << 32) |
                 (Random.nextInt & 0xFFFFFFFFL)
         private val srcIpv4Address = (key << 16) | (Random.nextInt & 0xFFFF)
         private val dstIpv4Address = (key << 16) | (Random.nextInt & 0xFFFF)
-        private val tags = Seq.fill(tagCount)(TestableFlow.getTag(key))
+        private val tags =
+            Seq.fill(tagCount)(TestableFlow.getTag(key)) ++ extraTags
 
         val flowMatch = new FlowMatch().addKey(
             FlowKeys.tunnel(tunnelId, srcIpv4Address, dstIpv4Address, 0))
@@ -355,7 +388,7 @@ class FlowControllerTest extends MidolmanSpec {
 
         def getAnyTag: FlowTag = tags(Random.nextInt(tags.length))
 
-        def add(): Unit = {
+        def add(shard: Referenceable = FlowController): Unit = {
             val pktCtx = new PacketContext(0, null, flowMatch)
             pktCtx.callbackExecutor = CallbackExecutor.Immediate
             pktCtx.lastInvalidation = FlowController.lastInvalidationEvent
@@ -368,7 +401,7 @@ class FlowControllerTest extends MidolmanSpec {
                     pktCtx.hardExpirationMillis = expirationMillis
             }
             pktCtx.flowActions.add(FlowActions.output(4))
-            FlowController ! pktCtx
+            shard ! pktCtx
         }
 
         def remove(): Unit = {
@@ -26,7 +26,6 @@ import com.codahale.metrics.MetricRegistry
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
-import org.midonet.cluster.DataClient
 import org.midonet.cluster.data.{Bridge => ClusterBridge, Chain}
 import org.midonet.cluster.data.ports.BridgePort
 import org.midonet.cluster.data.rules.TraceRule
@@ -79,7 +78,7 @@ class FlowTracingTest extends MidolmanSpec {
         fetchTopology(bridge, port, chain)
 
         val ddaProps = Props {
-            new TestableDDA(new CookieGenerator(1, 1), mockDpChannel, clusterDataClient,
+            new TestableDDA(new CookieGenerator(1, 1), mockDpChannel, dhcpConfig,
                 new PacketPipelineMetrics(injector.getInstance(classOf[MetricRegistry])),
                 packetOut, preQueue, postQueue, 5000L)
         }
@@ -151,14 +150,14 @@ class FlowTracingTest extends MidolmanSpec {
 
     class TestableDDA(cookieGen: CookieGenerator,
                       dpChannel: DatapathChannel,
-                      clusterDataClient: DataClient,
+                      dhcpConfig: DhcpConfigCache,
                       metrics: PacketPipelineMetrics,
                       packetOut: Int => Unit,
                       preQueue: Queue[Boolean],
                       postQueue: Queue[Boolean],
                       override val simulationExpireMillis: Long)
             extends DeduplicationActor(injector.getInstance(classOf[MidolmanConfig]),
-                                       cookieGen, dpChannel, clusterDataClient,
+                                       cookieGen, dpChannel, dhcpConfig,
                                        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
                                        new ShardedFlowStateTable[NatKey, NatBinding](),
                                        new MockStateStorage(),
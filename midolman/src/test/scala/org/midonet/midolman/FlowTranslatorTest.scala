@@ -30,6 +30,7 @@ import org.scalatest.junit.JUnitRunner
 
 import org.midonet.cluster.data.ports.{BridgePort, VxLanPort}
 import org.midonet.cluster.data.{Bridge, Chain, Port}
+import org.midonet.midolman.FlowController.InvalidateFlowsByTag
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.midolman.rules.{Condition, RuleResult}
@@ -51,12 +52,19 @@ import org.midonet.util.concurrent.ExecutionContextOps
 @RunWith(classOf[JUnitRunner])
 class FlowTranslatorTest extends MidolmanSpec {
     registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor),
-                   VirtualToPhysicalMapper -> (() => new VirtualToPhysicalMapper))
+                   VirtualToPhysicalMapper -> (() => new VirtualToPhysicalMapper),
+                   FlowController -> (() => new FlowController))
 
     trait TranslationContext {
         protected val dpState: TestDatapathState
 
         var inPortUUID: Option[UUID] = None
+        var translator: TestFlowTranslator = null
+
+        /* Translates with the same translator from now on, so that it keeps
+         * its flood plans. */
+        def keepFloodPlans(perHostReplication: Boolean = false): Unit =
+            translator = new TestFlowTranslator(dpState, perHostReplication)
 
         def host(host: ResolvedHost): Unit = dpState.host = host
 
@@ -478,8 +486,110 @@ class FlowTranslatorTest extends MidolmanSpec {
         }
     }
 
-    sealed class TestFlowTranslator(val dpState: DatapathState) extends FlowTranslator {
+    feature("Flood plans are reused") {
+        translationScenario("A plan is reused until one of its tags is invalidated") { ctx =>
+            val bridge = newBridge("floodBridge")
+            val lport0 = makePort(hostId, bridge)(identity)
+            val lport1 = makePort(hostId, bridge)(identity)
+            ctx.keepFloodPlans()
+            ctx host makeHost(Map(lport0.getId -> "lport0",
+                                  lport1.getId -> "lport1"))
+            ctx local lport0.getId -> 2
+            ctx local lport1.getId -> 3
+
+            val brPorts = brPortIds(lport0, lport1)
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(output(2), output(3)),
+                        Set(FlowTagger.tagForDpPort(2),
+                            FlowTagger.tagForDpPort(3)))
+
+            ctx local lport1.getId -> 4
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(output(2), output(3)),
+                        Set(FlowTagger.tagForDpPort(2),
+                            FlowTagger.tagForDpPort(3)))
+
+            FlowController ! InvalidateFlowsByTag(FlowTagger.tagForDpPort(3))
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(output(2), output(4)),
+                        Set(FlowTagger.tagForDpPort(2),
+                            FlowTagger.tagForDpPort(4)))
+        }
+
+        translationScenario("A plan is not reused for other ports") { ctx =>
+            val bridge = newBridge("floodBridge")
+            val lport0 = makePort(hostId, bridge)(identity)
+            val lport1 = makePort(hostId, bridge)(identity)
+            ctx.keepFloodPlans()
+            ctx host makeHost(Map(lport0.getId -> "lport0",
+                                  lport1.getId -> "lport1"))
+            ctx local lport0.getId -> 2
+            ctx local lport1.getId -> 3
+
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId,
+                                                      brPortIds(lport0, lport1))
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId,
+                                                      brPortIds(lport1))
+            ctx verify (List(output(3)), Set(FlowTagger.tagForDpPort(3)))
+        }
+
+        translationScenario("A plan missing a peer is not reused") { ctx =>
+            val bridge = newBridge("floodBridge")
+            val remoteHost = UUID.randomUUID()
+            val rport = makePort(remoteHost, bridge) { _
+                .setInterfaceName("if")
+            }
+
+            ctx.keepFloodPlans()
+            ctx grePort 1342
+            ctx host makeHost(Map())
+
+            val brPorts = brPortIds(rport)
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(), Set.empty)
+
+            ctx peer remoteHost -> (1, 2)
+            ctx translate FlowActionOutputToVrnBridge(bridge.getId, brPorts)
+            ctx verify (List(setKey(FlowKeys.tunnel(rport.getTunnelKey, 1, 2, 0)),
+                             output(1342)),
+                        Set(FlowTagger.tagForTunnelRoute(1, 2)))
+        }
+    }
+
+    feature("Floods send one copy per remote host") {
+        translationScenario("Hosts whose bridge ports are all flooded get one copy") { ctx =>
+            val bridge = newBridge("floodBridge")
+            val remoteHost0 = UUID.randomUUID()
+            val remoteHost1 = UUID.randomUUID()
+            val rport0 = makePort(remoteHost0, bridge)(_.setInterfaceName("if0"))
+            val rport1 = makePort(remoteHost0, bridge)(_.setInterfaceName("if1"))
+            val rport2 = makePort(remoteHost1, bridge)(_.setInterfaceName("if2"))
+            val rport3 = makePort(remoteHost1, bridge)(_.setInterfaceName("if3"))
+
+            ctx.keepFloodPlans(perHostReplication = true)
+            ctx grePort 1342
+            ctx host makeHost(Map())
+            ctx peer remoteHost0 -> (1, 2)
+            ctx peer remoteHost1 -> (3, 4)
+
+            // rport3 isn't flooded, so its host gets a copy per flooded port
+            val bridgeKey = bridge.getTunnelKey.toLong
+            ctx translate FlowActionOutputToVrnBridge(
+                bridge.getId, brPortIds(rport0, rport1, rport2))
+            ctx verify (List(setKey(FlowKeys.tunnel(rport2.getTunnelKey, 3, 4, 0)),
+                             output(1342),
+                             setKey(FlowKeys.tunnel(bridgeKey, 1, 2, 0)),
+                             output(1342)),
+                        Set(FlowTagger.tagForTunnelRoute(1, 2),
+                            FlowTagger.tagForTunnelRoute(3, 4)))
+        }
+    }
+
+    sealed class TestFlowTranslator(val dpState: DatapathState,
+                                    perHostReplication: Boolean = false)
+            extends FlowTranslator {
         implicit protected def system: ActorSystem = actorSystem
+        override protected def floodPerHostReplication = perHostReplication
         implicit override protected def executor = ExecutionContext.callingThread
         val log: LoggingAdapter = Logging.getLogger(system, this.getClass)
 
@@ -531,7 +641,8 @@ class FlowTranslatorTest extends MidolmanSpec {
                         pktCtx = packetContext(ethernet, inPortUUID)
                         pktCtx.virtualFlowActions.addAll(actions)
                         pktCtx.outPortId = id
-                        val ft = new TestFlowTranslator(dpState)
+                        val ft = if (translator ne null) translator
+                                 else new TestFlowTranslator(dpState)
                         ft.translateActions(pktCtx)
                     }
                     pktCtx.outPortId should be (id)
@@ -261,7 +261,7 @@ class PingTest extends MidolmanSpec {
 
     def testDDA: DeduplicationActor = new DeduplicationActor(
         injector.getInstance(classOf[MidolmanConfig]),
-        new CookieGenerator(1, 1), mockDpChannel, clusterDataClient,
+        new CookieGenerator(1, 1), mockDpChannel, dhcpConfig,
         new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](),
         new ShardedFlowStateTable[NatKey, NatBinding](),
         new MockStateStorage(), HappyGoLuckyLeaser,
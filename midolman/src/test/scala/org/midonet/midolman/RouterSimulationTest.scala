@@ -27,6 +27,7 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.data.{Router => ClusterRouter}
 import org.midonet.cluster.data.ports.RouterPort
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, NoOp, TemporaryDrop, Drop}
+import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.rules.{RuleResult, NatTarget, Condition}
 import org.midonet.midolman.simulation.{Router => SimRouter, RouteBalancer}
@@ -34,6 +35,7 @@ import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
 import org.midonet.odp.flows._
 import org.midonet.packets._
 import org.midonet.packets.util.PacketBuilder._
@@ -102,6 +104,9 @@ class RouterSimulationTest extends MidolmanSpec {
     private def addressInSegment(port: RouterPort) : IPv4Addr =
         IPv4Addr.fromString(port.getPortAddr).next
 
+    private def seenFields(fields: Field*): Long =
+        fields.foldLeft(0L)((seen, f) => seen | (1L << f.ordinal))
+
     private def setKey[T <: FlowKey](action: FlowAction) =
         action.asInstanceOf[FlowActionSetKey].getFlowKey.asInstanceOf[T]
 
@@ -123,6 +128,82 @@ class RouterSimulationTest extends MidolmanSpec {
         } should contain theSameElementsAs gateways
     }
 
+    scenario("Balances routes by flow hash") {
+        val routeDst = "21.31.41.51"
+        val gateways = List("180.0.1.40", "180.0.1.41", "180.0.1.42")
+        gateways foreach { gw =>
+            newRoute(router, "0.0.0.0", 0, routeDst, 32,
+                     NextHop.PORT, uplinkPort.getId, gw, 1)
+        }
+
+        def fmatch(srcPort: Int) = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
+            .setNetworkDst(IPv4Addr.fromString(routeDst))
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(80)
+
+        val rb = new RouteBalancer(simRouter.rTable, hashFlows = true)
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val chosen = (1000 until 1300) map { port =>
+            val gw = rb.lookup(fmatch(port), log).getNextHopGateway
+            // The flows of a connection always take the same route
+            rb.lookup(fmatch(port), log).getNextHopGateway shouldBe gw
+            gw
+        }
+        chosen.toSet should contain theSameElementsAs gateways
+        for (gw <- gateways)
+            chosen.count(_ == gw) should be > 50
+
+        val m = fmatch(1000)
+        RouteBalancer.flowHash(m)
+        m.getSeenFields shouldBe seenFields(Field.NetworkSrc, Field.NetworkDst,
+                                            Field.NetworkProto, Field.SrcPort,
+                                            Field.DstPort)
+    }
+
+    scenario("Hashes the addresses of flows without ports") {
+        // GRE
+        def fmatch(src: String, ttl: Byte) = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString(src))
+            .setNetworkDst(IPv4Addr.fromString("21.31.41.51"))
+            .setNetworkProto(47.toByte)
+            .setNetworkTTL(ttl)
+
+        val m = fmatch("10.0.0.1", 64)
+        val h = RouteBalancer.flowHash(m)
+        m.getSeenFields shouldBe seenFields(Field.NetworkSrc, Field.NetworkDst,
+                                            Field.NetworkProto)
+
+        // Fields that aren't seen don't change the hash
+        RouteBalancer.flowHash(fmatch("10.0.0.1", 32)) shouldBe h
+        RouteBalancer.flowHash(fmatch("10.0.0.2", 64)) should not be h
+    }
+
+    scenario("Hashed flows only move off removed routes") {
+        val routes = (1 to 4) map { i =>
+            new Route(0, 0, 0x15000000, 8, NextHop.PORT, UUID.randomUUID(),
+                      0xb4000100 + i, 1, null, null)
+        }
+        val before = (0L until 1000L) map { h =>
+            RouteBalancer.selectByHash(routes, h * 7919) }
+        val after = (0L until 1000L) map { h =>
+            RouteBalancer.selectByHash(routes.tail, h * 7919) }
+        for ((b, a) <- before zip after if b ne routes.head)
+            a shouldBe b
+    }
+
+    scenario("Hashed flows are balanced by route weight") {
+        val light = new Route(0, 0, 0x15000000, 8, NextHop.PORT,
+                              UUID.randomUUID(), 0xb4000101, 0, null, null)
+        val heavy = new Route(0, 0, 0x15000000, 8, NextHop.PORT,
+                              UUID.randomUUID(), 0xb4000102, 2, null, null)
+        val chosen = (0L until 3000L) map { h =>
+            RouteBalancer.selectByHash(List(light, heavy), h * 7919) }
+        // Capacities are 1 and 1/3
+        chosen.count(_ eq light) should (be > 2000 and be < 2500)
+    }
+
     scenario("Drops IPv6") {
         val pkt = { eth ether_type IPv6.ETHERTYPE src "01:02:03:04:05:06" dst port1.getHwAddr }
         simulate(packetContextFor(pkt, uplinkPort.getId))._1 should be (Drop)
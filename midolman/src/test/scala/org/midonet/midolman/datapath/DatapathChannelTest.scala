@@ -18,6 +18,7 @@ package org.midonet.midolman.datapath
 
 import java.nio.ByteBuffer
 import java.util.ArrayList
+import java.util.concurrent.{CountDownLatch, TimeUnit}
 
 import org.jctools.queues.SpscArrayQueue
 
@@ -29,7 +30,7 @@ import org.scalatest.concurrent.Eventually._
 import org.midonet.midolman.FlowController.FlowRemoveCommand
 import org.midonet.midolman.flows.FlowEjector
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage}
+import org.midonet.netlink._
 import org.midonet.odp._
 import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
 import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowAction, FlowActions}
@@ -133,7 +134,8 @@ class DatapathChannelTest extends MidolmanSpec {
 
             packet.getMatch.setSequence(1)
             val flowDelete = new FlowRemoveCommand(new ArrayObjectPool(0, _ => null),
-                                                   new SpscArrayQueue[FlowRemoveCommand](16))
+                                                   new SpscArrayQueue[FlowRemoveCommand](16),
+                                                   actorSystem.deadLetters)
             val managedFlow = new ManagedFlow(null)
             managedFlow.flowMatch.reset(packet.getMatch)
             flowDelete.reset(managedFlow, 0)
@@ -158,6 +160,41 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    feature ("DatapathChannel batches packet executions") {
+        scenario ("The executions of a batch are written together") {
+            val entered = new CountDownLatch(1)
+            val release = new CountDownLatch(1)
+            val channel = new MockNetlinkChannel(Netlink.selectorProvider,
+                                                 NetlinkProtocol.NETLINK_GENERIC) {
+                override def write(srcs: Array[ByteBuffer]): Long = {
+                    entered.countDown()
+                    release.await()
+                    super.write(srcs)
+                }
+            }
+            val batchingChannel = new DisruptorDatapathChannel(
+                capacity = 16, threads = 1, ejector,
+                new NetlinkChannelFactory {
+                    override def create(blocking: Boolean) = channel
+                }, ovsFamilies, clock, packetExecuteBatch = 8)
+            batchingChannel.start(new Datapath(datapathId, "midonet"))
+            try {
+                batchingChannel.executePacket(packet, actions)
+                entered.await(10, TimeUnit.SECONDS) should be (true)
+                (1 to 10) foreach { _ => batchingChannel.executePacket(packet, actions) }
+                release.countDown()
+
+                eventually {
+                    channel.packetsWritten.get() should be (11)
+                }
+                channel.writeCalls.get() should be (3)
+            } finally {
+                release.countDown()
+                batchingChannel.stop()
+            }
+        }
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
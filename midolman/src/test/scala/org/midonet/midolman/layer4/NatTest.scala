@@ -1008,7 +1008,7 @@ class NatTest extends MidolmanSpec {
 
     def testDDA: DeduplicationActor = new DeduplicationActor(
         injector.getInstance(classOf[MidolmanConfig]),
-        new CookieGenerator(1, 1), mockDpChannel, clusterDataClient,
+        new CookieGenerator(1, 1), mockDpChannel, dhcpConfig,
         new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard(),
         new ShardedFlowStateTable[NatKey, NatBinding](clock).addShard(),
         new MockStateStorage(), HappyGoLuckyLeaser,
@@ -18,7 +18,8 @@ package org.midonet.midolman.simulation
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4, IPv4Addr, IPv4Subnet, IPv6, TCP, UDP}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -26,6 +27,7 @@ import org.scalatest.{BeforeAndAfterAll, BeforeAndAfter, Matchers, Suite}
 import org.scalatest.junit.JUnitRunner
 import akka.actor.ActorSystem
 import scala.collection.mutable
+import scala.util.Random
 
 import scala.collection.JavaConverters._
 
@@ -189,15 +191,18 @@ class ChainTest extends Suite
         val jumpTargetMap = mutable.Map[UUID, Chain]()
         val chainId = UUID.randomUUID
         val name = "Chain-" + chainId
+        val middleChainId = UUID.randomUUID
+        val jumpToMiddleChain = new JumpRule(Condition.TRUE, middleChainId,
+                                             "Chain-" + middleChainId, null, 0)
         val innerAndOuterChain = new Chain(chainId,
-                                           List[Rule](rejectRule).asJava,
+                                           List[Rule](jumpToMiddleChain,
+                                                      rejectRule).asJava,
                                            jumpTargetMap, name)
         val middleChain = makeChain(List(makeJumpRule(innerAndOuterChain),
                                          acceptRule),
-                                    List(innerAndOuterChain))
+                                    List(innerAndOuterChain), middleChainId)
 
         // Add a jump from innerAndOuterChain to middleChain.
-        innerAndOuterChain.getRules.add(0, makeJumpRule(middleChain))
         jumpTargetMap(middleChain.id) = middleChain
 
         applyChain(innerAndOuterChain).action should be (Action.ACCEPT)
@@ -215,26 +220,207 @@ class ChainTest extends Suite
         val jumpTargetMap = mutable.Map[UUID, Chain]()
         val chainId = UUID.randomUUID
         val name = "Chain-" + chainId
+        val middleChainId = UUID.randomUUID
+        val jumpToMiddleChain = new JumpRule(Condition.TRUE, middleChainId,
+                                             "Chain-" + middleChainId, null, 0)
         val innerAndOuterChain = new Chain(chainId,
-                                           List[Rule](acceptRule).asJava,
+                                           List[Rule](jumpToMiddleChain,
+                                                      acceptRule).asJava,
                                            jumpTargetMap, name)
         val middleChain = makeChain(List(makeJumpRule(innerAndOuterChain),
                                          rejectRule),
-                                    List(innerAndOuterChain))
+                                    List(innerAndOuterChain), middleChainId)
 
         // Add a jump from innerAndOuterChain to middleChain.
-        innerAndOuterChain.getRules.add(0, makeJumpRule(middleChain))
         jumpTargetMap(middleChain.id) = middleChain
 
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    /*
+     * Compares the rules that a compiled chain and a chain that processes
+     * every rule apply to random packets, and the fields of the packets they
+     * see.
+     */
+    def testCompiledChainAppliesTheSameRules() {
+        val random = new Random(42)
+        val ports = List.fill(4)(UUID.randomUUID)
+        for (_ <- 1 to 50) {
+            val applied = mutable.ArrayBuffer[Int]()
+            val rules = (0 until 100) map { i =>
+                new RecordingRule(randomCondition(random, ports),
+                                  randomAction(random), i, applied): Rule
+            }
+            val compiled = new Chain(UUID.randomUUID, rules.asJava,
+                                     Map[UUID, Chain](), "compiled", true)
+            val linear = new Chain(UUID.randomUUID, rules.asJava,
+                                   Map[UUID, Chain](), "linear", false)
+            for (_ <- 1 to 50) {
+                val seed = random.nextLong()
+                val isPortFilter = random.nextInt(4) == 0
+                pktCtx = randomPacket(new Random(seed), ports)
+                val expected = Chain.apply(linear, pktCtx, ownerId,
+                                           isPortFilter).action
+                val expectedRules = applied.toList
+                val expectedSeenFields = pktCtx.wcmatch.getSeenFields
+                applied.clear()
+                pktCtx = randomPacket(new Random(seed), ports)
+                Chain.apply(compiled, pktCtx, ownerId,
+                            isPortFilter).action should be (expected)
+                applied.toList should be (expectedRules)
+                pktCtx.wcmatch.getSeenFields should be (expectedSeenFields)
+                applied.clear()
+            }
+        }
+    }
+
+    def testCompiledChainSeesTheFieldsOfSkippedRules() {
+        val tcpCond = new Condition()
+        tcpCond.nwProto = TCP.PROTOCOL_NUMBER
+        val portCond = new Condition()
+        portCond.inPortIds = new java.util.HashSet[UUID]()
+        portCond.inPortIds.add(UUID.randomUUID)
+        val rules = List[Rule](new LiteralRule(tcpCond, Action.DROP),
+                               new LiteralRule(portCond, Action.DROP))
+        val compiled = makeChain(rules)
+        val linear = new Chain(UUID.randomUUID, rules.asJava,
+                               Map[UUID, Chain](), "linear", false)
+
+        def udpPacket() = {
+            val fmatch = new FlowMatch()
+            fmatch.setEtherType(IPv4.ETHERTYPE)
+            fmatch.setNetworkProto(UDP.PROTOCOL_NUMBER)
+            fmatch.setNetworkDst(IPv4Addr.fromString("10.0.0.1"))
+            val context = new PacketContext(1, null, fmatch)
+            context.inPortId = UUID.randomUUID
+            context
+        }
+
+        pktCtx = udpPacket()
+        applyChain(linear).action should be (Action.ACCEPT)
+        val expectedSeenFields = pktCtx.wcmatch.getSeenFields
+
+        pktCtx = udpPacket()
+        applyChain(compiled).action should be (Action.ACCEPT)
+        pktCtx.wcmatch.isSeen(FlowMatch.Field.NetworkProto) should be (true)
+        pktCtx.wcmatch.getSeenFields should be (expectedSeenFields)
+    }
+
+    def testCompiledChainWithManyRules() {
+        val port = UUID.randomUUID
+        val rules = (0 until 1000) map { i =>
+            val cond = new Condition()
+            cond.nwDstIp = new IPv4Subnet(0x0a000000 + i, 32)
+            new LiteralRule(cond, if (i % 2 == 0) Action.ACCEPT
+                                  else Action.DROP): Rule
+        }
+        val chain = makeChain(rules.toList)
+        for (i <- Seq(0, 1, 63, 64, 65, 998, 999)) {
+            pktMatch.setNetworkDst(IPv4Addr.fromInt(0x0a000000 + i))
+            pktCtx = new PacketContext(1, null, pktMatch)
+            applyChain(chain).action should be (
+                if (i % 2 == 0) Action.ACCEPT else Action.DROP)
+        }
+        pktMatch.setNetworkDst(IPv4Addr.fromInt(0x0a000000 + 1000))
+        pktCtx = new PacketContext(1, null, pktMatch)
+        applyChain(chain).action should be (Action.ACCEPT)
+    }
+
+    private class RecordingRule(condition: Condition, action: Action,
+                                index: Int, applied: mutable.Buffer[Int])
+            extends Rule(condition, action) {
+        override def apply(pktCtx: PacketContext, res: RuleResult,
+                           ownerId: UUID): Unit = {
+            applied += index
+            res.action = action
+        }
+    }
+
+    private def randomAction(random: Random) = random.nextInt(4) match {
+        case 0 => Action.ACCEPT
+        case 1 => Action.DROP
+        case _ => Action.CONTINUE
+    }
+
+    private def randomSubnet(random: Random) = {
+        val prefixLen = List(8, 16, 24, 32)(random.nextInt(4))
+        new IPv4Subnet(IPv4Addr.fromString(
+            s"10.0.${random.nextInt(4)}.${random.nextInt(4)}"), prefixLen)
+    }
+
+    private def randomRange(random: Random) = {
+        val start = random.nextInt(20)
+        random.nextInt(4) match {
+            case 0 => new Range[Integer](null, start)
+            case 1 => new Range[Integer](start, null)
+            case _ => new Range[Integer](start, start + random.nextInt(5))
+        }
+    }
+
+    private def randomCondition(random: Random, ports: List[UUID]) = {
+        def maybe = random.nextInt(3) == 0
+        def inverted = random.nextInt(10) == 0
+        val cond = new Condition()
+        cond.conjunctionInv = random.nextInt(20) == 0
+        if (maybe) {
+            cond.etherType = if (random.nextInt(4) == 0) IPv6.ETHERTYPE & 0xffff
+                             else IPv4.ETHERTYPE.toInt
+            cond.invDlType = inverted
+        }
+        if (maybe) {
+            cond.nwProto = if (random.nextBoolean()) TCP.PROTOCOL_NUMBER
+                           else UDP.PROTOCOL_NUMBER
+            cond.nwProtoInv = inverted
+        }
+        if (maybe) {
+            cond.nwSrcIp = randomSubnet(random)
+            cond.nwSrcInv = inverted
+        }
+        if (maybe) {
+            cond.nwDstIp = randomSubnet(random)
+            cond.nwDstInv = inverted
+        }
+        if (maybe) {
+            cond.tpSrc = randomRange(random)
+            cond.tpSrcInv = inverted
+        }
+        if (maybe) {
+            cond.tpDst = randomRange(random)
+            cond.tpDstInv = inverted
+        }
+        if (maybe) {
+            cond.inPortIds = new java.util.HashSet[UUID]()
+            cond.inPortIds.add(ports(random.nextInt(ports.size)))
+            cond.inPortIds.add(ports(random.nextInt(ports.size)))
+            cond.inPortInv = inverted
+        }
+        cond
+    }
+
+    private def randomPacket(random: Random, ports: List[UUID]) = {
+        val fmatch = new FlowMatch()
+        fmatch.setEtherType(IPv4.ETHERTYPE)
+        fmatch.setNetworkProto(if (random.nextBoolean()) TCP.PROTOCOL_NUMBER
+                               else UDP.PROTOCOL_NUMBER)
+        fmatch.setNetworkSrc(IPv4Addr.fromString(
+            s"10.0.${random.nextInt(4)}.${random.nextInt(4)}"))
+        fmatch.setNetworkDst(IPv4Addr.fromString(
+            s"10.${random.nextInt(2)}.${random.nextInt(4)}.${random.nextInt(4)}"))
+        fmatch.setSrcPort(random.nextInt(25))
+        fmatch.setDstPort(random.nextInt(25))
+        val context = new PacketContext(1, null, fmatch)
+        context.inPortId =
+            if (random.nextInt(5) == 0) null
+            else ports(random.nextInt(ports.size))
+        context
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
     private def makeChain(rules: List[Rule],
-                          jumpTargets: List[Chain] = Nil): Chain = {
-        val chainId = UUID.randomUUID
+                          jumpTargets: List[Chain] = Nil,
+                          chainId: UUID = UUID.randomUUID): Chain = {
         val jumpTargetMap = jumpTargets.map(c => (c.id, c)).toMap
         val name = "Chain-" + chainId.toString
         rules.foreach(_.chainId = chainId)
@@ -24,16 +24,16 @@ import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
 import org.midonet.midolman.simulation.PacketContext
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackLayout, ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.VirtualTopologyActor.PortRequest
 import org.midonet.midolman.topology.devices.BridgePort
 import org.midonet.odp.{FlowMatch, Packet}
 import org.midonet.odp.flows.FlowKeys
-import org.midonet.packets.{IPv4Addr, MAC, Ethernet}
+import org.midonet.packets.{IPv4Addr, IPv6Addr, MAC, Ethernet}
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.sdn.state.{OffHeapFlowStateTable, ShardedFlowStateTable, FlowStateTransaction}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.util.collection.Reducer
 
@@ -149,6 +149,45 @@ class ConntrackStateTest extends MidolmanSpec {
         }
     }
 
+    feature("Connections are tracked in off-heap tables") {
+        scenario("Keys and values are encoded without loss") {
+            val words = new Array[Long](ConnTrackLayout.keyWords)
+            for (key <- Seq(ConnTrackKey(IPv4Addr.random, 65535,
+                                         IPv4Addr.fromString("255.0.0.1"), 42,
+                                         1, UUID.randomUUID()),
+                            ConnTrackKey(IPv6Addr.fromString("fe80::1"), 80,
+                                         IPv6Addr.random, -1, -7,
+                                         UUID.randomUUID()),
+                            ConnTrackKey(null, 0, IPv4Addr.random, 0, 6,
+                                         UUID.randomUUID()))) {
+                ConnTrackLayout.encodeKey(key, words, 0)
+                ConnTrackLayout.decodeKey(words, 0) should be (key)
+            }
+            for (value <- Seq(java.lang.Boolean.TRUE, java.lang.Boolean.FALSE)) {
+                ConnTrackLayout.encodeValue(value, words, 1)
+                ConnTrackLayout.decodeValue(words, 1) should be theSameInstanceAs value
+            }
+        }
+
+        scenario("Forward flows are recognized") {
+            val table = new OffHeapFlowStateTable(ConnTrackLayout, clock)
+            val tx = new FlowStateTransaction(table)
+            val fmatch = new FlowMatch(FlowKeys.fromEthernetPacket(ping))
+            val ctx = new PacketContext(1, new Packet(ping, fmatch), fmatch)
+            ctx.initialize(tx, new FlowStateTransaction[NatKey, NatBinding](null),
+                           HappyGoLuckyLeaser)
+            ctx.inputPort = portId
+
+            ctx.isForwardFlow should be (true)
+            ctx.trackConnection(egressDevice)
+            tx.commit()
+
+            val egressKey = ConnTrackState.EgressConnTrackKey(ctx.wcmatch, egressDevice)
+            table.get(egressKey) should be (ConnTrackState.RETURN_FLOW)
+            table.getRefCount(egressKey) should be (1)
+        }
+    }
+
     def transactionValues[K, V](tx: FlowStateTransaction[K, V]): HashMap[K, V] =
        tx.fold(new HashMap[K, V](),
                new Reducer[K, V, HashMap[K, V]] {
@@ -29,6 +29,7 @@ import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 import org.slf4j.LoggerFactory
 
+import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.UnderlayResolver
 import org.midonet.midolman.simulation.PortGroup
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
@@ -402,6 +403,39 @@ class FlowStateReplicatorTest extends FeatureSpec
             recipient.invalidatedKeys should contain (k)
         }
     }
+
+    feature("State fetched from storage is imported in chunks") {
+        scenario("Keys are imported a chunk at a time") {
+            Given("A batch of keys fetched from storage")
+            val strongConnTrack = new JHashSet[ConnTrackKey](connTrackKeys.asJava)
+            val weakNat = new java.util.HashMap[NatKey, NatBinding](natMappings.asJava)
+            recipient.importFromStorage(FlowStateBatch(
+                strongConnTrack, new JHashSet[ConnTrackKey](),
+                new java.util.HashMap[NatKey, NatBinding](), weakNat))
+
+            Then("The keys are queued for import")
+            recipient.pendingImportSize shouldBe 4
+            recipient.conntrackTable.entries shouldBe empty
+
+            When("Importing a chunk of three keys")
+            recipient.importPending(3) shouldBe 3
+
+            Then("The first three keys are imported")
+            recipient.pendingImportSize shouldBe 1
+            recipient.conntrackTable.entries.keySet shouldBe connTrackKeys.toSet
+            recipient.natTable.entries should have size 1
+
+            When("Importing the next chunk")
+            recipient.importPending(3) shouldBe 1
+
+            Then("All keys are imported and unreferenced")
+            recipient.pendingImportSize shouldBe 0
+            recipient.natTable.entries shouldBe natMappings
+            recipient.natTable.unrefedKeys shouldBe natMappings.keySet
+            recipient.conntrackTable.unrefedKeys shouldBe connTrackKeys.toSet
+            recipient.importPending(3) shouldBe 0
+        }
+    }
 }
 
 class TestableFlowStateReplicator(
@@ -22,6 +22,7 @@ import scala.collection.JavaConverters._
 import scala.concurrent.Await
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.cassandraunit.utils.EmbeddedCassandraServerHelper
 import org.junit.runner.RunWith
 import org.scalatest._
@@ -60,6 +61,7 @@ class FlowStateStorageTest extends FeatureSpec
     val egressPorts = List(UUID.randomUUID(), UUID.randomUUID())
 
     var cass: CassandraClient = _
+    var writer: FlowStateWriter = _
     var storage: FlowStateStorage = _
 
     before {
@@ -69,7 +71,13 @@ class FlowStateStorageTest extends FeatureSpec
                                    "MidonetFlowState", 1,
                                    FlowStateStorage.SCHEMA, null)
         cass.connect()
-        storage = FlowStateStorage(cass)
+        writer = FlowStateStorage.writer(cass, new MetricRegistry)
+        writer.start()
+        storage = FlowStateStorage(cass, writer)
+    }
+
+    after {
+        writer.stop()
     }
 
     feature("Stores and fetches state from cassandra") {
@@ -116,5 +124,25 @@ class FlowStateStorageTest extends FeatureSpec
                 }
             }
         }
+
+        scenario("Keys are fetched in pages") {
+            val device = UUID.randomUUID()
+            val keys = (1 to 25) map { i =>
+                ConnTrackKey("10.0.0.1", i, "10.0.0.2", 80, 6, device) }
+            for (k <- keys) {
+                storage.touchConnTrackKey(k, ingressPort, egressPorts.asJava.iterator())
+            }
+            storage.submit()
+
+            eventually {
+                val pages = new java.util.concurrent.ConcurrentLinkedQueue[
+                    java.util.Set[ConnTrackKey]]()
+                Await.result(storage.fetchConnTrackRefPages(
+                    ingressPort, strong = true, pageSize = 10)(pages.add(_)),
+                    expiration)
+                pages.asScala.map(_.size) shouldBe List(10, 10, 5)
+                pages.asScala.flatMap(_.asScala).toSet shouldBe keys.toSet
+            }
+        }
     }
 }
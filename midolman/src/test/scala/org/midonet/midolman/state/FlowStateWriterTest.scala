@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{List => JList, UUID}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.datastax.driver.core.ResultSet
+import com.google.common.util.concurrent.{ListenableFuture, SettableFuture}
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateWriter._
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateWriterTest extends FeatureSpec with Matchers {
+
+    /* Records the batches instead of sending them to Cassandra */
+    class RecordingSession extends Session {
+        val batches = mutable.ListBuffer[(UUID, List[Write], SettableFuture[ResultSet])]()
+
+        override def write(port: UUID, writes: JList[Write])
+        : ListenableFuture[ResultSet] = {
+            val future = SettableFuture.create[ResultSet]()
+            batches.synchronized {
+                batches += ((port, writes.asScala.toList, future))
+            }
+            future
+        }
+
+        def completeAll(): Unit = batches foreach { _._3.set(null) }
+    }
+
+    val ingress = UUID.randomUUID()
+    val egress = UUID.randomUUID()
+    val device = UUID.randomUUID()
+
+    def conntrackKey(port: Int) =
+        ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), port,
+                     IPv4Addr.fromString("10.0.0.2"), 80, 6, device)
+
+    def natKey(port: Int) =
+        NatKey(NatState.FWD_SNAT, IPv4Addr.fromString("192.168.1.1"), port,
+               IPv4Addr.fromString("17.16.15.1"), 80, 6, device)
+
+    def egressPorts(ports: UUID*) = ports.toList.asJava.iterator()
+
+    def meter(registry: MetricRegistry, metric: String) =
+        registry.getMeters.get(
+            MetricRegistry.name(classOf[FlowStateWriter], metric)).getCount
+
+    def gauge(registry: MetricRegistry, metric: String) =
+        registry.getGauges.get(
+            MetricRegistry.name(classOf[FlowStateWriter], metric))
+            .asInstanceOf[Gauge[Int]].getValue
+
+    feature("Writes are coalesced within a window") {
+        scenario("Repeated touches of a key are written once per port") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry)
+
+            for (i <- 1 to 3)
+                writer.touchConnTrackKey(conntrackKey(1), ingress, egressPorts(egress))
+            gauge(registry, "queueDepth") shouldBe 6
+            writer.flush()
+
+            gauge(registry, "queueDepth") shouldBe 0
+            session.batches should have size 2
+            session.batches.map(b => (b._1, b._2)).toSet shouldBe Set(
+                (ingress, List(ConnTrackWrite(ingress, ingress = true, conntrackKey(1)))),
+                (egress, List(ConnTrackWrite(egress, ingress = false, conntrackKey(1)))))
+            meter(registry, "coalesced") shouldBe 4
+        }
+
+        scenario("A coalesced NAT binding keeps the last value") {
+            val session = new RecordingSession
+            val writer = new FlowStateWriter(() => session, new MetricRegistry)
+
+            writer.touchNatKey(natKey(1), NatBinding(IPv4Addr.fromString("1.1.1.1"), 1000),
+                               ingress, egressPorts())
+            writer.touchNatKey(natKey(1), NatBinding(IPv4Addr.fromString("2.2.2.2"), 2000),
+                               ingress, egressPorts())
+            writer.flush()
+
+            session.batches should have size 1
+            val List(write: NatWrite) = session.batches.head._2
+            write.key shouldBe natKey(1)
+            write.value shouldBe NatBinding(IPv4Addr.fromString("2.2.2.2"), 2000)
+        }
+    }
+
+    feature("Writes are batched by port") {
+        scenario("Batches are bounded by the maximum batch size") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry,
+                                             maxBatchSize = 4)
+
+            for (i <- 1 to 10)
+                writer.touchConnTrackKey(conntrackKey(i), ingress, egressPorts(egress))
+            writer.flush()
+
+            val byPort = session.batches.groupBy(_._1)
+            byPort.keySet shouldBe Set(ingress, egress)
+            for ((port, batches) <- byPort) {
+                batches.map(_._2.size) shouldBe List(4, 4, 2)
+                batches.flatMap(_._2).forall(_.port == port) shouldBe true
+            }
+            meter(registry, "batches") shouldBe 6
+
+            meter(registry, "writes") shouldBe 0
+            session.completeAll()
+            meter(registry, "writes") shouldBe 20
+            gauge(registry, "inFlight") shouldBe 0
+        }
+    }
+
+    feature("The writer bounds the requests in flight") {
+        scenario("Writes are deferred until a batch completes") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry,
+                                             maxBatchSize = 2, maxInFlight = 2)
+
+            for (i <- 1 to 6)
+                writer.touchConnTrackKey(conntrackKey(i), ingress, egressPorts())
+            writer.flush()
+
+            session.batches should have size 2
+            gauge(registry, "inFlight") shouldBe 2
+            meter(registry, "deferred") shouldBe 2
+
+            // A touch of a deferred key is coalesced with it
+            writer.touchConnTrackKey(conntrackKey(6), ingress, egressPorts())
+            writer.flush()
+            session.batches should have size 2
+            meter(registry, "coalesced") shouldBe 1
+
+            session.completeAll()
+            gauge(registry, "inFlight") shouldBe 0
+            writer.flush()
+            session.batches should have size 3
+            session.batches.flatMap(_._2).toSet shouldBe
+                (1 to 6).map(i => ConnTrackWrite(ingress, ingress = true,
+                                                 conntrackKey(i))).toSet
+        }
+
+        scenario("Failed batches release their permit") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry,
+                                             maxInFlight = 1)
+
+            writer.touchConnTrackKey(conntrackKey(1), ingress, egressPorts())
+            writer.flush()
+            session.batches.head._3.setException(new Exception("timeout"))
+            meter(registry, "failed") shouldBe 1
+
+            writer.touchConnTrackKey(conntrackKey(2), ingress, egressPorts())
+            writer.flush()
+            session.batches should have size 2
+        }
+    }
+
+    feature("Writes are dropped when they can't be sent") {
+        scenario("There is no session") {
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => null, registry)
+
+            writer.touchConnTrackKey(conntrackKey(1), ingress, egressPorts(egress))
+            writer.flush()
+            meter(registry, "dropped") shouldBe 2
+
+            val session = new RecordingSession
+            val recovered = new FlowStateWriter(() => session, new MetricRegistry)
+            recovered.touchConnTrackKey(conntrackKey(2), ingress, egressPorts())
+            recovered.flush()
+            session.batches should have size 1
+        }
+
+        scenario("Too many writes are deferred") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry,
+                                             maxBatchSize = 1, maxInFlight = 1,
+                                             maxPending = 4)
+
+            for (i <- 1 to 5)
+                writer.touchConnTrackKey(conntrackKey(i), ingress, egressPorts())
+            writer.flush()
+            meter(registry, "dropped") shouldBe 0
+
+            for (i <- 6 to 10)
+                writer.touchConnTrackKey(conntrackKey(i), ingress, egressPorts())
+            writer.flush()
+            session.batches should have size 1
+            meter(registry, "dropped") shouldBe 9
+
+            session.completeAll()
+            writer.flush()
+            session.batches should have size 1
+        }
+
+        scenario("The queue is full") {
+            val session = new RecordingSession
+            val registry = new MetricRegistry
+            val writer = new FlowStateWriter(() => session, registry,
+                                             queueCapacity = 4)
+
+            for (i <- 1 to 6)
+                writer.touchConnTrackKey(conntrackKey(i), ingress, egressPorts())
+            meter(registry, "dropped") shouldBe 2
+            writer.flush()
+            session.batches.head._2 should have size 4
+        }
+    }
+
+    feature("The writer thread flushes every window") {
+        scenario("Writes are sent without an explicit flush") {
+            val session = new RecordingSession
+            val writer = new FlowStateWriter(() => session, new MetricRegistry,
+                                             windowMillis = 10)
+            writer.start()
+            try {
+                writer.touchConnTrackKey(conntrackKey(1), ingress, egressPorts())
+                val deadline = System.currentTimeMillis() + 5000
+                while (session.batches.synchronized(session.batches.isEmpty) &&
+                       System.currentTimeMillis() < deadline)
+                    Thread.sleep(10)
+                session.batches should have size 1
+            } finally {
+                writer.stop()
+            }
+        }
+    }
+}
@@ -27,13 +27,13 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.ConnTrackState._
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatLayout}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.flows.FlowKeys
 import org.midonet.odp.{FlowMatch, Packet}
 import org.midonet.packets._
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.sdn.state.{OffHeapFlowStateTable, ShardedFlowStateTable, FlowStateTransaction}
 import org.midonet.util.collection.Reducer
 
 @RunWith(classOf[JUnitRunner])
@@ -452,6 +452,46 @@ class NatStateTest extends MidolmanSpec {
         natTx.size() should be (0)
     }
 
+    feature("NAT bindings are kept in off-heap tables") {
+        scenario("Keys and values are encoded without loss") {
+            val words = new Array[Long](NatLayout.keyWords)
+            for (keyType <- Seq(NatState.FWD_SNAT, NatState.FWD_DNAT,
+                                NatState.FWD_STICKY_DNAT, NatState.REV_SNAT,
+                                NatState.REV_DNAT, NatState.REV_STICKY_DNAT)) {
+                val key = NatKey(keyType, IPv4Addr.random, 65535,
+                                 IPv4Addr.fromString("255.1.2.3"), 0, 17,
+                                 UUID.randomUUID())
+                NatLayout.encodeKey(key, words, 0)
+                val decoded = NatLayout.decodeKey(words, 0)
+                decoded should be (key)
+                decoded.expiresAfter should be (key.expiresAfter)
+            }
+            val binding = NatBinding(IPv4Addr.fromString("200.0.0.1"), 65000)
+            NatLayout.encodeValue(binding, words, 2)
+            NatLayout.decodeValue(words, 2) should be (binding)
+        }
+
+        scenario("New bindings are committed") {
+            val table = new OffHeapFlowStateTable(NatLayout, clock)
+            val tx = new FlowStateTransaction(table)
+            val fmatch = new FlowMatch(FlowKeys.fromEthernetPacket(tcpPacket))
+            val ctx = new PacketContext(1, new Packet(tcpPacket, fmatch), fmatch)
+            ctx.initialize(new FlowStateTransaction[ConnTrackKey, ConnTrackValue](null),
+                           tx, HappyGoLuckyLeaser)
+            val forwardKey = NatKey(ctx.wcmatch, deviceId, NatState.FWD_DNAT)
+            val binding = NatBinding(ipTarget, portTarget)
+            val returnKey = forwardKey.returnKey(binding)
+
+            ctx.applyDnat(deviceId, targets) should be (true)
+            tx.commit()
+
+            table.get(forwardKey) should be (binding)
+            table.get(returnKey) should be (forwardKey.returnBinding)
+            table.getRefCount(forwardKey) should be (1)
+            table.getRefCount(returnKey) should be (1)
+        }
+    }
+
     def transactionValues[K, V](tx: FlowStateTransaction[K, V]): HashMap[K, V] =
        tx.fold(new HashMap[K, V](),
                new Reducer[K, V, HashMap[K, V]] {
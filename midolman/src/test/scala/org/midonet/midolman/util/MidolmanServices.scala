@@ -30,6 +30,7 @@ import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.flows.FlowEjector
 import org.midonet.midolman.io.UpcallDatapathConnectionManager
 import org.midonet.midolman.services.HostIdProviderService
+import org.midonet.midolman.topology.DhcpConfigCache
 import org.midonet.midolman.util.mock.{MockDatapathChannel, MockFlowEjector, MockUpcallDatapathConnectionManager}
 import org.midonet.odp.protos.{MockOvsDatapathConnection, OvsDatapathConnection}
 
@@ -42,6 +43,9 @@ trait MidolmanServices {
     implicit def clusterDataClient: DataClient =
         injector.getInstance(classOf[DataClient])
 
+    def dhcpConfig =
+        injector.getInstance(classOf[DhcpConfigCache])
+
     def stateStorage =
         injector.getInstance(classOf[StateStorage])
 
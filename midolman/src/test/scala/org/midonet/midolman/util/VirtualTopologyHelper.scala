@@ -29,12 +29,12 @@ import akka.util.Timeout.durationToTimeout
 
 import com.google.inject.Injector
 
-import org.midonet.cluster.DataClient
 import org.midonet.cluster.data._
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
 import org.midonet.midolman.host.interfaces.InterfaceDescription
-import org.midonet.midolman.topology.rcu.ResolvedHost
+import org.midonet.midolman.topology.DhcpConfigCache
+import org.midonet.midolman.topology.rcu.{PortBinding, ResolvedHost}
 import org.midonet.midolman._
 import org.midonet.midolman.PacketWorkflow.SimulationResult
 import org.midonet.midolman.UnderlayResolver.{Route => UnderlayRoute}
@@ -214,13 +214,16 @@ trait VirtualTopologyHelper {
         eth
     }
 
-    def packetWorkflow(dpPortToVport: Map[Int, UUID])
-                      (implicit hostId: UUID, client: DataClient) = new PacketWorkflow(
+    def packetWorkflow(dpPortToVport: Map[Int, UUID],
+                       hostPorts: Map[UUID, PortBinding] = Map(),
+                       overlayTunnelPorts: Set[Int] = Set())
+                      (implicit hostId: UUID) = new PacketWorkflow(
         new DatapathState {
-            override def host: ResolvedHost = new ResolvedHost(hostId, true, Map(), Map())
+            override def host: ResolvedHost = new ResolvedHost(hostId, true, hostPorts, Map())
             override def peerTunnelInfo(peer: UUID): Option[UnderlayRoute] = None
             override def isVtepTunnellingPort(portNumber: Integer): Boolean = false
-            override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
+            override def isOverlayTunnellingPort(portNumber: Integer): Boolean =
+                overlayTunnelPorts.contains(portNumber)
             override def vtepTunnellingOutputAction: FlowActionOutput = null
             override def getDescForInterface(itfName: String): Option[InterfaceDescription] = None
             override def getDpPortForInterface(itfName: String): Option[DpPort] = None
@@ -230,7 +233,8 @@ trait VirtualTopologyHelper {
             override def getDpPortNumberForVport(vportId: UUID): Option[Integer] =
                 dpPortToVport.map(_.swap).toMap.get(vportId).map(_.asInstanceOf[Integer])
             override def getDpPortName(num: Integer): Option[String] =  None
-        }, null, client, new DatapathChannel {
+        }, null, injector.getInstance(classOf[DhcpConfigCache]),
+        new DatapathChannel {
             override def executePacket(packet: Packet,
                                        actions: List[FlowAction]): Unit = { }
             override def createFlow(flow: Flow): Unit = { }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList, Collection, HashMap => JHashMap}
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpecLike, GivenWhenThen, Matchers}
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.util.functors.Callback1
+
+@RunWith(classOf[JUnitRunner])
+class FlowManagerTest extends FeatureSpecLike
+                      with Matchers
+                      with BeforeAndAfter
+                      with GivenWhenThen {
+
+    val idleTimeout = 5000
+    val tolerance = 1000L
+
+    class MockFlowManagerHelper extends FlowManagerHelper {
+        val kernelFlows = new JHashMap[FlowMatch, Flow]()
+        val removed = new ArrayList[ManagedFlow]()
+        var gets = 0
+        var dumps = 0
+        var failDumps = false
+        var flowManager: FlowManager = _
+
+        override def getFlow(flowMatch: FlowMatch, cb: Callback1[Flow]): Unit = {
+            gets += 1
+            cb.call(kernelFlows.get(flowMatch))
+        }
+
+        override def dumpFlows(cb: Callback1[Collection[Flow]]): Unit = {
+            dumps += 1
+            cb.call(if (failDumps) null else kernelFlows.values())
+        }
+
+        override def removeFlow(flow: ManagedFlow): Unit = {
+            kernelFlows.remove(flow.flowMatch)
+        }
+
+        override def removeWildcardFlow(flow: ManagedFlow): Unit = {
+            removed.add(flow)
+            flowManager.remove(flow)
+        }
+    }
+
+    var helper: MockFlowManagerHelper = _
+
+    before {
+        helper = new MockFlowManagerHelper
+    }
+
+    def flowManager(dumpThreshold: Int) = {
+        val flowManager = new FlowManager(helper, 1000, tolerance, 10,
+                                          dumpThreshold)
+        helper.flowManager = flowManager
+        flowManager
+    }
+
+    def addIdleFlows(flowManager: FlowManager, n: Int): Seq[ManagedFlow] =
+        (1 to n) map { i =>
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.addKey(FlowKeys.inPort(i))
+            flow.idleExpirationMillis = idleTimeout
+            flowManager.add(flow) should be (true)
+            helper.kernelFlows.put(flow.flowMatch,
+                                   new Flow(flow.flowMatch).setLastUsedTime(0L))
+            flow
+        }
+
+    /* Checks the expiration of the flows once they are due, except for the
+     * ones used in userspace in the meantime. */
+    def checkExpiration(fm: FlowManager,
+                        usedFlows: Seq[ManagedFlow] = Seq()): Unit = {
+        val now = System.currentTimeMillis() + idleTimeout +
+                  FlowManager.TIMEOUT_WHEEL_TICK_MILLIS
+        usedFlows foreach { _.setLastUsedTimeMillis(now) }
+        fm.checkFlowsExpiration(now)
+    }
+
+    def useInKernel(flows: Seq[ManagedFlow]): Unit =
+        flows foreach { f =>
+            helper.kernelFlows.get(f.flowMatch)
+                  .setLastUsedTime(System.currentTimeMillis() + idleTimeout)
+        }
+
+    feature("Idle flows are checked against the kernel one by one") {
+        scenario("Flows below the dump threshold are queried individually") {
+            Given("A flow manager with flow dumps disabled")
+            val fm = flowManager(0)
+            val flows = addIdleFlows(fm, 10)
+
+            When("Half the flows are used in the kernel and all are due")
+            useInKernel(flows take 5)
+            checkExpiration(fm)
+
+            Then("Each flow was queried individually")
+            helper.gets should be (10)
+            helper.dumps should be (0)
+
+            And("Only the unused flows were removed")
+            helper.removed.size should be (5)
+            fm.getNumDpFlows should be (5)
+        }
+    }
+
+    feature("Idle flows are checked against a datapath flow dump") {
+        scenario("Flows above the dump threshold are checked with one dump") {
+            Given("A flow manager with a flow dump threshold of 5")
+            val fm = flowManager(5)
+            val flows = addIdleFlows(fm, 10)
+
+            When("Half the flows are used in the kernel and all are due")
+            useInKernel(flows take 5)
+            checkExpiration(fm)
+
+            Then("The flows were checked with a single dump")
+            helper.gets should be (0)
+            helper.dumps should be (1)
+
+            And("Only the unused flows were removed")
+            helper.removed.size should be (5)
+            fm.getNumDpFlows should be (5)
+            flows take 5 foreach { f =>
+                f.getLastUsedTimeMillis should be > 0L
+            }
+        }
+
+        scenario("Flows below the dump threshold are queried individually") {
+            Given("A flow manager with a flow dump threshold of 5")
+            val fm = flowManager(5)
+            val flows = addIdleFlows(fm, 10)
+
+            When("All but four flows are used in userspace")
+            checkExpiration(fm, flows drop 4)
+
+            Then("Each flow was queried individually")
+            helper.gets should be (4)
+            helper.dumps should be (0)
+            helper.removed.size should be (4)
+        }
+
+        scenario("Flows with userspace only fields are queried individually") {
+            Given("A flow manager with a flow dump threshold of 1")
+            val fm = flowManager(1)
+            val flows = addIdleFlows(fm, 2)
+
+            And("A flow whose match has userspace only fields")
+            val kernelMatch = new FlowMatch().addKey(FlowKeys.inPort(3))
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.addKey(FlowKeys.inPort(3))
+            flow.flowMatch.setIcmpIdentifier(7.toShort)
+            flow.idleExpirationMillis = idleTimeout
+            fm.add(flow)
+            helper.kernelFlows.put(kernelMatch, new Flow(kernelMatch))
+
+            When("All the flows are due")
+            checkExpiration(fm)
+
+            Then("The flows were checked with a dump and an individual query")
+            helper.dumps should be (1)
+            helper.gets should be (1)
+        }
+
+        scenario("A failed dump falls back to individual queries") {
+            Given("A flow manager with a flow dump threshold of 5")
+            val fm = flowManager(5)
+            val flows = addIdleFlows(fm, 10)
+
+            When("The dump fails")
+            helper.failDumps = true
+            checkExpiration(fm)
+
+            Then("Each flow was queried individually")
+            helper.dumps should be (1)
+            helper.gets should be (10)
+            helper.removed.size should be (10)
+        }
+    }
+
+    feature("Flows are scheduled in the time-out wheels") {
+        scenario("Hard flows expire once their time-out elapses") {
+            Given("A flow manager with a flow with a hard time-out")
+            val fm = flowManager(0)
+            val flow = new ManagedFlow(null)
+            flow.flowMatch.addKey(FlowKeys.inPort(1))
+            flow.hardExpirationMillis = idleTimeout
+            val now = System.currentTimeMillis()
+            fm.add(flow)
+            flow.isScheduled should be (true)
+
+            When("The flow manager checks the flows before the time-out")
+            fm.checkFlowsExpiration(now)
+
+            Then("The flow is not removed")
+            helper.removed.size should be (0)
+
+            When("The flow manager checks the flows after the time-out")
+            fm.checkFlowsExpiration(now + idleTimeout + 1000)
+
+            Then("The flow is removed")
+            helper.removed.size should be (1)
+            fm.getNumDpFlows should be (0)
+            flow.isScheduled should be (false)
+            helper.gets should be (0)
+        }
+
+        scenario("Removed flows are unscheduled") {
+            Given("A flow manager with idle flows")
+            val fm = flowManager(0)
+            val flows = addIdleFlows(fm, 10)
+
+            When("The flows are removed")
+            flows foreach { f => fm.remove(f) should be (true) }
+
+            Then("They are no longer scheduled")
+            flows foreach { _.isScheduled should be (false) }
+
+            And("The kernel is not queried when they would have been due")
+            checkExpiration(fm)
+            helper.gets should be (0)
+        }
+    }
+}
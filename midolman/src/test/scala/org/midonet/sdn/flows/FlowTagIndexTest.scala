@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.sdn.flows
+
+import java.util.ArrayList
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+@RunWith(classOf[JUnitRunner])
+class FlowTagIndexTest extends FeatureSpec with Matchers {
+
+    case class TestTag(i: Int) extends FlowTag
+
+    def newFlow(i: Int, tags: Int*) = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.addKey(FlowKeys.inPort(i))
+        tags foreach { t => flow.tags.add(TestTag(t)) }
+        flow
+    }
+
+    feature("FlowTagIndex indexes flows by their tags") {
+        scenario("flows are added and looked up by tag") {
+            val index = new FlowTagIndex(16)
+            val f1 = newFlow(1, 1, 2)
+            val f2 = newFlow(2, 2, 3)
+            index.add(f1) should be (true)
+            index.add(f2) should be (true)
+            index.size should be (2)
+            index.numTags should be (3)
+            index.flowsFor(TestTag(1)) should be (Seq(f1))
+            index.flowsFor(TestTag(2)) should contain theSameElementsAs Seq(f1, f2)
+            index.flowsFor(TestTag(3)) should be (Seq(f2))
+            index.count(TestTag(4)) should be (0)
+            index.flowsFor(TestTag(4)) should be ('empty)
+        }
+
+        scenario("a flow is not added twice") {
+            val index = new FlowTagIndex(16)
+            val flow = newFlow(1, 1)
+            index.add(flow) should be (true)
+            index.add(flow) should be (false)
+            index.count(TestTag(1)) should be (1)
+        }
+
+        scenario("a flow with a repeated tag is indexed once for it") {
+            val index = new FlowTagIndex(16)
+            val flow = newFlow(1, 1, 1)
+            index.add(flow)
+            index.count(TestTag(1)) should be (1)
+            index.remove(flow) should be (true)
+            index.numTags should be (0)
+        }
+
+        scenario("flows are removed from the postings of all their tags") {
+            val index = new FlowTagIndex(16)
+            val f1 = newFlow(1, 1, 2)
+            val f2 = newFlow(2, 2, 3)
+            index.add(f1)
+            index.add(f2)
+            index.remove(f1) should be (true)
+            index.remove(f1) should be (false)
+            index.contains(f1) should be (false)
+            index.size should be (1)
+            index.count(TestTag(1)) should be (0)
+            index.flowsFor(TestTag(2)) should be (Seq(f2))
+            index.numTags should be (2)
+        }
+
+        scenario("the index grows beyond its initial size") {
+            val index = new FlowTagIndex(4)
+            val flows = (1 to 1000) map { i => newFlow(i, i, i % 10, -1) }
+            flows foreach index.add
+            index.size should be (1000)
+            index.count(TestTag(-1)) should be (1000)
+            index.count(TestTag(3)) should be (100)
+            flows foreach { f => index.contains(f) should be (true) }
+        }
+    }
+
+    feature("FlowTagIndex invalidates flows by tag") {
+        scenario("all the flows with the tag are removed") {
+            val index = new FlowTagIndex(16)
+            val f1 = newFlow(1, 1, 2)
+            val f2 = newFlow(2, 2, 3)
+            val f3 = newFlow(3, 3)
+            Seq(f1, f2, f3) foreach index.add
+
+            val removed = new ArrayList[ManagedFlow]()
+            index.invalidate(TestTag(2), removed) should be (2)
+            removed.toSeq should contain theSameElementsAs Seq(f1, f2)
+            index.size should be (1)
+            index.contains(f1) should be (false)
+            index.contains(f2) should be (false)
+            index.count(TestTag(1)) should be (0)
+            index.count(TestTag(2)) should be (0)
+            index.flowsFor(TestTag(3)) should be (Seq(f3))
+        }
+
+        scenario("invalidating an unknown tag removes nothing") {
+            val index = new FlowTagIndex(16)
+            index.add(newFlow(1, 1))
+            val removed = new ArrayList[ManagedFlow]()
+            index.invalidate(TestTag(2), removed) should be (0)
+            removed should be ('empty)
+            index.size should be (1)
+        }
+
+        scenario("flows can be indexed again after an invalidation") {
+            val index = new FlowTagIndex(16)
+            val flow = newFlow(1, 1, 2)
+            index.add(flow)
+            index.invalidate(TestTag(1), new ArrayList[ManagedFlow]())
+            index.add(flow) should be (true)
+            index.flowsFor(TestTag(2)) should be (Seq(flow))
+        }
+    }
+
+    feature("FlowTagIndex stays consistent") {
+        scenario("random additions, removals and invalidations") {
+            val random = new Random(42)
+            val index = new FlowTagIndex(16)
+            val expected = mutable.Map[Int, ManagedFlow]()
+            val removed = new ArrayList[ManagedFlow]()
+            for (_ <- 1 to 20000) {
+                val i = random.nextInt(200)
+                random.nextInt(10) match {
+                    case 0 =>
+                        val tag = random.nextInt(50)
+                        index.invalidate(TestTag(tag), removed)
+                        val invalidated = expected.filter(
+                            _._2.tags.contains(TestTag(tag)))
+                        removed.toSeq should contain theSameElementsAs invalidated.values
+                        expected --= invalidated.keys
+                        removed.clear()
+                    case n if n < 6 =>
+                        if (!expected.contains(i)) {
+                            val tags = Seq.fill(1 + random.nextInt(8))(random.nextInt(50))
+                            val flow = newFlow(i, tags: _*)
+                            index.add(flow) should be (true)
+                            expected += i -> flow
+                        }
+                    case _ =>
+                        expected.remove(i) match {
+                            case Some(flow) => index.remove(flow) should be (true)
+                            case None =>
+                        }
+                }
+                index.size should be (expected.size)
+            }
+            for (tag <- 0 until 50) {
+                index.flowsFor(TestTag(tag)) should contain theSameElementsAs
+                    expected.values.filter(_.tags.contains(TestTag(tag)))
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowKeys
+
+@RunWith(classOf[JUnitRunner])
+class ManagedFlowTableTest extends FeatureSpec with Matchers {
+
+    def newFlow(i: Int) = {
+        val flow = new ManagedFlow(null)
+        flow.flowMatch.addKey(FlowKeys.inPort(i))
+        flow
+    }
+
+    def matchFor(i: Int) = new FlowMatch().addKey(FlowKeys.inPort(i))
+
+    def insertionOrder(table: ManagedFlowTable): Seq[ManagedFlow] = {
+        val flows = mutable.ArrayBuffer[ManagedFlow]()
+        var flow = table.oldest
+        while (flow ne null) {
+            flows += flow
+            flow = table.newer(flow)
+        }
+        flows
+    }
+
+    feature("ManagedFlowTable indexes flows by their FlowMatch") {
+        scenario("flows are added and looked up") {
+            val table = new ManagedFlowTable(16)
+            val flows = (1 to 10) map newFlow
+            flows foreach { f => table.putIfAbsent(f) should be (true) }
+            table.size should be (10)
+            for (i <- 1 to 10) {
+                table.get(matchFor(i)) should be theSameInstanceAs flows(i - 1)
+                table.contains(matchFor(i)) should be (true)
+            }
+            table.get(matchFor(11)) should be (null)
+            table.contains(matchFor(11)) should be (false)
+        }
+
+        scenario("a flow is not added twice for the same FlowMatch") {
+            val table = new ManagedFlowTable(16)
+            val flow = newFlow(1)
+            table.putIfAbsent(flow) should be (true)
+            table.putIfAbsent(newFlow(1)) should be (false)
+            table.size should be (1)
+            table.get(matchFor(1)) should be theSameInstanceAs flow
+        }
+
+        scenario("flows are removed by FlowMatch") {
+            val table = new ManagedFlowTable(16)
+            val flow = newFlow(1)
+            table.putIfAbsent(flow)
+            table.remove(matchFor(1)) should be theSameInstanceAs flow
+            table.remove(matchFor(1)) should be (null)
+            table.isEmpty should be (true)
+        }
+
+        scenario("flows are only removed if they are the ones in the table") {
+            val table = new ManagedFlowTable(16)
+            val flow = newFlow(1)
+            val stale = newFlow(1)
+            table.putIfAbsent(flow)
+            table.remove(stale) should be (false)
+            table.get(matchFor(1)) should be theSameInstanceAs flow
+            table.remove(flow) should be (true)
+            table.remove(flow) should be (false)
+        }
+
+        scenario("the table grows beyond its initial size") {
+            val table = new ManagedFlowTable(4)
+            val flows = (1 to 1000) map newFlow
+            flows foreach table.putIfAbsent
+            table.size should be (1000)
+            flows foreach { f =>
+                table.get(f.flowMatch) should be theSameInstanceAs f
+            }
+            insertionOrder(table) should be (flows)
+        }
+
+        scenario("random additions and removals keep the table consistent") {
+            val random = new Random(42)
+            val table = new ManagedFlowTable(64)
+            val expected = mutable.LinkedHashMap[Int, ManagedFlow]()
+            for (_ <- 1 to 20000) {
+                val i = random.nextInt(100)
+                if (random.nextBoolean()) {
+                    val flow = newFlow(i)
+                    table.putIfAbsent(flow) should be (!expected.contains(i))
+                    if (!expected.contains(i))
+                        expected += i -> flow
+                } else {
+                    val removed = table.remove(matchFor(i))
+                    removed should be (expected.remove(i).orNull)
+                }
+                table.size should be (expected.size)
+            }
+            for (i <- 0 until 100) {
+                table.get(matchFor(i)) should be (expected.get(i).orNull)
+            }
+            insertionOrder(table) should be (expected.values.toSeq)
+        }
+    }
+
+    feature("ManagedFlowTable keeps flows in insertion order") {
+        scenario("the oldest flow is the first added that wasn't removed") {
+            val table = new ManagedFlowTable(16)
+            table.oldest should be (null)
+            val flows = (1 to 5) map newFlow
+            flows foreach table.putIfAbsent
+            table.oldest should be theSameInstanceAs flows(0)
+
+            table.remove(flows(0))
+            table.remove(flows(2))
+            table.oldest should be theSameInstanceAs flows(1)
+            insertionOrder(table) should be (Seq(flows(1), flows(3), flows(4)))
+
+            table.remove(flows(4))
+            val flow = newFlow(6)
+            table.putIfAbsent(flow)
+            insertionOrder(table) should be (Seq(flows(1), flows(3), flow))
+        }
+    }
+}
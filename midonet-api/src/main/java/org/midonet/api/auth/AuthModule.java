@@ -16,6 +16,7 @@
 package org.midonet.api.auth;
 
 import java.net.MalformedURLException;
+import java.util.concurrent.TimeUnit;
 
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
@@ -31,6 +32,7 @@ import org.midonet.api.auth.cors.CorsConfig;
 import org.midonet.api.auth.keystone.KeystoneConfig;
 import org.midonet.api.auth.keystone.v2_0.KeystoneClient;
 import org.midonet.api.auth.keystone.v2_0.KeystoneService;
+import org.midonet.api.auth.keystone.v2_0.KeystoneTokenCache;
 import org.midonet.api.auth.vsphere.VSphereClient;
 import org.midonet.api.auth.vsphere.VSphereConfig;
 import org.midonet.api.auth.vsphere.VSphereConfigurationException;
@@ -106,6 +108,17 @@ public class AuthModule extends AbstractModule {
                 keystoneConfig.getAdminToken());
     }
 
+    @Provides @Singleton
+    @Inject
+    KeystoneTokenCache provideKeystoneTokenCache(
+            KeystoneConfig keystoneConfig) {
+        return new KeystoneTokenCache(
+                keystoneConfig.getTokenCacheSize(),
+                keystoneConfig.getTokenCacheMaxTtlSeconds(),
+                keystoneConfig.getTokenCacheNegativeTtlSeconds(),
+                TimeUnit.SECONDS);
+    }
+
     // -- CloudStack --
     @Provides @Singleton
     @Inject
@@ -33,6 +33,9 @@ public interface KeystoneConfig extends AuthConfig {
     String SERVICE_HOST_kEY = "service_host";
     String SERVICE_PORT_KEY = "service_port";
     String TENANT_NAME = "tenant_name";
+    String TOKEN_CACHE_SIZE_KEY = "token_cache_size";
+    String TOKEN_CACHE_MAX_TTL_KEY = "token_cache_max_ttl_seconds";
+    String TOKEN_CACHE_NEGATIVE_TTL_KEY = "token_cache_negative_ttl_seconds";
 
     @ConfigString(key = ADMIN_TOKEN, defaultValue = "")
     String getAdminToken();
@@ -48,4 +51,16 @@ public interface KeystoneConfig extends AuthConfig {
 
     @ConfigString(key = TENANT_NAME, defaultValue = "admin")
     String getAdminName();
+
+    /** The number of validated tokens kept, 0 to validate every request. */
+    @ConfigInt(key = TOKEN_CACHE_SIZE_KEY, defaultValue = 10000)
+    int getTokenCacheSize();
+
+    /** The longest a valid token is kept, however later it expires. */
+    @ConfigInt(key = TOKEN_CACHE_MAX_TTL_KEY, defaultValue = 300)
+    int getTokenCacheMaxTtlSeconds();
+
+    /** How long a token that Keystone didn't find is kept as invalid. */
+    @ConfigInt(key = TOKEN_CACHE_NEGATIVE_TTL_KEY, defaultValue = 10)
+    int getTokenCacheNegativeTtlSeconds();
 }
@@ -18,6 +18,7 @@ package org.midonet.api.auth.keystone.v2_0;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
 import javax.servlet.http.HttpServletRequest;
@@ -45,6 +46,21 @@ public class KeystoneService implements AuthService {
 
     private final KeystoneClient client;
     private final KeystoneConfig config;
+    private final KeystoneTokenCache tokenCache;
+
+    private final KeystoneTokenCache.Validator tokenValidator =
+        new KeystoneTokenCache.Validator() {
+            @Override
+            public KeystoneTokenCache.ValidatedToken validate(String token)
+                    throws AuthException {
+                KeystoneAccess access = client.getToken(token);
+                if (access == null) {
+                    return null;
+                }
+                return new KeystoneTokenCache.ValidatedToken(
+                    getUserIdentity(access), getExpiresForCache(access));
+            }
+        };
 
     /**
      * Create a KeystoneService object from a KeystoneConfig object.
@@ -53,11 +69,15 @@ public class KeystoneService implements AuthService {
      *            KeystoneClient object
      * @param config
      *            KeystoneConfig object.
+     * @param tokenCache
+     *            Cache of the validated tokens, shared by the services.
      */
     @Inject
-    public KeystoneService(KeystoneClient client, KeystoneConfig config) {
+    public KeystoneService(KeystoneClient client, KeystoneConfig config,
+                           KeystoneTokenCache tokenCache) {
         this.client = client;
         this.config = config;
+        this.tokenCache = tokenCache;
     }
 
     private String convertToAuthRole(String role) {
@@ -114,19 +134,40 @@ public class KeystoneService implements AuthService {
         token.setKey(access.getAccess().getToken().getId());
 
         // Make sure the expired is converted to Date
+        token.setExpires(getExpires(access));
+
+        return token;
+    }
+
+    private Date getExpires(KeystoneAccess access)
+            throws KeystoneInvalidFormatException {
         String expiredSrc = access.getAccess().getToken().getExpires();
-        if (expiredSrc != null) {
-            DateFormat df = new SimpleDateFormat(KEYSTONE_TOKEN_EXPIRED_FORMAT);
-            df.setTimeZone(TimeZone.getTimeZone("GMT"));
-            try {
-                token.setExpires(df.parse(expiredSrc));
-            } catch (ParseException e) {
-                throw new KeystoneInvalidFormatException(
-                    "Unrecognizable keystone expired date format.", e);
-            }
+        if (expiredSrc == null) {
+            return null;
         }
 
-        return token;
+        // Newer Keystone versions add fractional seconds, which we ignore
+        expiredSrc = expiredSrc.replaceFirst("\\.\\d+Z$", "Z");
+        DateFormat df = new SimpleDateFormat(KEYSTONE_TOKEN_EXPIRED_FORMAT);
+        df.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return df.parse(expiredSrc);
+        } catch (ParseException e) {
+            throw new KeystoneInvalidFormatException(
+                "Unrecognizable keystone expired date format.", e);
+        }
+    }
+
+    /* A token whose expiry can't be parsed is still valid, and it is kept
+     * for the maximum TTL of the cache. */
+    private Date getExpiresForCache(KeystoneAccess access) {
+        try {
+            return getExpires(access);
+        } catch (KeystoneInvalidFormatException e) {
+            log.warn("Unrecognizable keystone token expiry: {}",
+                     access.getAccess().getToken().getExpires());
+            return null;
+        }
     }
 
     private int parseLimit(HttpServletRequest request) {
@@ -154,10 +195,7 @@ public class KeystoneService implements AuthService {
             throw new InvalidCredentialsException("No token was passed in.");
         }
 
-        KeystoneAccess access = client.getToken(token);
-
-        // Parse the JSON response
-        return (access == null) ? null : getUserIdentity(access);
+        return tokenCache.get(token, tokenValidator);
     }
 
     @Override
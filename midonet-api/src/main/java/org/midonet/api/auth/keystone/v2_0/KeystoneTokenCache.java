@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.auth.keystone.v2_0;
+
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.midonet.api.auth.AuthException;
+import org.midonet.api.auth.UserIdentity;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Cache of the user identities of the tokens validated by Keystone, shared
+ * by all the requests so that a token is validated once rather than on every
+ * request.
+ *
+ * A valid token is kept until it expires, for no longer than the maximum
+ * TTL, so that revoked tokens are eventually rejected. A token that Keystone
+ * didn't find is kept as invalid for the negative TTL. Concurrent requests
+ * with the same token wait for a single validation. Failures to reach
+ * Keystone are not cached.
+ */
+public class KeystoneTokenCache {
+
+    public static final String HITS = name(KeystoneTokenCache.class, "hits");
+    public static final String MISSES =
+        name(KeystoneTokenCache.class, "misses");
+    public static final String INVALID_HITS =
+        name(KeystoneTokenCache.class, "invalidHits");
+    public static final String SIZE = name(KeystoneTokenCache.class, "size");
+
+    /**
+     * Validates a token against Keystone.
+     */
+    public interface Validator {
+        /**
+         * Returns the validated token, or null if Keystone didn't find it.
+         */
+        ValidatedToken validate(String token) throws AuthException;
+    }
+
+    /**
+     * The identity of a valid token and its expiry, if Keystone gave one.
+     */
+    public static final class ValidatedToken {
+        public final UserIdentity identity;
+        public final Date expires;
+
+        public ValidatedToken(UserIdentity identity, Date expires) {
+            this.identity = identity;
+            this.expires = expires;
+        }
+    }
+
+    /* A cached validation: the identity, null for an invalid token, and the
+     * ticker time at which it stops being used. */
+    private static final class Entry {
+        final UserIdentity identity;
+        final long deadline;
+
+        Entry(UserIdentity identity, long deadline) {
+            this.identity = identity;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+    private final Ticker ticker;
+    private final long maxTtlNanos;
+    private final long negativeTtlNanos;
+
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final Counter hits = metrics.counter(HITS);
+    private final Counter misses = metrics.counter(MISSES);
+    private final Counter invalidHits = metrics.counter(INVALID_HITS);
+
+    public KeystoneTokenCache(int maxSize, long maxTtl, long negativeTtl,
+                              TimeUnit unit) {
+        this(maxSize, maxTtl, negativeTtl, unit, Ticker.systemTicker());
+    }
+
+    KeystoneTokenCache(int maxSize, long maxTtl, long negativeTtl,
+                       TimeUnit unit, Ticker ticker) {
+        this.ticker = ticker;
+        this.maxTtlNanos = unit.toNanos(Math.max(0, maxTtl));
+        this.negativeTtlNanos = unit.toNanos(Math.max(0, negativeTtl));
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0, maxSize))
+            .expireAfterWrite(Math.max(maxTtlNanos, negativeTtlNanos),
+                              TimeUnit.NANOSECONDS)
+            .ticker(ticker)
+            .build();
+        metrics.register(SIZE, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return cache.size();
+            }
+        });
+    }
+
+    /** The hit, miss and size metrics of the cache. */
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the identity of the token, validating it with the validator
+     * unless a previous validation is cached. Returns null if the token is
+     * not valid.
+     */
+    public UserIdentity get(final String token, final Validator validator)
+            throws AuthException {
+        Entry entry = cache.getIfPresent(token);
+        if (entry != null && entry.deadline - ticker.read() > 0) {
+            hit(entry);
+            return entry.identity;
+        }
+        if (entry != null) {
+            cache.asMap().remove(token, entry);
+        }
+
+        final boolean[] validated = { false };
+        try {
+            entry = cache.get(token, new Callable<Entry>() {
+                @Override
+                public Entry call() throws AuthException {
+                    misses.inc();
+                    validated[0] = true;
+                    return validate(token, validator);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof AuthException) {
+                throw (AuthException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+
+        if (validated[0]) {
+            if (entry.deadline - ticker.read() <= 0) {
+                // Don't keep what expires right away
+                cache.asMap().remove(token, entry);
+            }
+        } else {
+            // Another request validated the token meanwhile
+            hit(entry);
+        }
+        return entry.identity;
+    }
+
+    /** Drops all the cached validations. */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private void hit(Entry entry) {
+        hits.inc();
+        if (entry.identity == null) {
+            invalidHits.inc();
+        }
+    }
+
+    private Entry validate(String token, Validator validator)
+            throws AuthException {
+        ValidatedToken validated = validator.validate(token);
+        long now = ticker.read();
+        if (validated == null || validated.identity == null) {
+            return new Entry(null, now + negativeTtlNanos);
+        }
+
+        long ttl = maxTtlNanos;
+        if (validated.expires != null) {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(
+                validated.expires.getTime() - System.currentTimeMillis());
+            ttl = Math.min(ttl, remaining);
+        }
+        return new Entry(validated.identity, now + ttl);
+    }
+}
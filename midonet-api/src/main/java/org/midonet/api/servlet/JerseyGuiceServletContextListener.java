@@ -18,6 +18,7 @@ package org.midonet.api.servlet;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 
+import com.codahale.metrics.JmxReporter;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.servlet.GuiceServletContextListener;
@@ -25,6 +26,7 @@ import com.google.inject.servlet.GuiceServletContextListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.midonet.api.auth.keystone.v2_0.KeystoneTokenCache;
 import org.midonet.api.rest_api.RestApiService;
 import org.midonet.brain.ClusterNode;
 import org.midonet.brain.services.vxgw.VxlanGatewayService;
@@ -38,6 +40,7 @@ public class JerseyGuiceServletContextListener extends
 
     protected ServletContext servletContext;
     protected Injector injector;
+    private JmxReporter tokenCacheReporter;
 
     @Override
     public void contextInitialized(ServletContextEvent servletContextEvent) {
@@ -63,6 +66,9 @@ public class JerseyGuiceServletContextListener extends
         log.debug("initializeApplication: entered");
 
         injector.getInstance(RestApiService.class).startAsync().awaitRunning();
+        tokenCacheReporter = JmxReporter.forRegistry(
+            injector.getInstance(KeystoneTokenCache.class).getMetrics()).build();
+        tokenCacheReporter.start();
         ClusterNode.Context ctx = injector.getInstance(ClusterNode.Context.class);
         if (ctx.embed()) {
             log.info("initializeApplication: starting embedded Cluster node");
@@ -96,6 +102,9 @@ public class JerseyGuiceServletContextListener extends
         injector.getInstance(RestApiService.class)
                 .stopAsync()
                 .awaitTerminated();
+        if (tokenCacheReporter != null) {
+            tokenCacheReporter.stop();
+        }
         injector.getInstance(VtepDataClientFactory.class)
                 .dispose();
 
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.auth.keystone.v2_0;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.api.auth.AuthRole;
+import org.midonet.api.auth.UserIdentity;
+import org.midonet.api.auth.keystone.KeystoneConfig;
+import org.midonet.api.auth.keystone.KeystoneConnectionException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestKeystoneService {
+
+    /**
+     * A local stand-in for the Keystone tokens API, which counts the
+     * validations of each token.
+     */
+    private static class FakeKeystone implements HttpHandler {
+        static final String TOKENS_PATH = "/v2.0/tokens/";
+
+        final Map<String, Date> tokens = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AtomicInteger> requests =
+            new ConcurrentHashMap<>();
+
+        int requests(String token) {
+            AtomicInteger count = requests.get(token);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String token = exchange.getRequestURI().getPath()
+                                   .substring(TOKENS_PATH.length());
+            requests.putIfAbsent(token, new AtomicInteger());
+            requests.get(token).incrementAndGet();
+
+            Date expires = tokens.get(token);
+            if (expires == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            SimpleDateFormat df = new SimpleDateFormat(
+                KeystoneService.KEYSTONE_TOKEN_EXPIRED_FORMAT);
+            df.setTimeZone(TimeZone.getTimeZone("GMT"));
+            byte[] body = ("{\"access\": {"
+                + "\"token\": {\"id\": \"" + token + "\", "
+                + "\"expires\": \"" + df.format(expires) + "\", "
+                + "\"tenant\": {\"id\": \"tenant-id\", "
+                + "\"name\": \"service\"}}, "
+                + "\"user\": {\"id\": \"neutron\", "
+                + "\"roles\": [{\"name\": \"admin\"}, {\"name\": \"other\"}]}"
+                + "}}").getBytes("UTF-8");
+            exchange.getResponseHeaders().add("Content-Type",
+                                              "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+        final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+
+        void advance(long time, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(time));
+        }
+    }
+
+    private HttpServer server;
+    private FakeKeystone keystone;
+    private FakeTicker ticker;
+    private KeystoneTokenCache cache;
+    private KeystoneService service;
+
+    private static Date inMinutes(int minutes) {
+        return new Date(System.currentTimeMillis()
+                        + TimeUnit.MINUTES.toMillis(minutes));
+    }
+
+    private long metric(String name) {
+        return cache.getMetrics().getCounters().get(name).getCount();
+    }
+
+    private KeystoneService newService(KeystoneClient client) {
+        KeystoneConfig config = mock(KeystoneConfig.class);
+        when(config.getAdminRole()).thenReturn("admin");
+        return new KeystoneService(client, config, cache);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        keystone = new FakeKeystone();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(FakeKeystone.TOKENS_PATH, keystone);
+        server.start();
+
+        ticker = new FakeTicker();
+        cache = new KeystoneTokenCache(100, 300, 10, TimeUnit.SECONDS,
+                                       ticker);
+        service = newService(new KeystoneClient(
+            "127.0.0.1", server.getAddress().getPort(), "http", "admin"));
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testValidTokenIsValidatedOnce() throws Exception {
+        keystone.tokens.put("token", inMinutes(60));
+
+        UserIdentity identity = service.getUserIdentityByToken("token");
+        assertEquals("token", identity.getToken());
+        assertEquals("tenant-id", identity.getTenantId());
+        assertEquals("neutron", identity.getUserId());
+        assertTrue(identity.hasRole(AuthRole.ADMIN));
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(identity, service.getUserIdentityByToken("token"));
+        }
+
+        assertEquals(1, keystone.requests("token"));
+        assertEquals(1, metric(KeystoneTokenCache.MISSES));
+        assertEquals(10, metric(KeystoneTokenCache.HITS));
+    }
+
+    @Test
+    public void testCacheIsSharedByServices() throws Exception {
+        keystone.tokens.put("token", inMinutes(60));
+        KeystoneService other = newService(new KeystoneClient(
+            "127.0.0.1", server.getAddress().getPort(), "http", "admin"));
+
+        service.getUserIdentityByToken("token");
+        other.getUserIdentityByToken("token");
+
+        assertEquals(1, keystone.requests("token"));
+    }
+
+    @Test
+    public void testValidTokenIsKeptForTheMaximumTtl() throws Exception {
+        keystone.tokens.put("token", inMinutes(60));
+
+        service.getUserIdentityByToken("token");
+        ticker.advance(299, TimeUnit.SECONDS);
+        service.getUserIdentityByToken("token");
+        assertEquals(1, keystone.requests("token"));
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        service.getUserIdentityByToken("token");
+        assertEquals(2, keystone.requests("token"));
+    }
+
+    @Test
+    public void testValidTokenIsKeptUntilItExpires() throws Exception {
+        keystone.tokens.put("token", inMinutes(2));
+
+        service.getUserIdentityByToken("token");
+        ticker.advance(1, TimeUnit.MINUTES);
+        service.getUserIdentityByToken("token");
+        assertEquals(1, keystone.requests("token"));
+
+        ticker.advance(1, TimeUnit.MINUTES);
+        service.getUserIdentityByToken("token");
+        assertEquals(2, keystone.requests("token"));
+    }
+
+    @Test
+    public void testExpiredTokenIsNotKept() throws Exception {
+        keystone.tokens.put("token", inMinutes(-1));
+
+        service.getUserIdentityByToken("token");
+        service.getUserIdentityByToken("token");
+
+        assertEquals(2, keystone.requests("token"));
+        assertEquals(0L, cache.getMetrics().getGauges()
+                             .get(KeystoneTokenCache.SIZE).getValue());
+    }
+
+    @Test
+    public void testInvalidTokenIsKeptForTheNegativeTtl() throws Exception {
+        assertNull(service.getUserIdentityByToken("invalid"));
+        assertNull(service.getUserIdentityByToken("invalid"));
+        assertEquals(1, keystone.requests("invalid"));
+        assertEquals(1, metric(KeystoneTokenCache.INVALID_HITS));
+
+        // The token becomes valid, but it is still known as invalid
+        keystone.tokens.put("invalid", inMinutes(60));
+        ticker.advance(9, TimeUnit.SECONDS);
+        assertNull(service.getUserIdentityByToken("invalid"));
+
+        ticker.advance(2, TimeUnit.SECONDS);
+        assertNotNull(service.getUserIdentityByToken("invalid"));
+        assertEquals(2, keystone.requests("invalid"));
+    }
+
+    @Test
+    public void testConnectionFailuresAreNotKept() throws Exception {
+        server.stop(0);
+        server = null;
+        for (int i = 0; i < 2; i++) {
+            try {
+                service.getUserIdentityByToken("token");
+                fail("Keystone should be unreachable");
+            } catch (KeystoneConnectionException e) {
+                // expected
+            }
+        }
+        assertEquals(2, metric(KeystoneTokenCache.MISSES));
+        assertEquals(0, metric(KeystoneTokenCache.HITS));
+    }
+
+    @Test
+    public void testDisabledCacheValidatesEveryRequest() throws Exception {
+        cache = new KeystoneTokenCache(0, 300, 10, TimeUnit.SECONDS, ticker);
+        service = newService(new KeystoneClient(
+            "127.0.0.1", server.getAddress().getPort(), "http", "admin"));
+        keystone.tokens.put("token", inMinutes(60));
+
+        service.getUserIdentityByToken("token");
+        service.getUserIdentityByToken("token");
+
+        assertEquals(2, keystone.requests("token"));
+    }
+}
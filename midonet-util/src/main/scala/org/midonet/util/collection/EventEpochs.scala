@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+import java.{lang => jl, util => ju}
+
+import org.midonet.Util
+
+/**
+ * Records the epoch at which each event last happened, where the epoch is
+ * the number of events put so far, so that one can tell whether any event of
+ * a set happened after a given epoch at a cost proportional to the size of
+ * the set, no matter how many events happened in between.
+ *
+ * The epochs of the most recent events are kept per event, up to the given
+ * capacity. Older epochs are folded into a fixed array of buckets indexed by
+ * the hash of the event, each holding the latest epoch of the events that
+ * hash to it. An event found in neither is looked up in its bucket, which may
+ * report an older event as having happened later than it did, but never
+ * misses one.
+ *
+ * Events are put by a single thread and looked up by any thread.
+ */
+class EventEpochs[T](capacity: Int, minBuckets: Int) {
+
+    private val epochs = new ConcurrentHashMap[T, jl.Long](capacity)
+    private val buckets = new AtomicLongArray(
+        Util.findNextPositivePowerOfTwo(minBuckets))
+    private val mask = buckets.length - 1
+
+    @volatile private var epoch = 0L
+
+    /** The epoch of the latest event, or 0 if there was none. */
+    def latest: Long = epoch
+
+    def put(event: T): Unit = {
+        val next = epoch + 1
+        epochs.put(event, next)
+        epoch = next
+        if (epochs.size > capacity)
+            foldBefore(next - capacity / 2)
+    }
+
+    /** Whether any of the events happened after the given epoch. */
+    def existsSince(lastSeen: Long, events: ju.Set[T]): Boolean = {
+        val it = events.iterator()
+        while (it.hasNext) {
+            val event = it.next()
+            val eventEpoch = epochs.get(event)
+            val happened =
+                if (eventEpoch ne null) eventEpoch.longValue
+                else buckets.get(bucket(event))
+            if (happened > lastSeen)
+                return true
+        }
+        false
+    }
+
+    /* Moves the epochs older than the given one to their buckets. The bucket
+     * is updated before the event is removed, so that readers that don't
+     * find the event see its epoch in the bucket. */
+    private def foldBefore(oldest: Long): Unit = {
+        val it = epochs.entrySet().iterator()
+        while (it.hasNext) {
+            val entry = it.next()
+            val eventEpoch = entry.getValue.longValue
+            if (eventEpoch < oldest) {
+                val i = bucket(entry.getKey)
+                if (buckets.get(i) < eventEpoch)
+                    buckets.set(i, eventEpoch)
+                it.remove()
+            }
+        }
+    }
+
+    @inline private def bucket(event: T): Int = {
+        val h = event.hashCode * 0x9E3779B9
+        (h ^ (h >>> 16)) & mask
+    }
+}
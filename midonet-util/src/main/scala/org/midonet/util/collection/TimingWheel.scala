@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.lang.{Long => JLong}
+
+object TimingWheel {
+    final val SlotBits = 6
+    final val Slots = 1 << SlotBits
+    final val SlotMask = Slots - 1L
+    final val Levels = 4
+    final val MaxSpan = 1L << (SlotBits * Levels)
+
+    /**
+     * The intrusive links through which an object is kept in a TimingWheel.
+     * An object can be scheduled in at most one wheel at a time.
+     */
+    trait Entry {
+        private[collection] var wheel: TimingWheel[_] = null
+        private[collection] var wheelPrev: Entry = null
+        private[collection] var wheelNext: Entry = null
+        private[collection] var wheelSlot = 0
+        private[collection] var wheelDeadline = 0L
+
+        def isScheduled = wheel ne null
+    }
+}
+
+/**
+ * A hierarchical timing wheel, as described by Varghese and Lauck. Entries are
+ * scheduled with a deadline and kept in doubly linked lists, one per slot, so
+ * adding, removing and expiring an entry are O(1) operations that allocate
+ * nothing. Time is divided in ticks of tickMillis; each of the Levels wheels
+ * has Slots slots, each of them spanning Slots times the ticks of a slot in the
+ * level below. Entries are moved down a level when the wheel below wraps
+ * around. Deadlines further away than MaxSpan ticks are kept in the last slot
+ * reachable and rescheduled when that slot is reached.
+ *
+ * Entries within a slot are not ordered, so the wheel only guarantees that
+ * an entry is expired at the first poll() at or after its deadline, rounded
+ * up to the tick.
+ *
+ * Not thread-safe.
+ */
+final class TimingWheel[T >: Null <: TimingWheel.Entry](val tickMillis: Long,
+                                                        startMillis: Long) {
+    import TimingWheel._
+
+    private val slots = new Array[Entry](Levels * Slots)
+    private val occupied = new Array[Long](Levels)
+    private var cursor = startMillis / tickMillis
+    private var count = 0
+
+    def size = count
+
+    def isEmpty = count == 0
+
+    /**
+     * Schedules an entry to expire at the specified deadline. Deadlines in
+     * the past expire at the next poll().
+     */
+    def add(entry: T, deadlineMillis: Long): Unit = {
+        if (entry.wheel ne null)
+            throw new IllegalArgumentException("The entry is already scheduled")
+        entry.wheel = this
+        // Round up, so that an entry never expires before its deadline
+        entry.wheelDeadline = (deadlineMillis + tickMillis - 1) / tickMillis
+        link(entry)
+        count += 1
+    }
+
+    /**
+     * Cancels a scheduled entry. Returns false if the entry was not scheduled
+     * in this wheel.
+     */
+    def remove(entry: T): Boolean =
+        if (entry.wheel eq this) {
+            unlink(entry)
+            count -= 1
+            true
+        } else {
+            false
+        }
+
+    /**
+     * Removes and returns an entry whose deadline is not after the specified
+     * time, or null if there is none.
+     */
+    def poll(nowMillis: Long): T = {
+        val now = nowMillis / tickMillis
+        while (cursor <= now) {
+            val index = (cursor & SlotMask).toInt
+            val pending = occupied(0) & (-1L << index)
+            if ((pending & (1L << index)) != 0)
+                return take(index)
+
+            // Skip to the next non-empty slot, or to the end of the wheel
+            val next = if (pending != 0)
+                           cursor - index + JLong.numberOfTrailingZeros(pending)
+                       else
+                           (cursor | SlotMask) + 1
+            if (next > now) {
+                cursor = now
+                return null
+            }
+            cursor = next
+            if ((cursor & SlotMask) == 0)
+                cascade(1)
+        }
+        null
+    }
+
+    /**
+     * Removes and returns an entry from the earliest non-empty slot of the
+     * lowest non-empty level, or null if the wheel is empty. This is an
+     * approximation of the entry with the earliest deadline: the order among
+     * the entries of a slot, and across levels, is not taken into account.
+     */
+    def pollEarliest(): T = {
+        if (count == 0)
+            return null
+        var level = 0
+        while (level < Levels) {
+            if (occupied(level) != 0) {
+                // The current slot of the upper levels was cascaded when it
+                // was reached, so any entry there belongs to the next round.
+                val first = ((cursor >>> (SlotBits * level)) & SlotMask).toInt +
+                            (if (level == 0) 0 else 1)
+                val offset = JLong.numberOfTrailingZeros(
+                    JLong.rotateRight(occupied(level), first))
+                return take(level * Slots + ((first + offset) & SlotMask.toInt))
+            }
+            level += 1
+        }
+        null
+    }
+
+    private def take(slot: Int): T = {
+        val entry = slots(slot)
+        unlink(entry)
+        count -= 1
+        entry.asInstanceOf[T]
+    }
+
+    private def cascade(level: Int): Unit = {
+        val index = ((cursor >>> (SlotBits * level)) & SlotMask).toInt
+        if (index == 0 && level + 1 < Levels)
+            cascade(level + 1)
+
+        val slot = level * Slots + index
+        var entry = slots(slot)
+        slots(slot) = null
+        occupied(level) &= ~(1L << index)
+        while (entry ne null) {
+            val next = entry.wheelNext
+            link(entry)
+            entry = next
+        }
+    }
+
+    private def link(entry: Entry): Unit = {
+        var deadline = math.max(entry.wheelDeadline, cursor)
+        val delta = deadline - cursor
+        if (delta >= MaxSpan)
+            deadline = cursor + MaxSpan - 1
+        var level = 0
+        while (level < Levels - 1 && (delta >>> (SlotBits * (level + 1))) != 0)
+            level += 1
+        val index = ((deadline >>> (SlotBits * level)) & SlotMask).toInt
+        val slot = level * Slots + index
+
+        val head = slots(slot)
+        entry.wheelSlot = slot
+        entry.wheelPrev = null
+        entry.wheelNext = head
+        if (head ne null)
+            head.wheelPrev = entry
+        slots(slot) = entry
+        occupied(level) |= 1L << index
+    }
+
+    private def unlink(entry: Entry): Unit = {
+        val slot = entry.wheelSlot
+        val prev = entry.wheelPrev
+        val next = entry.wheelNext
+        if (prev ne null)
+            prev.wheelNext = next
+        else
+            slots(slot) = next
+        if (next ne null)
+            next.wheelPrev = prev
+        if (slots(slot) eq null)
+            occupied(slot >>> SlotBits) &= ~(1L << (slot & SlotMask.toInt))
+        entry.wheel = null
+        entry.wheelPrev = null
+        entry.wheelNext = null
+    }
+}
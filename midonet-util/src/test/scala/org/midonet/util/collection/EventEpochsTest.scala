@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+
+import org.scalatest.{GivenWhenThen, Matchers, FeatureSpec}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class EventEpochsTest extends FeatureSpec with GivenWhenThen with Matchers {
+
+    scenario("Events are seen after the epoch at which they happened") {
+        Given("An empty event history")
+        val epochs = new EventEpochs[Int](16, 16)
+        epochs.latest should be (0)
+        epochs.existsSince(0, Set(1)) should be (false)
+
+        When("Two events happen")
+        epochs.put(1)
+        val lastSeen = epochs.latest
+        epochs.put(2)
+
+        Then("The epoch is the number of events")
+        epochs.latest should be (2)
+
+        And("Only the events after the last seen epoch exist since it")
+        epochs.existsSince(lastSeen, Set(1)) should be (false)
+        epochs.existsSince(lastSeen, Set(2)) should be (true)
+        epochs.existsSince(lastSeen, Set(1, 2, 3)) should be (true)
+        epochs.existsSince(lastSeen, Set(3)) should be (false)
+        epochs.existsSince(0, Set(1)) should be (true)
+        epochs.existsSince(epochs.latest, Set(1, 2)) should be (false)
+    }
+
+    scenario("An event that happens again has its latest epoch") {
+        val epochs = new EventEpochs[Int](16, 16)
+        epochs.put(1)
+        val lastSeen = epochs.latest
+        epochs.put(2)
+        epochs.existsSince(lastSeen, Set(1)) should be (false)
+        epochs.put(1)
+        epochs.existsSince(lastSeen, Set(1)) should be (true)
+    }
+
+    scenario("Events are never missed, regardless of how many happen") {
+        Given("A history with a capacity much smaller than the events")
+        val capacity = 64
+        val epochs = new EventEpochs[Int](capacity, 16)
+
+        When("Many more events than the capacity happen")
+        val lastSeen = epochs.latest
+        val firstBatch = 0 until 10000
+        firstBatch foreach epochs.put
+        val midpoint = epochs.latest
+        val secondBatch = 10000 until 20000
+        secondBatch foreach epochs.put
+
+        Then("All the events exist since before they happened")
+        for (event <- firstBatch ++ secondBatch) {
+            epochs.existsSince(lastSeen, Set(event)) should be (true)
+        }
+        for (event <- secondBatch) {
+            epochs.existsSince(midpoint, Set(event)) should be (true)
+        }
+
+        And("The recent events that didn't happen again are not seen")
+        epochs.existsSince(epochs.latest - 1, Set(20000 - 2)) should be (false)
+        epochs.existsSince(epochs.latest, Set(20000 - 1)) should be (false)
+    }
+}
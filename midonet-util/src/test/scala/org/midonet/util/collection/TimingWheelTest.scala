@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.collection.mutable
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{Matchers, FeatureSpec}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TimingWheelTest extends FeatureSpec with Matchers {
+
+    class Timer(val deadline: Long) extends TimingWheel.Entry
+
+    def drain(wheel: TimingWheel[Timer], now: Long): Seq[Timer] = {
+        val expired = mutable.ArrayBuffer[Timer]()
+        var timer: Timer = null
+        while ({ timer = wheel.poll(now); timer } ne null)
+            expired += timer
+        expired
+    }
+
+    feature("TimingWheel expires entries") {
+        scenario("entries expire at their deadline") {
+            val wheel = new TimingWheel[Timer](10, 0)
+            val timers = Seq(5L, 15L, 700L, 50000L, 3000000L) map (new Timer(_))
+            timers foreach { t => wheel.add(t, t.deadline) }
+            wheel.size should be (5)
+
+            drain(wheel, 9) should be (Seq())
+            drain(wheel, 10) should be (Seq(timers(0)))
+            drain(wheel, 19) should be (Seq())
+            drain(wheel, 20) should be (Seq(timers(1)))
+            drain(wheel, 699) should be (Seq())
+            drain(wheel, 700) should be (Seq(timers(2)))
+            drain(wheel, 49990) should be (Seq())
+            drain(wheel, 50000) should be (Seq(timers(3)))
+            drain(wheel, 2999999) should be (Seq())
+            drain(wheel, 3000000) should be (Seq(timers(4)))
+            wheel.size should be (0)
+            wheel.isEmpty should be (true)
+        }
+
+        scenario("entries in the past expire at the next poll") {
+            val wheel = new TimingWheel[Timer](1, 1000)
+            val timer = new Timer(0)
+            wheel.add(timer, timer.deadline)
+            drain(wheel, 1000) should be (Seq(timer))
+        }
+
+        scenario("entries beyond the span of the wheel are rescheduled") {
+            val wheel = new TimingWheel[Timer](1, 0)
+            val timer = new Timer(TimingWheel.MaxSpan * 3 + 5)
+            wheel.add(timer, timer.deadline)
+            drain(wheel, TimingWheel.MaxSpan * 3 + 4) should be (Seq())
+            timer.isScheduled should be (true)
+            drain(wheel, TimingWheel.MaxSpan * 3 + 5) should be (Seq(timer))
+            timer.isScheduled should be (false)
+        }
+
+        scenario("random deadlines expire in order of their tick") {
+            val random = new Random(42)
+            val wheel = new TimingWheel[Timer](1, 0)
+            val timers = (1 to 10000) map { _ =>
+                new Timer(random.nextInt(1 << 20))
+            }
+            timers foreach { t => wheel.add(t, t.deadline) }
+
+            var now = 0L
+            var expired = 0
+            while (now < (1 << 20)) {
+                now += random.nextInt(5000)
+                for (timer <- drain(wheel, now)) {
+                    timer.deadline should be <= now
+                    timer.deadline should be > (now - 5000)
+                    expired += 1
+                }
+                wheel.size should be (timers.count(_.deadline > now))
+            }
+            expired should be (timers.size)
+        }
+    }
+
+    feature("TimingWheel cancels entries") {
+        scenario("removed entries don't expire") {
+            val wheel = new TimingWheel[Timer](1, 0)
+            val timers = (1 to 100) map (new Timer(_))
+            timers foreach { t => wheel.add(t, t.deadline) }
+            timers filter (_.deadline % 2 == 0) foreach { t =>
+                wheel.remove(t) should be (true)
+                t.isScheduled should be (false)
+            }
+            wheel.size should be (50)
+            drain(wheel, 100).map(_.deadline).sorted should be (
+                timers.map(_.deadline).filter(_ % 2 == 1))
+        }
+
+        scenario("entries can only be removed from their wheel") {
+            val wheel1 = new TimingWheel[Timer](1, 0)
+            val wheel2 = new TimingWheel[Timer](1, 0)
+            val timer = new Timer(10)
+            wheel1.add(timer, timer.deadline)
+            wheel2.remove(timer) should be (false)
+            wheel1.remove(timer) should be (true)
+            wheel1.remove(timer) should be (false)
+        }
+
+        scenario("entries can't be scheduled twice") {
+            val wheel = new TimingWheel[Timer](1, 0)
+            val timer = new Timer(10)
+            wheel.add(timer, timer.deadline)
+            intercept[IllegalArgumentException] {
+                wheel.add(timer, timer.deadline)
+            }
+        }
+    }
+
+    feature("TimingWheel polls the earliest entries") {
+        scenario("entries are polled in order across levels") {
+            val wheel = new TimingWheel[Timer](1, 0)
+            val timers = Seq(100000L, 30L, 5000L, 2L, 300L) map (new Timer(_))
+            timers foreach { t => wheel.add(t, t.deadline) }
+            val polled = (1 to 5) map { _ => wheel.pollEarliest().deadline }
+            polled should be (Seq(2L, 30L, 300L, 5000L, 100000L))
+            wheel.pollEarliest() should be (null)
+        }
+
+        scenario("the earliest entry follows the wheel's current position") {
+            val wheel = new TimingWheel[Timer](1, 0)
+            drain(wheel, 100)
+            val late = new Timer(100 + 4090)
+            val early = new Timer(100 + 200)
+            wheel.add(late, late.deadline)
+            wheel.add(early, early.deadline)
+            wheel.pollEarliest() should be (early)
+            wheel.pollEarliest() should be (late)
+        }
+    }
+}
@@ -66,6 +66,10 @@ public abstract class AbstractNetlinkConnection {
     private ByteBuffer reply =
         BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
 
+    // The buffers of batched reads, which receive several datagrams at once.
+    // Null when reading one datagram at a time.
+    private ByteBuffer[] replies = null;
+
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
     protected BatchCollector<Runnable> dispatcher;
@@ -130,6 +134,22 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    /**
+     * Sets how many datagrams each read off the channel receives at most,
+     * with a single system call. Each datagram takes a read buffer of its
+     * own.
+     */
+    public void setReadBatchSize(int size) {
+        if (size <= 1) {
+            replies = null;
+        } else {
+            replies = new ByteBuffer[size];
+            replies[0] = reply;
+            for (int i = 1; i < size; i++)
+                replies[i] = BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+        }
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
@@ -376,9 +396,27 @@ public abstract class AbstractNetlinkConnection {
     private synchronized int processReadFromChannel(final Bucket bucket)
             throws IOException {
 
+        if (replies != null)
+            return processBatchFromChannel(bucket);
+
         reply.clear();
         int nbytes = channel.read(reply);
+        processReply(reply, bucket);
+        return nbytes;
+    }
+
+    private int processBatchFromChannel(final Bucket bucket)
+            throws IOException {
 
+        for (ByteBuffer buf : replies)
+            buf.clear();
+        int ndatagrams = channel.receive(replies);
+        for (int i = 0; i < ndatagrams; i++)
+            processReply(replies[i], bucket);
+        return ndatagrams;
+    }
+
+    private void processReply(final ByteBuffer reply, final Bucket bucket) {
         reply.flip(); // sets the effective final limit for any number of msgs
         reply.mark();
         int finalLimit = reply.limit();
@@ -447,7 +485,6 @@ public abstract class AbstractNetlinkConnection {
             reply.limit(finalLimit);
             reply.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
@@ -28,6 +28,7 @@ public class MockNetlinkChannel extends NetlinkChannel {
 
     public Queue<ByteBuffer> written = new LinkedList<>();
     public AtomicInteger packetsWritten = new AtomicInteger();
+    public AtomicInteger writeCalls = new AtomicInteger();
     public Queue<ByteBuffer> toRead = new LinkedList<>();
 
     public Netlink.Address address;
@@ -75,13 +76,38 @@ public class MockNetlinkChannel extends NetlinkChannel {
         return nbytes;
     }
 
+    @Override
+    public int receive(ByteBuffer[] dsts) throws IOException {
+        int n = 0;
+        while (n < dsts.length && !toRead.isEmpty()) {
+            dsts[n].put(toRead.poll());
+            n++;
+        }
+        return n;
+    }
+
     @Override
     public int write(ByteBuffer src) throws IOException {
         written.add(src);
         packetsWritten.incrementAndGet();
+        writeCalls.incrementAndGet();
         return src.remaining();
     }
 
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        long nbytes = 0;
+        for (ByteBuffer src : srcs) {
+            if (src.hasRemaining()) {
+                written.add(src);
+                packetsWritten.incrementAndGet();
+                nbytes += src.remaining();
+            }
+        }
+        writeCalls.incrementAndGet();
+        return nbytes;
+    }
+
     @Override
     protected void implCloseSelectableChannel() {
 
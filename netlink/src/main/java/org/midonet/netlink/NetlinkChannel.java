@@ -137,6 +137,21 @@ public class NetlinkChannel extends UnixChannel<Netlink.Address> {
         }
     }
 
+    /** Joins a multicast group of the channel's protocol, such as the
+     *  rtnetlink group of link notifications. */
+    public void addMembership(int group) throws IOException {
+        ByteBuffer sobuf = BytesUtil.instance.allocate(4);
+        sobuf.putInt(group);
+        int sockoptret = cLibrary.lib.setsockopt(
+            fdVal, cLibrary.SOL_NETLINK, cLibrary.NETLINK_ADD_MEMBERSHIP,
+            sobuf, 4);
+        if (sockoptret != 0) {
+            throw new IOException("failed to join netlink group " + group +
+                                  ": " + cLibrary.lib.strerror(
+                                      Native.getLastError()));
+        }
+    }
+
     protected void _executeConnect(Netlink.Address address) throws IOException {
         cLibrary.NetlinkSockAddress remote = new cLibrary.NetlinkSockAddress();
         remote.nl_family = cLibrary.AF_NETLINK;
@@ -24,6 +24,9 @@ import java.nio.channels.spi.SelectorProvider;
 import javax.annotation.Nullable;
 
 import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.nio.ch.SelectionKeyImpl;
@@ -47,6 +50,8 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
     // Used to make native read and write calls
     protected static NativeDispatcher nd = new NativeDispatcher();
 
+    private static final boolean HAS_RECVMMSG = hasFunction("recvmmsg");
+
     protected static final int ST_UNINITIALIZED = -1;
     protected static final int ST_UNCONNECTED = 0;
     protected static final int ST_CONNECTED = 1;
@@ -78,6 +83,13 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
     private long rxBytes = 0;
     private long txBytes = 0;
 
+    // The message vector of receive(), sized to the buffers it was last given
+    private cLibrary.MMsgHdr[] msgvec;
+    private cLibrary.IoVec[] iovecs;
+    private ByteBuffer[] iovBuffers;
+    private int[] iovPositions;
+    private int[] iovLimits;
+
     protected UnixChannel(SelectorProvider provider) {
         super(provider);
     }
@@ -206,6 +218,102 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         }
     }
 
+    /**
+     * Receives up to dsts.length datagrams with a single recvmmsg() call,
+     * each into the next buffer from its position, which advances by the
+     * length of the datagram. The buffers must be direct. Returns the number
+     * of datagrams received, 0 if none is available in non-blocking mode. In
+     * blocking mode, the call waits for the first datagram only. Without
+     * recvmmsg() in the C library, it receives a single datagram.
+     */
+    public int receive(ByteBuffer[] dsts) throws IOException {
+        if (!HAS_RECVMMSG)
+            return (read(dsts[0]) > 0) ? 1 : 0;
+
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            int nbytes = 0;
+            try {
+                if (!prepareRead())
+                    return 0;
+                Pointer vec = messageVector(dsts);
+                do {
+                    n = cLibrary.lib.recvmmsg(fdVal, vec, dsts.length,
+                                              cLibrary.MSG_WAITFORONE, null);
+                } while (n < 0 && Native.getLastError() == cLibrary.EINTR
+                         && isOpen());
+
+                if (n < 0) {
+                    int errno = Native.getLastError();
+                    if (errno == cLibrary.EAGAIN) {
+                        nbytes = IOStatus.UNAVAILABLE;
+                        return 0;
+                    }
+                    throw new IOException("recvmmsg() failed: " +
+                                          cLibrary.lib.strerror(errno));
+                }
+
+                for (int i = 0; i < n; i++) {
+                    int len = (Integer) msgvec[i].readField("msg_len");
+                    dsts[i].position(dsts[i].position() + len);
+                    nbytes += len;
+                }
+                normalizeAndCountRxBytes(nbytes);
+                return n;
+            } finally {
+                finishRead(nbytes);
+            }
+        }
+    }
+
+    /* Points the message vector at the buffers, rewriting the native iovecs
+     * of those that changed since the last receive() only. */
+    private Pointer messageVector(ByteBuffer[] dsts) {
+        if (msgvec == null || msgvec.length != dsts.length) {
+            msgvec = (cLibrary.MMsgHdr[])
+                new cLibrary.MMsgHdr().toArray(dsts.length);
+            iovecs = (cLibrary.IoVec[])
+                new cLibrary.IoVec().toArray(dsts.length);
+            iovBuffers = new ByteBuffer[dsts.length];
+            iovPositions = new int[dsts.length];
+            iovLimits = new int[dsts.length];
+            for (int i = 0; i < dsts.length; i++) {
+                msgvec[i].msg_hdr.msg_iov = iovecs[i].getPointer();
+                msgvec[i].msg_hdr.msg_iovlen = new NativeLong(1);
+                msgvec[i].write();
+            }
+        }
+
+        for (int i = 0; i < dsts.length; i++) {
+            ByteBuffer dst = dsts[i];
+            if (dst != iovBuffers[i] || dst.position() != iovPositions[i] ||
+                dst.limit() != iovLimits[i]) {
+                if (!dst.isDirect())
+                    throw new IllegalArgumentException(
+                        "recvmmsg() needs direct buffers");
+                iovecs[i].iov_base =
+                    Native.getDirectBufferPointer(dst).share(dst.position());
+                iovecs[i].iov_len = new NativeLong(dst.remaining());
+                iovecs[i].write();
+                iovBuffers[i] = dst;
+                iovPositions[i] = dst.position();
+                iovLimits[i] = dst.limit();
+            }
+        }
+        return msgvec[0].getPointer();
+    }
+
+    private static boolean hasFunction(String name) {
+        try {
+            NativeLibrary.getInstance("c").getFunction(name);
+            return true;
+        } catch (UnsatisfiedLinkError e) {
+            log.info("{}() is not available in the C library", name);
+            return false;
+        }
+    }
+
     private boolean prepareWrite() {
         begin();
         if (isOpen()) {
@@ -19,6 +19,8 @@ import java.nio.ByteBuffer;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.ByValue;
 import com.sun.jna.ptr.IntByReference;
@@ -49,6 +51,27 @@ public interface cLibrary extends Library {
         public UnixPathByVal sun_path;
     }
 
+    public static class IoVec extends Structure {
+        public Pointer iov_base;
+        public NativeLong iov_len;
+    }
+
+    public static class MsgHdr extends Structure {
+        public Pointer msg_name;
+        public int msg_namelen;
+        public Pointer msg_iov;
+        public NativeLong msg_iovlen;
+        public Pointer msg_control;
+        public NativeLong msg_controllen;
+        public int msg_flags;
+    }
+
+    /* An element of the message vector of recvmmsg() */
+    public static class MMsgHdr extends Structure {
+        public MsgHdr msg_hdr;
+        public int msg_len;
+    }
+
     public static final int AF_UNIX = 1;
     public static final int AF_INET = 2;
     public static final int AF_INET6 = 10;
@@ -84,6 +107,12 @@ public interface cLibrary extends Library {
     public static final int NETLINK_BROADCAST_ERROR = 4;
     public static final int NETLINK_NO_ENOBUFS = 5;
 
+    public static final int MSG_DONTWAIT = 0x40;
+    public static final int MSG_WAITFORONE = 0x10000;
+
+    public static final int EINTR = 4;
+    public static final int EAGAIN = 11;
+
     int socket(int domain, int type, int protocol);
 
     int connect(int fd, NetlinkSockAddress addrSockAddress, int size);
@@ -108,6 +137,8 @@ public interface cLibrary extends Library {
 
     int recv(int fd, ByteBuffer buf, int len, int flags);
 
+    int recvmmsg(int fd, Pointer msgvec, int vlen, int flags, Pointer timeout);
+
     int getpagesize();
 
     int close(long l);
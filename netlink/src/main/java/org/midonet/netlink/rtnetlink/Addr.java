@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.Reader;
+
+/**
+ * An IPv4 or IPv6 address of a link of the host, as reported by RTM_NEWADDR
+ * and RTM_DELADDR messages.
+ */
+public class Addr {
+
+    /* Size of struct ifaddrmsg */
+    public static final int HEADER_SIZE = 8;
+
+    public interface Attr {
+        short ADDRESS = (short) 1;
+        short LOCAL = (short) 2;
+    }
+
+    private final int index;
+    private final int prefixLen;
+    private final InetAddress address;
+
+    public Addr(int index, int prefixLen, InetAddress address) {
+        this.index = index;
+        this.prefixLen = prefixLen;
+        this.address = address;
+    }
+
+    /** The index of the link the address belongs to. */
+    public int getIndex() {
+        return index;
+    }
+
+    public int getPrefixLen() {
+        return prefixLen;
+    }
+
+    /** The local address, or null if the message had none. */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /** Builds an Addr from the payload of an address message. Consumes the
+     *  underlying ByteBuffer. */
+    public static Addr buildFrom(ByteBuffer buf) {
+        int start = buf.position();
+        buf.get();                      // family
+        int prefixLen = buf.get() & 0xff;
+        buf.get();                      // flags
+        buf.get();                      // scope
+        int index = buf.getInt();
+        buf.position(start + HEADER_SIZE);
+
+        // The local attribute is the address of point to point links, whose
+        // address attribute is the one of the peer.
+        int pos = NetlinkMessage.seekAttribute(buf, Attr.LOCAL);
+        if (pos < 0)
+            pos = NetlinkMessage.seekAttribute(buf, Attr.ADDRESS);
+        InetAddress address = null;
+        if (pos >= 0) {
+            byte[] bytes = new byte[buf.getShort(pos - 4) - 4];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buf.get(pos + i);
+            }
+            try {
+                address = InetAddress.getByAddress(bytes);
+            } catch (UnknownHostException e) {
+                // Neither 4 nor 16 bytes long, leave it out
+            }
+        }
+        buf.position(buf.limit());
+
+        return new Addr(index, prefixLen, address);
+    }
+
+    /** Stateless static deserializer which builds a single Addr instance
+     *  and consumes the given ByteBuffer. */
+    public static final Reader<Addr> deserializer = new Reader<Addr>() {
+        public Addr deserializeFrom(ByteBuffer buf) {
+            if (buf == null)
+                return null;
+            return buildFrom(buf);
+        }
+    };
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Addr))
+            return false;
+        Addr that = (Addr) o;
+        return index == that.index && prefixLen == that.prefixLen &&
+               Objects.equals(address, that.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, prefixLen, address);
+    }
+
+    @Override
+    public String toString() {
+        return "Addr{index=" + index + ", address=" + address + "/" +
+               prefixLen + '}';
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.netlink.Reader;
+
+/**
+ * A network link of the host, as reported by RTM_NEWLINK and RTM_DELLINK
+ * messages: the ifinfomsg header and the attributes that the interface
+ * scanner uses.
+ */
+public class Link {
+
+    /* Size of struct ifinfomsg */
+    public static final int HEADER_SIZE = 16;
+
+    public interface Attr {
+        short ADDRESS = (short) 1;
+        short IFNAME = (short) 3;
+        short MTU = (short) 4;
+        short MASTER = (short) 10;
+        short LINKINFO = (short) 18;
+    }
+
+    /* Attributes nested in LINKINFO */
+    public interface InfoAttr {
+        short KIND = (short) 1;
+    }
+
+    public interface Flag {
+        int IFF_UP = 0x1;
+        int IFF_LOOPBACK = 0x8;
+        int IFF_LOWER_UP = 0x10000;
+    }
+
+    private final int index;
+    private final int flags;
+    private final String name;
+    private final int mtu;
+    private final byte[] address;
+    private final int master;
+    private final String kind;
+
+    public Link(int index, int flags, String name, int mtu, byte[] address,
+                int master, String kind) {
+        this.index = index;
+        this.flags = flags;
+        this.name = name;
+        this.mtu = mtu;
+        this.address = address;
+        this.master = master;
+        this.kind = kind;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /** The link layer address, or null if the link has none. */
+    public byte[] getAddress() {
+        return address;
+    }
+
+    /** The index of the link this one is enslaved to, or 0. */
+    public int getMaster() {
+        return master;
+    }
+
+    /** The kind of virtual link, such as "tun" or "openvswitch", or null
+     *  for the links that don't have one, such as physical ones. */
+    public String getKind() {
+        return kind;
+    }
+
+    public boolean isUp() {
+        return (flags & Flag.IFF_UP) != 0;
+    }
+
+    public boolean hasLink() {
+        return (flags & Flag.IFF_LOWER_UP) != 0;
+    }
+
+    public boolean isLoopback() {
+        return (flags & Flag.IFF_LOOPBACK) != 0;
+    }
+
+    /** Builds a Link from the payload of a link message. Consumes the
+     *  underlying ByteBuffer. */
+    public static Link buildFrom(ByteBuffer buf) {
+        int start = buf.position();
+        buf.getShort();                 // family and padding
+        buf.getShort();                 // device type
+        int index = buf.getInt();
+        int flags = buf.getInt();
+        buf.position(start + HEADER_SIZE);
+
+        String name = NetlinkMessage.readStringAttr(buf, Attr.IFNAME);
+        int mtuPos = NetlinkMessage.seekAttribute(buf, Attr.MTU);
+        int mtu = mtuPos < 0 ? 0 : buf.getInt(mtuPos);
+        int masterPos = NetlinkMessage.seekAttribute(buf, Attr.MASTER);
+        int master = masterPos < 0 ? 0 : buf.getInt(masterPos);
+
+        byte[] address = null;
+        int addrPos = NetlinkMessage.seekAttribute(buf, Attr.ADDRESS);
+        if (addrPos >= 0) {
+            address = new byte[buf.getShort(addrPos - 4) - 4];
+            for (int i = 0; i < address.length; i++) {
+                address[i] = buf.get(addrPos + i);
+            }
+        }
+
+        String kind = null;
+        int infoPos = NetlinkMessage.seekAttribute(buf, Attr.LINKINFO);
+        if (infoPos >= 0) {
+            int end = buf.limit();
+            buf.position(infoPos);
+            buf.limit(infoPos + buf.getShort(infoPos - 4) - 4);
+            kind = NetlinkMessage.readStringAttr(buf, InfoAttr.KIND);
+            buf.limit(end);
+        }
+        buf.position(buf.limit());
+
+        return new Link(index, flags, name, mtu, address, master, kind);
+    }
+
+    /** Stateless static deserializer which builds a single Link instance
+     *  and consumes the given ByteBuffer. */
+    public static final Reader<Link> deserializer = new Reader<Link>() {
+        public Link deserializeFrom(ByteBuffer buf) {
+            if (buf == null)
+                return null;
+            return buildFrom(buf);
+        }
+    };
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Link))
+            return false;
+        Link that = (Link) o;
+        return index == that.index && flags == that.flags &&
+               mtu == that.mtu && master == that.master &&
+               Objects.equals(name, that.name) &&
+               Arrays.equals(address, that.address) &&
+               Objects.equals(kind, that.kind);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(index, flags, name, mtu, master, kind) * 31 +
+               Arrays.hashCode(address);
+    }
+
+    @Override
+    public String toString() {
+        return "Link{" +
+               "index=" + index +
+               ", name='" + name + '\'' +
+               ", flags=0x" + Integer.toHexString(flags) +
+               ", mtu=" + mtu +
+               ", master=" + master +
+               ", kind=" + kind +
+               '}';
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.netlink.rtnetlink;
+
+import java.nio.ByteBuffer;
+
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NetlinkMessage;
+
+/**
+ * Constants of the rtnetlink protocol, through which the kernel reports the
+ * links and addresses of the host, and the requests to dump them.
+ * See include/uapi/linux/rtnetlink.h in Linux kernel sources.
+ */
+public final class Rtnetlink {
+    private Rtnetlink() {}
+
+    /* Message types */
+    public interface Type {
+        short NEWLINK = (short) 16;
+        short DELLINK = (short) 17;
+        short GETLINK = (short) 18;
+        short NEWADDR = (short) 20;
+        short DELADDR = (short) 21;
+        short GETADDR = (short) 22;
+    }
+
+    /* Multicast groups, see NetlinkChannel#addMembership */
+    public interface Group {
+        int LINK = 1;
+        int IPV4_IFADDR = 5;
+        int IPV6_IFADDR = 9;
+    }
+
+    /** Writes a request to dump all the links or all the addresses of the
+     *  host, for a GETLINK or GETADDR message type, and returns the number of
+     *  bytes written. The family of the request header is left AF_UNSPEC. */
+    public static int writeDumpRequest(ByteBuffer buf, short type, int seq) {
+        int headerSize = (type == Type.GETLINK) ? Link.HEADER_SIZE
+                                                : Addr.HEADER_SIZE;
+        int size = NetlinkMessage.HEADER_SIZE + headerSize;
+        buf.putInt(size);
+        buf.putShort(type);
+        buf.putShort((short) (NLFlag.REQUEST | NLFlag.Get.DUMP));
+        buf.putInt(seq);
+        buf.putInt(0);
+        for (int i = 0; i < headerSize; i++) {
+            buf.put((byte) 0);
+        }
+        return size;
+    }
+}
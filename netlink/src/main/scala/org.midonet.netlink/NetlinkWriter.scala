@@ -70,3 +70,83 @@ class NetlinkBlockingWriter(channel: NetlinkChannel) extends NetlinkWriter(chann
         nbytes
     }
 }
+
+object NetlinkBatchWriter {
+    val DefaultMaxMessages = 64
+    val DefaultMaxBytes = 32 * 1024
+
+    private val Empty = BytesUtil.instance.allocateDirect(0)
+}
+
+/**
+ * Gathers Netlink messages and writes them into the channel with a single
+ * vectored write. The messages make up one datagram, which the kernel
+ * processes message by message, acknowledging each error separately. A batch
+ * holds at most maxMessages messages and, unless it is a single message, at
+ * most maxBytes bytes, so that it fits in the socket's send buffer.
+ *
+ * The batch references the buffers of the messages, which must not be
+ * modified until it is written. Writing the batch leaves their position and
+ * limit untouched.
+ */
+class NetlinkBatchWriter(val channel: NetlinkChannel,
+                         maxMessages: Int = NetlinkBatchWriter.DefaultMaxMessages,
+                         maxBytes: Int = NetlinkBatchWriter.DefaultMaxBytes) {
+    import NetlinkBatchWriter._
+
+    private val timeout = (100 millis).toMillis
+    private val selector = channel.selector()
+
+    /* Unused slots hold an empty buffer, which the vectored write skips */
+    private val buffers = Array.fill[ByteBuffer](maxMessages)(Empty)
+    private val positions = new Array[Int](maxMessages)
+    private var count = 0
+    private var bytes = 0
+
+    def size: Int = count
+
+    def isEmpty: Boolean = count == 0
+
+    /**
+     * Adds a message to the batch, unless the batch is full. Returns whether
+     * the message was added.
+     */
+    def add(src: ByteBuffer): Boolean = {
+        if (count == maxMessages ||
+            (count > 0 && bytes + src.remaining() > maxBytes))
+            return false
+        buffers(count) = src
+        positions(count) = src.position()
+        count += 1
+        bytes += src.remaining()
+        true
+    }
+
+    /**
+     * Writes the batch into the channel and empties it, blocking regardless
+     * of the channel mode while the write doesn't succeed. Returns the amount
+     * of bytes written.
+     */
+    @throws(classOf[IOException])
+    def write(): Long = {
+        if (count == 0)
+            return 0
+        try {
+            var nbytes = 0L
+            while ({ nbytes = channel.write(buffers); nbytes } == 0 &&
+                   channel.isOpen) {
+                selector.select(timeout)
+            }
+            nbytes
+        } finally {
+            var i = 0
+            while (i < count) {
+                buffers(i).position(positions(i))
+                buffers(i) = Empty
+                i += 1
+            }
+            count = 0
+            bytes = 0
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+import scala.collection.JavaConversions._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+@RunWith(classOf[JUnitRunner])
+class NetlinkBatchWriterTest extends FeatureSpec with Matchers {
+
+    def channel() = new MockNetlinkChannel(Netlink.selectorProvider,
+                                           NetlinkProtocol.NETLINK_GENERIC)
+
+    def message(size: Int, pos: Int = 0) = {
+        val buf = BytesUtil.instance.allocateDirect(size + pos)
+        buf.position(pos)
+        buf
+    }
+
+    feature ("NetlinkBatchWriter gathers messages") {
+        scenario ("A batch is written with a single call") {
+            val ch = channel()
+            val writer = new NetlinkBatchWriter(ch)
+            val msgs = (1 to 10) map { i => message(100 * i, i) }
+
+            msgs foreach { msg => writer.add(msg) shouldBe true }
+            writer.size shouldBe 10
+            writer.write() shouldBe msgs.map(_.remaining).sum
+
+            ch.writeCalls.get shouldBe 1
+            ch.packetsWritten.get shouldBe 10
+            ch.written.toList shouldBe msgs.toList
+            writer.isEmpty shouldBe true
+            writer.write() shouldBe 0
+            ch.writeCalls.get shouldBe 1
+        }
+
+        scenario ("Writing leaves the buffers untouched") {
+            val ch = new MockNetlinkChannel(Netlink.selectorProvider,
+                                            NetlinkProtocol.NETLINK_GENERIC) {
+                override def write(srcs: Array[ByteBuffer]): Long = {
+                    val nbytes = super.write(srcs)
+                    srcs foreach { src => src.position(src.limit()) }
+                    nbytes
+                }
+            }
+            val writer = new NetlinkBatchWriter(ch)
+            val msg = message(100, 20)
+
+            writer.add(msg)
+            writer.write() shouldBe 100
+            msg.position shouldBe 20
+            msg.limit shouldBe 120
+        }
+
+        scenario ("A batch is bounded by the number of messages") {
+            val writer = new NetlinkBatchWriter(channel(), maxMessages = 4)
+
+            (1 to 4) foreach { _ => writer.add(message(10)) shouldBe true }
+            writer.add(message(10)) shouldBe false
+            writer.write()
+            writer.add(message(10)) shouldBe true
+        }
+
+        scenario ("A batch is bounded by its size") {
+            val writer = new NetlinkBatchWriter(channel(), maxBytes = 1000)
+
+            writer.add(message(600)) shouldBe true
+            writer.add(message(400)) shouldBe true
+            writer.add(message(1)) shouldBe false
+            writer.write() shouldBe 1000
+
+            writer.add(message(2000)) shouldBe true
+            writer.add(message(1)) shouldBe false
+            writer.write() shouldBe 2000
+        }
+
+        scenario ("A failed write empties the batch") {
+            val ch = new MockNetlinkChannel(Netlink.selectorProvider,
+                                            NetlinkProtocol.NETLINK_GENERIC) {
+                override def write(srcs: Array[ByteBuffer]): Long =
+                    throw new IOException("EMSGSIZE")
+            }
+            val writer = new NetlinkBatchWriter(ch)
+
+            writer.add(message(10))
+            intercept[IOException] { writer.write() }
+            writer.isEmpty shouldBe true
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.midonet.odp;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Objects;
 
 import org.slf4j.Logger;
@@ -30,11 +31,14 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
- * via a kernel notification.
+ * via a kernel notification. The data is only parsed into an {@link Ethernet}
+ * when the packet's headers or payload are asked for, most packets are
+ * simulated with the FlowMatch alone.
  *
  * @see FlowMatch
  */
@@ -51,6 +55,7 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -61,12 +66,41 @@ public class Packet {
         this.match = match;
     }
 
+    /**
+     * A packet received from the datapath, whose Ethernet frame is parsed
+     * from data on demand.
+     */
+    public Packet(byte[] data, FlowMatch match) {
+        this.data = data;
+        this.match = match;
+    }
+
+    /**
+     * The Ethernet frame of this packet, parsed the first time it's asked
+     * for. Changes to it are reflected in the data of the packet.
+     *
+     * @throws IllegalArgumentException if the data is not a valid frame.
+     */
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            try {
+                eth = Ethernet.deserialize(data);
+            } catch (MalformedPacketException e) {
+                throw new IllegalArgumentException("Malformed packet", e);
+            }
+        }
         return eth;
     }
 
+    /**
+     * Whether the Ethernet frame of this packet has been parsed.
+     */
+    public boolean isParsed() {
+        return eth != null;
+    }
+
     public byte[] getData() {
-        return eth.serialize();
+        return eth != null ? eth.serialize() : data;
     }
 
     public FlowMatch getMatch() {
@@ -98,15 +132,17 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Arrays.equals(this.getData(), that.getData())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
     }
 
+    /* equals() and hashCode() work on the frame bytes rather than on the
+     * Ethernet, so that they never parse the data, which may be malformed. */
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Arrays.hashCode(getData());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -116,7 +152,9 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + (eth != null ? eth
+                                   : data == null ? null
+                                   : data.length + " bytes") +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
@@ -322,6 +322,18 @@ public class FlowKeys {
         return keys;
     }
 
+    /**
+     * Whether addUserspaceKeys() would add keys to the given ones, that is,
+     * whether the packet they match needs to be parsed for its ICMP fields.
+     */
+    public static boolean hasUserspaceKeys(ArrayList<FlowKey> keys) {
+        for (int i = 0; i < keys.size(); ++i) {
+            if (keys.get(i) instanceof FlowKeyICMP)
+                return true;
+        }
+        return false;
+    }
+
     public static void addUserspaceKeys(Ethernet ethPkt, ArrayList<FlowKey> keys) {
         for (int i = 0; i < keys.size(); ++i) {
             if (keys.get(i) instanceof FlowKeyICMP) {
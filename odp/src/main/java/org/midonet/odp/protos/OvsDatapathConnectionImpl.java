@@ -16,7 +16,6 @@
 package org.midonet.odp.protos;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -71,20 +70,32 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
 
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private byte[] data;
         private Long userData;
 
+        /* The packet's FlowMatch is built from the flow keys the datapath
+         * extracted, its frame is only parsed when the simulation needs it
+         * or when the keys need the ICMP fields that only userspace sees. */
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
-                keys.clear();
-                return null;
+            Packet p = null;
+            if (data != null) {
+                try {
+                    Ethernet eth = null;
+                    if (FlowKeys.hasUserspaceKeys(keys)) {
+                        eth = Ethernet.deserialize(data);
+                        FlowKeys.addUserspaceKeys(eth, keys);
+                    }
+                    FlowMatch match = new FlowMatch(keys);
+                    p = eth != null ? new Packet(eth, match)
+                                    : new Packet(data, match);
+                    p.setUserData(userData);
+                } catch (Exception e) {
+                    log.warn("Dropping malformed packet", e);
+                }
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys));
-            p.setUserData(userData);
-            eth = null;
+            data = null;
             keys.clear();
             userData = null;
             return p;
@@ -94,16 +105,8 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
-                    ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
-                    }
+                    data = new byte[buffer.remaining()];
+                    buffer.get(data);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
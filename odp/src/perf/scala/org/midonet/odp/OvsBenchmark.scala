@@ -16,6 +16,7 @@
 
 package org.midonet.odp
 
+import java.nio.ByteBuffer
 import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
 
 import scala.collection.JavaConversions._
@@ -23,8 +24,10 @@ import scala.concurrent.duration._
 import scala.concurrent.{Await, ExecutionContext}
 
 import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
 
-import org.midonet.netlink.{NetlinkChannel, NetlinkWriter, NetlinkChannelFactory, BytesUtil}
+import org.midonet.netlink._
+import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
 import org.midonet.odp.flows._
 import org.midonet.odp.OvsBenchmark.{FlowHolder, ChannelHolder}
 import org.midonet.odp.ports.NetDevPort
@@ -149,3 +152,98 @@ class ConcurrentFlowCreate4 extends FlowCreate
 
 @Threads(8)
 class ConcurrentFlowCreate8 extends FlowCreate
+
+object MockPacketExecute {
+    /* A channel whose writes take syscallCost tokens of CPU each */
+    class CostlyChannel(syscallCost: Long)
+        extends MockNetlinkChannel(Netlink.selectorProvider,
+                                   NetlinkProtocol.NETLINK_GENERIC) {
+
+        override def write(src: ByteBuffer): Int = {
+            Blackhole.consumeCPU(syscallCost)
+            src.remaining()
+        }
+
+        override def write(srcs: Array[ByteBuffer]): Long = {
+            Blackhole.consumeCPU(syscallCost)
+            var nbytes = 0L
+            var i = 0
+            while (i < srcs.length) {
+                nbytes += srcs(i).remaining()
+                i += 1
+            }
+            nbytes
+        }
+    }
+}
+
+/**
+ * Measures the packets executed per second by a datapath output channel over
+ * a mock channel, which models the cost of the system call of each write,
+ * when writing packet executions one by one and in batches of batchSize.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class MockPacketExecute {
+    import MockPacketExecute._
+
+    final val Packets = 64
+
+    @Param(Array("1", "8", "64"))
+    var batchSize: Int = _
+
+    @Param(Array("500", "2000"))
+    var syscallCost: Long = _
+
+    var buffers: Array[ByteBuffer] = _
+    var writer: NetlinkBlockingWriter = _
+    var batch: NetlinkBatchWriter = _
+
+    @Setup
+    def setup(): Unit = {
+        val channel = new CostlyChannel(syscallCost)
+        val families = new OvsNetlinkFamilies(new DatapathFamily(1),
+                                              new PortFamily(2),
+                                              new FlowFamily(3),
+                                              new PacketFamily(4), 5, 6)
+        val protocol = new OvsProtocol(0, families)
+        buffers = Array.fill(Packets) {
+            val payload = ({ eth src MAC.random dst MAC.random } <<
+                           { ip4 src IPv4Addr.random dst IPv4Addr.random} <<
+                           { tcp src 80 dst 1001 }).packet
+            val pkt = new Packet(payload, FlowMatches.fromEthernetPacket(payload))
+            val buf = BytesUtil.instance.allocateDirect(4 * 1024)
+            protocol.preparePacketExecute(1, pkt, List[FlowAction](FlowActions.output(1)), buf)
+            buf
+        }
+        writer = new NetlinkBlockingWriter(channel)
+        batch = if (batchSize > 1) new NetlinkBatchWriter(channel, batchSize) else null
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(64)
+    def executePackets(): Long = {
+        var nbytes = 0L
+        var i = 0
+        if (batch eq null) {
+            while (i < Packets) {
+                nbytes += writer.write(buffers(i))
+                i += 1
+            }
+        } else {
+            while (i < Packets) {
+                if (!batch.add(buffers(i))) {
+                    nbytes += batch.write()
+                    batch.add(buffers(i))
+                }
+                i += 1
+            }
+            nbytes += batch.write()
+        }
+        nbytes
+    }
+}
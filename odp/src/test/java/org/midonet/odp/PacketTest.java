@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.packets.Ethernet;
+import org.midonet.packets.IPv4;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.MAC;
+import org.midonet.packets.TCP;
+
+public class PacketTest {
+
+    private static Ethernet frame() {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(12345);
+        tcp.setDestinationPort(80);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress(IPv4Addr.stringToInt("10.0.0.1"));
+        ip.setDestinationAddress(IPv4Addr.stringToInt("10.0.0.2"));
+        ip.setProtocol(TCP.PROTOCOL_NUMBER);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress(MAC.fromString("02:00:00:00:00:01"));
+        eth.setDestinationMACAddress(MAC.fromString("02:00:00:00:00:02"));
+        eth.setEtherType(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    @Test
+    public void testFrameIsParsedOnDemand() {
+        Ethernet eth = frame();
+        byte[] data = eth.serialize();
+        Packet packet = new Packet(data, FlowMatches.fromEthernetPacket(eth));
+
+        Assert.assertFalse(packet.isParsed());
+        Assert.assertSame(data, packet.getData());
+
+        Assert.assertEquals(eth, packet.getEthernet());
+        Assert.assertTrue(packet.isParsed());
+        Assert.assertSame(packet.getEthernet(), packet.getEthernet());
+        Assert.assertEquals(new Packet(eth, packet.getMatch()), packet);
+    }
+
+    @Test
+    public void testChangesToTheFrameAreReflectedInTheData() {
+        Ethernet eth = frame();
+        Packet packet = new Packet(eth.serialize(),
+                                   FlowMatches.fromEthernetPacket(eth));
+
+        packet.getEthernet().setDestinationMACAddress(
+            MAC.fromString("02:00:00:00:00:03"));
+        eth.setDestinationMACAddress(MAC.fromString("02:00:00:00:00:03"));
+        Assert.assertArrayEquals(eth.serialize(), packet.getData());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedFrame() {
+        Packet packet = new Packet(new byte[] { 1, 2, 3 }, new FlowMatch());
+        packet.getEthernet();
+    }
+
+    @Test
+    public void testMalformedFrameCanBeHashedAndCompared() {
+        byte[] truncated = new byte[] { 1, 2, 3 };
+        Packet packet = new Packet(truncated, new FlowMatch());
+        Packet same = new Packet(truncated.clone(), new FlowMatch());
+
+        Assert.assertEquals(same.hashCode(), packet.hashCode());
+        Assert.assertEquals(same, packet);
+        Assert.assertTrue(packet.toString().contains("3 bytes"));
+        Assert.assertFalse(packet.isParsed());
+    }
+}
@@ -64,6 +64,8 @@ public class OvsPacketInTest extends AbstractNetlinkProtocolTest {
         for (int i = 0; i < 5; i++) {
             notificationHandler.setPacket(null);
             fireReply();
+            // The frame is parsed only when asked for
+            assertThat(notificationHandler.getPacket().isParsed(), is(false));
             assertThat(notificationHandler.getPacket(),
                        allOf(
                            is(notNullValue()), equalTo(expectedArpPacket())));